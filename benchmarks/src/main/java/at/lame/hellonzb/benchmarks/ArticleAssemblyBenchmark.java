@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jboss.netty.buffer.*;
+import org.jboss.netty.handler.codec.embedder.*;
+import org.openjdk.jmh.annotations.*;
+
+import at.lame.hellonzb.nntpclient.nioengine.*;
+import at.lame.hellonzb.util.BufferPool;
+
+
+/**
+ * Benchmarks the way from the socket to the decoder: splitting pipelined
+ * NNTP responses, detecting the terminating line and dot-unstuffing (all
+ * done by the NntpResponseDecoder), and collecting the article data in a
+ * RspHandler. Run with "-prof gc" to see the allocations per article; the
+ * arrays of the RspHandler are returned to the BufferPool like the 
+ * FileDecoder does.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ArticleAssemblyBenchmark 
+{
+	@Param({ "768000" })
+	public int segmentSize;
+	
+	/** number of pipelined responses per run */
+	@Param({ "4" })
+	public int articles;
+	
+	/** size of the buffers received from the socket */
+	@Param({ "1460", "65536" })
+	public int chunkSize;
+	
+	private List<byte[]> chunks;
+	private List<ChannelBuffer> bodyParts;
+	
+	
+	@Setup
+	public void setup()
+	{
+		byte [] wire = new byte[0];
+		for(int i = 0; i < articles; i++)
+		{
+			byte [] data = ArticleCorpus.randomData(segmentSize, -1, i);
+			byte [] body = ArticleCorpus.yencArticle(data, i + 1, (long) i * segmentSize, 
+					(long) articles * segmentSize, 128, ArticleCorpus.LineEnding.CRLF);
+			byte [] rsp = ArticleCorpus.nntpResponse(body, i + 1);
+			
+			byte [] tmp = Arrays.copyOf(wire, wire.length + rsp.length);
+			System.arraycopy(rsp, 0, tmp, wire.length, rsp.length);
+			wire = tmp;
+		}
+		chunks = ArticleCorpus.split(wire, chunkSize);
+		
+		// the decoded data pieces of the first article, as passed to the RspHandler
+		bodyParts = new ArrayList<ChannelBuffer>();
+		for(Object msg : decode())
+			if(msg instanceof NntpResponseData)
+			{
+				NntpResponseData data = (NntpResponseData) msg;
+				bodyParts.add(data.getData());
+				if(data.isLast())
+					break;
+			}
+	}
+	
+	/**
+	 * Decode all chunks (fresh buffers, like the ones read from the socket).
+	 */
+	private List<Object> decode()
+	{
+		DecoderEmbedder<Object> embedder = new DecoderEmbedder<Object>(new NntpResponseDecoder());
+		for(byte [] chunk : chunks)
+			embedder.offer(ChannelBuffers.wrappedBuffer(chunk));
+		
+		return Arrays.asList(embedder.pollAll());
+	}
+	
+	@Benchmark
+	public List<Object> responseDecoder()
+	{
+		return decode();
+	}
+	
+	/**
+	 * Collect the article data in a RspHandler.
+	 */
+	private ChannelBuffer assemble()
+	{
+		RspHandler handler = new RspHandler(null);
+		for(ChannelBuffer part : bodyParts)
+			handler.handleResponse(part.duplicate());
+		handler.setFinished();
+		
+		return handler.getData();
+	}
+	
+	@Benchmark
+	public int rspHandlerGetData()
+	{
+		ChannelBuffer data = assemble();
+		int length = data.readableBytes();
+		BufferPool.getInstance().release(data.array());
+		
+		return length;
+	}
+	
+	@Benchmark
+	public byte [] rspHandlerGetDataAsArray()
+	{
+		ChannelBuffer data = assemble();
+		byte [] bytes = new byte[data.readableBytes()];
+		data.getBytes(data.readerIndex(), bytes);
+		BufferPool.getInstance().release(data.array());
+		
+		return bytes;
+	}
+}
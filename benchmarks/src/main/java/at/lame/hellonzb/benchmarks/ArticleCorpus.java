@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.benchmarks;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+
+/**
+ * Generates realistic article data for the benchmarks: yEnc and UU encoded
+ * articles with configurable line length, escape density and line endings,
+ * and complete NNTP responses (status line, dot-stuffed body, terminator).
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public final class ArticleCorpus 
+{
+	/** the line endings to use in generated articles */
+	public enum LineEnding { CRLF, LF }
+	
+	/** bytes that become a critical character (NUL, LF, CR, '=') after adding 42 */
+	private static final int [] CRITICAL = new int [] { 214, 224, 227, 19 };
+	
+	
+	private ArticleCorpus()
+	{
+	}
+	
+	/**
+	 * Create random binary data.
+	 * 
+	 * @param size The number of bytes to create
+	 * @param escapeDensity The fraction of bytes that must be escaped by the 
+	 *        yEnc encoder, or a negative value for uniformly random data (~1.6%)
+	 * @param seed The seed of the random generator
+	 * @return The data
+	 */
+	public static byte [] randomData(int size, double escapeDensity, long seed)
+	{
+		Random rand = new Random(seed);
+		byte [] data = new byte[size];
+		rand.nextBytes(data);
+		
+		if(escapeDensity < 0)
+			return data;
+		
+		for(int i = 0; i < size; i++)
+		{
+			if(rand.nextDouble() < escapeDensity)
+				data[i] = (byte) CRITICAL[rand.nextInt(CRITICAL.length)];
+			else
+			{
+				while(isCritical(data[i]))
+					data[i] = (byte) rand.nextInt(256);
+			}
+		}
+		
+		return data;
+	}
+	
+	/**
+	 * Encode the data as one yEnc part (incl. =ybegin, =ypart and =yend lines),
+	 * as returned by RspHandler.getData().
+	 * 
+	 * @param data The data of this part
+	 * @param part The number of this part (1-based)
+	 * @param begin The offset of this part within the file (0-based)
+	 * @param fileSize The size of the whole file
+	 * @param lineLength The line length to use
+	 * @param eol The line ending to use
+	 * @return The encoded article
+	 */
+	public static byte [] yencArticle(byte [] data, int part, long begin, long fileSize, 
+			int lineLength, LineEnding eol)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + data.length / 16 + 256);
+		String nl = (eol == LineEnding.CRLF) ? "\r\n" : "\n";
+		
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		
+		write(out, "=ybegin part=" + part + " line=" + lineLength + " size=" + fileSize + 
+				" name=benchmark.bin" + nl);
+		write(out, "=ypart begin=" + (begin + 1) + " end=" + (begin + data.length) + nl);
+		
+		int col = 0;
+		for(int i = 0; i < data.length; i++)
+		{
+			int c = (data[i] + 42) & 0xff;
+			boolean escape = c == 0 || c == 10 || c == 13 || c == '=' ||
+				((c == 9 || c == 32) && (col == 0 || col == lineLength - 1)) ||
+				(c == '.' && col == 0);
+			
+			if(escape)
+			{
+				out.write('=');
+				c = (c + 64) & 0xff;
+				col++;
+			}
+			out.write(c);
+			col++;
+			
+			if(col >= lineLength)
+			{
+				write(out, nl);
+				col = 0;
+			}
+		}
+		if(col > 0)
+			write(out, nl);
+		
+		write(out, "=yend size=" + data.length + " part=" + part + " pcrc32=" + 
+				Long.toHexString(crc.getValue()) + nl);
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Encode the data as UU article (incl. "begin" and "end" lines).
+	 * 
+	 * @param data The data to encode
+	 * @param eol The line ending to use
+	 * @return The encoded article
+	 */
+	public static byte [] uuArticle(byte [] data, LineEnding eol)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4 / 3 + 256);
+		String nl = (eol == LineEnding.CRLF) ? "\r\n" : "\n";
+		
+		write(out, "begin 644 benchmark.bin" + nl);
+		for(int off = 0; off < data.length; off += 45)
+		{
+			int len = Math.min(45, data.length - off);
+			out.write(uuChar(len));
+			for(int i = 0; i < len; i += 3)
+			{
+				int b0 = data[off + i] & 0xff;
+				int b1 = (i + 1 < len) ? data[off + i + 1] & 0xff : 0;
+				int b2 = (i + 2 < len) ? data[off + i + 2] & 0xff : 0;
+				out.write(uuChar(b0 >> 2));
+				out.write(uuChar(((b0 << 4) | (b1 >> 4)) & 0x3f));
+				out.write(uuChar(((b1 << 2) | (b2 >> 6)) & 0x3f));
+				out.write(uuChar(b2 & 0x3f));
+			}
+			write(out, nl);
+		}
+		write(out, "`" + nl + "end" + nl);
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Create the complete NNTP response to a BODY command: status line,
+	 * dot-stuffed body and terminating line.
+	 * 
+	 * @param body The article body (must use CR LF line endings)
+	 * @param articleNum The article number to use in the status line
+	 * @return The NNTP response
+	 */
+	public static byte [] nntpResponse(byte [] body, int articleNum)
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(body.length + 128);
+		write(out, "222 " + articleNum + " <" + articleNum + "@benchmark>\r\n");
+		
+		boolean lineStart = true;
+		for(int i = 0; i < body.length; i++)
+		{
+			if(lineStart && body[i] == '.')
+				out.write('.');
+			out.write(body[i]);
+			lineStart = (body[i] == 10);
+		}
+		if(!lineStart)
+			write(out, "\r\n");
+		write(out, ".\r\n");
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Split the data into chunks, as received from the socket.
+	 * 
+	 * @param data The data to split
+	 * @param chunkSize The max. size of each chunk
+	 * @return The chunks
+	 */
+	public static List<byte[]> split(byte [] data, int chunkSize)
+	{
+		List<byte[]> chunks = new ArrayList<byte[]>();
+		for(int off = 0; off < data.length; off += chunkSize)
+			chunks.add(Arrays.copyOfRange(data, off, Math.min(data.length, off + chunkSize)));
+		
+		return chunks;
+	}
+	
+	private static boolean isCritical(byte b)
+	{
+		int c = (b + 42) & 0xff;
+		return c == 0 || c == 10 || c == 13 || c == '=';
+	}
+	
+	private static int uuChar(int c)
+	{
+		return (c == 0) ? '`' : c + 32;
+	}
+	
+	private static void write(ByteArrayOutputStream out, String s)
+	{
+		byte [] bytes = s.getBytes();
+		out.write(bytes, 0, bytes.length);
+	}
+}
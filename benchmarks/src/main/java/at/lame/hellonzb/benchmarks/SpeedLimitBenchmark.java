@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.benchmarks;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jboss.netty.bootstrap.*;
+import org.jboss.netty.buffer.*;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.socket.nio.*;
+import org.jboss.netty.handler.traffic.*;
+import org.openjdk.jmh.annotations.*;
+
+import at.lame.hellonzb.nntpclient.nioengine.*;
+
+
+/**
+ * Compares the two ways to limit the download speed: the traffic shaping 
+ * handler (checks the limit once per second) and the token bucket handler.
+ * A local server sends data as fast as possible to a number of connections,
+ * which share one speed limit. Every benchmark call samples the received 
+ * data over a short time window. Reported are:
+ *   - kilobytes: the achieved rate (KB/s), to be compared with the limit
+ *   - stalls: the number of time windows without any data (sawtooth)
+ * 
+ * @author Matthias F. Brandstetter
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpeedLimitBenchmark 
+{
+	/** length of one sample window (ms) */
+	private static final int WINDOW = 100;
+	
+	/** size of the buffers written by the server */
+	private static final int CHUNK_SIZE = 64 * 1024;
+	
+	@Param({ "traffic-shaping", "token-bucket" })
+	public String limiter;
+	
+	/** the download speed limit (KB/s) */
+	@Param({ "500", "5000", "50000" })
+	public long limit;
+	
+	@Param({ "1", "4", "16" })
+	public int connections;
+	
+	private ServerBootstrap server;
+	private ClientBootstrap client;
+	private List<Channel> channels;
+	private GlobalTrafficShapingHandler trafficHandler;
+	private ScheduledExecutorService timer;
+	private AtomicLong received;
+	
+	
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Rate
+	{
+		public long kilobytes;
+		
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			kilobytes = 0;
+		}
+	}
+	
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class Stalls
+	{
+		public long stalls;
+		
+		@Setup(Level.Iteration)
+		public void reset()
+		{
+			stalls = 0;
+		}
+	}
+	
+	
+	@Setup
+	public void setup()
+	{
+		received = new AtomicLong();
+		channels = new ArrayList<Channel>();
+		timer = Executors.newSingleThreadScheduledExecutor();
+		
+		// the server writes the next chunk as soon as the last one was sent
+		final ChannelBuffer chunk = ChannelBuffers.wrappedBuffer(ArticleCorpus.randomData(CHUNK_SIZE, -1, 1));
+		server = new ServerBootstrap(new NioServerSocketChannelFactory(
+				Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+		server.setPipelineFactory(new ChannelPipelineFactory()
+		{
+			public ChannelPipeline getPipeline()
+			{
+				return Channels.pipeline(new SimpleChannelUpstreamHandler()
+				{
+					@Override
+					public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e)
+					{
+						send(e.getChannel(), chunk);
+					}
+				});
+			}
+		});
+		Channel serverChannel = server.bind(new InetSocketAddress("127.0.0.1", 0));
+		channels.add(serverChannel);
+		
+		// the clients share one speed limit
+		final TokenBucket bucket = new TokenBucket(limiter.equals("token-bucket") ? limit * 1000L : 0);
+		trafficHandler = new GlobalTrafficShapingHandler(Executors.newCachedThreadPool(), 
+				0, limiter.equals("traffic-shaping") ? limit * 1000L : 0, 1000);
+		client = new ClientBootstrap(new NioClientSocketChannelFactory(
+				Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+		client.setPipelineFactory(new ChannelPipelineFactory()
+		{
+			public ChannelPipeline getPipeline()
+			{
+				ChannelPipeline pipeline = Channels.pipeline();
+				pipeline.addLast("global-traffic-shaping", trafficHandler);
+				pipeline.addLast("token-bucket", new TokenBucketHandler(timer, 0, bucket));
+				pipeline.addLast("counter", new SimpleChannelUpstreamHandler()
+				{
+					@Override
+					public void messageReceived(ChannelHandlerContext ctx, MessageEvent e)
+					{
+						received.addAndGet(((ChannelBuffer) e.getMessage()).readableBytes());
+					}
+				});
+				return pipeline;
+			}
+		});
+		for(int i = 0; i < connections; i++)
+			channels.add(client.connect(serverChannel.getLocalAddress()).awaitUninterruptibly().getChannel());
+	}
+	
+	// send the chunk again and again, until the channel is closed
+	private static void send(final Channel channel, final ChannelBuffer chunk)
+	{
+		channel.write(chunk.duplicate()).addListener(new ChannelFutureListener()
+		{
+			public void operationComplete(ChannelFuture future)
+			{
+				if(future.isSuccess())
+					send(channel, chunk);
+			}
+		});
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		for(Channel channel : channels)
+			channel.close().awaitUninterruptibly();
+		client.releaseExternalResources();
+		server.releaseExternalResources();
+		trafficHandler.releaseExternalResources();
+		timer.shutdownNow();
+	}
+	
+	@Benchmark
+	public long sampleWindow(Rate rate, Stalls stalls) throws InterruptedException
+	{
+		long before = received.get();
+		Thread.sleep(WINDOW);
+		long bytes = received.get() - before;
+		
+		rate.kilobytes += bytes / 1000;
+		if(bytes == 0)
+			stalls.stalls++;
+		
+		return bytes;
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.benchmarks;
+
+import java.util.concurrent.*;
+
+import org.jboss.netty.buffer.*;
+import org.openjdk.jmh.annotations.*;
+
+import com.sun.mail.util.*;
+
+
+/**
+ * Benchmarks the UU decoding path of the FileDecoder class, i.e. reading
+ * the article data byte by byte through an UUDecoderStream.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UuDecodeBenchmark 
+{
+	@Param({ "768000" })
+	public int segmentSize;
+	
+	@Param({ "CRLF", "LF" })
+	public ArticleCorpus.LineEnding lineEnding;
+	
+	private ChannelBuffer article;
+	
+	
+	@Setup
+	public void setup()
+	{
+		byte [] data = ArticleCorpus.randomData(segmentSize, -1, 42);
+		article = ChannelBuffers.wrappedBuffer(ArticleCorpus.uuArticle(data, lineEnding));
+	}
+	
+	/**
+	 * Same loop as in FileDecoder.run().
+	 */
+	@Benchmark
+	public byte [] fileDecoderLoop() throws Exception
+	{
+		ChannelBuffer src = article.duplicate();
+		int uuLength = src.readableBytes();
+		UUDecoderStream uuDecoder = new UUDecoderStream(new ChannelBufferInputStream(src));
+		
+		byte[] bytes = new byte[uuLength];
+		int b = uuDecoder.read();
+		int outBufCounter = 0;
+		for(; b != -1 && outBufCounter < uuLength; outBufCounter++)
+		{
+			bytes[outBufCounter] = (byte) b;
+			b = uuDecoder.read();
+		}
+
+		byte[] newOutBuf = new byte[outBufCounter];
+		System.arraycopy(bytes, 0, newOutBuf, 0, outBufCounter);
+		
+		return newOutBuf;
+	}
+}
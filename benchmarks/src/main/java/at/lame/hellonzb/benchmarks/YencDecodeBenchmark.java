@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.benchmarks;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.swing.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import at.lame.hellonzb.helloyenc.*;
+import at.lame.hellonzb.util.MyLogger;
+
+
+/**
+ * Benchmarks the yEnc decoder, both the whole-article API (HelloYenc) and
+ * the streaming API (HelloYencStream) with data arriving in socket-sized chunks.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class YencDecodeBenchmark 
+{
+	@Param({ "768000" })
+	public int segmentSize;
+	
+	@Param({ "128", "256" })
+	public int lineLength;
+	
+	/** fraction of escaped bytes, negative for uniformly random data */
+	@Param({ "-1", "0.0", "0.1" })
+	public double escapeDensity;
+	
+	@Param({ "CRLF", "LF" })
+	public ArticleCorpus.LineEnding lineEnding;
+	
+	/** chunk size for the streaming decoder (TCP segment size) */
+	@Param({ "1460" })
+	public int chunkSize;
+	
+	private byte [] article;
+	private List<byte[]> chunks;
+	private HelloYenc helloYenc;
+	private HelloYencStream stream;
+	private CountingSink sink;
+	
+	
+	@Setup
+	public void setup()
+	{
+		MyLogger logger = MyLogger.getInstance(null, new JTextArea());
+		byte [] data = ArticleCorpus.randomData(segmentSize, escapeDensity, 42);
+		
+		article = ArticleCorpus.yencArticle(data, 1, 0, segmentSize, lineLength, lineEnding);
+		chunks = ArticleCorpus.split(article, chunkSize);
+		helloYenc = new HelloYenc(logger);
+		stream = new HelloYencStream(logger);
+		sink = new CountingSink();
+	}
+	
+	@Benchmark
+	public byte [] helloYencDecode() throws Exception
+	{
+		helloYenc.setInputData(article);
+		return helloYenc.decode();
+	}
+	
+	@Benchmark
+	public long streamWholeArticle() throws Exception
+	{
+		sink.count = 0;
+		stream.reset(1, sink);
+		stream.decode(article, 0, article.length);
+		stream.finish();
+		
+		return sink.count;
+	}
+	
+	@Benchmark
+	public long streamChunks() throws Exception
+	{
+		sink.count = 0;
+		stream.reset(1, sink);
+		for(byte [] chunk : chunks)
+			stream.decode(chunk, 0, chunk.length);
+		stream.finish();
+		
+		return sink.count;
+	}
+	
+	@Benchmark
+	public long streamReadOnlyByteBuffers() throws Exception
+	{
+		sink.count = 0;
+		stream.reset(1, sink);
+		for(byte [] chunk : chunks)
+			stream.decode(ByteBuffer.wrap(chunk).asReadOnlyBuffer());
+		stream.finish();
+		
+		return sink.count;
+	}
+	
+	/**
+	 * Sink that only counts the decoded bytes (and reads the last one).
+	 */
+	static class CountingSink implements YencSink
+	{
+		long count;
+		
+		public void write(byte [] data, int off, int len)
+		{
+			count += len + data[off + len - 1];
+		}
+	}
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.nntpclient;
+
+import java.util.concurrent.*;
+
+import org.jboss.netty.buffer.*;
+import org.openjdk.jmh.annotations.*;
+
+import at.lame.hellonzb.benchmarks.*;
+
+
+/**
+ * Benchmarks the encoding detection of the NntpFileDownloader class.
+ * (This class is in the same package to access the package-private method.)
+ * 
+ * @author Matthias F. Brandstetter
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncodingDetectionBenchmark 
+{
+	private ChannelBuffer yencArticle;
+	private ChannelBuffer uuArticle;
+	
+	
+	@Setup
+	public void setup()
+	{
+		byte [] data = ArticleCorpus.randomData(4096, -1, 42);
+		yencArticle = ChannelBuffers.wrappedBuffer(ArticleCorpus.yencArticle(
+				data, 1, 0, data.length, 128, ArticleCorpus.LineEnding.CRLF));
+		uuArticle = ChannelBuffers.wrappedBuffer(ArticleCorpus.uuArticle(
+				data, ArticleCorpus.LineEnding.CRLF));
+	}
+	
+	@Benchmark
+	public boolean yenc()
+	{
+		return NntpFileDownloader.bytesEqualsString(yencArticle, "=ybegin");
+	}
+	
+	@Benchmark
+	public boolean uu()
+	{
+		return NntpFileDownloader.bytesEqualsString(uuArticle, "=ybegin") ||
+			NntpFileDownloader.bytesEqualsString(uuArticle, "begin ");
+	}
+}
@@ -52,6 +52,9 @@ public class HelloNzb extends HelloNzbCradle
 	/** set to true if the user has stopped download before it was finished */
 	private boolean downloadStopped;
 	
+	/** set to true if the download was paused by the speed schedule */
+	private boolean schedulePaused;
+	
 	
 	/**
 	 * This is the main method of the HelloNzb application.
@@ -148,6 +151,10 @@ public class HelloNzb extends HelloNzbCradle
 		// initialise system tray icon
 		initSystemTray(quitAction);
 		
+		// start the download speed scheduler
+		speedScheduler = new SpeedScheduler(this);
+		speedScheduler.start();
+		
 		// add window listener
 		MyWindowListener wListener = new MyWindowListener(this);
 		jframe.addWindowListener(wListener);
@@ -262,7 +269,7 @@ public class HelloNzb extends HelloNzbCradle
 		// check if we are running already
 		if(currentFileDownloader != null)
 		{
-			stopCurrDownload(true);
+			stopCurrDownload();
 			return;
 		}
 		
@@ -294,16 +301,16 @@ public class HelloNzb extends HelloNzbCradle
 		if(!startNioClient())
 			return;
 		
-		// start file downloader thread
-		SegmentQueue segs = new SegmentQueue(filesToDownloadTabModel);
-		NntpFileDownloader downloader = new NntpFileDownloader(nioClient, segs, downloadDir, this);
+		// start file downloader thread (for all nzb files in the queue)
+		NntpFileDownloader downloader = new NntpFileDownloader(nioClient, 
+				nzbFileQueueTabModel.copyQueue(), new File(rootDir), this);
 		downloader.setPaused(pauseToggleButton.isSelected());
 		Thread thread = new Thread(downloader);
 		thread.setDaemon(true);
 		thread.start();
 		
 		// send usage stats
-		statsNewDownload(segs.remainingBytes());
+		statsNewDownload(downloader.remainingBytes());
 		
 		// enable/disable toolbar and menu action
 		AbstractAction action = actions.get("MenuServerStartDownload");
@@ -320,21 +327,25 @@ public class HelloNzb extends HelloNzbCradle
 			downloadStopped = false;
 		else
 			totalBytesLoaded = currentNzbParser.getDownloadedBytes();
+		
+		// pause download if the speed schedule says so
+		if(speedScheduler.isPauseWindow())
+			applySpeedSchedule();
 	}
 
 	// immediately stop currently active download
-	private void stopCurrDownload(boolean wait)
+	private void stopCurrDownload()
 	{
 		if(currentFileDownloader == null)
 			return;
 		
-		// disconnect
-		globalDisconnect(wait);
+		// stop downloader (the connections stay open for the next download)
+		stopFileDownloader();
 		filesToDownloadTabModel.resetAllSegCounts(false);
-		Vector<DownloadFile> dlFiles = currentNzbParser.getFiles();
-		for(DownloadFile file : dlFiles)
-			file.resetSegments();
-		dlFiles = filesToDownloadTabModel.getDownloadFileVector();
+		for(NzbParser parser : nzbFileQueueTabModel.copyQueue())
+			for(DownloadFile file : parser.getFiles())
+				file.resetSegments();
+		Vector<DownloadFile> dlFiles = filesToDownloadTabModel.getDownloadFileVector();
 		for(DownloadFile file : dlFiles)
 			updateDownloadQueue(file.getFilename(), 0);
 
@@ -353,10 +364,19 @@ public class HelloNzb extends HelloNzbCradle
 	{
 		try
 		{
+			// connections of the last download still open? then use them
+			// again, unless the server settings have changed in the meantime
+			if(nioClient != null && !nioClient.keepOpen(NntpServer.getServers(prefContainer)))
+			{
+				nioClient.shutdown(false, System.nanoTime() + 10 * SEC_MODIFIER);
+				nioClient = null;
+				resetThreadView();
+			}
+			
 			// start NIO client
 			if(nioClient == null)
 			{
-				nioClient = new NettyNioClient(this);
+				nioClient = new NntpServerGroup(this);
 				
 				// start daemon thread
 				Thread t = new Thread(nioClient);
@@ -425,6 +445,34 @@ public class HelloNzb extends HelloNzbCradle
 		}
 	}
 	
+	/**
+	 * Called by the speed scheduler when a new time window of the schedule
+	 * has started. Sets the new download speed limit on the open connections
+	 * and pauses or resumes the current download, if necessary.
+	 */
+	public void applySpeedSchedule()
+	{
+		setConnSpeedLimit();
+		if(nioClient != null)
+			nioClient.setSpeedLimit(getSpeedLimit());
+		
+		if(speedScheduler.isPauseWindow())
+		{
+			if(currentFileDownloader != null && !currentFileDownloader.isPaused())
+			{
+				pauseDownload();
+				schedulePaused = true;
+			}
+		}
+		else if(schedulePaused)
+		{
+			// only resume if the download was paused by the schedule
+			if(currentFileDownloader != null && currentFileDownloader.isPaused())
+				pauseDownload();
+			schedulePaused = false;
+		}
+	}
+	
 	/**
 	 * Returns whether or not the download is paused.
 	 * 
@@ -438,17 +486,27 @@ public class HelloNzb extends HelloNzbCradle
 	/**
 	 * This method is called by a NntpFileDownloader object when it has finished
 	 * downloading the file's data. 
+	 * 
+	 * @param dlFile The download file
 	 */
-	public void fileDownloadFinished(String filename)
+	public void fileDownloadFinished(DownloadFile dlFile)
 	{
+		NzbParser parser = findNzbParser(dlFile);
+		if(parser == null)
+			return;
+		
 		// update total progress bar in the nzb file queue table, also the application window title
-		totalBytesLoaded += filesToDownloadTabModel.getDownloadFile(filename).getTotalFileSize();
-		currentNzbParser.setDownloadedBytes(totalBytesLoaded);
-		int p = (int) (totalBytesLoaded * 100 / currentNzbParser.getOrigTotalSize());
-		jframe.setTitle("(" + p + "%) " + winTitle);
+		long bytes = parser.getDownloadedBytes() + dlFile.getTotalFileSize();
+		parser.setDownloadedBytes(bytes);
+		int p = (int) (bytes * 100 / parser.getOrigTotalSize());
+		if(parser == currentNzbParser)
+		{
+			totalBytesLoaded = bytes;
+			jframe.setTitle("(" + p + "%) " + winTitle);
+		}
 		synchronized(nzbFileQueueTabModel)
 		{
-			nzbFileQueueTabModel.setRowProgress(currentNzbParser, p);
+			nzbFileQueueTabModel.setRowProgress(parser, p);
 		}
 	}
 	
@@ -456,50 +514,61 @@ public class HelloNzb extends HelloNzbCradle
 	 * This method is called by a NntpFileDownloader object when it has finished
 	 * decoding the file's data. It the updates the download queues and menu
 	 * items if necessary.
+	 * 
+	 * @param dlFile The download file
 	 */
-	public void fileDecodingFinished(String filename)
+	public void fileDecodingFinished(DownloadFile dlFile)
 	{
-		// remove according row from file download queue table
+		NzbParser parser = findNzbParser(dlFile);
+		if(parser == null)
+			return;
+		
+		// remove the file from its nzb file (and from the file download queue 
+		// table, if shown there), unless an error occurred during file download
 		synchronized(filesToDownloadTabModel)
 		{
-			for(int i = 0; i < filesToDownloadTabModel.getRowCount(); i++)
+			if(!dlFile.downloadError())
 			{
-				DownloadFile file = filesToDownloadTabModel.getDownloadFile(i);
-
-				// check if an error occurred during file download
-				// remove line from table if no error occurred
-				if(file.getFilename().equals(filename) && !file.downloadError())
+				int row = filesToDownloadTabModel.getDownloadFileVector().indexOf(dlFile);
+				if(row >= 0)
 				{
-					// remove from table
 					disposeRightPopup();
-					filesToDownloadTabModel.removeRow(i);
-					currentNzbParser.removeFileAt(i);
-					break;
+					filesToDownloadTabModel.removeRow(row);
 				}
+				parser.removeFile(dlFile);
 			}
 		}
 		
 		synchronized(nzbFileQueueTabModel)
 		{
-			// remove first entry from nzb file list, if last seg. was downloaded
-			if(filesToDownloadTabModel.getRowCount() == 0)
+			// remove the nzb file from the nzb file list, if its last file was downloaded
+			if(parser.getFiles().isEmpty())
 			{
 				// par2 check?
 				String pref = prefContainer.getPrefValue("DownloadSettingsPar2Check");
 				if(pref.equals("true"))
-					par2Check(currentNzbParser);
+					par2Check(parser);
 				else if(trayIcon != null)
 				{
 					// show tray icon message
 					String msg = localer.getBundleText("SystemTrayMsgDownloadFinished");
-					String name = "\"" + HelloNzbToolkit.getLastFilename(currentNzbParser.getName()) + "\"";
+					String name = "\"" + HelloNzbToolkit.getLastFilename(parser.getName()) + "\"";
 					msg = msg.replaceAll("_", name);
 					trayIcon.displayMessage(null, msg, MessageType.INFO);
 				}					
 	
-				// begin next download or disconnect globally
+				// continue with the next nzb file or disconnect globally
 				disposeLeftPopup();
-				nzbFileQueueTabModel.removeRow(currentNzbParser);
+				nzbFileQueueTabModel.removeRow(parser);
+				if(parser == currentNzbParser)
+				{
+					filesToDownloadTabModel.clearTableData();
+					currentNzbParser = null;
+					loadNextNzbFile();
+					if(currentNzbParser != null)
+						totalBytesLoaded = currentNzbParser.getDownloadedBytes();
+					jframe.setTitle(winTitle);
+				}
 				startNextNzbDownload();
 			}
 			
@@ -573,23 +642,21 @@ public class HelloNzb extends HelloNzbCradle
 	}
 	
 	/**
-	 * Called when the next nzb file in queue should be downloaded.
+	 * Called when a nzb file has been finished. The download continues with 
+	 * the nzb files left in the queue (if any).
 	 */
 	public void startNextNzbDownload()
 	{
-		if(filesToDownloadTabModel.getRowCount() > 0)
-			return;
-		
 		// is there at least one more nzb file to download?
-		currentFileDownloader = null;
 		if(nzbFileQueueTabModel.getRowCount() > 0)
 		{
-			loadNextNzbFile();
-			startDownload();
+			updateNzbQueue();
 		}
 		else
 		{
-			globalDisconnect(false);
+			currentFileDownloader = null;
+			
+			// the connections are kept open for the next nzb file
 			updStatusBar(0);
 
 			AbstractAction action = actions.get("MenuServerStartDownload");
@@ -605,6 +672,74 @@ public class HelloNzb extends HelloNzbCradle
 		}
 	}
 
+	/**
+	 * Pass the nzb file queue (new or removed nzb files, the order) to the 
+	 * running download. If the downloader has finished already, because all
+	 * segments had been downloaded, then a new one is started.
+	 */
+	public void updateNzbQueue()
+	{
+		if(currentFileDownloader == null)
+			return;
+		
+		if(!currentFileDownloader.setNzbQueue(nzbFileQueueTabModel.copyQueue()))
+		{
+			currentFileDownloader = null;
+			if(nzbFileQueueTabModel.getRowCount() > 0)
+				startDownload();
+		}
+	}
+	
+	/**
+	 * Add a nzb file to the queue, it is downloaded right away if the 
+	 * download is running.
+	 * 
+	 * @param parser The NzbParser object to add
+	 */
+	public void addNzbToQueue(NzbParser parser)
+	{
+		super.addNzbToQueue(parser);
+		updateNzbQueue();
+	}
+	
+	/**
+	 * Set the download priority of the nzb files in the given rows of the
+	 * nzb queue (see NzbParser). The priority is applied to the running
+	 * download right away.
+	 * 
+	 * @param rows The rows of the nzb files (zero-based)
+	 * @param priority The new priority
+	 */
+	public void setNzbPriority(int [] rows, int priority)
+	{
+		synchronized(nzbFileQueueTabModel)
+		{
+			for(int row : rows)
+			{
+				if(row < 0 || row >= nzbFileQueueTabModel.getRowCount())
+					continue;
+				
+				NzbParser parser = nzbFileQueueTabModel.getNzbParser(row);
+				parser.setPriority(priority);
+				nzbFileQueueTabModel.updateRow(parser);
+			}
+		}
+		
+		if(currentFileDownloader != null)
+			currentFileDownloader.nzbPriorityChanged();
+		saveOpenParserData(false);
+	}
+	
+	// returns the nzb file in the queue the given download file belongs to (or null)
+	private NzbParser findNzbParser(DownloadFile dlFile)
+	{
+		for(NzbParser parser : nzbFileQueueTabModel.copyQueue())
+			if(parser.getFiles().contains(dlFile))
+				return parser;
+		
+		return null;
+	}
+	
 	/**
 	 * Remove the specified row from the nzb queue.
 	 * 
@@ -776,6 +911,7 @@ public class HelloNzb extends HelloNzbCradle
 		NzbParser pAfter = nzbFileQueueTabModel.getNzbParser(0);
 		if(pBefore != pAfter)
 			nzbQueueReordered(pAfter);
+		updateNzbQueue();
 	}
 	
 	/**
@@ -838,6 +974,9 @@ public class HelloNzb extends HelloNzbCradle
 		}
 		else
 			saveOpenParserData(true);
+		
+		// drop the nzb file from the running download
+		updateNzbQueue();
 	}
 	
 	/**
@@ -860,12 +999,16 @@ public class HelloNzb extends HelloNzbCradle
 			// subtract the amount of bytes of the removed file from 
 			// the total nzb file size progress bar on the left side
 			totalBytesLoaded += filesToDownloadTabModel.getDownloadFile(row).getTotalFileSize();
+			currentNzbParser.setDownloadedBytes(totalBytesLoaded);
 			int p = (int) (totalBytesLoaded * 100 / currentNzbParser.getOrigTotalSize());
 			nzbFileQueueTabModel.setRowProgress(currentNzbParser, p);
 		
-			// remove item from download file queue
+			// remove item from download file queue (and from the running download)
+			DownloadFile dlFile = filesToDownloadTabModel.getDownloadFile(row);
+			if(currentFileDownloader != null)
+				currentFileDownloader.removeFile(currentNzbParser, name);
 			filesToDownloadTabModel.removeRow(row);
-			currentNzbParser.removeFileAt(row);
+			currentNzbParser.removeFile(dlFile);
 			
 			// if this was the last item in download queue, then load the next nzb file 
 			if(filesToDownloadTabModel.getRowCount() == 0)
@@ -873,6 +1016,40 @@ public class HelloNzb extends HelloNzbCradle
 		}
 	}
 
+	/**
+	 * Set the download priority of the given file (see SegmentQueue). The
+	 * priority is applied to the running download as well.
+	 * 
+	 * @param name The name of the download file
+	 * @param priority The new priority
+	 */
+	public void setDownloadFilePriority(String name, int priority)
+	{
+		synchronized(filesToDownloadTabModel)
+		{
+			DownloadFile dlFile = filesToDownloadTabModel.getDownloadFile(name);
+			if(dlFile == null)
+				return;
+			
+			dlFile.setPriority(priority);
+			if(currentFileDownloader != null)
+				currentFileDownloader.setFilePriority(currentNzbParser, name, priority);
+		}
+	}
+	
+	/**
+	 * Returns the amount of files in the download file queue.
+	 * 
+	 * @return The amount of files
+	 */
+	public int getDownloadFileCount()
+	{
+		synchronized(filesToDownloadTabModel)
+		{
+			return filesToDownloadTabModel.getRowCount();
+		}
+	}
+
 	/**
 	 * Returns the file name of the given row in the download file queue.
 	 * 
@@ -914,7 +1091,7 @@ public class HelloNzb extends HelloNzbCradle
 	private void par2Check(NzbParser parser)
 	{
 		// wait until all download files are finished
-		if(filesToDownloadTabModel.getRowCount() > 1)
+		if(parser.getFiles().size() > 1)
 			return;
 		
 		// do par2 check
@@ -110,7 +110,7 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 	protected JTable filesToDownloadTab;
 	
 	/** NIO client */
-	protected NettyNioClient nioClient;
+	protected NntpServerGroup nioClient;
 	
 	/** A pointer to the file downloader currently active */
 	protected NntpFileDownloader currentFileDownloader;
@@ -133,6 +133,9 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 	/** task manager responsible for controlling the background progress bar */
 	protected TaskManager taskMgr;
 	
+	/** applies the time schedule of the download speed limit */
+	protected SpeedScheduler speedScheduler;
+	
 	/** last known count of active threads */
 	protected int lastActThreadCount;
 
@@ -279,6 +282,7 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 		limitDlSpeedButton.setAction(actions.get("MenuHelloNzbSpeedLimit"));
 		limitDlSpeedButton.setToolTipText(localer.getBundleText("MenuHelloNzbSpeedLimit"));
 		setConnSpeedLimit();
+		setMemoryBudget();
 		currDlSpeed = new JLabel(HelloNzbToolkit.prettyPrintBps(0));
 		currDlSpeed.setAlignmentX(Component.RIGHT_ALIGNMENT);
 		tmpPanel.add(currDlSpeed);
@@ -371,10 +375,7 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 	protected JScrollPane createThreadViewPane()
 	{
 		// create table data and table object
-		int threadcount = 1;
-		String tmp = prefContainer.getPrefValue("ServerSettingsThreadCount");
-		if(tmp.length() > 0)
-			threadcount = Integer.valueOf(tmp);
+		int threadcount = NntpServer.getConnectionCount(prefContainer);
 		ThreadViewTableModel tm = new ThreadViewTableModel(localer);
 		tm.setRowCount(threadcount);
 		JTable table = new JTable(tm);		
@@ -610,7 +611,7 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 			return;
 		
 		String text = localer.getBundleText("StatusBarRunningThreads") + " " + threads;
-		String tc = prefContainer.getPrefValue("ServerSettingsThreadCount");
+		String tc = String.valueOf(NntpServer.getConnectionCount(prefContainer));
 
 		final String statusText = text + "/" + tc;
 		lastActThreadCount = threads;
@@ -624,6 +625,20 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 		} );
 	}
 
+	/**
+	 * Show the memory used by downloaded data (against the memory budget)
+	 * as tool tip of the status bar. Called on the event dispatch thread.
+	 */
+	public void updMemoryUsage()
+	{
+		MemoryBudget budget = MemoryBudget.getInstance();
+		long mb = 1024 * 1024;
+		
+		statusBarText.setToolTipText(localer.getBundleText("StatusBarMemoryUsage") + " " + 
+				(budget.getUsed() / mb) + "/" + (budget.getLimit() / mb) + " MB (" + 
+				localer.getBundleText("StatusBarMemoryPeak") + " " + (budget.getPeak() / mb) + " MB)");
+	}
+
 	/**
 	 * This method is called if either
 	 *   a) the last file in download queue has been downloaded, or
@@ -894,6 +909,8 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 		try
 		{
 			taskMgr.shutdown();
+			if(speedScheduler != null)
+				speedScheduler.shutdown();
 			bWorker.shutdown();
 			Runtime rt = Runtime.getRuntime();
 			rt.exec(shutdownCmd, null, dir);
@@ -925,6 +942,24 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 		}
 	}
 
+	/**
+	 * Set the memory budget for downloaded data according to value in preferences.
+	 */
+	public void setMemoryBudget()
+	{
+		long budget = 0;
+		try
+		{
+			budget = Long.parseLong(prefContainer.getPrefValue("DownloadSettingsMemoryBudget"));
+		}
+		catch(NumberFormatException ex)
+		{
+			budget = 0;
+		}
+		
+		MemoryBudget.getInstance().setLimit(budget * 1024 * 1024);
+	}
+
 	/**
 	 * Set the connection speed limit label on the status bar 
 	 * according to value in preferences.
@@ -944,17 +979,55 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 			prefContainer.setSpeedLimit("0");
 		}
 		
-		if(pref.length() == 0 || Long.valueOf(pref) == 0)
+		// the time schedule (if any) overrides the value in preferences
+		long limit = getSpeedLimit();
+		if(limit <= 0)
 		{
 			limitDlSpeedButton.setText(localer.getBundleText("DlSpeedLimitButton"));
 		}		
 		else	
 		{
 			limitDlSpeedButton.setText(
-					localer.getBundleText("DlSpeedLimitButton2") + " " + pref + " KB/s");
+					localer.getBundleText("DlSpeedLimitButton2") + " " + limit + " KB/s");
 		}			
 	}
 	
+	/**
+	 * Returns the download speed limit that is currently in effect, i.e.
+	 * the limit of the active time window of the speed schedule, or the 
+	 * value in preferences if no time window is active.
+	 * 
+	 * @return The limit in KB/s (0 for no limit), or -1 if not set
+	 */
+	public long getSpeedLimit()
+	{
+		if(speedScheduler != null)
+		{
+			long limit = speedScheduler.getLimit();
+			if(limit >= 0)
+				return limit;
+		}
+		
+		try
+		{
+			return Long.parseLong(prefContainer.getPrefValue("DownloadSettingsMaxConnectionSpeed"));
+		}
+		catch(NumberFormatException e)
+		{
+			return -1L;
+		}
+	}
+	
+	/**
+	 * Returns the speed scheduler of this application.
+	 * 
+	 * @return The SpeedScheduler object
+	 */
+	public SpeedScheduler getSpeedScheduler()
+	{
+		return speedScheduler;
+	}
+	
 	/**
 	 * Use this method to set the ETA and total file size label.
 	 * Also set the tooltip of the system tray icon accordingly.
@@ -1118,16 +1191,16 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 	public void resetThreadView()
 	{
 		ThreadViewTableModel tm = (ThreadViewTableModel) threadViewTab.getModel();
-		int threadcount = Integer.valueOf(prefContainer.getPrefValue("ServerSettingsThreadCount"));
+		int threadcount = NntpServer.getConnectionCount(prefContainer);
 		tm.setRowCount(threadcount);
 	}
 	
 	/**
-	 * Globally disconnect from server, if currently connected.
-	 * 
-	 * @param block Whether or not to wait until connection has closed
+	 * Stop the currently running file downloader, if any. The connections 
+	 * to the server(s) are kept open for the next download, they are closed
+	 * when they have not been used for the time set by the user.
 	 */
-	public void globalDisconnect(boolean block)
+	public void stopFileDownloader()
 	{
 		if(currentFileDownloader != null)
 		{
@@ -1135,6 +1208,19 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 			currentFileDownloader = null;
 		}
 		
+		if(nioClient != null)
+			nioClient.cancelTasks();
+	}
+	
+	/**
+	 * Globally disconnect from server, if currently connected.
+	 * 
+	 * @param block Whether or not to wait until connection has closed
+	 */
+	public void globalDisconnect(boolean block)
+	{
+		stopFileDownloader();
+		
 		if(nioClient != null)
 		{
 			nioClient.shutdown(false, System.nanoTime() + 10 * SEC_MODIFIER);
@@ -1185,11 +1271,11 @@ public abstract class HelloNzbCradle implements HelloNzbConstants
 	}
 	
 	/**
-	 * Returns the current NettyNioClient object (or null)
+	 * Returns the current NntpServerGroup object (or null)
 	 * 
-	 * @return The current NettyNioClient object (or null)
+	 * @return The current NntpServerGroup object (or null)
 	 */
-	public NettyNioClient getCurrNioClient()
+	public NntpServerGroup getCurrNioClient()
 	{
 		return nioClient;
 	}
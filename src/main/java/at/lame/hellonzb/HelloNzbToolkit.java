@@ -23,6 +23,7 @@ import at.lame.hellonzb.parser.*;
 import java.awt.Color;
 import java.awt.Font;
 import java.io.*;
+import java.lang.management.*;
 import java.net.*;
 import java.nio.*;
 import java.nio.channels.FileChannel;
@@ -333,6 +334,24 @@ public class HelloNzbToolkit
 		return prettyString;
 	}
 	
+	/**
+	 * Returns the number of garbage collections since the start of the
+	 * JVM and the time spent for them (sum of all collectors).
+	 * 
+	 * @return Array of two values: the number of collections and the time in ms
+	 */
+	public static long [] getGcStats()
+	{
+		long [] stats = new long[2];
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			stats[0] += Math.max(0, gc.getCollectionCount());
+			stats[1] += Math.max(0, gc.getCollectionTime());
+		}
+		
+		return stats;
+	}
+	
 	/**
 	 * This method receives an array of short that contains downloaded data
 	 * in raw bytes format. It converts the characters found from beginning
@@ -19,8 +19,6 @@ package at.lame.hellonzb.helloyenc;
 
 
 import java.io.*;
-import java.util.zip.CRC32;
-import java.security.InvalidParameterException;
 
 import at.lame.hellonzb.helloyenc.YencException;
 import at.lame.hellonzb.util.MyLogger;
@@ -28,6 +26,8 @@ import at.lame.hellonzb.util.MyLogger;
 
 /**
  * This class is used to decode yEnc-encoded files to raw binary data.
+ * It decodes one complete article at once, see HelloYencStream for
+ * incremental decoding (which is used by this class internally).
  *  
  * @author Matthias F. Brandstetter
  */
@@ -51,17 +51,11 @@ public class HelloYenc
 	/** The name of the output file */
 	private String fileName;
 	
-	/** The offset within the input vector where the encoded data begins */
-	private int dataOffset;
-	
 	/** This flag shows whether the data input vector has been set or not */
 	private boolean initialized;
 	
-	/** This flag shows whether the yenc footer was found or not */
-	private boolean footerFound;
-	
-	/** Used to calculate the CRC32 checksum of the bytes decoded */
-	private CRC32 crc32Obj;
+	/** The streaming decoder that does the actual work */
+	private HelloYencStream stream;
 	
 	/** The Runnable object that uses this HelloYenc instance */
 	private HelloYencRunnable runnable;
@@ -83,12 +77,10 @@ public class HelloYenc
 		this.lineSize = 0;
 		this.fileSize = 0;
 		this.fileName = "";
-		this.dataOffset = -1;
 		
 		this.initialized = false;
-		this.footerFound = false; 
 
-		this.crc32Obj = new CRC32();		
+		this.stream = new HelloYencStream(logger);
 	}
 	
 	/**
@@ -102,11 +94,9 @@ public class HelloYenc
 	{
 		inputData = in;
 		initialized = true;
-		footerFound = false;
 		partNum = 0;
-		crc32Obj.reset();
 		
-		dataOffset = parseHeader(inputData);
+		parseHeader(inputData);
 	}
 	
 	/**
@@ -114,64 +104,32 @@ public class HelloYenc
 	 */
 	public byte [] decode() throws IOException, YencException
 	{
-		int inSize = inputData.length;
-		int byteCount = 0;
-		int outBufCounter = 0;
-		byte [] outBuf = new byte [inSize];
-		
-		
 		// was this decoder already initialized?
 		if(! initialized)
 			throw new YencException("No data input vector set");
 		
-		// step through the input data
-		for(int j = dataOffset; j < inSize; j++, byteCount++)
+		// the output can't be longer than the input
+		final byte [] outBuf = new byte [inputData.length];
+		final int [] outBufCounter = new int [] { 0 };
+		
+		stream.setRunnable(runnable);
+		stream.reset(partNum, new YencSink()
 		{
-			// read input character
-			int i = (int) inputData[j];
-
-			// skip end of line
-			if(i == 10 || i == 13)
-				continue;
-				
-			// check for escape character
-			if(i == '=' && (j + 1) < inSize)
+			public void write(byte [] data, int off, int len)
 			{
-				// parse footer
-				try
-				{
-					if(inputData[j + 1] == 'y' && checkFooter(inputData, j))
-						break;
-				}
-				catch(YencException ex)
-				{
-					runnable.crc32Error();
-				}
-
-				// decode a non-yenc-meta-character
-				j++;
-				i = (int) inputData[j];
-				i = (i - 64) % 256;
+				System.arraycopy(data, off, outBuf, outBufCounter[0], len);
+				outBufCounter[0] += len;
 			}
-				
-			// subtract the 42 offset and send the result to the output
-			i = (i - 42) % 256;
-
-			outBuf[outBufCounter++] = (byte) i;
-			crc32Obj.update(i);
-		}
-		
-		// create new output buffer as the first one will be too long,
-		// because of the CR/LF chars in the original data
-		byte [] newOutBuf = new byte[outBufCounter];
-		System.arraycopy(outBuf, 0, newOutBuf, 0, outBufCounter);
+		});
 		
 		initialized = false;
+		stream.decode(inputData, 0, inputData.length);
+		stream.finish();
 		
-		if(!footerFound)
-			throw new YencException("No yenc footer found");
-		else
-			footerFound = false;
+		// create new output buffer as the first one will be too long,
+		// because of the CR/LF chars in the original data
+		byte [] newOutBuf = new byte[outBufCounter[0]];
+		System.arraycopy(outBuf, 0, newOutBuf, 0, outBufCounter[0]);
 		
 		return newOutBuf;
 	}
@@ -296,99 +254,6 @@ public class HelloYenc
 		return idx;
 	}
 	
-	/**
-	 * This method is called every time an escape character ('=') is found within
-	 * the input stream (vector). It checks if this is the beginning of the yenc
-	 * "=yend" meta line (yenc footer).
-	 * 
-	 * @param in The Vector<Integer> of input bytes
-	 * @param idx The current position within the input vector
-	 * @return True if the yenc footer line was found, false otherwise
-	 */
-	private boolean checkFooter(byte [] in, int idx) throws YencException
-	{
-		String yend = "=yend ";
-		int inputSize = in.length;
-		
-		
-		if((idx + yend.length()) >= inputSize)
-			return false;
-	
-		// check for existing and correctly formatted footer line
-		for(int i = 0; i < yend.length() && idx < in.length; idx++, i++)
-		{
-			if(in[idx] != yend.charAt(i))
-				return false;
-		}
-
-		footerFound = true;
-		
-		// check for the "[p]crc32" token
-		while(idx < (in.length - 1))
-		{
-			if(	(in[idx] == 'p' && in[idx+1] == 'c') ||
-				(in[idx] == 'c' && in[idx+1] == 'r') ||
-				 in[idx] == 10  || in[idx] == 13)
-			{
-				break;
-			}
-			else
-				idx++;
-		}
-
-		if(in[idx] != 'p' && in[idx] != 'c')
-		{
-			// footer found, but no CRC32 value found in it
-			logger.msg("no CRC32 value found in yenc footer", MyLogger.SEV_WARNING);
-			
-			return true; 
-		}
-		
-		while(in[idx++] != '=');
-		
-		// parse the "[p]crc32" token
-		String crc32 = "";
-		while(in[idx] != ' ' && in[idx] != 10 && in[idx] != 13)
-		{
-			byte b = in[idx];
-			crc32 += (char) b;
-			idx++;
-		}
-		
-		// check the crc32 checksum
-		if(crc32Obj.getValue() != crc32ToLong(crc32))
-		{
-			logger.msg("CRC32 check failed", MyLogger.SEV_WARNING);
-			throw new YencException("CRC32 error in yenc part " + partNum);
-		}	
-		else logger.msg("yenc CRC32 check ok", MyLogger.SEV_DEBUG);
-		
-		return true; // footer line found
-	}
-	
-	/**
-	 * This method calculates the crc32 value in a string into the corresponding
-	 * Long value.
-	 * 
-	 * @param val The crc32 value as a String
-	 * @return The calculated Long value
-	 * @throws InvalidParameterException
-	 */
-	private static long crc32ToLong(String val) throws InvalidParameterException 
-	{
-		int radix = 16;
-		
-		try 
-		{
-			return Long.valueOf(val, radix);
-		}
-		catch(NumberFormatException ex) 
-		{
-			//throw new InvalidParameterException("value " + val + " is not a number");
-			return 0L;
-		}
-	}
-
 	/**
 	 * @return the fileSize
 	 */
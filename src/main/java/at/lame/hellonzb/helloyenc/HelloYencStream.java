@@ -0,0 +1,617 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.helloyenc;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.zip.CRC32;
+
+import at.lame.hellonzb.util.MyLogger;
+
+
+/**
+ * This class is used to decode a yEnc-encoded article incrementally, i.e.
+ * the data can be passed in arbitrary chunks (e.g. as it arrives from the
+ * socket). The decoder state (header and meta lines, escape characters,
+ * CR/LF) is kept across chunk boundaries, the CRC32 checksum is updated
+ * incrementally and the decoded bytes are written to a YencSink object.
+ * The memory used is constant, no matter how big the article is.
+ * 
+ * Runs of plain data are decoded word-at-a-time: 8 input bytes are read
+ * as one long value, checked for special characters (CR, LF, '=') and
+ * decoded (minus 42 per byte) at once. Words containing special characters
+ * are decoded byte by byte.
+ * 
+ * Usage: call reset() for each article, then decode() for all chunks of
+ * the article and finally finish().
+ *  
+ * @author Matthias F. Brandstetter
+ */
+public class HelloYencStream 
+{
+	/** size of the output buffer (decoded bytes are passed to the sink in these blocks) */
+	private static final int OUT_BUF_SIZE = 16 * 1024;
+	
+	/** the following constants are used to check/decode 8 bytes at once */
+	private static final long ONES = 0x0101010101010101L;
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private static final long LF_BYTES = 0x0A0A0A0A0A0A0A0AL;
+	private static final long CR_BYTES = 0x0D0D0D0D0D0D0D0DL;
+	private static final long ESC_BYTES = 0x3D3D3D3D3D3D3D3DL;
+	private static final long OFFSET_BYTES = 0x2A2A2A2A2A2A2A2AL;
+	
+	/** max. length of a yenc header/footer line that is stored */
+	private static final int MAX_LINE_LENGTH = 1024;
+	
+	/** charset of the yenc header/footer lines */
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+	
+	// decoder states
+	private static final int HEADER = 0;
+	private static final int DATA = 1;
+	private static final int META_LINE = 2;
+	private static final int END = 3;
+	
+	/** central logger instance */
+	private MyLogger logger;
+	
+	/** The sink to write the decoded data to */
+	private YencSink sink;
+	
+	/** The Runnable object that uses this decoder instance */
+	private HelloYencRunnable runnable;
+	
+	/** The current state of this decoder */
+	private int state;
+	
+	/** Set when the last byte was an escape character ('=') */
+	private boolean escape;
+	
+	/** The current header/footer line */
+	private byte [] lineBuf;
+	
+	/** The length of the current header/footer line */
+	private int lineLen;
+	
+	/** The decoded bytes not yet passed to the sink */
+	private byte [] outBuf;
+	
+	/** The number of bytes in the output buffer */
+	private int outLen;
+	
+	/** Used to write 8 decoded bytes at once to the output buffer */
+	private ByteBuffer outView;
+	
+	/** Used to read 8 input bytes at once from the current input array */
+	private ByteBuffer inView;
+	
+	/** Used to calculate the CRC32 checksum of the bytes decoded */
+	private CRC32 crc32Obj;
+	
+	/** Buffer for input data that is not available as byte array */
+	private byte [] inBuf;
+	
+	/** The number of the current yenc part */
+	private int partNum;
+	
+	/** The size of an input line */
+	private int lineSize;
+	
+	/** The size of the output file */
+	private long fileSize;
+	
+	/** The name of the output file */
+	private String fileName;
+	
+	/** The first byte of this part within the output file (1-based, 0 if unknown) */
+	private long partBegin;
+	
+	/** The last byte of this part within the output file (1-based, 0 if unknown) */
+	private long partEnd;
+	
+	
+	/**
+	 * This is the constructor of the class.
+	 * 
+	 * @param logger The central logger object
+	 */
+	public HelloYencStream(MyLogger logger)
+	{
+		this.logger = logger;
+		this.runnable = null;
+		
+		this.lineBuf = new byte[MAX_LINE_LENGTH];
+		this.outBuf = new byte[OUT_BUF_SIZE];
+		this.outView = ByteBuffer.wrap(outBuf).order(ByteOrder.nativeOrder());
+		this.crc32Obj = new CRC32();
+		
+		reset(0, null);
+	}
+	
+	/**
+	 * Prepare this decoder for the next article.
+	 * 
+	 * @param num The number of the yenc part (overwritten by the yenc header, if found)
+	 * @param sink The sink to write the decoded data to
+	 */
+	public void reset(int num, YencSink sink)
+	{
+		this.sink = sink;
+		this.state = HEADER;
+		this.escape = false;
+		this.lineLen = 0;
+		this.outLen = 0;
+		this.crc32Obj.reset();
+		this.inView = null;
+		
+		this.partNum = num;
+		this.lineSize = 0;
+		this.fileSize = 0;
+		this.fileName = "";
+		this.partBegin = 0;
+		this.partEnd = 0;
+	}
+	
+	/**
+	 * Decode the next chunk of article data.
+	 * 
+	 * @param in The byte array to read from
+	 * @param off The offset of the chunk within the array
+	 * @param len The length of the chunk
+	 * @throws IOException
+	 * @throws YencException
+	 */
+	public void decode(byte [] in, int off, int len) throws IOException, YencException
+	{
+		int end = off + len;
+		int j = off;
+		
+		while(j < end && state != END)
+		{
+			if(state == DATA)
+				j = decodeData(in, j, end);
+			else
+				j = readLine(in, j, end);
+		}
+	}
+	
+	/**
+	 * Decode the next chunk of article data.
+	 * 
+	 * @param in The ByteBuffer to read from (all remaining bytes are consumed)
+	 * @throws IOException
+	 * @throws YencException
+	 */
+	public void decode(ByteBuffer in) throws IOException, YencException
+	{
+		if(in.hasArray())
+		{
+			decode(in.array(), in.arrayOffset() + in.position(), in.remaining());
+			in.position(in.limit());
+			return;
+		}
+		
+		// read-only or direct buffer, so copy it block by block
+		if(inBuf == null)
+			inBuf = new byte[OUT_BUF_SIZE];
+		
+		while(in.hasRemaining())
+		{
+			int len = Math.min(in.remaining(), inBuf.length);
+			in.get(inBuf, 0, len);
+			decode(inBuf, 0, len);
+		}
+	}
+	
+	/**
+	 * Must be called after all data of an article was passed to decode().
+	 * Passes all remaining decoded bytes to the sink.
+	 * 
+	 * @throws IOException
+	 * @throws YencException If the yenc header or footer was not found
+	 */
+	public void finish() throws IOException, YencException
+	{
+		flush();
+		
+		if(state == HEADER)
+			throw new YencException("invalid header format");
+		else if(state != END)
+			throw new YencException("No yenc footer found");
+	}
+	
+	/**
+	 * Decode yenc data, until the end of the chunk or the beginning of a meta line.
+	 * 
+	 * @return The position within the input array where decoding stopped
+	 */
+	private int decodeData(byte [] in, int j, int end) throws IOException
+	{
+		if(inView == null || inView.array() != in)
+			inView = ByteBuffer.wrap(in).order(ByteOrder.nativeOrder());
+		
+		while(j < end)
+		{
+			// fast path, stops at the first word containing a special character
+			if(!escape)
+				j = decodeWords(j, end);
+			
+			// slow path, until the special character (and the escaped one) is processed
+			boolean done = false;
+			for(; j < end && !done; j++)
+			{
+				int i = in[j];
+				
+				if(escape)
+				{
+					escape = false;
+					
+					// "=y" is the beginning of a meta line (=ypart, =yend)
+					if(i == 'y')
+					{
+						lineBuf[0] = '=';
+						lineBuf[1] = 'y';
+						lineLen = 2;
+						state = META_LINE;
+						return j + 1;
+					}
+					
+					// decode a non-yenc-meta-character
+					i -= 64;
+					done = true;
+				}
+				else if(i == 10 || i == 13)
+				{
+					done = true;
+					continue;
+				}
+				else if(i == '=')
+				{
+					escape = true;
+					continue;
+				}
+				
+				// subtract the 42 offset and send the result to the output
+				outBuf[outLen++] = (byte) (i - 42);
+				if(outLen == outBuf.length)
+					flush();
+			}
+		}
+		
+		return j;
+	}
+	
+	/**
+	 * Decode 8 bytes at once, as long as there are no special characters.
+	 * 
+	 * @return The position within the input array where decoding stopped
+	 */
+	private int decodeWords(int j, int end) throws IOException
+	{
+		while(j + 8 <= end)
+		{
+			long word = inView.getLong(j);
+			if(hasSpecialByte(word))
+				break;
+			
+			if(outLen + 8 > outBuf.length)
+				flush();
+			
+			outView.putLong(outLen, subtractOffset(word));
+			outLen += 8;
+			j += 8;
+			
+			if(outLen == outBuf.length)
+				flush();
+		}
+		
+		return j;
+	}
+	
+	/**
+	 * Check whether or not a word contains a CR, LF or '=' byte.
+	 */
+	private static boolean hasSpecialByte(long word)
+	{
+		return (hasZeroByte(word ^ LF_BYTES) | hasZeroByte(word ^ CR_BYTES) | 
+				hasZeroByte(word ^ ESC_BYTES)) != 0;
+	}
+	
+	/**
+	 * Returns a non-zero value if any byte of the word is zero.
+	 */
+	private static long hasZeroByte(long word)
+	{
+		return (word - ONES) & ~word & HIGH_BITS;
+	}
+	
+	/**
+	 * Subtract 42 from each byte of the word (modulo 256, no borrow between bytes).
+	 */
+	private static long subtractOffset(long word)
+	{
+		return ((word | HIGH_BITS) - OFFSET_BYTES) ^ (~word & HIGH_BITS);
+	}
+	
+	/**
+	 * Read a header or meta line and process it when it is complete.
+	 * 
+	 * @return The position within the input array where reading stopped
+	 */
+	private int readLine(byte [] in, int j, int end) throws IOException, YencException
+	{
+		for(; j < end; j++)
+		{
+			byte b = in[j];
+			
+			if(b == 13)
+				continue;
+			
+			if(b == 10)
+			{
+				// skip empty lines before the header
+				if(lineLen > 0)
+					processLine(new String(lineBuf, 0, lineLen, US_ASCII));
+				lineLen = 0;
+				return j + 1;
+			}
+			
+			if(lineLen < lineBuf.length)
+				lineBuf[lineLen++] = b;
+		}
+		
+		return j;
+	}
+	
+	/**
+	 * Process a complete header or meta line.
+	 * 
+	 * @param line The line to process
+	 * @throws IOException
+	 * @throws YencException
+	 */
+	private void processLine(String line) throws IOException, YencException
+	{
+		if(state == HEADER)
+		{
+			if(!line.startsWith("=ybegin "))
+				throw new YencException("invalid header format");
+			
+			parseHeader(line);
+		}
+		else if(line.startsWith("=yend"))
+		{
+			// the CRC32 checksum must include all decoded bytes
+			flush();
+			checkFooter(line);
+			state = END;
+			return;
+		}
+		
+		else if(line.startsWith("=ypart "))
+			parsePartHeader(line);
+		
+		// unknown meta lines are skipped
+		state = DATA;
+	}
+	
+	/**
+	 * Parse the "=ybegin" header line.
+	 * 
+	 * @param line The header line
+	 */
+	private void parseHeader(String line)
+	{
+		// the name is always the last token and may contain spaces
+		int idx = line.indexOf(" name=");
+		if(idx >= 0)
+		{
+			fileName = line.substring(idx + 6).trim();
+			line = line.substring(0, idx);
+		}
+		
+		try
+		{
+			String part = getToken(line, "part");
+			if(part != null)
+				partNum = Integer.parseInt(part);
+			
+			String lineToken = getToken(line, "line");
+			if(lineToken != null)
+				lineSize = Integer.parseInt(lineToken);
+			
+			String size = getToken(line, "size");
+			if(size != null)
+				fileSize = Long.parseLong(size);
+		}
+		catch(NumberFormatException ex)
+		{
+			logger.msg("invalid value in yenc header: " + line, MyLogger.SEV_WARNING);
+		}
+	}
+	
+	/**
+	 * Parse the "=ypart" header line.
+	 * 
+	 * @param line The header line
+	 */
+	private void parsePartHeader(String line)
+	{
+		try
+		{
+			String begin = getToken(line, "begin");
+			if(begin != null)
+				partBegin = Long.parseLong(begin);
+			
+			String end = getToken(line, "end");
+			if(end != null)
+				partEnd = Long.parseLong(end);
+		}
+		catch(NumberFormatException ex)
+		{
+			logger.msg("invalid value in yenc part header: " + line, MyLogger.SEV_WARNING);
+		}
+	}
+	
+	/**
+	 * Parse the "=yend" footer line and check the CRC32 checksum.
+	 * 
+	 * @param line The footer line
+	 */
+	private void checkFooter(String line)
+	{
+		// part crc (multi-part files) or file crc (single-part files)
+		String crc32 = getToken(line, "pcrc32");
+		if(crc32 == null)
+			crc32 = getToken(line, "crc32");
+		
+		if(crc32 == null)
+		{
+			// footer found, but no CRC32 value found in it
+			logger.msg("no CRC32 value found in yenc footer", MyLogger.SEV_WARNING);
+			return;
+		}
+		
+		if(crc32Obj.getValue() != crc32ToLong(crc32))
+		{
+			logger.msg("CRC32 check failed in yenc part " + partNum, MyLogger.SEV_WARNING);
+			if(runnable != null)
+				runnable.crc32Error();
+		}
+		else 
+			logger.msg("yenc CRC32 check ok", MyLogger.SEV_DEBUG);
+	}
+	
+	/**
+	 * Pass all decoded bytes to the sink and update the CRC32 checksum.
+	 * 
+	 * @throws IOException
+	 */
+	private void flush() throws IOException
+	{
+		if(outLen == 0)
+			return;
+		
+		crc32Obj.update(outBuf, 0, outLen);
+		if(sink != null)
+			sink.write(outBuf, 0, outLen);
+		outLen = 0;
+	}
+	
+	/**
+	 * Returns the value of a "key=value" token within a yenc header/footer line.
+	 * 
+	 * @param line The line to search
+	 * @param key The key of the token
+	 * @return The value, or null if not found
+	 */
+	private static String getToken(String line, String key)
+	{
+		int idx = line.indexOf(" " + key + "=");
+		if(idx < 0)
+			return null;
+		
+		idx += key.length() + 2;
+		int end = line.indexOf(' ', idx);
+		if(end < 0)
+			end = line.length();
+		
+		return line.substring(idx, end).trim();
+	}
+	
+	/**
+	 * This method calculates the crc32 value in a string into the corresponding
+	 * Long value.
+	 * 
+	 * @param val The crc32 value as a String
+	 * @return The calculated Long value
+	 */
+	private static long crc32ToLong(String val) 
+	{
+		try 
+		{
+			return Long.valueOf(val, 16);
+		}
+		catch(NumberFormatException ex) 
+		{
+			return 0L;
+		}
+	}
+
+	/**
+	 * @return the fileSize
+	 */
+	public long getFileSize() 
+	{
+		return fileSize;
+	}
+
+	/**
+	 * @return the fileName
+	 */
+	public String getFileName() 
+	{
+		return fileName;
+	}
+	
+	/**
+	 * @return the offset of the first byte of this part (1-based, 0 if unknown)
+	 */
+	public long getPartBegin()
+	{
+		return partBegin;
+	}
+	
+	/**
+	 * @return the offset of the last byte of this part (1-based, 0 if unknown)
+	 */
+	public long getPartEnd()
+	{
+		return partEnd;
+	}
+	
+	/**
+	 * @return the line size
+	 */
+	public int getLineSize()
+	{
+		return lineSize;
+	}
+	
+	/**
+	 * @return the number of the current yenc part
+	 */
+	public int getPartNum()
+	{
+		return partNum;
+	}
+	
+	/**
+	 * @return true if the yenc header was already parsed
+	 */
+	public boolean headerParsed()
+	{
+		return state != HEADER;
+	}
+	
+	public void setRunnable(HelloYencRunnable r)
+	{
+		runnable = r;
+	}
+}
@@ -19,6 +19,7 @@ package at.lame.hellonzb.listener;
 
 import at.lame.hellonzb.*;
 import at.lame.hellonzb.listener.actions.*;
+import at.lame.hellonzb.parser.SegmentQueue;
 
 import java.awt.event.*;
 import javax.swing.*;
@@ -77,6 +78,11 @@ public class DownloadFileListPopupListener extends MouseAdapter implements ListS
 		// generate popup menu
 		JPopupMenu popupMenu = new JPopupMenu();
 		popupMenu.add(new DownloadFileListPopupDelRowAction("ContextMenuRemoveFromList", mainApp, selectedRows));
+		popupMenu.addSeparator();
+		popupMenu.add(new DownloadFileListPopupPriorityAction("ContextMenuDownloadFirst", mainApp, 
+				selectedRows, SegmentQueue.PRIO_HIGH));
+		popupMenu.add(new DownloadFileListPopupPriorityAction("ContextMenuDownloadLast", mainApp, 
+				selectedRows, SegmentQueue.PRIO_LOW));
 		
 		// show popup menu
 		popupMenu.show(table, me.getX(), me.getY()); 
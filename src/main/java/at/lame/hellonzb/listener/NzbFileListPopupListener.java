@@ -19,6 +19,7 @@ package at.lame.hellonzb.listener;
 
 import at.lame.hellonzb.*;
 import at.lame.hellonzb.listener.actions.*;
+import at.lame.hellonzb.parser.NzbParser;
 
 import java.awt.event.*;
 import javax.swing.*;
@@ -79,6 +80,13 @@ public class NzbFileListPopupListener extends MouseAdapter
 				"ContextMenuRemoveFromList", mainApp, selectedRows, false));
 		popupMenu.add(new NzbFileListPopupDelRowAction(
 				"ContextMenuRemoveAndDelete", mainApp, selectedRows, true));
+		popupMenu.addSeparator();
+		popupMenu.add(new NzbFileListPopupPriorityAction(
+				"ContextMenuNzbPriorityHigh", mainApp, selectedRows, NzbParser.PRIO_HIGH));
+		popupMenu.add(new NzbFileListPopupPriorityAction(
+				"ContextMenuNzbPriorityNormal", mainApp, selectedRows, NzbParser.PRIO_NORMAL));
+		popupMenu.add(new NzbFileListPopupPriorityAction(
+				"ContextMenuNzbPriorityLow", mainApp, selectedRows, NzbParser.PRIO_LOW));
 
 		MenuElement [] elements = popupMenu.getSubElements();
 		
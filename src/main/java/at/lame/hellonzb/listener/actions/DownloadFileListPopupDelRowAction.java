@@ -52,7 +52,9 @@ public class DownloadFileListPopupDelRowAction extends AbstractAction
 	
 	public void actionPerformed(ActionEvent e) 
 	{
-		boolean stopped = mainApp.isDownloadActive();
+		// files are removed from the running download, unless all files are removed
+		boolean stopped = mainApp.isDownloadActive() && 
+				selectedRows.length >= mainApp.getDownloadFileCount();
 		
 		if(stopped)
 			mainApp.startDownload();
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package at.lame.hellonzb.listener.actions;
+
+import at.lame.hellonzb.*;
+import at.lame.hellonzb.parser.SegmentQueue;
+
+import java.awt.event.*;
+import javax.swing.*;
+
+
+public class DownloadFileListPopupPriorityAction extends AbstractAction 
+{	
+	/** main application object */
+	private final HelloNzb mainApp;
+	
+	/** selected rows (zero-based) */
+	private String [] selectedRows;
+	
+	/** the priority to set (see SegmentQueue) */
+	private int priority;
+	
+	
+	public DownloadFileListPopupPriorityAction(String name, HelloNzb f, int [] selectedRows, int priority)
+	{
+		this.mainApp = f;
+		this.priority = priority;
+		
+		// create list of row names to change
+		int i = 0;
+		this.selectedRows = new String[selectedRows.length];
+		for(int index : selectedRows)
+			this.selectedRows[i++] = mainApp.getDownloadFileName(index);
+		
+		putValue(Action.NAME, mainApp.getLocaler().getBundleText(name));
+	}
+	
+	public void actionPerformed(ActionEvent e) 
+	{
+		// high priority files are queued in front of the others, so
+		// set them in reverse order to keep the order of the rows
+		for(int i = 0; i < selectedRows.length; i++)
+		{
+			int row = (priority == SegmentQueue.PRIO_HIGH) ? selectedRows.length - 1 - i : i;
+			mainApp.setDownloadFilePriority(selectedRows[row], priority);
+		}
+	}
+}
@@ -50,7 +50,10 @@ public class NzbFileListPopupDelRowAction extends AbstractAction
 	public void actionPerformed(ActionEvent e) 
 	{
 		int count = 0;
-		boolean stopped = mainApp.isDownloadActive();
+		
+		// the running download drops removed nzb files by itself, but it 
+		// must not write into a directory that is about to be deleted
+		boolean stopped = delData && mainApp.isDownloadActive();
 		
 		if(stopped)
 			mainApp.startDownload();
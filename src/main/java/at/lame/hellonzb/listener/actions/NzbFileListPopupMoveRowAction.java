@@ -53,17 +53,10 @@ public class NzbFileListPopupMoveRowAction extends AbstractAction
 	
 	public void actionPerformed(ActionEvent e) 
 	{
-		boolean stopped = mainApp.isDownloadActive();
-		
-		if(stopped)
-			mainApp.startDownload();
-		
+		// the running download picks up the new order by itself
 		mainApp.moveRowsInNzbQueue(selectedRows, direction);
 		mainApp.clearNzbQueueSelection();
 		mainApp.saveOpenParserData(false);
-		
-		if(stopped)
-			mainApp.startDownload();
 	}
 }
 
@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package at.lame.hellonzb.listener.actions;
+
+import at.lame.hellonzb.*;
+
+import java.awt.event.*;
+import javax.swing.*;
+
+
+public class NzbFileListPopupPriorityAction extends AbstractAction 
+{	
+	/** main application object */
+	private final HelloNzb mainApp;
+	
+	/** selected rows (zero-based) */
+	private int [] selectedRows;
+	
+	/** the priority to set (see NzbParser) */
+	private int priority;
+	
+	
+	public NzbFileListPopupPriorityAction(String name, HelloNzb f, int [] selectedRows, int priority)
+	{
+		this.mainApp = f;
+		this.selectedRows = selectedRows;
+		this.priority = priority;
+		
+		putValue(Action.NAME, mainApp.getLocaler().getBundleText(name));
+	}
+	
+	public void actionPerformed(ActionEvent e) 
+	{
+		mainApp.setNzbPriority(selectedRows, priority);
+		mainApp.clearNzbQueueSelection();
+	}
+}
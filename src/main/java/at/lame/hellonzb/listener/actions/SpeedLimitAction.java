@@ -18,7 +18,7 @@
 package at.lame.hellonzb.listener.actions;
 
 import at.lame.hellonzb.*;
-import at.lame.hellonzb.nntpclient.nioengine.NettyNioClient;
+import at.lame.hellonzb.nntpclient.nioengine.NntpServerGroup;
 import at.lame.hellonzb.util.MyLogger;
 
 import java.awt.event.*;
@@ -59,15 +59,16 @@ public class SpeedLimitAction extends AbstractAction
 			reply = "0";
 		
 		// process user input (save to preferences)
-		long limit = 0;
 		try
 		{
-			limit = Long.valueOf(reply);
+			Long.valueOf(reply);
 			mainApp.getPrefContainer().setSpeedLimit(reply);
 			mainApp.setConnSpeedLimit();
-			NettyNioClient nio = mainApp.getCurrNioClient();
+			
+			// an active time window of the speed schedule has precedence
+			NntpServerGroup nio = mainApp.getCurrNioClient();
 			if(nio != null)
-				nio.setSpeedLimit(limit);
+				nio.setSpeedLimit(mainApp.getSpeedLimit());
 		}
 		catch(NumberFormatException ex) { }
 	}
@@ -24,19 +24,39 @@ import at.lame.hellonzb.parser.*;
 import at.lame.hellonzb.util.*;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 import com.sun.mail.util.*;
 
+import org.jboss.netty.buffer.*;
+
 
 /**
- * This class is called by the class NntpFileDownload as a thread's runnable
- * object when a file has been finished downloading and should now be decoded.
+ * This class is used by the class NntpFileDownloader to decode a file.
+ * Each yenc segment is decoded as soon as it was downloaded, on a shared
+ * pool with one thread per CPU core, so decoding overlaps downloading.
+ * The decoded data is written right away to its position within the output
+ * file (taken from the "=ypart" line), the output file is preallocated with
+ * the size found in the "=ybegin" line. So the memory needed for a file 
+ * does not depend on its size. UU encoded files are decoded when all 
+ * segments are there, as UU parts can't be decoded independently.
+ * All data waiting to be decoded or written is kept in a SegmentSpool,
+ * the arrays holding it are leased from the BufferPool and returned as soon
+ * as the data has been written.
  * 
  * @author Matthias F. Brandstetter
  */
 public class FileDecoder implements Runnable, HelloYencRunnable
 {
+	/** the pool used for all decoding work (shared by all download files) */
+	private static ThreadPoolExecutor executor = null;
+	
+	/** the yenc decoder of each thread of the pool (reused for all parts) */
+	private static final ThreadLocal<HelloYencStream> yencDecoders = new ThreadLocal<HelloYencStream>();
+	
 	/** The main HelloNzb application object */
 	private final HelloNzb mainApp;
 
@@ -46,141 +66,290 @@ public class FileDecoder implements Runnable, HelloYencRunnable
 	/** download file to decode */
 	private DownloadFile dlFile;
 
-	/** the data to decode */
-	private Vector<byte[]> articleData;
-
-	/** data encoding */
-	private String encoding;
-
 	/** The download directory on local disk */
 	private File dlDir;
-
-	public FileDecoder(HelloNzb mainApp, File dlDir, DownloadFile dlFile,
-			Vector<byte[]> data, String encoding)
+	
+	/** holds the data waiting to be decoded or written */
+	private SegmentSpool spool;
+	
+	/** decoded yenc parts without position information (key = segment index) */
+	private TreeMap<Integer,SegmentSpool.Entry> yencParts;
+	
+	/** the output file (created when the first yenc data was decoded) */
+	private RandomAccessFile outFile;
+	
+	/** the path of the output file, deleted when decoding is cancelled */
+	private File outPath;
+	
+	/** the channel used to write the decoded yenc data to the output file */
+	private FileChannel outChannel;
+	
+	/** all other (i.e. UU encoded) parts, decoded when all segments are there */
+	private TreeMap<Integer,SegmentSpool.Entry> otherParts;
+	
+	/** the number of yenc parts currently being decoded */
+	private int pendingParts;
+	
+	/** set when all segments of the download file have been added */
+	private boolean allPartsAdded;
+	
+	/** set when decoding has been cancelled */
+	private boolean cancelled;
+
+	
+	public FileDecoder(HelloNzb mainApp, File dlDir, DownloadFile dlFile, SegmentSpool spool)
 	{
 		this.mainApp = mainApp;
 		this.logger = mainApp.getLogger();
 		this.dlDir = dlDir;
 		this.dlFile = dlFile;
-		this.articleData = data;
-		this.encoding = encoding;
-		this.dlDir = dlDir;
+		this.spool = spool;
+		
+		this.yencParts = new TreeMap<Integer,SegmentSpool.Entry>();
+		this.otherParts = new TreeMap<Integer,SegmentSpool.Entry>();
+		this.outFile = null;
+		this.outPath = null;
+		this.outChannel = null;
+		this.pendingParts = 0;
+		this.allPartsAdded = false;
+		this.cancelled = false;
 	}
-
-	public void run()
+	
+	/**
+	 * Returns the pool that is used for all decoding work. It has one thread
+	 * per CPU core, idle threads are terminated after one minute.
+	 * 
+	 * @return The ExecutorService object
+	 */
+	public static synchronized ExecutorService getExecutor()
 	{
-		Vector<byte[]> outVector = new Vector<byte[]>();
-		HelloYenc yencDecoder = null;
-		UUDecoderStream uuDecoder = null;
-		FileOutputStream fileOutStream = null;
-		int uuLength = 0;
-
-		// prepare suitable decoder
-		if(encoding.equals("yenc"))
-			yencDecoder = new HelloYenc(logger);
-		else if(encoding.equals("uu"))
-			uuDecoder = null;
-		else
+		if(executor == null)
 		{
-			logger.msg("Could not find a suitable decoder!", MyLogger.SEV_ERROR);
+			int threads = Runtime.getRuntime().availableProcessors();
+			executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, 
+					new LinkedBlockingQueue<Runnable>());
+			executor.allowCoreThreadTimeOut(true);
+		}
+		
+		return executor;
+	}
+	
+	/**
+	 * Called when a segment of the download file has been downloaded.
+	 * Yenc data is decoded right away (on the decoding pool).
+	 * 
+	 * @param index The index of the segment within the download file
+	 * @param data The article data of the segment, backed by an array of the
+	 *             BufferPool (as returned by RspHandler.getData())
+	 */
+	public void addSegment(final int index, ChannelBuffer data)
+	{
+		// check for corrupt download
+		if(data == null || data.readableBytes() == 0)
+		{
+			logger.msg("FileDecoder: Corrupt data found", MyLogger.SEV_WARNING);
+			return;
+		}
+		
+		// check the data before it is stored, the array may be reused afterwards
+		boolean yenc = NntpFileDownloader.bytesEqualsString(data, "=ybegin");
+		final SegmentSpool.Entry entry = spool.store(data, data.hasArray() ? data.array() : null);
+		if(!yenc)
+		{
+			synchronized(this)
+			{
+				otherParts.put(index, entry);
+			}
 			return;
 		}
+		
+		synchronized(this)
+		{
+			pendingParts++;
+		}
+		
+		getExecutor().execute(new Runnable()
+		{
+			public void run()
+			{
+				decodeYencPart(index, entry);
+			}
+		});
+	}
+	
+	/**
+	 * Called when all segments of the download file have been added.
+	 * The output file is written as soon as all parts are decoded.
+	 */
+	public void allSegmentsAdded()
+	{
+		synchronized(this)
+		{
+			allPartsAdded = true;
+			if(pendingParts > 0)
+				return;
+		}
+		
+		getExecutor().execute(this);
+	}
+	
+	/**
+	 * Cancel decoding this file (e.g. when it has been removed from the
+	 * download). All data held is released, the parts still being decoded 
+	 * are dropped. The partial output file is deleted, so it does not take 
+	 * the name of the file when the download is started again. Must not be 
+	 * called after allSegmentsAdded().
+	 */
+	public synchronized void cancel()
+	{
+		cancelled = true;
+		releaseAll(yencParts);
+		releaseAll(otherParts);
+		
+		try
+		{
+			if(outFile != null)
+				outFile.close();
+		}
+		catch(IOException ex)
+		{
+			logger.printStackTrace(ex);
+		}
+		
+		if(outPath != null && !outPath.delete())
+			logger.msg("FileDecoder: Could not delete partial file " + outPath.getName(), 
+					MyLogger.SEV_WARNING);
+	}
+	
+	/**
+	 * Decode one yenc part (runs on the decoding pool).
+	 * 
+	 * @param index The index of the segment within the download file
+	 * @param entry The spool entry that holds the article data of the segment
+	 */
+	private void decodeYencPart(int index, SegmentSpool.Entry entry)
+	{
+		HelloYencStream yencDecoder = yencDecoders.get();
+		if(yencDecoder == null)
+		{
+			yencDecoder = new HelloYencStream(logger);
+			yencDecoders.set(yencDecoder);
+		}
+		PartWriter writer = new PartWriter(yencDecoder, entry.length());
+		yencDecoder.setRunnable(this);
+		yencDecoder.reset(index, writer);
+		
+		try
+		{
+			// decode the data pieces as they are, without concatenating them
+			for(ByteBuffer bb : entry.getData().toByteBuffers())
+				yencDecoder.decode(bb);
+			yencDecoder.finish();
+		}
+		catch(Exception e)
+		{
+			if(!isCancelled())
+				logger.msg("FileDecoder: Error in yenc part " + index + " of file " + 
+						dlFile.getFilename() + ": " + e.getMessage(), MyLogger.SEV_WARNING);
+		}
+		entry.release();
+		yencDecoder.reset(0, null);
+		yencDecoder.setRunnable(null);
+		
+		boolean finished = false;
+		synchronized(this)
+		{
+			if(writer.length > 0 && !cancelled)
+				yencParts.put(index, spool.store(
+						ChannelBuffers.wrappedBuffer(writer.buffer, 0, writer.length), writer.buffer));
+			else
+				BufferPool.getInstance().release(writer.buffer);
+			
+			pendingParts--;
+			finished = allPartsAdded && pendingParts == 0;
+		}
+		
+		// last part decoded, so finish the output file now (on this thread)
+		if(finished)
+			run();
+	}
+	
+	/**
+	 * Returns the channel of the output file for yenc data. The file is
+	 * created (and preallocated) when this method is called for the first time.
+	 * 
+	 * @param yencDecoder The decoder that has already parsed the yenc header
+	 * @return The FileChannel object
+	 * @throws IOException
+	 */
+	private synchronized FileChannel getOutChannel(HelloYencStream yencDecoder) throws IOException
+	{
+		if(cancelled)
+			throw new IOException("decoding cancelled");
+		
+		if(outChannel == null)
+		{
+			outPath = createOutFile(yencDecoder.getFileName());
+			outFile = new RandomAccessFile(outPath, "rw");
+			if(yencDecoder.getFileSize() > 0)
+				outFile.setLength(yencDecoder.getFileSize());
+			outChannel = outFile.getChannel();
+		}
+		
+		return outChannel;
+	}
 
+	/**
+	 * Finish the output file (runs on the decoding pool).
+	 */
+	public void run()
+	{
+		FileOutputStream fileOutStream = null;
+		
 		try
 		{
-			int i = 0;
-			while(articleData.size() > 0)
+			if(outChannel != null)
 			{
-				// check for corrupt download
-				if(articleData.get(0) == null || articleData.get(0).length == 0)
-				{
-					logger.msg("FileDecoder: Corrupt data found", MyLogger.SEV_WARNING);
-					articleData.remove(0);
-					continue;
-				}
-
-				// set data input stream of the yenc decoder object
-				if(encoding.equals("yenc"))
-				{
-					yencDecoder.setInputData(articleData.get(0));
-					yencDecoder.setPartNum(i + 1);
-					yencDecoder.setRunnable(this);
-				}
-
-				// set data for the UUDecoder object
-				else if(encoding.equals("uu"))
-				{
-					byte[] src = articleData.get(0);
-					uuLength = src.length;
-					ByteArrayInputStream inStream = new ByteArrayInputStream(src);
-					uuDecoder = new UUDecoderStream(inStream);
-				}
-
-				// do we have the first (yenc) part loaded (then get filename)?
-				if(i == 0)
-				{
-					File resultFile = createOutFile(yencDecoder, uuDecoder);
-					fileOutStream = new FileOutputStream(resultFile);
-				}
-
-				// now decode the current article data block
-				if(articleData.get(0).length > 0)
-				{
-					if(encoding.equals("yenc"))
-						outVector.add(yencDecoder.decode());
-
-					else if(encoding.equals("uu"))
-					{
-						byte[] bytes = new byte[uuLength];
-						int b;
-
-						b = uuDecoder.read();
-						int outBufCounter = 0;
-						for(; b != -1 && outBufCounter < uuLength; outBufCounter++)
-						{
-							bytes[outBufCounter] = (byte) b;
-							b = uuDecoder.read();
-						}
-
-						byte[] newOutBuf = new byte[outBufCounter];
-						System.arraycopy(bytes, 0, newOutBuf, 0, outBufCounter);
-						outVector.add(newOutBuf);
-					}
-				}
-
-				// update progress bar in main window
-				final int j = i + 1;
-				SwingUtilities.invokeLater(new Runnable()
-				{
-					public void run()
-					{
-						mainApp.updateDownloadQueue(dlFile.getFilename(), j);
-					}
-				});
-
-				// remove processed element
-				articleData.remove(0);
-				i++;
+				if(!otherParts.isEmpty())
+					logger.msg("FileDecoder: " + otherParts.size() + " corrupt part(s) in file " +
+							dlFile.getFilename(), MyLogger.SEV_WARNING);
+				
+				// parts without position information are written in order
+				if(!yencParts.isEmpty())
+					writeData(outChannel);
 			}
-
-			// notify main application that writing of file started
-			SwingUtilities.invokeLater(new Runnable()
+			else if(!otherParts.isEmpty() && 
+					NntpFileDownloader.bytesEqualsString(otherParts.firstEntry().getValue().getData(), "begin "))
 			{
-				public void run()
-				{
-					mainApp.fileWritingStarted(dlFile.getFilename());
-					mainApp.updateDownloadQueue(dlFile.getFilename(), 0);
-				}
-			});
-
-			// write data to output file and close it afterwards
-			writeData(outVector, fileOutStream);
-			fileOutStream.close();
+				fileOutStream = decodeUU();
+			}
+			else
+			{
+				// too bad, no decoder found for this file :(
+				logger.msg("No suitable decoder found for downloaded file: "
+						+ dlFile.getFilename(), MyLogger.SEV_ERROR);
+			}
 		}
 		catch(Exception e)
 		{
 			logger.printStackTrace(e);
 		}
+		
+		try
+		{
+			if(fileOutStream != null)
+				fileOutStream.close();
+			if(outFile != null)
+				outFile.close();
+		}
+		catch(IOException ex)
+		{
+			logger.printStackTrace(ex);
+		}
+		
+		// free memory
+		releaseAll(yencParts);
+		releaseAll(otherParts);
 
 		// update main application window that file decoding is finished now
 		SwingUtilities.invokeLater(new Runnable()
@@ -189,24 +358,62 @@ public class FileDecoder implements Runnable, HelloYencRunnable
 			{
 				// notify main application that decoding of this file has
 				// finished
-				mainApp.fileDecodingFinished(dlFile.getFilename());
+				mainApp.fileDecodingFinished(dlFile);
 			}
 		});
 	}
+	
+	// decode all UU parts and write them to the output file
+	private FileOutputStream decodeUU() throws IOException
+	{
+		FileOutputStream fileOutStream = null;
+		int i = 0;
+		
+		for(SegmentSpool.Entry entry : otherParts.values())
+		{
+			ChannelBuffer src = entry.getData();
+			int uuLength = src.readableBytes();
+			UUDecoderStream uuDecoder = new UUDecoderStream(new ChannelBufferInputStream(src));
+			
+			// do we have the first part loaded (then get filename)?
+			if(i == 0)
+				fileOutStream = new FileOutputStream(createOutFile(uuDecoder.getName()));
+
+			byte[] bytes = BufferPool.getInstance().lease(uuLength);
+			int b;
+
+			b = uuDecoder.read();
+			int outBufCounter = 0;
+			for(; b != -1 && outBufCounter < uuLength; outBufCounter++)
+			{
+				bytes[outBufCounter] = (byte) b;
+				b = uuDecoder.read();
+			}
+			fileOutStream.write(bytes, 0, outBufCounter);
+			BufferPool.getInstance().release(bytes);
+			entry.release();
+
+			// update progress bar in main window
+			final int j = i + 1;
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					mainApp.updateDownloadQueue(dlFile.getFilename(), j);
+				}
+			});
+			
+			i++;
+		}
+		
+		return fileOutStream;
+	}
 
 	// create output file
-	private File createOutFile(HelloYenc yencDecoder, UUDecoderStream uuDecoder)
-			throws IOException
+	private File createOutFile(String filename) throws IOException
 	{
 		File resultFile = null;
 		File resultDir = null;
-		String filename = "";
-
-		// get filename
-		if(encoding.equals("yenc"))
-			filename = yencDecoder.getFileName();
-		else if(encoding.equals("uu"))
-			filename = uuDecoder.getName();
 
 		if(filename.equals(""))
 			filename = dlFile.getFilename();
@@ -283,34 +490,99 @@ public class FileDecoder implements Runnable, HelloYencRunnable
 		return fileRename;
 	}
 
-	// write data to given output file stream
-	private void writeData(Vector<byte[]> outVector, FileOutputStream fileOutStream) throws IOException
+	// write all decoded yenc parts without position information to the output file
+	private void writeData(FileChannel channel) throws IOException
 	{
-		int i = 0;
-
-		while(outVector.size() > 0)
+		long position = 0;
+		
+		for(SegmentSpool.Entry entry : yencParts.values())
 		{
-			byte[] buffer = outVector.get(0);
-			fileOutStream.write(buffer);
-			fileOutStream.flush();
-
-			// update progress bar in main window
-			final int j = i + 1;
-			SwingUtilities.invokeLater(new Runnable()
+			for(ByteBuffer bb : entry.getData().toByteBuffers())
 			{
-				public void run()
-				{
-					mainApp.updateDownloadQueue(dlFile.getFilename(), j);
-				}
-			});
-
-			outVector.remove(0);
-			i++;
+				while(bb.hasRemaining())
+					position += channel.write(bb, position);
+			}
+			entry.release();
 		}
 	}
+	
+	// returns whether or not decoding has been cancelled
+	private synchronized boolean isCancelled()
+	{
+		return cancelled;
+	}
+	
+	// release all spool entries of the given map and clear it
+	private void releaseAll(TreeMap<Integer,SegmentSpool.Entry> parts)
+	{
+		for(SegmentSpool.Entry entry : parts.values())
+			entry.release();
+		parts.clear();
+	}
 
 	public void crc32Error()
 	{
 		// TODO Auto-generated method stub
 	}
+	
+	/**
+	 * Writes the decoded data of one yenc part to its position within the
+	 * output file. Parts without position information (no "=ypart" line
+	 * in a multi-part file) are collected in memory instead.
+	 */
+	private class PartWriter implements YencSink
+	{
+		/** the decoder of this part */
+		private HelloYencStream yencDecoder;
+		
+		/** the current position within the output file (-1 if not known yet) */
+		private long position;
+		
+		/** used for parts without position information (leased from the buffer pool) */
+		private byte [] buffer;
+		
+		/** the amount of bytes in the buffer */
+		private int length;
+		
+		/** the expected size of the decoded part (the size of the encoded part) */
+		private int sizeHint;
+		
+		
+		public PartWriter(HelloYencStream yencDecoder, int sizeHint)
+		{
+			this.yencDecoder = yencDecoder;
+			this.position = -1;
+			this.buffer = null;
+			this.length = 0;
+			this.sizeHint = sizeHint;
+		}
+		
+		public void write(byte [] data, int off, int len) throws IOException
+		{
+			// the yenc header lines are always parsed before any data is written
+			if(position < 0 && buffer == null)
+			{
+				if(yencDecoder.getPartBegin() > 0)
+					position = yencDecoder.getPartBegin() - 1;
+				else if(dlFile.getSegCount() <= 1)
+					position = 0;
+				else
+					buffer = BufferPool.getInstance().lease(Math.max(sizeHint, len));
+			}
+			
+			FileChannel channel = getOutChannel(yencDecoder);
+			if(buffer != null)
+			{
+				if(length + len > buffer.length)
+					buffer = BufferPool.getInstance().grow(buffer, length, length + len);
+				System.arraycopy(data, off, buffer, length, len);
+				length += len;
+				return;
+			}
+			
+			ByteBuffer bb = ByteBuffer.wrap(data, off, len);
+			while(bb.hasRemaining())
+				position += channel.write(bb, position);
+		}
+	}
 }
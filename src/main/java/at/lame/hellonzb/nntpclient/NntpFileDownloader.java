@@ -21,23 +21,57 @@ package at.lame.hellonzb.nntpclient;
 import at.lame.hellonzb.*;
 import at.lame.hellonzb.nntpclient.nioengine.*;
 import at.lame.hellonzb.parser.*;
+import at.lame.hellonzb.util.BufferPool;
 import at.lame.hellonzb.util.MyLogger;
 
 import java.io.*;
 import java.util.*;
 import java.nio.*;
 import java.nio.charset.*;
+import java.util.concurrent.*;
 import javax.swing.*;
 
+import org.jboss.netty.buffer.*;
+
 /**
  * This class is used to download a file. It creates as many client threads as
  * specified by the user settings. When all segments were completely downloaded,
  * they are put together and saved to the output file.
  * 
+ * The downloader works on the whole nzb file queue. Of each priority (see 
+ * NzbParser) the first nzb file with segments left is downloaded, so nzb files
+ * of different priorities are downloaded at the same time. The download slots
+ * are split among them by the weight of their priority. Within a priority the
+ * next nzb file is started as soon as all segments of the previous one have
+ * been requested.
+ * 
+ * When all segments have been requested and fewer segments are on their way
+ * than download slots are free (end-game), the slowest segments are requested 
+ * a second time. The first complete copy of a segment is used, the other one 
+ * is cancelled.
+ * 
  * @author Matthias F. Brandstetter
  */
-public class NntpFileDownloader implements Runnable
+public class NntpFileDownloader implements Runnable, RspHandlerListener, SlotListener
 {
+	/** max. time in ms between two progress bar updates */
+	private static final int PROGRESS_INTERVAL = 200;
+	
+	/** default heap budget for downloaded data in spool mode (in MB) */
+	private static final int DEFAULT_SPOOL_BUDGET = 64;
+	
+	/** min. time in ms a segment is on its way before it is requested again in end-game */
+	private static final int MIN_HEDGE_DELAY = 1000;
+	
+	/** weight of a new sample in the average segment download time */
+	private static final double SAMPLE_WEIGHT = 0.2;
+	
+	/** the share of the download slots of a nzb file, by priority (see NzbParser) */
+	private static final int [] WEIGHTS = { 9, 3, 1 };
+	
+	/** dummy event, used to wake up the main loop */
+	private static final RspHandler WAKE_UP = new RspHandler(null);
+
 	/** The main HelloNzb application object */
 	private final HelloNzb mainApp;
 
@@ -45,19 +79,44 @@ public class NntpFileDownloader implements Runnable
 	private MyLogger logger;
 
 	/** Nio client object */
-	private NettyNioClient nioClient;
-
-	/** The file that should has to be downloaded */
-	private SegmentQueue segQueue;
-
-	/** map a DownloadFile to all associated RspHandler objects */
-	private HashMap<DownloadFile, Vector<RspHandler>> dlFileRspHandlerMap;
+	private NntpServerGroup nioClient;
+
+	/** the nzb files to download, in queue order (plus removed ones still in progress) */
+	private Vector<NzbJob> jobs;
+	
+	/** map a DownloadFile to the job of its nzb file */
+	private HashMap<DownloadFile, NzbJob> fileJobs;
+	
+	/** the new nzb file queue to apply (null if unchanged, see setNzbQueue()) */
+	private Vector<NzbParser> newQueue;
+	
+	/** set when the main loop has finished, no new nzb files are accepted then */
+	private boolean finished;
+
+	/** map a DownloadFile to the FileDecoder object that decodes its segments */
+	private HashMap<DownloadFile, FileDecoder> fileDecoders;
+	
+	/** holds the downloaded data until it is decoded */
+	private SegmentSpool spool;
 
 	/** A set of active response handlers */
 	private Vector<RspHandler> activeRspHandlers;
-
-	/** The download directory on local disk */
-	private File dlDir;
+	
+	/** the handlers of all segments requested more than once (end-game) */
+	private HashMap<DownloadFileSegment, Vector<RspHandler>> copies;
+	
+	/** the average download time of a segment (in ms, -1 = unknown) */
+	private double avgSegmentTime;
+	
+	/** the amount of segments requested again, and how often the copy was faster */
+	private int hedgedCount;
+	private int hedgeWins;
+
+	/** finished response handlers (and wake up events) to be processed by the main loop */
+	private LinkedBlockingQueue<RspHandler> events;
+
+	/** The root download directory on local disk */
+	private File rootDir;
 
 	/** Flag set from main app when this thread should pause working */
 	private boolean pause;
@@ -69,23 +128,37 @@ public class NntpFileDownloader implements Runnable
 	private boolean crc32Error;
 
 	/**
-	 * This is the constructor of the class. It has to receive the file that has
-	 * to be downloaded by this downloader object.
+	 * This is the constructor of the class. It has to receive the nzb files 
+	 * that have to be downloaded by this downloader object.
 	 * 
-	 * @param file The DownloadFile object that has to be downloaded
+	 * @param nioClient The servers to download from
+	 * @param queue The nzb file queue
+	 * @param rootDir The root download directory, each nzb file is saved to a sub directory
+	 * @param mainApp The main application object
 	 */
-	public NntpFileDownloader(NettyNioClient nioClient, SegmentQueue segQueue, File dlDir, HelloNzb mainApp)
+	public NntpFileDownloader(NntpServerGroup nioClient, Vector<NzbParser> queue, File rootDir, HelloNzb mainApp)
 	{
 		this.mainApp = mainApp;
 		this.logger = mainApp.getLogger();
 		this.nioClient = nioClient;
-		this.segQueue = segQueue;
-		this.dlFileRspHandlerMap = new HashMap<DownloadFile, Vector<RspHandler>>();
+		this.jobs = new Vector<NzbJob>();
+		this.fileJobs = new HashMap<DownloadFile, NzbJob>();
+		this.newQueue = null;
+		this.finished = false;
+		this.fileDecoders = new HashMap<DownloadFile, FileDecoder>();
 		this.activeRspHandlers = new Vector<RspHandler>();
-		this.dlDir = dlDir;
+		this.copies = new HashMap<DownloadFileSegment, Vector<RspHandler>>();
+		this.avgSegmentTime = -1;
+		this.hedgedCount = 0;
+		this.hedgeWins = 0;
+		this.events = new LinkedBlockingQueue<RspHandler>();
+		this.rootDir = rootDir;
+		this.spool = new SegmentSpool(logger, rootDir, getSpoolBudget());
 		this.pause = false;
 		this.shutdown = false;
 		this.crc32Error = false;
+		
+		applyNzbQueue(queue);
 	}
 
 	/**
@@ -93,19 +166,27 @@ public class NntpFileDownloader implements Runnable
 	 */
 	public void run()
 	{
-		int maxThreads = Integer.parseInt(mainApp.getPrefValue("ServerSettingsThreadCount"));
 		int runningThreads = 0;
 		HashMap<String, Integer> downloadedBytes = new HashMap<String, Integer>();
 		HashMap<String, Integer> lastProgBarUpdate = new HashMap<String, Integer>();
-
+		Vector<RspHandler> finishedHandlers = new Vector<RspHandler>();
+		BufferPool pool = BufferPool.getInstance();
+		long leases = pool.getLeaseCount();
+		long allocs = pool.getAllocCount();
+		long allocBytes = pool.getAllocBytes();
+		long [] gcStats = HelloNzbToolkit.getGcStats();
+
+		nioClient.setSlotListener(this);
+		
 		// loop at all segments of the download file
-		while(!shutdown && (segQueue.hasMoreSegments() || runningThreads > 0))
+		while(!shutdown && !isDone(runningThreads))
 		{
 			// more segments to go?
-			while(segQueue.hasMoreSegments() && runningThreads < maxThreads && !pause && nioClient.hasFreeSlot())
+			while(runningThreads < nioClient.getSlotCount() && !pause && nioClient.hasFreeSlot())
 			{
-				// get next download segment of the download file
-				DownloadFileSegment seg = segQueue.nextSegment();
+				// get next download segment of the nzb file with the smallest share
+				NzbJob job = nextJob();
+				DownloadFileSegment seg = (job == null) ? null : job.segQueue.nextSegment();
 				if(seg == null)
 					break;
 				String filename = seg.getDlFile().getFilename();
@@ -113,27 +194,111 @@ public class NntpFileDownloader implements Runnable
 
 				// create new response handler
 				RspHandler newHandler = new RspHandler(seg);
-				activeRspHandlers.add(newHandler);
-
-				// map the new response handler to the download file
-				Vector<RspHandler> tmpVector = dlFileRspHandlerMap.get(seg.getDlFile());
-				if(tmpVector == null)
-					tmpVector = new Vector<RspHandler>();
-				tmpVector.add(newHandler);
-				dlFileRspHandlerMap.put(seg.getDlFile(), tmpVector);
+				newHandler.setListener(this);
+				addActive(newHandler);
 
-				// start data download
-				nioClient.fetchArticleData(seg.getGroups().firstElement(), seg.getArticleId(), newHandler);
+				// start data download; the slot may have been taken away in the meantime
+				// (connection retired, pipelining disabled), so try again later
+				if(!nioClient.fetchArticleData(seg.getGroups().firstElement(), seg.getArticleId(), newHandler))
+				{
+					removeActive(newHandler);
+					job.segQueue.requeueSegment(seg);
+					break;
+				}
 
 				// increase thread counter
 				runningThreads++;
 			}
+			
+			// end-game, request the slowest segments again
+			if(!hasMoreSegments() && !pause)
+				runningThreads += hedgeStragglers(nioClient.getSlotCount() - runningThreads);
 
-			// check if the next element of the result set is already finished
-			Vector<RspHandler> toRemoveVector = new Vector<RspHandler>();
+			// wait for the next event (segment finished, slot available, pause, shutdown);
+			// while segments are downloading wake up periodically to update the progress bars
+			try
+			{
+				RspHandler event = null;
+				if(runningThreads > 0)
+					event = events.poll(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+				else
+					event = events.take();
+				
+				while(event != null)
+				{
+					if(event != WAKE_UP)
+						finishedHandlers.add(event);
+					event = events.poll();
+				}
+			}
+			catch(InterruptedException e)
+			{
+				// shutdown if interrupted
+				shutdown = true;
+				break;
+			}
+			
+			// update downloaded byte counter and progress bar in main window
 			for(int i = 0; i < activeRspHandlers.size(); i++)
 			{
 				RspHandler handler = activeRspHandlers.get(i);
+				DownloadFile dlFile = handler.dlFileSeg().getDlFile();
+				String filename = dlFile.getFilename();
+				
+				int bytes = 0;
+				Integer bytesInt = downloadedBytes.get(filename);
+				if(bytesInt != null)
+					bytes = bytesInt;
+				int count = handler.newByteCount();
+				Vector<RspHandler> segCopies = copies.get(handler.dlFileSeg());
+				if(segCopies == null || segCopies.firstElement() == handler)
+					bytes += count; // count the progress of a segment only once
+				downloadedBytes.put(filename, bytes);
+
+				int last = 0;
+				Integer lastInt = lastProgBarUpdate.get(filename);
+				if(lastInt != null)
+					last = lastInt;
+				last = updateProgressBar(bytes, last, dlFile);
+				lastProgBarUpdate.put(filename, last);
+			}
+
+			// process all handlers that have finished since the last iteration
+			for(int i = 0; i < finishedHandlers.size(); i++)
+			{
+				RspHandler handler = finishedHandlers.get(i);
+				
+				// only process every handler once
+				if(!removeActive(handler))
+					continue;
+				
+				// segment requested more than once? then the first complete copy wins
+				Vector<RspHandler> segCopies = copies.get(handler.dlFileSeg());
+				if(segCopies != null)
+				{
+					boolean copy = segCopies.indexOf(handler) > 0;
+					segCopies.remove(handler);
+					if(handler.getError() != RspHandler.ERR_NONE && !segCopies.isEmpty())
+					{
+						// wait for the other copy
+						handler.discard();
+						runningThreads--;
+						continue;
+					}
+					
+					if(copy && handler.getError() == RspHandler.ERR_NONE)
+						hedgeWins++;
+					copies.remove(handler.dlFileSeg());
+					runningThreads -= cancelCopies(segCopies);
+				}
+				
+				// file removed from the queue in the meantime? then drop the data
+				if(isRemoved(handler.dlFileSeg().getDlFile()))
+				{
+					handler.discard();
+					runningThreads--;
+					continue;
+				}
 
 				// handle error response from NNTP server
 				if(handler.getError() == RspHandler.ERR_NONE)
@@ -158,70 +323,426 @@ public class NntpFileDownloader implements Runnable
 					shutdown = true;
 				}
 
-				// update downloaded byte counter ...
 				DownloadFile dlFile = handler.dlFileSeg().getDlFile();
 				String filename = dlFile.getFilename();
-				int bytes = 0;
-				Integer bytesInt = downloadedBytes.get(filename);
-				if(bytesInt != null)
-					bytes = bytesInt;
-				bytes += handler.newByteCount();
-				downloadedBytes.put(filename, bytes);
-
-				// ... and progres bar in main window
-				int last = 0;
-				Integer lastInt = lastProgBarUpdate.get(filename);
-				if(lastInt != null)
-					last = lastInt;
-				last = updateProgressBar(bytes, last, dlFile);
-				lastProgBarUpdate.put(filename, last);
-
-				// all data downloaded?
-				if(handler.isFinished())
+				if(handler.getError() == RspHandler.ERR_NONE)
+					addSegmentTime(handler.getAge());
+				runningThreads--;
+				decrSegCount(filename); // decrease main window segment counter
+				
+				// decode the segment data (in background)
+				FileDecoder fileDecoder = fileDecoders.get(dlFile);
+				if(fileDecoder == null)
 				{
-					toRemoveVector.add(handler);
-					runningThreads--;
-					decrSegCount(filename); // decrease main window segment
-											// counter
+					fileDecoder = new FileDecoder(mainApp, getDownloadDir(dlFile), dlFile, spool);
+					fileDecoders.put(dlFile, fileDecoder);
+				}
+				fileDecoder.addSegment(handler.dlFileSeg().getIndex(), handler.getData());
 
-					// segment done, so check if whole download file is finished
-					// now
-					dlFile.removeSegment(handler.dlFileSeg().getIndex());
-					if(!dlFile.hasMoreSegments())
+				// segment done, so check if whole download file is finished now
+				dlFile.removeSegment(handler.dlFileSeg().getIndex());
+				if(!dlFile.hasMoreSegments())
+				{
+					try
+					{
+						handleFinishedDlFile(dlFile);
+					}
+					catch(Exception e)
 					{
-						try
-						{
-							handleFinishedDlFile(dlFile);
-						}
-						catch(Exception e)
-						{
-							logger.printStackTrace(e);
-						}
+						logger.printStackTrace(e);
 					}
 				}
 			}
-			activeRspHandlers.removeAll(toRemoveVector);
-			toRemoveVector.removeAllElements();
+			finishedHandlers.removeAllElements();
+			
+			// stop decoding the files removed from the queue
+			for(NzbJob job : jobs)
+			{
+				for(DownloadFile dlFile : job.segQueue.pollRemoved())
+				{
+					FileDecoder fileDecoder = fileDecoders.remove(dlFile);
+					if(fileDecoder != null)
+						fileDecoder.cancel();
+				}
+			}
+			dropRemovedJobs();
+		} // end of main loop
 
-			// all tasks done?
-			if(!segQueue.hasMoreSegments() && runningThreads == 0)
+		// return the data of unfinished segments and files to the memory budget
+		for(int i = 0; i < activeRspHandlers.size(); i++)
+			activeRspHandlers.get(i).discard();
+		for(FileDecoder fileDecoder : fileDecoders.values())
+			fileDecoder.cancel();
+		
+		nioClient.removeSlotListener(this);
+		spool.close();
+		logger.msg("FileDownloader has finished downloading all files", MyLogger.SEV_DEBUG);
+		
+		// allocation and garbage collection statistics of this download
+		long [] gcEnd = HelloNzbToolkit.getGcStats();
+		logger.msg("FileDownloader: " + (pool.getLeaseCount() - leases) + " buffers leased, " + 
+				(pool.getAllocCount() - allocs) + " allocated (" + 
+				HelloNzbToolkit.prettyPrintFilesize(pool.getAllocBytes() - allocBytes) + "), " + 
+				(gcEnd[0] - gcStats[0]) + " garbage collections (" + (gcEnd[1] - gcStats[1]) + " ms)", 
+				MyLogger.SEV_INFO);
+		if(hedgedCount > 0)
+			logger.msg("FileDownloader: " + hedgedCount + " segments requested again in end-game, " + 
+					hedgeWins + " times the copy was faster", MyLogger.SEV_INFO);
+	}
+	
+	/**
+	 * Request the slowest segments on their way a second time, as long as 
+	 * fewer segments are on their way than download slots are free. Segments
+	 * are ranked by the estimated time until they are complete, computed from
+	 * the data received so far. A segment is requested again only if it is on
+	 * its way for twice the average download time of a segment. The copy is
+	 * sent on an idle connection other than the one of the straggler.
+	 * 
+	 * @param free The amount of free download slots
+	 * @return The amount of segments requested again
+	 */
+	private int hedgeStragglers(int free)
+	{
+		int pending = activeRspHandlers.size();
+		for(Vector<RspHandler> segCopies : copies.values())
+			pending -= segCopies.size() - 1;
+		if(pending == 0 || pending >= free)
+			return 0;
+		
+		// the segments requested only once so far
+		long delay = (long) Math.max(MIN_HEDGE_DELAY, 2 * avgSegmentTime);
+		final HashMap<RspHandler, Double> remaining = new HashMap<RspHandler, Double>();
+		for(RspHandler handler : activeRspHandlers)
+		{
+			DownloadFileSegment seg = handler.dlFileSeg();
+			if(copies.containsKey(seg) || handler.getAge() < delay || isRemoved(seg.getDlFile()))
+				continue;
+			
+			double received = Math.max(1, handler.getReceivedBytes());
+			double left = Math.max(1, seg.getSize() - handler.getReceivedBytes());
+			remaining.put(handler, left * handler.getAge() / received);
+		}
+		
+		Vector<RspHandler> stragglers = new Vector<RspHandler>(remaining.keySet());
+		Collections.sort(stragglers, new Comparator<RspHandler>()
+		{
+			public int compare(RspHandler h1, RspHandler h2)
 			{
-				break;
+				return remaining.get(h2).compareTo(remaining.get(h1));
 			}
+		});
+		
+		// request the slowest ones again
+		int count = 0;
+		for(RspHandler handler : stragglers)
+		{
+			if(count >= free || !nioClient.hasFreeSlot())
+				break;
+			
+			DownloadFileSegment seg = handler.dlFileSeg();
+			RspHandler copy = new RspHandler(seg);
+			copy.setListener(this);
+			if(!nioClient.fetchArticleCopy(seg.getGroups().firstElement(), seg.getArticleId(), copy, handler))
+				break;
+			
+			Vector<RspHandler> segCopies = new Vector<RspHandler>();
+			segCopies.add(handler);
+			segCopies.add(copy);
+			copies.put(seg, segCopies);
+			addActive(copy);
+			count++;
+			
+			logger.msg("End-game: requesting segment " + seg.getIndex() + " of file " + 
+					seg.getDlFile().getFilename() + " again", MyLogger.SEV_DEBUG);
+		}
+		
+		hedgedCount += count;
+		return count;
+	}
+	
+	/**
+	 * Cancel the remaining copies of a segment after the first copy has
+	 * been received. Copies not yet requested are removed from the queue of
+	 * the server. The connection of a copy that is being received is closed
+	 * if less than half of its data has arrived, so it can fetch other
+	 * segments. Otherwise (and for pipelined copies) the data is dropped when
+	 * it arrives.
+	 * 
+	 * @param losers The handlers of the remaining copies
+	 * @return The amount of copies cancelled
+	 */
+	private int cancelCopies(Vector<RspHandler> losers)
+	{
+		int count = 0;
+		for(RspHandler loser : losers)
+		{
+			if(!removeActive(loser))
+				continue;
+			
+			loser.discard();
+			if(!nioClient.cancelArticle(loser) && loser.getReceivedBytes() < loser.dlFileSeg().getSize() / 2)
+				nioClient.abortArticle(loser);
+			count++;
+		}
+		
+		return count;
+	}
+	
+	// add the download time of a segment to the average (in ms)
+	private void addSegmentTime(long time)
+	{
+		if(avgSegmentTime < 0)
+			avgSegmentTime = time;
+		else
+			avgSegmentTime += SAMPLE_WEIGHT * (time - avgSegmentTime);
+	}
 
-			try
+	// register a handler as being on its way
+	private void addActive(RspHandler handler)
+	{
+		activeRspHandlers.add(handler);
+		NzbJob job = fileJobs.get(handler.dlFileSeg().getDlFile());
+		if(job != null)
+			job.running++;
+	}
+	
+	// remove a handler that is not on its way anymore, returns false if it was not registered
+	private boolean removeActive(RspHandler handler)
+	{
+		if(!activeRspHandlers.remove(handler))
+			return false;
+		
+		NzbJob job = fileJobs.get(handler.dlFileSeg().getDlFile());
+		if(job != null)
+			job.running--;
+		return true;
+	}
+	
+	/**
+	 * Returns the job to request the next segment for: of the first nzb file
+	 * of each priority that has segments left, the one that uses the smallest
+	 * part of its share of the download slots. 
+	 * 
+	 * @return The NzbJob object, or null if no segments are left
+	 */
+	private NzbJob nextJob()
+	{
+		NzbJob [] first = new NzbJob[WEIGHTS.length];
+		for(NzbJob job : jobs)
+		{
+			int prio = job.parser.getPriority();
+			if(first[prio] == null && !job.removed && job.segQueue.hasMoreSegments())
+				first[prio] = job;
+		}
+		
+		NzbJob next = null;
+		int nextPrio = 0;
+		for(int prio = 0; prio < first.length; prio++)
+		{
+			NzbJob job = first[prio];
+			if(job != null && (next == null || job.running * WEIGHTS[nextPrio] < next.running * WEIGHTS[prio]))
 			{
-				// let the thread sleep a bit
-				Thread.sleep(10);
+				next = job;
+				nextPrio = prio;
 			}
-			catch(InterruptedException e)
+		}
+		
+		return next;
+	}
+	
+	// returns true if any nzb file has segments left
+	private boolean hasMoreSegments()
+	{
+		for(NzbJob job : jobs)
+			if(!job.removed && job.segQueue.hasMoreSegments())
+				return true;
+		
+		return false;
+	}
+	
+	// returns true if the given file (or its nzb file) has been removed from the download
+	private boolean isRemoved(DownloadFile dlFile)
+	{
+		NzbJob job = fileJobs.get(dlFile);
+		return job == null || job.removed || job.segQueue.isRemoved(dlFile);
+	}
+	
+	// returns the directory to save the given file to
+	private File getDownloadDir(DownloadFile dlFile)
+	{
+		NzbJob job = fileJobs.get(dlFile);
+		return (job == null) ? rootDir : job.dlDir;
+	}
+	
+	/**
+	 * Apply a new nzb file queue set via setNzbQueue() (if any), then check
+	 * whether or not there is anything left to do. If not, the downloader
+	 * does not accept new nzb files anymore.
+	 * 
+	 * @param runningThreads The amount of segments on their way
+	 * @return true if the downloader is done
+	 */
+	private synchronized boolean isDone(int runningThreads)
+	{
+		if(newQueue != null)
+		{
+			applyNzbQueue(newQueue);
+			newQueue = null;
+		}
+		
+		finished = !hasMoreSegments() && runningThreads == 0;
+		return finished;
+	}
+	
+	/**
+	 * Create the jobs of new nzb files and bring all jobs into the order of
+	 * the given queue. The jobs of nzb files not in the queue anymore are 
+	 * removed, segments on their way are dropped when they arrive.
+	 * 
+	 * @param queue The nzb file queue
+	 */
+	private synchronized void applyNzbQueue(Vector<NzbParser> queue)
+	{
+		HashMap<NzbParser, NzbJob> known = new HashMap<NzbParser, NzbJob>();
+		for(NzbJob job : jobs)
+			if(!job.removed)
+				known.put(job.parser, job);
+		
+		Vector<NzbJob> ordered = new Vector<NzbJob>();
+		for(NzbParser parser : queue)
+		{
+			NzbJob job = known.remove(parser);
+			if(job == null)
 			{
-				// shutdown if interrupted
-				shutdown = true;
+				File dir = new File(rootDir, HelloNzbToolkit.getLastFilename(parser.getName()));
+				job = new NzbJob(parser, new SegmentQueue(parser.getFiles()), dir);
+				for(DownloadFile dlFile : parser.getFiles())
+					fileJobs.put(dlFile, job);
 			}
-		} // end of main loop
+			ordered.add(job);
+		}
+		
+		// nzb files removed from the queue
+		for(NzbJob job : known.values())
+		{
+			job.removed = true;
+			job.segQueue.removeAll();
+			ordered.add(job);
+		}
+		
+		jobs = ordered;
+	}
+	
+	// forget the removed jobs that have no segments on their way anymore
+	private synchronized void dropRemovedJobs()
+	{
+		for(int i = jobs.size() - 1; i >= 0; i--)
+		{
+			NzbJob job = jobs.get(i);
+			if(!job.removed || job.running > 0)
+				continue;
+			
+			jobs.remove(i);
+			Iterator<NzbJob> it = fileJobs.values().iterator();
+			while(it.hasNext())
+				if(it.next() == job)
+					it.remove();
+		}
+	}
+	
+	// returns the job of the given nzb file (or null)
+	private synchronized NzbJob findJob(NzbParser parser)
+	{
+		for(NzbJob job : jobs)
+			if(job.parser == parser && !job.removed)
+				return job;
+		
+		return null;
+	}
+	
+	/**
+	 * Set the nzb file queue to download (new nzb files, a new order or 
+	 * removed nzb files). The queue is applied by the main loop right away.
+	 * 
+	 * @param queue The nzb file queue
+	 * @return false if the downloader has finished already
+	 */
+	public synchronized boolean setNzbQueue(Vector<NzbParser> queue)
+	{
+		if(finished || shutdown)
+			return false;
+		
+		newQueue = new Vector<NzbParser>(queue);
+		events.offer(WAKE_UP);
+		return true;
+	}
+	
+	/**
+	 * Wake up the main loop, e.g. after the priority of a nzb file has changed.
+	 */
+	public void nzbPriorityChanged()
+	{
+		events.offer(WAKE_UP);
+	}
+	
+	/**
+	 * Returns the amount of bytes left to download of all nzb files.
+	 * 
+	 * @return The amount of bytes
+	 */
+	public synchronized long remainingBytes()
+	{
+		long bytes = 0;
+		for(NzbJob job : jobs)
+			if(!job.removed)
+				bytes += job.segQueue.remainingBytes();
+		
+		return bytes;
+	}
 
-		logger.msg("FileDownloader has finished downloading all files", MyLogger.SEV_DEBUG);
+	/**
+	 * Remove the given file from the download. Segments being downloaded 
+	 * right now are dropped when they arrive.
+	 * 
+	 * @param parser The nzb file the download file belongs to
+	 * @param filename The name of the download file
+	 */
+	public void removeFile(NzbParser parser, String filename)
+	{
+		NzbJob job = findJob(parser);
+		if(job != null)
+			job.segQueue.removeSegments(filename);
+		events.offer(WAKE_UP);
+	}
+	
+	/**
+	 * Change the priority of the given file (see SegmentQueue).
+	 * 
+	 * @param parser The nzb file the download file belongs to
+	 * @param filename The name of the download file
+	 * @param priority The new priority
+	 */
+	public void setFilePriority(NzbParser parser, String filename, int priority)
+	{
+		NzbJob job = findJob(parser);
+		if(job != null)
+			job.segQueue.setPriority(filename, priority);
+	}
+
+	/**
+	 * Called from a RspHandler object when it has received all its data.
+	 */
+	public void handlerFinished(RspHandler handler)
+	{
+		events.offer(handler);
+	}
+	
+	/**
+	 * Called from the NIO client when a download slot became free.
+	 */
+	public void slotAvailable()
+	{
+		events.offer(WAKE_UP);
 	}
 
 	/**
@@ -230,6 +751,7 @@ public class NntpFileDownloader implements Runnable
 	public void setPaused(boolean p)
 	{
 		pause = p;
+		events.offer(WAKE_UP);
 	}
 
 	/**
@@ -248,6 +770,31 @@ public class NntpFileDownloader implements Runnable
 	public void shutdown()
 	{
 		shutdown = true;
+		events.offer(WAKE_UP);
+	}
+
+	/**
+	 * Get the heap budget for downloaded data set by the user. Data above 
+	 * this budget is written to a spool file (if enabled).
+	 * 
+	 * @return The budget in bytes, -1 if spooling is disabled
+	 */
+	private long getSpoolBudget()
+	{
+		if(!"true".equals(mainApp.getPrefValue("DownloadSettingsSpoolToDisk")))
+			return -1;
+		
+		int budget = DEFAULT_SPOOL_BUDGET;
+		try
+		{
+			budget = Integer.valueOf(mainApp.getPrefValue("DownloadSettingsSpoolHeapBudget"));
+		}
+		catch(NumberFormatException e)
+		{
+			budget = DEFAULT_SPOOL_BUDGET;
+		}
+		
+		return (long) budget * 1024 * 1024;
 	}
 
 	/**
@@ -266,8 +813,8 @@ public class NntpFileDownloader implements Runnable
 
 	/**
 	 * This method is called when a whole download file has been finished
-	 * downloading. It updates main application window and starts the decoding
-	 * thread.
+	 * downloading. It updates main application window and lets the file
+	 * decoder write the output file (when all segments are decoded).
 	 * 
 	 * @param dlFile The DownloadFile object that is finished
 	 */
@@ -281,96 +828,15 @@ public class NntpFileDownloader implements Runnable
 		{
 			public void run()
 			{
-				mainApp.fileDownloadFinished(filename);
+				mainApp.fileDownloadFinished(dlFile);
 				mainApp.setProgBarToDecoding(filename, dlFile.getSegCount());
 			}
 		});
 
-		// create result vector
-		Vector<byte[]> articleData = new Vector<byte[]>();
-		Vector<RspHandler> rspHandlers = dlFileRspHandlerMap.get(dlFile);
-		for(int i = 0; i < rspHandlers.size(); i++)
-		{
-			byte[] tmpArray = removeFirstLine(rspHandlers.get(i).getData(true));
-			articleData.add(tmpArray);
-			rspHandlers.set(i, null); // free some memory
-		}
-
-		// call garbage collector
-		rspHandlers = null;
-		dlFileRspHandlerMap.remove(dlFile);
-		Runtime.getRuntime().gc();
-
-		logger.msg("First line(s) dump:\n" + HelloNzbToolkit.firstLineFromByteData(
-				articleData.get(0), 2), MyLogger.SEV_DEBUG);
-
-		// determine data encoding (yenc or UU)
-		String encoding = null;
-		boolean bHasData = false;
-		for(int i = 0; i < articleData.size(); i++)
-		{
-			byte[] abyteHelp = articleData.get(i);
-			if(abyteHelp.length > 0)
-			{
-				bHasData = true;
-				if(bytesEqualsString(abyteHelp, "=ybegin"))
-				{
-					encoding = "yenc";
-					break;
-				}
-				else if(bytesEqualsString(abyteHelp, "begin "))
-				{
-					encoding = "uu";
-					break;
-				}
-			}
-		}
-		if(encoding == null)
-		{
-			if(bHasData)
-			{
-				encoding = "yenc";
-				logger.msg("No suitable decoder (no data) found for downloaded file: " + 
-						dlFile.getFilename() + " -- Assuming yenc.", MyLogger.SEV_WARNING);
-			}
-			else
-			{
-				// too bad, no decoder found for this file :(
-				logger.msg("No suitable decoder found for downloaded file (no data): "
-						+ dlFile.getFilename(), MyLogger.SEV_ERROR);
-
-				// update main application window
-				SwingUtilities.invokeLater(new Runnable()
-				{
-					public void run()
-					{
-						mainApp.fileDecodingFinished(dlFile.getFilename());
-					}
-				});
-
-				return;
-			}
-		}
-
-		/*
-		 * // determine data encoding String encoding = null;
-		 * if(bytesEqualsString(articleData.get(0), "=ybegin")) encoding =
-		 * "yenc"; else if(bytesEqualsString(articleData.get(0), "begin "))
-		 * encoding = "uu"; else { // too bad, no decoder found for this file :(
-		 * logger.msg("No suitable decoder found for downloaded file: " +
-		 * dlFile.getFilename(), MyLogger.SEV_ERROR);
-		 * 
-		 * // update main application window SwingUtilities.invokeLater(new
-		 * Runnable() { public void run() {
-		 * mainApp.fileDecodingFinished(dlFile.getFilename()); } } );
-		 * 
-		 * return; }
-		 */
-		
-		// start data decoding background thread
-		FileDecoder fileDecoder = new FileDecoder(mainApp, dlDir, dlFile, articleData, encoding);
-		Thread t = new Thread(fileDecoder);
-		t.start();
+		FileDecoder fileDecoder = fileDecoders.remove(dlFile);
+		if(fileDecoder == null)
+			fileDecoder = new FileDecoder(mainApp, getDownloadDir(dlFile), dlFile, spool);
+		fileDecoder.allSegmentsAdded();
 	}
 
 	/**
@@ -426,39 +892,16 @@ public class NntpFileDownloader implements Runnable
 		});
 	}
 
-	/**
-	 * Remove the first line from the passed byte array.
-	 * 
-	 * @param inputArray The byte array to process
-	 * @return The processed byte array
-	 */
-	private static byte[] removeFirstLine(byte[] inputArray)
-	{
-		int offset = 0;
-
-		while(offset < inputArray.length && (inputArray[offset] == 10 || inputArray[offset] == 13))
-			offset++; 
-		while(offset < inputArray.length && inputArray[offset] != 10 && inputArray[offset] != 13)
-			offset++;
-		while(offset < inputArray.length && (inputArray[offset] == 10 || inputArray[offset] == 13))
-			offset++;
-
-		byte[] newArray = new byte[inputArray.length - offset];
-		System.arraycopy(inputArray, offset, newArray, 0, newArray.length);
-
-		return newArray;
-	}
-
 	/**
 	 * Check if the first X characters of a byte stream match a String.
 	 * 
 	 * @param data
-	 *            The byte array to process
+	 *            The data to process
 	 * @param pattern
 	 *            The String to match
 	 * @return True if the pattern was found, false otherwise
 	 */
-	private static boolean bytesEqualsString(byte[] data, String pattern)
+	static boolean bytesEqualsString(ChannelBuffer data, String pattern)
 	{
 		byte[] bytes = new byte[pattern.length()];
 		Charset csets = Charset.forName("US-ASCII");
@@ -469,27 +912,27 @@ public class NntpFileDownloader implements Runnable
 		// data
 		while(!fin)
 		{
-			if(currChar >= data.length)
+			if(currChar >= data.readableBytes())
 				break;
 
-			byte in = data[currChar];
+			byte in = data.getByte(data.readerIndex() + currChar);
 			ByteBuffer bb = ByteBuffer.wrap(new byte[] { (byte) in });
 			CharBuffer cb = csets.decode(bb);
 			char c = cb.charAt(0);
 
-			if(data.length > 0 && (c == '\n' || c == '\r'))
+			if(data.readableBytes() > 0 && (c == '\n' || c == '\r'))
 				currChar++;
 			else
 				fin = true;
 
-			if(data.length == 0)
+			if(data.readableBytes() == 0)
 				fin = true;
 		}
 
 		// extract bytes (chars) to check from article data
-		for(int i = 0; i < bytes.length && i < data.length; i++, currChar++)
+		for(int i = 0; i < bytes.length && currChar < data.readableBytes(); i++, currChar++)
 		{
-			byte in = data[currChar];
+			byte in = data.getByte(data.readerIndex() + currChar);
 			bytes[i] = (byte) in;
 		}
 
@@ -504,4 +947,35 @@ public class NntpFileDownloader implements Runnable
 
 		return true;
 	}
+	
+	
+	/**
+	 * A nzb file being downloaded.
+	 */
+	private static class NzbJob
+	{
+		/** the nzb file */
+		final NzbParser parser;
+		
+		/** the segments left to request */
+		final SegmentQueue segQueue;
+		
+		/** the directory to save the files to */
+		final File dlDir;
+		
+		/** the amount of segments on their way */
+		int running;
+		
+		/** set when the nzb file has been removed from the queue */
+		boolean removed;
+		
+		NzbJob(NzbParser parser, SegmentQueue segQueue, File dlDir)
+		{
+			this.parser = parser;
+			this.segQueue = segQueue;
+			this.dlDir = dlDir;
+			this.running = 0;
+			this.removed = false;
+		}
+	}
 }
@@ -0,0 +1,436 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package at.lame.hellonzb.nntpclient;
+
+import at.lame.hellonzb.nntpclient.nioengine.MemoryBudget;
+import at.lame.hellonzb.util.BufferPool;
+import at.lame.hellonzb.util.MyLogger;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.jboss.netty.buffer.*;
+
+
+/**
+ * This class holds segment data until it is decoded. As long as the data
+ * kept in memory stays below the heap budget, the data is simply kept where
+ * it is. Above the budget, the data is written to a spool file in the download 
+ * directory and read into a pooled array again when it is needed. So the heap 
+ * used for downloaded data is bounded by the budget, no matter how big the files 
+ * of a download are. The space of released entries is kept in a free list and
+ * reused for new entries, so the spool file only grows to the amount of data
+ * spooled at the same time. The file is deleted when the spool is closed. The data kept in memory is charged to the global memory budget,
+ * and the data is spooled as well while that budget is exhausted.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class SegmentSpool
+{
+	/** central logger object */
+	private MyLogger logger;
+	
+	/** the directory to create the spool file in */
+	private File dir;
+	
+	/** max. number of bytes to keep in memory (-1 = no limit, spooling disabled) */
+	private long heapBudget;
+	
+	/** number of bytes currently kept in memory */
+	private long heapUsed;
+	
+	/** the global memory budget the data kept in memory is charged to */
+	private MemoryBudget memBudget;
+	
+	/** the spool file (created when it is needed for the first time) */
+	private File spoolFile;
+	
+	/** random access to the spool file */
+	private RandomAccessFile spoolRaf;
+	
+	/** the channel used to read and write the spool file */
+	private FileChannel spoolChannel;
+	
+	/** end of the data in the spool file */
+	private long spoolEnd;
+	
+	/** the free extents below spoolEnd (key = position, value = length) */
+	private TreeMap<Long,Long> freeExtents;
+	
+	/** number of entries stored in the spool file that are not released yet */
+	private int spooledEntries;
+	
+	/** set when this spool should be closed (as soon as all entries are released) */
+	private boolean closed;
+	
+	
+	/**
+	 * Class constructor.
+	 * 
+	 * @param logger The central logger object
+	 * @param dir The directory to create the spool file in
+	 * @param heapBudget Max. number of bytes to keep in memory, -1 to disable spooling
+	 */
+	public SegmentSpool(MyLogger logger, File dir, long heapBudget)
+	{
+		this.logger = logger;
+		this.dir = dir;
+		this.heapBudget = heapBudget;
+		this.heapUsed = 0;
+		this.memBudget = MemoryBudget.getInstance();
+		this.spoolFile = null;
+		this.spoolRaf = null;
+		this.spoolChannel = null;
+		this.spoolEnd = 0;
+		this.freeExtents = new TreeMap<Long,Long>();
+		this.spooledEntries = 0;
+		this.closed = false;
+	}
+	
+	/**
+	 * Store the given data. The data is kept in memory if it fits into the 
+	 * heap budget, otherwise it is written to the spool file. The readable 
+	 * bytes of the buffer must not be changed afterwards.
+	 * 
+	 * @param data The data to store
+	 * @return The Entry object used to get (and release) the data later
+	 */
+	public Entry store(ChannelBuffer data)
+	{
+		return store(data, null);
+	}
+	
+	/**
+	 * Store the given data, which is backed by an array leased from the 
+	 * BufferPool. The array is returned to the pool when the data has been
+	 * written to the spool file, or when the entry is released.
+	 * 
+	 * @param data The data to store
+	 * @param pooled The array backing the data (null if not leased from the pool)
+	 * @return The Entry object used to get (and release) the data later
+	 */
+	public synchronized Entry store(ChannelBuffer data, byte [] pooled)
+	{
+		int length = data.readableBytes();
+		
+		if(heapBudget >= 0 && (heapUsed + length > heapBudget || memBudget.isExhausted()) && 
+				!closed && openSpoolFile())
+		{
+			long start = allocate(length);
+			try
+			{
+				long position = start;
+				for(ByteBuffer bb : data.toByteBuffers())
+				{
+					while(bb.hasRemaining())
+						position += spoolChannel.write(bb, position);
+				}
+				
+				Entry entry = new Entry(null, null, start, length);
+				spooledEntries++;
+				BufferPool.getInstance().release(pooled);
+				return entry;
+			}
+			catch(IOException e)
+			{
+				// keep this one in memory
+				free(start, length);
+				logger.msg("SegmentSpool: Could not write spool file: " + e.getMessage(), 
+						MyLogger.SEV_WARNING);
+			}
+		}
+		
+		heapUsed += length;
+		memBudget.acquire(length);
+		return new Entry(data, pooled, -1, length);
+	}
+	
+	/**
+	 * Returns the number of bytes currently kept in memory.
+	 * 
+	 * @return The number of bytes
+	 */
+	public synchronized long getHeapUsed()
+	{
+		return heapUsed;
+	}
+	
+	/**
+	 * Returns the size of the spool file (0 if there is none).
+	 * 
+	 * @return The number of bytes
+	 */
+	public synchronized long getSpoolSize()
+	{
+		return spoolEnd;
+	}
+	
+	/**
+	 * Close this spool. The spool file is closed and deleted as soon as all 
+	 * entries stored there have been released. Data stored afterwards is
+	 * kept in memory.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		if(spooledEntries == 0)
+			closeSpoolFile();
+	}
+	
+	// create the spool file, if not done yet
+	private boolean openSpoolFile()
+	{
+		if(spoolChannel != null)
+			return true;
+		
+		try
+		{
+			dir.mkdirs();
+			spoolFile = File.createTempFile(".hellonzb", ".spool", dir);
+			spoolFile.deleteOnExit();
+			spoolRaf = new RandomAccessFile(spoolFile, "rw");
+			spoolChannel = spoolRaf.getChannel();
+			spoolEnd = 0;
+			return true;
+		}
+		catch(IOException e)
+		{
+			logger.msg("SegmentSpool: Could not create spool file: " + e.getMessage(), 
+					MyLogger.SEV_WARNING);
+			heapBudget = -1;
+			spoolFile = null;
+			return false;
+		}
+	}
+	
+	// close and delete the spool file
+	private void closeSpoolFile()
+	{
+		if(spoolChannel == null)
+			return;
+		
+		try
+		{
+			spoolRaf.close();
+		}
+		catch(IOException e)
+		{
+			logger.printStackTrace(e);
+		}
+		
+		if(!spoolFile.delete())
+			logger.msg("SegmentSpool: Could not delete spool file " + spoolFile, MyLogger.SEV_DEBUG);
+		
+		spoolFile = null;
+		spoolRaf = null;
+		spoolChannel = null;
+		spoolEnd = 0;
+		freeExtents.clear();
+	}
+	
+	// take space for the given number of bytes from the free list (first fit) or the end of the file
+	private long allocate(int length)
+	{
+		for(Map.Entry<Long,Long> extent : freeExtents.entrySet())
+		{
+			if(extent.getValue() < length)
+				continue;
+			
+			long position = extent.getKey();
+			long rest = extent.getValue() - length;
+			freeExtents.remove(position);
+			if(rest > 0)
+				freeExtents.put(position + length, rest);
+			return position;
+		}
+		
+		long position = spoolEnd;
+		spoolEnd += length;
+		return position;
+	}
+	
+	// give the space of an entry back, merge it with the free extents next to it
+	private void free(long position, long length)
+	{
+		Map.Entry<Long,Long> next = freeExtents.ceilingEntry(position);
+		if(next != null && next.getKey() == position + length)
+		{
+			freeExtents.remove(next.getKey());
+			length += next.getValue();
+		}
+		
+		Map.Entry<Long,Long> prev = freeExtents.floorEntry(position);
+		if(prev != null && prev.getKey() + prev.getValue() == position)
+		{
+			freeExtents.remove(prev.getKey());
+			position = prev.getKey();
+			length += prev.getValue();
+		}
+		
+		// the end of the file is free, so the file may shrink
+		if(position + length == spoolEnd)
+			spoolEnd = position;
+		else
+			freeExtents.put(position, length);
+	}
+	
+	// called when an entry has been released
+	private synchronized void released(Entry entry)
+	{
+		if(entry.position < 0)
+		{
+			heapUsed -= entry.length;
+			memBudget.release(entry.length);
+			return;
+		}
+		
+		// reuse the space of the entry
+		spooledEntries--;
+		if(spoolChannel != null)
+			free(entry.position, entry.length);
+		if(spooledEntries == 0 && closed)
+			closeSpoolFile();
+		else if(spooledEntries == 0 && spoolChannel != null)
+		{
+			// give the disk space back
+			try
+			{
+				spoolChannel.truncate(0);
+			}
+			catch(IOException e)
+			{
+				logger.printStackTrace(e);
+			}
+		}
+	}
+	
+	// read a part of the spool file into the given array
+	private synchronized void read(long position, byte [] dst, int length) throws IOException
+	{
+		if(spoolChannel == null)
+			throw new IOException("spool file closed");
+		
+		ByteBuffer bb = ByteBuffer.wrap(dst, 0, length);
+		while(bb.hasRemaining())
+		{
+			if(spoolChannel.read(bb, position + bb.position()) < 0)
+				throw new EOFException("end of spool file");
+		}
+	}
+	
+	
+	/**
+	 * A piece of data stored in the spool (either in memory or in the spool file).
+	 */
+	public class Entry
+	{
+		/** the data (null if stored in the spool file) */
+		private ChannelBuffer data;
+		
+		/** the array of the buffer pool backing the data (null if none) */
+		private byte [] pooled;
+		
+		/** the position within the spool file (-1 if kept in memory) */
+		private final long position;
+		
+		/** the number of bytes */
+		private final int length;
+		
+		/** set when this entry has been released */
+		private boolean released;
+		
+		
+		private Entry(ChannelBuffer data, byte [] pooled, long position, int length)
+		{
+			this.data = data;
+			this.pooled = pooled;
+			this.position = position;
+			this.length = length;
+			this.released = false;
+		}
+		
+		/**
+		 * Returns the stored data. Data from the spool file is read into an 
+		 * array leased from the BufferPool when this method is called for the
+		 * first time, the array is returned to the pool when this entry is
+		 * released.
+		 * 
+		 * @return The ChannelBuffer object
+		 * @throws IOException
+		 */
+		public synchronized ChannelBuffer getData() throws IOException
+		{
+			if(released)
+				throw new IOException("entry released");
+			if(length == 0)
+				return ChannelBuffers.EMPTY_BUFFER;
+			
+			if(data == null)
+			{
+				byte [] buf = BufferPool.getInstance().lease(length);
+				try
+				{
+					read(position, buf, length);
+				}
+				catch(IOException e)
+				{
+					BufferPool.getInstance().release(buf);
+					throw e;
+				}
+				pooled = buf;
+				data = ChannelBuffers.wrappedBuffer(buf, 0, length);
+			}
+			
+			return data.duplicate();
+		}
+		
+		/**
+		 * Returns the number of bytes stored in this entry.
+		 * 
+		 * @return The number of bytes
+		 */
+		public int length()
+		{
+			return length;
+		}
+		
+		/**
+		 * Release this entry when its data is not needed anymore. Buffers
+		 * returned by getData() must not be used afterwards.
+		 */
+		public void release()
+		{
+			byte [] buf;
+			synchronized(this)
+			{
+				if(released)
+					return;
+				released = true;
+				data = null;
+				buf = pooled;
+				pooled = null;
+			}
+			
+			BufferPool.getInstance().release(buf);
+			released(this);
+		}
+	}
+}
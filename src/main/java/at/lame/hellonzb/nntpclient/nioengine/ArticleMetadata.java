@@ -22,10 +22,19 @@ public class ArticleMetadata
 {
 	public String cmd;
 	public String group;
+	public RspHandler handler;
 	
 	public ArticleMetadata(String c, String g)
 	{
 		this.cmd = c;
 		this.group = g;
+		this.handler = null;
+	}
+	
+	public ArticleMetadata(String c, String g, RspHandler h)
+	{
+		this.cmd = c;
+		this.group = g;
+		this.handler = h;
 	}
 }
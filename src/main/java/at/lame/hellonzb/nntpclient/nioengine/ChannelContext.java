@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.nntpclient.nioengine;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.jboss.netty.util.*;
+
+import at.lame.hellonzb.parser.*;
+
+
+/**
+ * This class holds the state of one Channel instance. It is attached
+ * to the channel by the NettyChannelManager. All fields can be read and 
+ * written without locking; code that has to change more than one field 
+ * at once (e.g. the pipeline and the status) synchronizes on the context
+ * object, so only the threads working on the same channel ever meet.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+class ChannelContext
+{
+	/** the nano sec time when the channel was added */
+	final long created;
+	
+	/** the current status of the channel */
+	final AtomicReference<ChannelStatus> status;
+	
+	/** the nano sec time of the last status change */
+	volatile long statusChanged;
+	
+	/** the timeout scheduled for the channel (null = none), guarded by the context */
+	Timeout timeout;
+	
+	/** the type of the scheduled timeout */
+	TimeoutType timeoutType;
+	
+	/** the nano sec time when data has been received the last time */
+	volatile long lastRead;
+	
+	/** the metadata of the current command */
+	volatile ArticleMetadata metadata;
+	
+	/** the RspHandler of the current command */
+	volatile RspHandler rspHandler;
+	
+	/** the (pipelined) commands sent after the current one */
+	final ConcurrentLinkedQueue<ArticleMetadata> pipeline;
+	
+	/** the nano sec time until the channel waits after a 481 error (-1 = not waiting) */
+	volatile long errorWait;
+	
+	/** the duration of the SSL handshake in nano sec (-1 = no SSL or not done yet) */
+	volatile long handshakeTime;
+	
+	/** the nano sec time when the current article has been requested (0 = none) */
+	volatile long articleStart;
+	
+	/** the nano sec time when the reply to the current article has arrived (0 = not yet) */
+	volatile long articleFirstByte;
+	
+	/** the amount of bytes of the current article received so far */
+	volatile long articleBytes;
+	
+	/** the average time until the reply to an article arrives (in nano sec, -1 = unknown) */
+	volatile double latency;
+	
+	/** the average receive rate of article data (in bytes/sec, -1 = unknown) */
+	volatile double rate;
+	
+	/** set when the channel should be closed as soon as it has nothing to do */
+	volatile boolean retired;
+	
+	/** the DownloadFile to test */
+	volatile DownloadFile dlFile;
+	
+	/** the DownloadFileSegment objects to test */
+	volatile Vector<DownloadFileSegment> dlFileSegments;
+	
+	
+	ChannelContext()
+	{
+		this.created = System.nanoTime();
+		this.status = new AtomicReference<ChannelStatus>();
+		this.statusChanged = this.created;
+		this.timeout = null;
+		this.timeoutType = null;
+		this.lastRead = this.created;
+		this.metadata = null;
+		this.rspHandler = null;
+		this.pipeline = new ConcurrentLinkedQueue<ArticleMetadata>();
+		this.errorWait = -1;
+		this.handshakeTime = -1;
+		this.articleStart = 0;
+		this.articleFirstByte = 0;
+		this.articleBytes = 0;
+		this.latency = -1;
+		this.rate = -1;
+		this.retired = false;
+		this.dlFile = null;
+		this.dlFileSegments = null;
+	}
+}
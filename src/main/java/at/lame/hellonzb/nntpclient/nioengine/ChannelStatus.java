@@ -28,6 +28,7 @@ public enum ChannelStatus
 	START_FETCH,
 	GROUP_SENT,
 	IDLE,
+	KEEPALIVE,
 	READY,
 	START_RECEIVE,
 	RECEIVING_DATA,
@@ -101,6 +102,15 @@ public enum ChannelStatus
 	 * *) note that if a READ state does not reads the expected value, the status is set
 	 *    to SERVER_ERROR -- in this status the write() method waits for some time and then
 	 *    sets the status of the channel to CONNECTED again
+ * 
+ * **) with pipelining enabled (pipeline depth > 1) further "BODY" commands are sent
+ *    while the channel is in START_RECEIVE or RECEIVING_DATA status; when an article
+ *    is complete the channel goes back to START_RECEIVE for the next pipelined reply
+ *    instead of IDLE
+ * 
+ * ***) a channel that stays in IDLE status for a while sends a "DATE" command and goes
+ *    to KEEPALIVE status (READ: any reply, "111" expected), then back to IDLE -- this
+ *    keeps idle connections open between two downloads
 	 * 
 	 */
 }
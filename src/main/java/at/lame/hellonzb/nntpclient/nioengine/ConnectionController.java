@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.nntpclient.nioengine;
+
+
+/**
+ * This class decides how many connections a NettyNioClient should use.
+ * It is called periodically with the throughput measured since the last
+ * call. While all download slots are in use, it tries one connection more
+ * or one less and keeps the change only if it paid off: an added connection
+ * has to raise the throughput noticeably, a removed one must not lower it.
+ * Successful changes are continued in the same direction; after a change has
+ * been undone, the count is left alone for some intervals and the next try
+ * goes the other way. When the server refuses a connection because of too
+ * many connections, the ceiling is lowered.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+class ConnectionController
+{
+	/** an added connection has to raise the throughput by this factor */
+	private static final double MIN_GAIN = 0.05;
+	
+	/** a removed connection may lower the throughput by this factor */
+	private static final double MAX_LOSS = 0.02;
+	
+	/** the number of intervals to wait after a change has been undone */
+	private static final int HOLD_INTERVALS = 4;
+	
+	/** the max. number of connections */
+	private int ceiling;
+	
+	/** the current number of connections */
+	private int count;
+	
+	/** the throughput of the last interval (in bytes/s, 0 = unknown) */
+	private long lastRate;
+	
+	/** the last change that has to be checked (+1, -1 or 0 for none) */
+	private int probe;
+	
+	/** the direction of the next change (+1 or -1) */
+	private int direction;
+	
+	/** the number of intervals left to wait before the next change */
+	private int hold;
+	
+	
+	/**
+	 * Class constructor.
+	 * 
+	 * @param ceiling The max. number of connections (also the initial number)
+	 */
+	ConnectionController(int ceiling)
+	{
+		this.ceiling = (ceiling < 1) ? 1 : ceiling;
+		this.count = this.ceiling;
+		this.lastRate = 0;
+		this.probe = 0;
+		this.direction = -1;
+		this.hold = 0;
+	}
+	
+	/**
+	 * Called once per interval with the throughput of this interval.
+	 * 
+	 * @param bytes The number of bytes downloaded in this interval
+	 * @param nanos The length of the interval (in nano sec)
+	 * @param busy Whether or not all download slots were in use
+	 * @return The number of connections to use from now on
+	 */
+	synchronized int update(long bytes, long nanos, boolean busy)
+	{
+		long rate = (nanos > 0) ? (long) (bytes * 1000000000.0 / nanos) : 0;
+		
+		// not enough work to measure anything
+		if(!busy || rate == 0)
+		{
+			lastRate = 0;
+			probe = 0;
+			return count;
+		}
+		
+		// check the last change, undo it if it did not pay off
+		if(probe != 0 && lastRate > 0)
+		{
+			boolean undo = false;
+			if(probe > 0 && rate < lastRate * (1.0 + MIN_GAIN))
+				undo = true;
+			else if(probe < 0 && rate < lastRate * (1.0 - MAX_LOSS))
+				undo = true;
+			
+			if(undo)
+			{
+				count -= probe;
+				direction = -probe;
+				hold = HOLD_INTERVALS;
+				probe = 0;
+				lastRate = 0;
+				return count;
+			}
+			
+			probe = 0;
+		}
+		
+		lastRate = rate;
+		if(hold > 0)
+		{
+			hold--;
+			return count;
+		}
+		
+		// try one connection more or less (turn around at the limits)
+		if(count + direction > ceiling || count + direction < 1)
+			direction = -direction;
+		if(count + direction <= ceiling && count + direction >= 1)
+		{
+			count += direction;
+			probe = direction;
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Called when the server has refused a connection because of too many 
+	 * connections. The ceiling is lowered to the number of connections the 
+	 * server has accepted.
+	 * 
+	 * @param accepted The number of connections that are still open
+	 * @return The number of connections to use from now on
+	 */
+	synchronized int limitReached(int accepted)
+	{
+		ceiling = (accepted < 1) ? 1 : accepted;
+		if(count > ceiling)
+			count = ceiling;
+		
+		probe = 0;
+		hold = HOLD_INTERVALS;
+		return count;
+	}
+	
+	/**
+	 * Set the number of connections explicitly (e.g. via API call).
+	 * 
+	 * @param count The number of connections to use
+	 * @return The number of connections to use, limited by the ceiling
+	 */
+	synchronized int setCount(int count)
+	{
+		this.count = Math.max(1, Math.min(count, ceiling));
+		this.probe = 0;
+		this.lastRate = 0;
+		this.hold = HOLD_INTERVALS;
+		return this.count;
+	}
+	
+	/**
+	 * Returns the current number of connections.
+	 * 
+	 * @return The number of connections
+	 */
+	synchronized int getCount()
+	{
+		return count;
+	}
+	
+	/**
+	 * Returns the max. number of connections.
+	 * 
+	 * @return The ceiling
+	 */
+	synchronized int getCeiling()
+	{
+		return ceiling;
+	}
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package at.lame.hellonzb.nntpclient.nioengine;
+
+import java.util.*;
+
+import org.jboss.netty.channel.*;
+
+
+/**
+ * The global budget for downloaded data held in memory: the buffers read 
+ * from the sockets (until the article is complete), the segments waiting 
+ * to be decoded and the decoded parts waiting to be written to disk. When 
+ * the budget is exhausted, reading from the channels is suspended as soon 
+ * as they receive more data, and resumed when the usage has dropped below 
+ * RESUME_LEVEL of the budget again. So a slow decoder or disk holds back 
+ * the download instead of filling up the heap.
+ * 
+ * If no memory is released for MAX_STALL while channels are suspended
+ * (e.g. all memory is held by parts of files that are not complete yet),
+ * the channels are resumed and the budget is not enforced until the usage 
+ * has dropped below the resume level again.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class MemoryBudget
+{
+	/** the usage (share of the budget) to resume reading at */
+	private static final double RESUME_LEVEL = 0.75;
+	
+	/** max. time reading is suspended without any memory being released (in ns) */
+	private static final long MAX_STALL = 5000000000L;
+	
+	/** the single instance */
+	private static final MemoryBudget instance = new MemoryBudget();
+	
+	/** the budget (in bytes), 0 for no limit */
+	private long limit;
+	
+	/** the amount of bytes currently held and the max. since the start */
+	private long used;
+	private long peak;
+	
+	/** the channels suspended because of the budget */
+	private HashSet<Channel> suspended;
+	
+	/** time of the last release (System.nanoTime()) */
+	private long lastRelease;
+	
+	/** set while the budget is not enforced after a stall */
+	private boolean overcommit;
+	
+	
+	private MemoryBudget()
+	{
+		this.limit = 0;
+		this.used = 0;
+		this.peak = 0;
+		this.suspended = new HashSet<Channel>();
+		this.lastRelease = System.nanoTime();
+		this.overcommit = false;
+	}
+	
+	/**
+	 * Returns the single instance of this class.
+	 * 
+	 * @return The MemoryBudget object
+	 */
+	public static MemoryBudget getInstance()
+	{
+		return instance;
+	}
+	
+	/**
+	 * Set the budget. It is capped at half of the max. heap size.
+	 * 
+	 * @param limit The budget (in bytes), 0 for half of the max. heap size
+	 */
+	public synchronized void setLimit(long limit)
+	{
+		long max = Runtime.getRuntime().maxMemory();
+		if(max != Long.MAX_VALUE && (limit <= 0 || limit > max / 2))
+			limit = max / 2;
+		
+		this.limit = Math.max(0, limit);
+		if(!isExhausted())
+			resumeAll();
+	}
+	
+	/**
+	 * Returns the budget.
+	 * 
+	 * @return The budget (in bytes), 0 for no limit
+	 */
+	public synchronized long getLimit()
+	{
+		return limit;
+	}
+	
+	/**
+	 * Returns the amount of memory currently held.
+	 * 
+	 * @return The amount of bytes
+	 */
+	public synchronized long getUsed()
+	{
+		return used;
+	}
+	
+	/**
+	 * Returns the max. amount of memory held since the start.
+	 * 
+	 * @return The amount of bytes
+	 */
+	public synchronized long getPeak()
+	{
+		return peak;
+	}
+	
+	/**
+	 * Returns the amount of channels currently suspended because of the budget.
+	 * 
+	 * @return The amount of channels
+	 */
+	public synchronized int getSuspendedCount()
+	{
+		return suspended.size();
+	}
+	
+	/**
+	 * Returns whether or not the budget is exhausted.
+	 * 
+	 * @return true if the budget is exhausted
+	 */
+	public synchronized boolean isExhausted()
+	{
+		return limit > 0 && used >= limit;
+	}
+	
+	/**
+	 * Charge the given amount of memory to the budget.
+	 * 
+	 * @param bytes The amount of bytes
+	 */
+	public synchronized void acquire(long bytes)
+	{
+		used += bytes;
+		peak = Math.max(peak, used);
+	}
+	
+	/**
+	 * Return the given amount of memory to the budget. The suspended
+	 * channels are resumed if the usage drops below the resume level.
+	 * 
+	 * @param bytes The amount of bytes
+	 */
+	public synchronized void release(long bytes)
+	{
+		if(bytes <= 0)
+			return;
+		
+		used -= bytes;
+		lastRelease = System.nanoTime();
+		if(used < limit * RESUME_LEVEL)
+		{
+			overcommit = false;
+			resumeAll();
+		}
+	}
+	
+	/**
+	 * Suspend reading from the given channel if the budget is exhausted.
+	 * 
+	 * @param channel The channel that has received data
+	 */
+	public synchronized void check(Channel channel)
+	{
+		if(!isExhausted() || overcommit)
+			return;
+		
+		if(suspended.isEmpty())
+			lastRelease = System.nanoTime();
+		suspended.add(channel);
+		ReadGate.suspend(channel, ReadGate.MEMORY);
+	}
+	
+	/**
+	 * Resume all suspended channels if no memory has been released for
+	 * MAX_STALL. Called periodically by the NIO clients.
+	 * 
+	 * @return true if the channels have been resumed
+	 */
+	public synchronized boolean checkStall()
+	{
+		if(suspended.isEmpty() || System.nanoTime() - lastRelease < MAX_STALL)
+			return false;
+		
+		overcommit = true;
+		resumeAll();
+		
+		return true;
+	}
+	
+	// resume all suspended channels
+	private void resumeAll()
+	{
+		for(Channel channel : suspended)
+			ReadGate.resume(channel, ReadGate.MEMORY);
+		suspended.clear();
+	}
+}
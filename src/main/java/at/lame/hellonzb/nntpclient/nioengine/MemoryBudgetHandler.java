@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package at.lame.hellonzb.nntpclient.nioengine;
+
+import org.jboss.netty.channel.*;
+
+
+/**
+ * This handler charges the data decoded from the NNTP responses to the 
+ * global memory budget, and suspends reading from the channel if the budget
+ * is exhausted. It runs on the I/O thread (in front of the memory executor),
+ * so no more data is read from the socket while the budget is exhausted. 
+ * The data is returned to the budget by the RspHandler (or by the business 
+ * logic handler if it is not needed).
+ * 
+ * The traffic shaping handlers resume reading by calling setReadable(true) 
+ * on the channel directly, not through the ReadGate. So this handler drops 
+ * such requests as long as the channel waits for memory (like the traffic 
+ * shaping handlers do while they hold the channel back).
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class MemoryBudgetHandler extends SimpleChannelHandler
+{
+	/** the global memory budget */
+	private final MemoryBudget budget;
+	
+	
+	public MemoryBudgetHandler()
+	{
+		this.budget = MemoryBudget.getInstance();
+	}
+	
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+	{
+		if(e.getMessage() instanceof NntpResponseData)
+		{
+			NntpResponseData data = (NntpResponseData) e.getMessage();
+			budget.acquire(data.getData().readableBytes());
+			budget.check(ctx.getChannel());
+		}
+		
+		ctx.sendUpstream(e);
+	}
+	
+	@Override
+	public void setInterestOpsRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception
+	{
+		int ops = ((Integer) e.getValue()).intValue();
+		if((ops & Channel.OP_READ) != 0 && ReadGate.isSuspended(ctx.getChannel(), ReadGate.MEMORY))
+		{
+			// setReadable(true) requested, but the channel still waits for memory
+			e.getFuture().setSuccess();
+			return;
+		}
+		
+		ctx.sendDownstream(e);
+	}
+}
@@ -18,8 +18,12 @@
 package at.lame.hellonzb.nntpclient.nioengine;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.jboss.netty.channel.*;
+import org.jboss.netty.util.*;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 
 import at.lame.hellonzb.parser.*;
 import at.lame.hellonzb.preferences.HelloNzbPreferences;
@@ -27,7 +31,26 @@ import at.lame.hellonzb.preferences.HelloNzbPreferences;
 
 /**
  * This class is used to manage a set of Channel instances
- * and the according meta information.
+ * and the according meta information. The meta information of each
+ * channel is kept in a ChannelContext object attached to the channel,
+ * so the Netty worker threads, the executor threads and the client's 
+ * main loop do not have to share one lock.
+ * 
+ * The channel manager also takes care of the timeouts of the channels. 
+ * On each status change a timeout of the matching type is scheduled on a 
+ * timer wheel (the previous one is cancelled):
+ *   - CONNECT from the connection attempt until the login is done
+ *   - FIRST_BYTE after a command was sent, until the reply arrives
+ *   - IDLE_READ while the data of a reply is received
+ *   - none while the channel is IDLE
+ * The idle read timeout is not rescheduled on every read. Instead, it
+ * checks the time of the last read when it expires and then waits for the
+ * rest of the time again. Expired timeouts are passed to the client (see
+ * pollTimedOut()), so nothing has to be checked as long as no timeout expires.
+ * 
+ * Furthermore the latency (time until the reply to an article arrives) and
+ * the receive rate of each channel are measured, so the client can tell
+ * healthy channels from slow ones (see getLatency() and getRate()).
  * 
  * @author Matthias F. Brandstetter
  */
@@ -35,283 +58,712 @@ public class NettyChannelManager
 {
 	private static long NANO_MODIFIER = 1000000000;
 	
-	/** The main application's preferences container */
-	private HelloNzbPreferences prefs;
+	/** timeout used if none is set by the user (in sec) */
+	private static final int DEFAULT_TIMEOUT = 60;
 	
-	/** A list of socket channels, like download threads (connections) */
-	private Vector<Channel> nettyChannels;
-
-	/** Maps a Channel to a list of ByteBuffer instances */
-	private Map<Channel,ArticleMetadata> pendingData;
+	/** timeout for connecting, server greeting and authentication (in sec) */
+	private static final int CONNECT_TIMEOUT = 30;
 	
-	/** Maps a Channel to a RspHandler */
-	private Map<Channel,RspHandler> rspHandlers;
+	/** the duration of one tick of the timer wheel (in ms) */
+	private static final int TIMER_TICK = 100;
 	
-	/** Maps a Channel to it's according status */
-	private Map<Channel,ChannelStatus> channelStatus;
+	/** weight of a new sample in the latency and rate averages */
+	private static final double SAMPLE_WEIGHT = 0.3;
 	
-	/** the last 4 bytes of the buffer from last iteration (for CRLF.CRLF check) */
-	private Map<Channel,byte[]> last4bytes;
-		
-	/** if a 481 error was encountered we want to wait this channel for some secs */
-	private Map<Channel,Long> waitAfterError;
+	/** min. amount of bytes of an article to measure the receive rate */
+	private static final int MIN_RATE_BYTES = 64 * 1024;
+	
+	/** The client to wake up on status changes */
+	private NettyNioClient client;
+	
+	/** A list of socket channels, like download threads (connections) */
+	private CopyOnWriteArrayList<Channel> nettyChannels;
 
-	/** The DownloadFile to test */
-	private Map<Channel,DownloadFile> dlFiles;
+	/** Attaches a ChannelContext object to each channel */
+	private ChannelLocal<ChannelContext> contexts;
+	
+	/** The timeout set by the user (in nano sec), used for the first byte and idle read timeouts */
+	private long timeout;
 	
-	/** The DownloadFileSegment objects to test */
-	private Map<Channel,Vector<DownloadFileSegment>> dlFileSegments;
+	/** The timer wheel all timeouts are scheduled on */
+	private final Timer timer;
 	
-	/** The nano sec time when a SC should raise a timeout event */
-	private Map<Channel,Long> ncTimeouts;
+	/** The channels whose timeout has expired (see pollTimedOut()) */
+	private final ConcurrentLinkedQueue<Channel> timedOut;
 
 
-	public NettyChannelManager(HelloNzbPreferences p)
+	public NettyChannelManager(HelloNzbPreferences p, NettyNioClient client)
 	{
-		this.prefs = p;
+		this.client = client;
 		
-		this.nettyChannels = new Vector<Channel>();	
-
-		this.dlFiles = new HashMap<Channel,DownloadFile>();
-		this.dlFileSegments = new HashMap<Channel,Vector<DownloadFileSegment>>();
-		this.pendingData = new HashMap<Channel,ArticleMetadata>();
-		this.rspHandlers = Collections.synchronizedMap(new HashMap<Channel,RspHandler>());
-		this.channelStatus = new HashMap<Channel,ChannelStatus>();
-		this.waitAfterError = new HashMap<Channel,Long>();
-		this.last4bytes = new HashMap<Channel,byte[]>();
-		this.ncTimeouts = new HashMap<Channel,Long>();
+		this.nettyChannels = new CopyOnWriteArrayList<Channel>();
+		this.contexts = new ChannelLocal<ChannelContext>();
+		
+		// read the timeout once, it does not change while the client is running
+		try
+		{
+			this.timeout = Integer.valueOf(p.getPrefValue("ServerSettingsTimeout")) * NANO_MODIFIER;
+		}
+		catch(NumberFormatException e)
+		{
+			this.timeout = DEFAULT_TIMEOUT * NANO_MODIFIER;
+		}
+		
+		this.timer = new HashedWheelTimer(TIMER_TICK, TimeUnit.MILLISECONDS);
+		this.timedOut = new ConcurrentLinkedQueue<Channel>();
 	}
 	
-	public synchronized int size()
+	public int size()
 	{
 		return nettyChannels.size();
 	}
 
-	public synchronized int addChannelAndInit(Channel nc)
+	public int addChannelAndInit(Channel nc)
 	{
-		nettyChannels.add(nc);
+		contexts.set(nc, new ChannelContext());
+		
+		// use the slot of a removed channel, if there is one
+		int index = nettyChannels.indexOf(null);
+		if(index < 0)
+			nettyChannels.add(nc);
+		else
+			nettyChannels.set(index, nc);
 		
-		last4bytes.put(nc, new byte[4]);
 		setNCStatus(nc, ChannelStatus.INIT);
 		
 		return nettyChannels.size();
 	}
 	
-	public synchronized Channel getNC(int i)
+	public Channel getNC(int i)
 	{
 		return nettyChannels.get(i);
 	}
 	
-	public synchronized int indexOfNC(Channel nc)
+	public int indexOfNC(Channel nc)
 	{
 		return nettyChannels.indexOf(nc);
 	}
 	
-	public synchronized ChannelStatus getNCStatus(Channel nc)
+	/**
+	 * Returns the context of the given channel (it is created if necessary). 
+	 * Code that changes more than one value of a channel at once synchronizes 
+	 * on this object.
+	 * 
+	 * @param nc The channel
+	 * @return The ChannelContext object
+	 */
+	ChannelContext context(Channel nc)
+	{
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx == null)
+		{
+			ChannelContext newCtx = new ChannelContext();
+			ctx = contexts.setIfAbsent(nc, newCtx);
+			if(ctx == null)
+				ctx = newCtx;
+		}
+		
+		return ctx;
+	}
+	
+	public ChannelStatus getNCStatus(Channel nc)
 	{
-		return channelStatus.get(nc);
+		ChannelContext ctx = contexts.get(nc);
+		return (ctx == null) ? null : ctx.status.get();
 	}
 	
-	public synchronized void setNCStatus(Channel nc, ChannelStatus status)
+	public void setNCStatus(Channel nc, ChannelStatus status)
 	{
+		ChannelContext ctx = context(nc);
+		
 		// set the new status for the according socket channel
-		channelStatus.put(nc, status);
+		ctx.status.set(status);
+		
+		// the reply to the next article is due now
+		if(status == ChannelStatus.START_RECEIVE)
+		{
+			ctx.articleFirstByte = 0;
+			ctx.articleBytes = 0;
+			ctx.articleStart = System.nanoTime();
+		}
+				
+		// also schedule the timeout for the new status
+		ctx.statusChanged = System.nanoTime();
+		updateTimeout(nc, ctx, status);
+		
+		// let the client process this channel's new status
+		if(client != null)
+			client.wakeUp();
+	}
+	
+	/**
+	 * Set the status of the given channel, but only if it has the expected
+	 * status right now.
+	 * 
+	 * @param nc The channel
+	 * @param expect The expected status
+	 * @param status The new status
+	 * @return true if the status was changed
+	 */
+	public boolean compareAndSetNCStatus(Channel nc, ChannelStatus expect, ChannelStatus status)
+	{
+		ChannelContext ctx = context(nc);
+		if(!ctx.status.compareAndSet(expect, status))
+			return false;
+		
+		ctx.statusChanged = System.nanoTime();
+		updateTimeout(nc, ctx, status);
+		if(client != null)
+			client.wakeUp();
+		
+		return true;
+	}
+	
+	/**
+	 * Returns the type of timeout to use for the given channel status.
+	 * 
+	 * @param status The channel status
+	 * @return The timeout type, null for no timeout
+	 */
+	private static TimeoutType timeoutType(ChannelStatus status)
+	{
+		if(status == null)
+			return null;
+		
+		switch(status)
+		{
+			case INIT:
+			case CONNECTED:
+			case W_AUTH_USER:
+			case R_AUTH_USER:
+			case W_AUTH_PASS:
+			case R_AUTH_PASS:
+				return TimeoutType.CONNECT;
+				
+			case RECEIVING_DATA:
+				return TimeoutType.IDLE_READ;
 				
-		// also reset the timeout counter for this socket channel
-		resetTimeout(nc);
+			case IDLE:
+			case SERVER_ERROR:
+				// nothing to wait for (server errors are handled by the client)
+				return null;
+				
+			default:
+				return TimeoutType.FIRST_BYTE;
+		}
+	}
+	
+	// schedule the timeout for the new status of the given channel
+	private void updateTimeout(Channel nc, ChannelContext ctx, ChannelStatus status)
+	{
+		TimeoutType type = timeoutType(status);
+		
+		synchronized(ctx)
+		{
+			// the connect timeout covers all steps of the login, and the
+			// idle read timeout all pieces of data of a reply
+			if(type == ctx.timeoutType && ctx.timeout != null && 
+					(type == TimeoutType.CONNECT || type == TimeoutType.IDLE_READ))
+				return;
+			
+			if(type == TimeoutType.IDLE_READ)
+				ctx.lastRead = System.nanoTime();
+			
+			long delay = (type == TimeoutType.CONNECT) ? CONNECT_TIMEOUT * NANO_MODIFIER : timeout;
+			scheduleTimeout(nc, ctx, type, delay);
+		}
 	}
 	
-	public synchronized void resetTimeout(Channel nc)
+	// schedule a timeout (type null: no timeout), the previous one is cancelled
+	private void scheduleTimeout(Channel nc, ChannelContext ctx, TimeoutType type, long delay)
 	{
-		String tmp = prefs.getPrefValue("ServerSettingsTimeout");
-		long timeout = System.nanoTime() + (Integer.valueOf(tmp) * NANO_MODIFIER);
-		ncTimeouts.put(nc, timeout);
+		synchronized(ctx)
+		{
+			if(ctx.timeout != null)
+				ctx.timeout.cancel();
+			
+			ctx.timeoutType = type;
+			ctx.timeout = null;
+			if(type != null)
+				ctx.timeout = timer.newTimeout(new ChannelTimeout(nc, ctx, type), delay, TimeUnit.NANOSECONDS);
+		}
 	}
 	
-	public synchronized long getNCTimeout(Channel nc)
+	/**
+	 * Restart the current timeout of the given channel (e.g. while the download
+	 * is paused).
+	 * 
+	 * @param nc The channel
+	 */
+	public void restartTimeout(Channel nc)
 	{
-		return ncTimeouts.get(nc);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx != null)
+			updateTimeout(nc, ctx, ctx.status.get());
 	}
 	
-	public synchronized ChannelStatus removeNCStatus(Channel nc)
+	/**
+	 * Schedule the reconnect of a closed channel.
+	 * 
+	 * @param nc The closed channel
+	 * @param delay The time to wait before reconnecting (in nano sec)
+	 */
+	public void scheduleReconnect(Channel nc, long delay)
 	{
-		return channelStatus.remove(nc);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx != null)
+			scheduleTimeout(nc, ctx, TimeoutType.RECONNECT, Math.max(0, delay));
 	}
 	
-	public synchronized RspHandler getRspHandler(Channel nc)
+	/**
+	 * Call whenever data has been received on the given channel.
+	 * 
+	 * @param nc The channel
+	 */
+	public void setLastRead(Channel nc)
 	{
-		return rspHandlers.get(nc);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx != null)
+		{
+			ctx.lastRead = System.nanoTime();
+			if(ctx.articleStart != 0 && ctx.articleFirstByte == 0)
+				ctx.articleFirstByte = ctx.lastRead;
+		}
 	}
 	
-	public synchronized void setRspHandler(Channel nc, RspHandler handler)
+	/**
+	 * Call whenever data of the current article has been received on the 
+	 * given channel.
+	 * 
+	 * @param nc The channel
+	 * @param count The amount of bytes received
+	 */
+	public void addArticleBytes(Channel nc, int count)
 	{
-		rspHandlers.put(nc, handler);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx != null)
+			ctx.articleBytes += count;
 	}
 	
-	public synchronized RspHandler removeRspHandler(Channel nc)
+	/**
+	 * Call when the current article of the given channel is complete, the 
+	 * latency and receive rate of the article are added to the averages.
+	 * 
+	 * @param nc The channel
+	 */
+	public void articleFinished(Channel nc)
 	{
-		return rspHandlers.remove(nc);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx == null || ctx.articleStart == 0 || ctx.articleFirstByte == 0)
+			return;
+		
+		long now = System.nanoTime();
+		ctx.latency = average(ctx.latency, ctx.articleFirstByte - ctx.articleStart);
+		if(ctx.articleBytes >= MIN_RATE_BYTES && now > ctx.articleFirstByte)
+			ctx.rate = average(ctx.rate, ctx.articleBytes * (double) NANO_MODIFIER / (now - ctx.articleFirstByte));
+		ctx.articleStart = 0;
 	}
 	
-	public synchronized byte[] getLast4Bytes(Channel nc)
+	/**
+	 * Returns the average time until the reply to an article arrives on the
+	 * given channel. If the reply to the current article is overdue already,
+	 * then the time waited so far is returned.
+	 * 
+	 * @param nc The channel
+	 * @return The time in nano sec, -1 if unknown
+	 */
+	public double getLatency(Channel nc)
 	{
-		return last4bytes.get(nc);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx == null)
+			return -1;
+		
+		double latency = ctx.latency;
+		long start = ctx.articleStart;
+		if(start != 0 && ctx.articleFirstByte == 0)
+			latency = Math.max(latency, System.nanoTime() - start);
+		
+		return latency;
 	}
 	
-	public synchronized void setLast4Bytes(Channel nc, byte [] bytes)
+	/**
+	 * Returns the average receive rate of article data on the given channel.
+	 * If the current article is received slower, then its rate is returned.
+	 * 
+	 * @param nc The channel
+	 * @return The rate in bytes/sec, -1 if unknown
+	 */
+	public double getRate(Channel nc)
 	{
-		last4bytes.put(nc, bytes);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx == null)
+			return -1;
+		
+		double rate = ctx.rate;
+		long first = ctx.articleFirstByte;
+		long time = System.nanoTime() - first;
+		if(ctx.articleStart != 0 && first != 0 && time > NANO_MODIFIER)
+		{
+			double current = ctx.articleBytes * (double) NANO_MODIFIER / time;
+			rate = (rate < 0) ? current : Math.min(rate, current);
+		}
+		
+		return rate;
 	}
 	
-	public synchronized byte[] removeLast4Bytes(Channel nc)
+	// add a sample to an exponentially weighted average (-1 = no samples yet)
+	private static double average(double avg, double sample)
 	{
-		return last4bytes.remove(nc);
+		if(avg < 0)
+			return sample;
+		
+		return avg + SAMPLE_WEIGHT * (sample - avg);
 	}
-
-	public synchronized DownloadFile getDLFile(Channel nc)
+	
+	/**
+	 * Returns the next channel whose timeout has expired.
+	 * 
+	 * @return The channel, or null if there is none
+	 */
+	public Channel pollTimedOut()
+	{
+		return timedOut.poll();
+	}
+	
+	/**
+	 * Stop the timer. Call when the client has stopped.
+	 */
+	public void releaseExternalResources()
+	{
+		timer.stop();
+	}
+	
+	/**
+	 * Returns the time since the given channel has been added.
+	 * 
+	 * @param nc The channel
+	 * @return The age in nano sec
+	 */
+	public long getNCAge(Channel nc)
+	{
+		ChannelContext ctx = contexts.get(nc);
+		return (ctx == null) ? Long.MAX_VALUE : System.nanoTime() - ctx.created;
+	}
+	
+	/**
+	 * Returns the time since the status of the given channel has changed.
+	 * 
+	 * @param nc The channel
+	 * @return The time in nano sec
+	 */
+	public long getNCStatusAge(Channel nc)
+	{
+		ChannelContext ctx = contexts.get(nc);
+		return (ctx == null) ? 0 : System.nanoTime() - ctx.statusChanged;
+	}
+	
+	public ChannelStatus removeNCStatus(Channel nc)
+	{
+		ChannelContext ctx = contexts.get(nc);
+		return (ctx == null) ? null : ctx.status.getAndSet(null);
+	}
+	
+	public RspHandler getRspHandler(Channel nc)
+	{
+		ChannelContext ctx = contexts.get(nc);
+		return (ctx == null) ? null : ctx.rspHandler;
+	}
+	
+	public void setRspHandler(Channel nc, RspHandler handler)
+	{
+		context(nc).rspHandler = handler;
+	}
+	
+	public RspHandler removeRspHandler(Channel nc)
+	{
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx == null)
+			return null;
+		
+		RspHandler handler = ctx.rspHandler;
+		ctx.rspHandler = null;
+		return handler;
+	}
+	
+	public void addPipelined(Channel nc, ArticleMetadata md)
+	{
+		context(nc).pipeline.add(md);
+	}
+	
+	public ArticleMetadata pollPipelined(Channel nc)
+	{
+		ChannelContext ctx = contexts.get(nc);
+		return (ctx == null) ? null : ctx.pipeline.poll();
+	}
+	
+	public boolean isPipelined(Channel nc, RspHandler handler)
 	{
-		return dlFiles.get(nc);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx == null)
+			return false;
+		
+		for(ArticleMetadata md : ctx.pipeline)
+			if(md.handler == handler)
+				return true;
+		
+		return false;
 	}
 	
-	public synchronized void setDLFile(Channel nc, DownloadFile dlFile)
+	public int pipelinedCount(Channel nc)
 	{
-		dlFiles.put(nc, dlFile);
+		ChannelContext ctx = contexts.get(nc);
+		return (ctx == null) ? 0 : ctx.pipeline.size();
 	}
 	
-	public synchronized DownloadFile removeDLFile(Channel nc)
+	public LinkedList<ArticleMetadata> removePipelined(Channel nc)
 	{
-		return dlFiles.remove(nc);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx == null || ctx.pipeline.isEmpty())
+			return null;
+		
+		LinkedList<ArticleMetadata> queue = new LinkedList<ArticleMetadata>();
+		ArticleMetadata md = null;
+		while((md = ctx.pipeline.poll()) != null)
+			queue.addLast(md);
+		
+		return queue;
 	}
 	
-	public synchronized Vector<DownloadFileSegment> getDLFileSeg(Channel nc)
+	public DownloadFile getDLFile(Channel nc)
 	{
-		return dlFileSegments.get(nc);
+		ChannelContext ctx = contexts.get(nc);
+		return (ctx == null) ? null : ctx.dlFile;
 	}
 	
-	public synchronized void setDLFileSeg(Channel nc, Vector<DownloadFileSegment> dlFileSegs)
+	public void setDLFile(Channel nc, DownloadFile dlFile)
 	{
-		dlFileSegments.put(nc, dlFileSegs);
+		context(nc).dlFile = dlFile;
 	}
 	
-	public synchronized Vector<DownloadFileSegment> removeDLFileSeg(Channel nc)
+	public DownloadFile removeDLFile(Channel nc)
 	{
-		return dlFileSegments.remove(nc);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx == null)
+			return null;
+		
+		DownloadFile dlFile = ctx.dlFile;
+		ctx.dlFile = null;
+		return dlFile;
 	}
 	
-	public synchronized ArticleMetadata getMD(Channel nc)
+	public Vector<DownloadFileSegment> getDLFileSeg(Channel nc)
 	{
-		return pendingData.get(nc);
+		ChannelContext ctx = contexts.get(nc);
+		return (ctx == null) ? null : ctx.dlFileSegments;
 	}
 	
-	public synchronized void setMD(Channel nc, ArticleMetadata umd)
+	public void setDLFileSeg(Channel nc, Vector<DownloadFileSegment> dlFileSegs)
 	{
-		pendingData.put(nc, umd);
+		context(nc).dlFileSegments = dlFileSegs;
 	}
 	
-	public synchronized ArticleMetadata removeMD(Channel nc)
+	public Vector<DownloadFileSegment> removeDLFileSeg(Channel nc)
 	{
-		return pendingData.remove(nc);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx == null)
+			return null;
+		
+		Vector<DownloadFileSegment> segs = ctx.dlFileSegments;
+		ctx.dlFileSegments = null;
+		return segs;
+	}
+	
+	public ArticleMetadata getMD(Channel nc)
+	{
+		ChannelContext ctx = contexts.get(nc);
+		return (ctx == null) ? null : ctx.metadata;
+	}
+	
+	public void setMD(Channel nc, ArticleMetadata umd)
+	{
+		context(nc).metadata = umd;
+	}
+	
+	public ArticleMetadata removeMD(Channel nc)
+	{
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx == null)
+			return null;
+		
+		ArticleMetadata md = ctx.metadata;
+		ctx.metadata = null;
+		return md;
 	}
 
-	public synchronized boolean containsErrorWait(Channel nc)
+	/**
+	 * Returns the duration of the SSL handshake of the given channel.
+	 * 
+	 * @param nc The channel
+	 * @return The time in nano sec, -1 if no handshake has been done
+	 */
+	public long getHandshakeTime(Channel nc)
 	{
-		return waitAfterError.containsKey(nc);
+		ChannelContext ctx = contexts.get(nc);
+		return (ctx == null) ? -1 : ctx.handshakeTime;
 	}
 	
-	public synchronized long getErrorWait(Channel nc)
+	public void setHandshakeTime(Channel nc, long time)
 	{
-		return waitAfterError.get(nc);
+		context(nc).handshakeTime = time;
 	}
 	
-	public synchronized void setErrorWait(Channel nc, long wait)
+	/**
+	 * Returns whether or not the given channel should be closed as soon
+	 * as it has nothing to do.
+	 * 
+	 * @param nc The channel
+	 * @return true/false
+	 */
+	public boolean isRetired(Channel nc)
 	{
-		waitAfterError.put(nc, wait);
+		ChannelContext ctx = contexts.get(nc);
+		return ctx != null && ctx.retired;
 	}
 	
-	public synchronized long removeErrorWait(Channel nc)
+	public void setRetired(Channel nc)
 	{
-		return waitAfterError.remove(nc);
+		context(nc).retired = true;
 	}
 	
-	public synchronized void cleanup(Channel nc, boolean removeChannel)
+	public boolean containsErrorWait(Channel nc)
+	{
+		ChannelContext ctx = contexts.get(nc);
+		return ctx != null && ctx.errorWait >= 0;
+	}
+	
+	public long getErrorWait(Channel nc)
+	{
+		return context(nc).errorWait;
+	}
+	
+	public void setErrorWait(Channel nc, long wait)
+	{
+		context(nc).errorWait = wait;
+	}
+	
+	public long removeErrorWait(Channel nc)
+	{
+		ChannelContext ctx = context(nc);
+		long wait = ctx.errorWait;
+		ctx.errorWait = -1;
+		return wait;
+	}
+	
+	public void cleanup(Channel nc, boolean removeChannel)
 	{
 		int idx = indexOfNC(nc);
 		if(idx < 0)
 			return;
 
-		removeMD(nc);
-		removeRspHandler(nc);
-		removeNCStatus(nc);
-		removeLast4Bytes(nc);
+		ChannelContext ctx = contexts.get(nc);
+		if(ctx != null)
+		{
+			synchronized(ctx)
+			{
+				removeMD(nc);
+				removeRspHandler(nc);
+				removePipelined(nc);
+				removeNCStatus(nc);
+				scheduleTimeout(nc, ctx, null, 0);
+			}
+		}
 		
 		if(removeChannel)
+		{
 			nettyChannels.set(idx, null);
+			contexts.remove(nc);
+		}
 	}
 	
-	public synchronized void exchangeNC(Channel oldNC, Channel newNC, boolean resetFlag)
+	public void exchangeNC(Channel oldNC, Channel newNC, boolean resetFlag)
 	{
-		ArticleMetadata md = pendingData.get(oldNC);
-		if(md != null)
-		{
-			pendingData.remove(oldNC);
-			pendingData.put(newNC, md);
-		}
-
-		RspHandler handler = rspHandlers.get(oldNC);
-		if(handler != null)
+		ChannelContext oldCtx = context(oldNC);
+		ChannelContext newCtx = new ChannelContext();
+		
+		synchronized(oldCtx)
 		{
-			rspHandlers.remove(oldNC);
-			rspHandlers.put(newNC, handler);
+			newCtx.metadata = removeMD(oldNC);
+			newCtx.rspHandler = removeRspHandler(oldNC);
+			if(newCtx.rspHandler != null && resetFlag)
+				newCtx.rspHandler.reset();
 			
-			if(resetFlag)
-				handler.reset();
+			LinkedList<ArticleMetadata> queue = removePipelined(oldNC);
+			if(queue != null)
+				newCtx.pipeline.addAll(queue);
+			
+			newCtx.status.set(removeNCStatus(oldNC));
+			newCtx.retired = oldCtx.retired;
+			scheduleTimeout(oldNC, oldCtx, null, 0);
 		}
-
-		ChannelStatus status = channelStatus.get(oldNC);
-		if(status != null)
+		
+		contexts.set(newNC, newCtx);
+		contexts.remove(oldNC);
+		
+		int index = nettyChannels.indexOf(oldNC);
+		nettyChannels.set(index, newNC);
+	}
+	
+	
+	/**
+	 * A timeout of a single channel, scheduled on the timer wheel.
+	 */
+	private class ChannelTimeout implements TimerTask
+	{
+		private final Channel nc;
+		private final ChannelContext ctx;
+		private final TimeoutType type;
+		
+		ChannelTimeout(Channel nc, ChannelContext ctx, TimeoutType type)
 		{
-			channelStatus.remove(oldNC);
-			channelStatus.put(newNC, status);
+			this.nc = nc;
+			this.ctx = ctx;
+			this.type = type;
 		}
-
-		byte [] bytes = last4bytes.get(oldNC);
-		if(bytes != null)
+		
+		public void run(Timeout t)
 		{
-			last4bytes.remove(oldNC);
+			synchronized(ctx)
+			{
+				// cancelled or replaced in the meantime?
+				if(ctx.timeout != t)
+					return;
+				
+				// reading held back on purpose (speed limit, memory budget)? then wait again
+				if(type != TimeoutType.CONNECT && ReadGate.isSuspended(nc))
+				{
+					ctx.lastRead = System.nanoTime();
+					ctx.timeout = timer.newTimeout(this, timeout, TimeUnit.NANOSECONDS);
+					return;
+				}
+				
+				// data received in the meantime? then wait for the rest of the time
+				if(type == TimeoutType.IDLE_READ)
+				{
+					long idle = System.nanoTime() - ctx.lastRead;
+					if(idle < timeout)
+					{
+						ctx.timeout = timer.newTimeout(this, timeout - idle, TimeUnit.NANOSECONDS);
+						return;
+					}
+				}
+				
+				ctx.timeout = null;
+				ctx.timeoutType = null;
+			}
+			
+			timedOut.add(nc);
+			if(client != null)
+				client.wakeUp();
 		}
-		last4bytes.put(newNC, new byte[4]);
-		
-		int index = nettyChannels.indexOf(oldNC);
-		nettyChannels.remove(index);
-		nettyChannels.add(index, newNC);
 	}
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
@@ -25,20 +25,22 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import javax.swing.*;
 
-import org.jboss.netty.bootstrap.*;
 import org.jboss.netty.buffer.*;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.group.*;
 import org.jboss.netty.channel.socket.nio.*;
+import org.jboss.netty.handler.traffic.*;
 
 
 /**
  * This is a non-blocking implementation of an NNTP client.
  * It is designed as a finite state machine -- see enum
  * Channel status and NettyNioClientHandler.java for more
- * info.
+ * info. Each client connects to one server, see class
+ * NntpServerGroup for the use of multiple servers.
  * 
  * @author Matthias F. Brandstetter
  */
@@ -46,6 +48,26 @@ public class NettyNioClient implements Runnable
 {
 	private static final int WAIT_AFTER_ERROR = 3;
 	private static final int MIN_SLEEP_TIME = 3;
+	private static final int MAX_WAIT_TIME = 1000;
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final int KEEPALIVE_INTERVAL = 60;
+	private static final int DEFAULT_IDLE_DISCONNECT = 10;
+	private static final int ADAPT_INTERVAL = 15;
+	
+	/** a single connection may use up to this factor of its fair share of a speed limit */
+	private static final double CONNECTION_SHARE = 1.5;
+	
+	/** a connection is slow if its latency or receive rate is off by this factor from the median */
+	private static final int SLOW_FACTOR = 4;
+	
+	/** a connection is never slow because of a latency below this value (in nano sec) */
+	private static final long MIN_SLOW_LATENCY = 1000000000L;
+	
+	/** min. amount of connections with measured values to tell slow connections */
+	private static final int MIN_HEALTH_SAMPLES = 3;
+	
+	/** the slow connections are looked for once per this interval (in sec) */
+	private static final int HEALTH_INTERVAL = 1;
 
 	/** thread's gobal run-flag */
 	private boolean runFlag;
@@ -62,6 +84,15 @@ public class NettyNioClient implements Runnable
 	/** central logger object */
 	private MyLogger logger;
 	
+	/** The server settings */
+	private NntpServer server;
+	
+	/** The server group this client belongs to (or null) */
+	private NntpServerGroup serverGroup;
+	
+	/** The row of the first connection of this client in the thread view */
+	private int threadViewOffset;
+	
 	/** The host:port combination to connect to */
 	private InetAddress serverAddress;
 	private int port;
@@ -76,6 +107,33 @@ public class NettyNioClient implements Runnable
 	/** The max. amount of simultaneous connections (download threads) */
 	private int threadcount;
 	
+	/** The amount of connections to use right now (at most threadcount) */
+	private volatile int connectionCount;
+	
+	/** Decides about the amount of connections (if adaptive) */
+	private ConnectionController connController;
+	
+	/** "adapt the amount of connections to the throughput" flag */
+	private boolean adaptive;
+	
+	/** the nano sec time and downloaded byte count of the last adaption */
+	private long lastAdaptTime;
+	private long lastAdaptBytes;
+	
+	/** the download speed limits of all servers and of this server (in KB/s, 0 = no limit) */
+	private long globalLimit;
+	private long serverLimit;
+	
+	/** the amount of connections the connection speed limit was computed for */
+	private int shapedConnCount;
+	
+	/** how often all download slots were in use since the last adaption */
+	private int busySamples;
+	private int samples;
+	
+	/** The max. amount of BODY commands in flight per connection (1 = no pipelining) */
+	private volatile int pipelineDepth;
+	
 	/** Authentication test flag */
 	private boolean testAuthFlag;
 	
@@ -85,8 +143,8 @@ public class NettyNioClient implements Runnable
 	/** set as soon as first group cmd was successful */
 	private boolean groupCmdSuccessful;
 	
-	/** The number of threads (connections, sockets) currently in idle status */
-	private Integer idleSocketCount;
+	/** The number of free download slots (threadcount * pipelineDepth when all idle) */
+	private final AtomicInteger idleSocketCount;
 	
 	/** This object is used to handle all SocketChannels and relevant meta information */
 	private NettyChannelManager ncMgr;
@@ -107,7 +165,28 @@ public class NettyNioClient implements Runnable
 	private Vector<Integer> lastToWaitValues;
 	
 	/** the amount of bytes downloaded so far */
-	private Long downloadedBytes;
+	private AtomicLong downloadedBytes;
+	
+	/** lock object used to wake up the main loop */
+	private final Object wakeUpLock = new Object();
+	
+	/** set when the main loop has something to do */
+	private boolean wakeUpFlag;
+	
+	/** gets notified when a download slot becomes free (may be null) */
+	private SlotListener slotListener;
+	
+	/** close all connections after this time without download (in nano sec) */
+	private long idleDisconnect;
+	
+	/** the nano sec time since when this client has nothing to do (0 = busy) */
+	private long idleSince;
+	
+	/** the connections that are much slower than the others (see checkHealth()) */
+	private volatile HashSet<Channel> slowChannels;
+	
+	/** the nano sec time of the last check for slow connections */
+	private long lastHealthTime;
 
 	
 
@@ -120,6 +199,25 @@ public class NettyNioClient implements Runnable
 	 */
 	public NettyNioClient(HelloNzb mainApp) 
 			throws IOException, IllegalArgumentException, UnknownHostException
+	{
+		this(mainApp, NntpServer.fromPrefs(mainApp.getPrefContainer(), NntpServer.PRIMARY), null, null, null, 0);
+	}
+	
+	/**
+	 * Class constructor. Makes no connection.
+	 * 
+	 * @param mainApp Main application object
+	 * @param server The server to connect to
+	 * @param trafficHandler The traffic shaping handler to use (null to create a new one)
+	 * @param globalBucket The token bucket of all servers to use (null to create a new one)
+	 * @param serverGroup The server group this client belongs to (or null)
+	 * @param threadViewOffset The row of the first connection in the thread view
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 */
+	public NettyNioClient(HelloNzb mainApp, NntpServer server, GlobalTrafficShapingHandler trafficHandler, 
+			TokenBucket globalBucket, NntpServerGroup serverGroup, int threadViewOffset) 
+			throws IOException, IllegalArgumentException, UnknownHostException
 	{
 		// some default values
 		this.mainApp = mainApp;
@@ -132,34 +230,53 @@ public class NettyNioClient implements Runnable
 		this.groupCmdSuccessful = true;
 		
 		// usenet server connection settings
-		this.useSSL = mainApp.getBooleanPrefValue("ServerSettingsUseSSL"); 
-		this.serverAddress = InetAddress.getByName(mainApp.getPrefValue("ServerSettingsHost"));
-		if(this.useSSL)
-			this.port = Integer.valueOf(mainApp.getPrefValue("ServerSettingsSSLPort"));
-		else
-			this.port = Integer.valueOf(mainApp.getPrefValue("ServerSettingsPort"));
-		this.username = mainApp.getPrefValue("ServerSettingsUsername");
-		this.password = mainApp.getPrefValue("ServerSettingsPassword");
-		this.threadcount = Integer.parseInt(mainApp.getPrefValue("ServerSettingsThreadCount"));
+		this.server = server;
+		this.serverGroup = serverGroup;
+		this.threadViewOffset = threadViewOffset;
+		this.useSSL = server.useSSL(); 
+		this.serverAddress = InetAddress.getByName(server.getHost());
+		this.port = server.getPort();
+		this.username = server.getUsername();
+		this.password = server.getPassword();
+		this.threadcount = server.getConnections();
+		this.connController = new ConnectionController(threadcount);
+		this.connectionCount = connController.getCount();
+		this.adaptive = mainApp.getPrefContainer().getBooleanPrefValue("ServerSettingsAdaptiveConnections");
+		this.pipelineDepth = getPipelineDepth();
 		
-		this.ncMgr = new NettyChannelManager(mainApp.getPrefContainer());
+		this.ncMgr = new NettyChannelManager(mainApp.getPrefContainer(), this);
 		this.channelGroup = new DefaultChannelGroup("HelloNzb-Channels");
 		this.newTasks = new Vector<NewTask>();
+		this.slowChannels = new HashSet<Channel>();
 
 		// Netty factories
 		long speedLimit = getSpeedLimit();
 		if(speedLimit < 0)
 			speedLimit = 0;
+		this.globalLimit = speedLimit;
+		this.serverLimit = server.getSpeedLimit();
+		this.shapedConnCount = 0;
 		clSockChannelFactory = new NioClientSocketChannelFactory(
 				Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
 		channelPipelineFactory = new NettyNioClientPipelineFactory(
-				this, mainApp.getLocaler(), logger, ncMgr, username, speedLimit, useSSL); 
+				this, mainApp.getLocaler(), logger, ncMgr, username, speedLimit, serverLimit, useSSL, 
+				server.getHost(), port, trafficHandler, globalBucket, 
+				mainApp.getPrefContainer().getBooleanPrefValue("DownloadSettingsSmoothSpeedLimit")); 
 		
 		// more default values
-		this.idleSocketCount = 0;
+		this.idleSocketCount = new AtomicInteger(0);
 		this.lastToWaitValues = new Vector<Integer>();
 		this.lastToWaitValues.add(MIN_SLEEP_TIME);
-		this.downloadedBytes = 0L;		
+		this.downloadedBytes = new AtomicLong(0);
+		this.lastAdaptTime = System.nanoTime();
+		this.lastAdaptBytes = 0;
+		this.lastHealthTime = System.nanoTime();
+		this.busySamples = 0;
+		this.samples = 0;
+		this.wakeUpFlag = false;
+		this.slotListener = null;
+		this.idleDisconnect = getIdleDisconnect() * 60L * HelloNzbCradle.SEC_MODIFIER;
+		this.idleSince = 0;
 	}
 
 	/**
@@ -171,15 +288,16 @@ public class NettyNioClient implements Runnable
 		long lastTime = 0;
 
 
-		// init. socket channel connections
+		// init. socket channel connections (all at once, each channel starts
+		// to download as soon as it is connected and authenticated)
 		try
 		{
-			for(int i = 0; i < threadcount; i++)
+			for(int i = 0; i < connectionCount; i++)
 			{
 				// create new channel
-				Channel channel = createNewChannel(10000); 
-				ncMgr.addChannelAndInit(channel);
-				newIdleChannel();
+				Channel channel = createNewChannel(null); 
+				for(int j = 0; j < pipelineDepth; j++)
+					newIdleChannel();
 				
 				printDebugMsg("> Connecting to server '" + this.serverAddress + "' on port " + 
 						this.port + "\r\n", channel);
@@ -188,7 +306,7 @@ public class NettyNioClient implements Runnable
 				updThreadView(channel, mainApp.getLocaler().getBundleText("ThreadViewStatusConnecting"));
 			}
 		}
-		catch(IOException e)
+		catch(Exception e)
 		{
 			logger.printStackTrace(e);
 			runFlag = false;
@@ -201,21 +319,31 @@ public class NettyNioClient implements Runnable
 			{
 				checkShutdown();
 				checkTimeout();
+				checkMemoryBudget();
+				checkIdle();
+				checkAdaptive();
+				checkConnectionCount();
+				checkHealth();
 				
-				// process all open (connected) channels
+				// process all open (connected) channels, slow ones get new articles last
+				HashSet<Channel> slow = slowChannels;
 				for(Channel channel : channelGroup)
-					write(channel);
+					if(!slow.contains(channel))
+						write(channel);
+				for(Channel channel : channelGroup)
+					if(slow.contains(channel))
+						write(channel);
 				
-				// let the thread sleep a bit
-				Thread.sleep(1);
+				// wait until a channel changes its status or new tasks arrive
+				waitForWork(MAX_WAIT_TIME);
 			} 
-			catch(IOException e) 
+			catch(InterruptedException e)
 			{
-				logger.printStackTrace(e);
 				runFlag = false;
 			}
-			catch(InterruptedException e)
+			catch(Exception e) 
 			{
+				logger.printStackTrace(e);
 				runFlag = false;
 			}
 			
@@ -224,13 +352,14 @@ public class NettyNioClient implements Runnable
             if((currTime - lastTime) >= HelloNzbCradle.SEC_MODIFIER)
             {
                 // update status bar (count of active threads/connections)
-            	final int threads = this.threadcount - this.idleSocketCount;
+            	final int threads = (serverGroup != null) ? serverGroup.getActiveCount() : getActiveCount();
                 SwingUtilities.invokeLater(new Runnable() 
                 { 
                 	public void run()
                 	{
                 		// update status bar on main app window
                 		mainApp.updStatusBar(threads);
+                		mainApp.updMemoryUsage();
                 	} 
                 } ); 
             	
@@ -242,6 +371,7 @@ public class NettyNioClient implements Runnable
 		groupFuture.awaitUninterruptibly();
 		clSockChannelFactory.releaseExternalResources();
 		channelPipelineFactory.releaseExternalResources();
+		ncMgr.releaseExternalResources();
 		
 		logger.msg("NettyNioClient stopped", MyLogger.SEV_DEBUG);
 	} 
@@ -257,6 +387,7 @@ public class NettyNioClient implements Runnable
 		logger.msg("NioClient should shutdown now", MyLogger.SEV_DEBUG);
 		
 		this.shutdown = true;
+		wakeUp();
 		
 		if(block)
 		{
@@ -280,6 +411,108 @@ public class NettyNioClient implements Runnable
 		}
 	}
 
+	/**
+	 * Returns whether or not this client is running and not shutting down.
+	 * 
+	 * @return true/false
+	 */
+	public boolean isRunning()
+	{
+		return runFlag && !shutdown;
+	}
+	
+	/**
+	 * Keep the connections of this client open for the next download,
+	 * the idle time is counted from now on.
+	 * 
+	 * @return false if the client is already shutting down
+	 */
+	public synchronized boolean keepOpen()
+	{
+		if(!isRunning())
+			return false;
+		
+		idleSince = 0;
+		return true;
+	}
+	
+	/**
+	 * Remove all articles from the queue that have not been requested from
+	 * the server yet, their download slots become free again. Articles that
+	 * are already on their way are received as usual.
+	 */
+	public void cancelTasks()
+	{
+		if(testAuthFlag || testSegAvailability)
+			return;
+		
+		int count = 0;
+		synchronized(this.newTasks)
+		{
+			count = newTasks.size();
+			newTasks.clear();
+		}
+		
+		this.idleSocketCount.addAndGet(count);
+	}
+	
+	/**
+	 * Remove the article of the given handler from the queue, if it has not
+	 * been requested from the server yet. Its download slot becomes free
+	 * again. An article that is already on its way is received as usual, so
+	 * the handler should be discarded (see RspHandler.discard()) to drop it.
+	 * 
+	 * @param handler The RspHandler object of the article
+	 * @return true if the article has been removed from the queue
+	 */
+	public boolean cancelArticle(RspHandler handler)
+	{
+		boolean found = false;
+		synchronized(this.newTasks)
+		{
+			for(int i = 0; i < newTasks.size() && !found; i++)
+			{
+				if(newTasks.get(i).handler == handler)
+				{
+					newTasks.remove(i);
+					found = true;
+				}
+			}
+		}
+		
+		if(found)
+			newIdleChannel();
+		
+		return found;
+	}
+	
+	/**
+	 * Queue the given tasks again, in front of all other tasks. The tasks
+	 * of discarded handlers are dropped, their download slots become free.
+	 * 
+	 * @param requeue The tasks to queue again
+	 */
+	private void requeue(Vector<NewTask> requeue)
+	{
+		int dropped = 0;
+		for(Iterator<NewTask> it = requeue.iterator(); it.hasNext(); )
+		{
+			if(it.next().handler.isDiscarded())
+			{
+				it.remove();
+				dropped++;
+			}
+		}
+		
+		synchronized(this.newTasks)
+		{
+			newTasks.addAll(0, requeue);
+		}
+		
+		for(int i = 0; i < dropped; i++)
+			newIdleChannel();
+	}
+	
 	/**
 	 * Test the specified authentication details (username and password)
 	 * for correctness.
@@ -297,6 +530,7 @@ public class NettyNioClient implements Runnable
 
 		// set parameters 
 		this.testAuthFlag = true;
+		wakeUp();
 	}
 	
 	/**
@@ -316,6 +550,18 @@ public class NettyNioClient implements Runnable
 		
 		// set parameters 
 		this.testSegAvailability = true;
+		wakeUp();
+	}
+	
+	/**
+	 * Returns the total number of download slots, i.e. the number of
+	 * articles that may be requested at the same time.
+	 * 
+	 * @return The number of slots
+	 */
+	public int getSlotCount()
+	{
+		return connectionCount * pipelineDepth;
 	}
 	
 	/**
@@ -325,13 +571,32 @@ public class NettyNioClient implements Runnable
 	 */
 	public boolean hasFreeSlot()
 	{
-		synchronized(this.idleSocketCount)
-		{
-			if(this.idleSocketCount < 1)
-				return false;
-			else
-				return true;
-		}
+		return this.idleSocketCount.get() > 0;
+	}
+	
+	/**
+	 * Returns the number of currently free download slots.
+	 * 
+	 * @return The number of slots (may be negative if retried articles are queued)
+	 */
+	protected int getIdleSlotCount()
+	{
+		return this.idleSocketCount.get();
+	}
+	
+	/**
+	 * Returns the number of connections that are currently downloading an article.
+	 * 
+	 * @return The number of active connections
+	 */
+	protected int getActiveCount()
+	{
+		int active = 0;
+		for(Channel channel : channelGroup)
+			if(ncMgr.getRspHandler(channel) != null)
+				active++;
+		
+		return active;
 	}
 	
 	/**
@@ -345,20 +610,180 @@ public class NettyNioClient implements Runnable
 		String groupCmd   = "GROUP " + group + "\r\n";
 		String articleCmd = "BODY <" + artID + ">\r\n";
 		
-		synchronized(this.idleSocketCount)
+		if(!takeSlot())
+			return false;
+		
+		sendNntpCmd(articleCmd, groupCmd, handler);
+		
+		return true;
+	}
+	
+	/**
+	 * Fetch a second copy of an article that is already on its way (end-game
+	 * mode). The copy is only sent on an idle channel, and never on the 
+	 * channel the first copy (the straggler) is on, so it is not pipelined
+	 * behind the article it should overtake.
+	 * 
+	 * @param group The newsgroup of the article
+	 * @param artID The article to fetch, identified by its ID
+	 * @param handler The RspHandler object of the copy
+	 * @param straggler The RspHandler object of the first copy
+	 * @return true if article could be added to download queue, false if no slots were free
+	 */
+	public boolean fetchArticleCopy(String group, String artID, RspHandler handler, RspHandler straggler)
+	{
+		if(!takeSlot())
+			return false;
+		
+		NewTask nt = new NewTask(handler, "BODY <" + artID + ">\r\n", "GROUP " + group + "\r\n", null);
+		nt.hedged = true;
+		nt.avoid = findChannel(straggler);
+		synchronized(this.newTasks)
+		{
+			this.newTasks.add(nt);
+		}
+		
+		wakeUp();
+		return true;
+	}
+	
+	/**
+	 * Stop downloading the article of the given handler, which has been 
+	 * discarded, if it is the article the channel is receiving right now. 
+	 * The channel is closed (and reconnected later on), the articles 
+	 * pipelined behind it are queued again. An article that is only 
+	 * pipelined is dropped when it arrives.
+	 * 
+	 * @param handler The RspHandler object of the article
+	 * @return true if the channel has been closed
+	 */
+	public boolean abortArticle(RspHandler handler)
+	{
+		Channel channel = findChannel(handler);
+		if(channel == null)
+			return false;
+		
+		Vector<NewTask> requeue = new Vector<NewTask>();
+		synchronized(ncMgr.context(channel))
 		{
-			if(this.idleSocketCount < 1)
+			if(ncMgr.getRspHandler(channel) != handler)
 				return false;
-			else
+			
+			ArticleMetadata md = ncMgr.removeMD(channel);
+			ncMgr.removeRspHandler(channel);
+			if(md != null)
+				requeue.add(new NewTask(handler, md.cmd, md.group, null));
+			
+			LinkedList<ArticleMetadata> pipelined = ncMgr.removePipelined(channel);
+			if(pipelined != null)
 			{
-				this.idleSocketCount--;
-				sendNntpCmd(articleCmd, groupCmd, handler);
-				
-				return true;
+				for(ArticleMetadata pmd : pipelined)
+				{
+					pmd.handler.reset();
+					requeue.add(new NewTask(pmd.handler, pmd.cmd, pmd.group, null));
+				}
+			}
+			
+			ncMgr.setNCStatus(channel, ChannelStatus.INIT);
+		}
+		
+		// the discarded handler is dropped here, so its slot becomes free
+		requeue(requeue);
+		channel.close();
+		
+		return true;
+	}
+	
+	/**
+	 * Returns the channel the article of the given handler is on, either 
+	 * being received or pipelined.
+	 * 
+	 * @param handler The RspHandler object of the article
+	 * @return The channel, or null if not found
+	 */
+	private Channel findChannel(RspHandler handler)
+	{
+		for(Channel channel : channelGroup)
+		{
+			synchronized(ncMgr.context(channel))
+			{
+				if(ncMgr.getRspHandler(channel) == handler || ncMgr.isPipelined(channel, handler))
+					return channel;
 			}
 		}
+		
+		return null;
+	}
+	
+	// take a free download slot, returns false if none is free
+	private boolean takeSlot()
+	{
+		int idle;
+		do
+		{
+			idle = this.idleSocketCount.get();
+			if(idle < 1)
+				return false;
+		}
+		while(!this.idleSocketCount.compareAndSet(idle, idle - 1));
+		
+		return true;
+	}
+	
+	/**
+	 * Take the first task from the queue that may be sent on the given channel.
+	 * Copies of straggling articles are sent on idle channels only, and not on
+	 * the channel of the straggler. Must be called with newTasks locked.
+	 * 
+	 * @param channel The channel to send the task on
+	 * @param idle Whether or not the channel is idle (or pipelining)
+	 * @return The task, or null if there is none for this channel
+	 */
+	private NewTask pollTask(Channel channel, boolean idle)
+	{
+		for(int i = 0; i < newTasks.size(); i++)
+		{
+			NewTask task = newTasks.get(i);
+			if(task.hedged && (!idle || task.avoid == channel))
+				continue;
+			
+			newTasks.remove(i);
+			return task;
+		}
+		
+		return null;
 	}
 
+	/**
+	 * Fetch an article that was not found on another server. The article is
+	 * queued even if no slot is free right now.
+	 * 
+	 * @param cmd The BODY command of the article
+	 * @param group The GROUP command of the article
+	 * @param handler The RspHandler object to use
+	 */
+	protected void retryArticle(String cmd, String group, RspHandler handler)
+	{
+		this.idleSocketCount.decrementAndGet();
+		sendNntpCmd(cmd, group, handler);
+	}
+	
+	/**
+	 * Called from the NettyNioClientHandler when the server does not have
+	 * an article ("430 no such article").
+	 * 
+	 * @param md The metadata of the article
+	 * @param handler The RspHandler object of the article
+	 * @return true if the article is fetched from another server now
+	 */
+	protected boolean articleNotFound(ArticleMetadata md, RspHandler handler)
+	{
+		if(serverGroup == null || testAuthFlag || testSegAvailability || shutdown)
+			return false;
+		
+		return serverGroup.retryOnNextServer(this, md.cmd, md.group, handler);
+	}
+	
 	/**
 	 * Send an array of bytes (a NNTP command) via a SocketChannel.
 	 * 
@@ -374,101 +799,419 @@ public class NettyNioClient implements Runnable
 			NewTask nt = new NewTask(handler, cmd, group, null);
 			this.newTasks.add(nt);
 		}
+		
+		wakeUp();
+	}
+	
+	/**
+	 * Check if shutdown flag is set. If so, then command all
+	 * connections (socket channels) to send the QUIT command
+	 * next. If the flag is set and all connections have been
+	 * closed, then set the runFlag to false.
+	 */
+	private void checkShutdown()
+	{
+		if(shutdown)
+		{
+			int counter = 0;
+			for(Channel channel : channelGroup)
+			{
+				// let all active channels disconnect
+				ChannelStatus status = ncMgr.getNCStatus(channel);
+				
+				// if shutdownNow flag is true, then shutdown in any socket status
+				if(shutdownNow && 	status != ChannelStatus.TO_QUIT &&
+									status != ChannelStatus.FINISHED)
+				{
+					ncMgr.setNCStatus(channel, ChannelStatus.TO_QUIT);
+				}
+				
+				// if not, then wait until connection is idle (download finished)
+				else if(!shutdownNow && status == ChannelStatus.IDLE)
+				{
+					// the handler threads may change the status at any time
+					ncMgr.compareAndSetNCStatus(channel, ChannelStatus.IDLE, ChannelStatus.TO_QUIT);
+				}
+
+				counter++;
+			}
+			
+			if(counter == 0)
+				runFlag = false; // no active channels left
+		}
+	}
+	
+	/**
+	 * Resume the channels suspended because of the memory budget if no
+	 * memory has been released for too long.
+	 */
+	private void checkMemoryBudget()
+	{
+		if(MemoryBudget.getInstance().checkStall())
+			logger.msg("Memory budget exhausted, but no memory released; resuming all connections", 
+					MyLogger.SEV_WARNING);
+	}
+	
+	/**
+	 * Find the connections that are much slower than the others, i.e. the ones
+	 * whose latency (time until the reply to an article arrives) or receive
+	 * rate is off by SLOW_FACTOR from the median of all connections (see 
+	 * NettyChannelManager). Slow connections get new articles only if no other
+	 * connection is idle, and no further articles are pipelined on them. This
+	 * is done once per HEALTH_INTERVAL, the result is kept until the next check.
+	 */
+	private void checkHealth()
+	{
+		long currTime = System.nanoTime();
+		if(currTime - lastHealthTime < HEALTH_INTERVAL * HelloNzbCradle.SEC_MODIFIER)
+			return;
+		lastHealthTime = currTime;
+		
+		// the values of each channel, and the measured ones to find the medians
+		int size = channelGroup.size();
+		Channel [] channels = new Channel[size];
+		double [] chLatency = new double[size];
+		double [] chRate = new double[size];
+		double [] latencies = new double[size];
+		double [] rates = new double[size];
+		int latencyCount = 0;
+		int rateCount = 0;
+		int count = 0;
+		for(Channel channel : channelGroup)
+		{
+			if(count == size)
+				break;
+			
+			channels[count] = channel;
+			chLatency[count] = ncMgr.getLatency(channel);
+			chRate[count] = ncMgr.getRate(channel);
+			if(chLatency[count] >= 0)
+				latencies[latencyCount++] = chLatency[count];
+			if(chRate[count] >= 0)
+				rates[rateCount++] = chRate[count];
+			count++;
+		}
+		
+		double maxLatency = Double.MAX_VALUE;
+		if(latencyCount >= MIN_HEALTH_SAMPLES)
+			maxLatency = Math.max(median(latencies, latencyCount) * SLOW_FACTOR, MIN_SLOW_LATENCY);
+		double minRate = 0;
+		if(rateCount >= MIN_HEALTH_SAMPLES)
+			minRate = median(rates, rateCount) / SLOW_FACTOR;
+		
+		HashSet<Channel> slow = new HashSet<Channel>();
+		for(int i = 0; i < count; i++)
+			if(chLatency[i] > maxLatency || (chRate[i] >= 0 && chRate[i] < minRate))
+				slow.add(channels[i]);
+		slowChannels = slow;
+	}
+	
+	// returns the median of the first count values (the array is sorted)
+	private static double median(double [] values, int count)
+	{
+		Arrays.sort(values, 0, count);
+		return values[count / 2];
+	}
+	
+	/**
+	 * Handle the socket channels whose timeout has expired (the timeouts
+	 * are scheduled by the channel manager, see NettyChannelManager). Such a 
+	 * socket channel is closed and reconnected again. Closed channels are
+	 * reconnected the same way.
+	 */
+	private void checkTimeout()
+	{
+		Channel channel = null;
+		while((channel = ncMgr.pollTimedOut()) != null)
+		{
+			// channel replaced or removed in the meantime?
+			if(shutdown || ncMgr.indexOfNC(channel) < 0)
+				continue;
+			
+			// retired channels are closed, not reconnected (see closeRetired())
+			if(ncMgr.isRetired(channel))
+			{
+				channel.close();
+				continue;
+			}
+			
+			// downloader paused? then wait again
+			if(channel.isOpen() && mainApp.isDownloadPaused())
+			{
+				ncMgr.restartTimeout(channel);
+				continue;
+			}
+			
+			// timeout, so create a new channel... first update thread view
+			try
+			{
+				String msg = mainApp.getLocaler().getBundleText("ThreadViewTimeoutReconnecting");
+				updThreadView(channel, msg);
+
+				// close the old channel
+				if(channel.isConnected())
+				{
+					ChannelBuffer buffer = ChannelBuffers.wrappedBuffer("QUIT\r\n".getBytes());
+					channel.write(buffer);
+				}
+				channel.close().awaitUninterruptibly();
+				
+				// then create a new channel in place of the old one
+				createNewChannel(channel);
+			}
+			catch(Exception e)
+			{
+				logger.printStackTrace(e);
+			}
+		}
+	}
+	
+	/**
+	 * Check if this client had nothing to do for the time set by the user.
+	 * If so, then shut down (i.e. close all connections). As long as a
+	 * downloader is attached (e.g. while the download is paused) the 
+	 * connections are kept open.
+	 */
+	private synchronized void checkIdle()
+	{
+		if(shutdown || testAuthFlag || testSegAvailability)
+			return;
+		
+		boolean empty = true;
+		synchronized(this.newTasks)
+		{
+			empty = newTasks.isEmpty();
+		}
+		
+		if(slotListener != null || !empty || getActiveCount() > 0)
+		{
+			idleSince = 0;
+			return;
+		}
+		
+		long currTime = System.nanoTime();
+		if(idleSince == 0)
+			idleSince = currTime;
+		else if(currTime - idleSince > idleDisconnect)
+		{
+			logger.msg("Connections to server " + server.getName() + " have not been used for " + 
+					idleDisconnect / (60L * HelloNzbCradle.SEC_MODIFIER) + " min, disconnecting", 
+					MyLogger.SEV_INFO);
+			shutdown = true;
+		}
+	}
+	
+	/**
+	 * Measure the throughput of this client and let the ConnectionController
+	 * decide whether or not to change the amount of connections (only if the
+	 * user has enabled adaptive connections).
+	 */
+	private void checkAdaptive()
+	{
+		if(!adaptive || shutdown || testAuthFlag || testSegAvailability)
+			return;
+		
+		// sample whether or not all download slots are in use
+		samples++;
+		if(getIdleSlotCount() <= 0)
+			busySamples++;
+		
+		long currTime = System.nanoTime();
+		if(currTime - lastAdaptTime < ADAPT_INTERVAL * HelloNzbCradle.SEC_MODIFIER)
+			return;
+		
+		long bytes = downloadedBytes.get();
+		long rate = (bytes - lastAdaptBytes) * HelloNzbCradle.SEC_MODIFIER / (currTime - lastAdaptTime);
+		boolean busy = busySamples * 10 >= samples * 9 && !mainApp.isDownloadPaused();
+		int count = connController.update(bytes - lastAdaptBytes, currTime - lastAdaptTime, busy);
+		if(busy)
+			logger.msg("Server " + server.getName() + ": " + (rate / 1024) + " KB/s with " + connectionCount + 
+					" connections (" + (rate / 1024 / connectionCount) + " KB/s per connection)", 
+					MyLogger.SEV_DEBUG);
+		
+		lastAdaptTime = currTime;
+		lastAdaptBytes = bytes;
+		busySamples = 0;
+		samples = 0;
+		
+		if(count != connectionCount)
+		{
+			logger.msg("Server " + server.getName() + ": using " + count + " connections now", 
+					MyLogger.SEV_INFO);
+			connectionCount = count;
+		}
+	}
+	
+	/**
+	 * Open or close connections until the amount set by setConnectionCount()
+	 * (or by the ConnectionController) is reached. The download slots of a 
+	 * closed connection are removed at once, but the connection itself is 
+	 * closed as soon as it has nothing to do anymore.
+	 * 
+	 * @throws Exception If a new channel could not be created
+	 */
+	private void checkConnectionCount() throws Exception
+	{
+		if(shutdown)
+			return;
+		
+		// the fair share of the speed limits depends on the amount of connections
+		int total = (serverGroup != null) ? serverGroup.getConnectionCount() : connectionCount;
+		if(total != shapedConnCount)
+			updateConnectionSpeedLimit();
+		
+		int live = 0;
+		for(int i = 0; i < ncMgr.size(); i++)
+		{
+			Channel channel = ncMgr.getNC(i);
+			if(channel == null)
+				continue;
+			
+			if(ncMgr.isRetired(channel))
+				closeRetired(channel);
+			else
+				live++;
+		}
+		
+		// open more connections
+		while(live < connectionCount)
+		{
+			Channel channel = createNewChannel(null);
+			for(int j = 0; j < pipelineDepth; j++)
+				newIdleChannel();
+			
+			printDebugMsg("> Connecting to server '" + this.serverAddress + "' on port " + 
+					this.port + "\r\n", channel);
+			updThreadView(channel, mainApp.getLocaler().getBundleText("ThreadViewStatusConnecting"));
+			live++;
+		}
+		
+		// close connections, starting with the last one
+		for(int i = ncMgr.size() - 1; i >= 0 && live > connectionCount; i--)
+		{
+			Channel channel = ncMgr.getNC(i);
+			if(channel == null || ncMgr.isRetired(channel))
+				continue;
+			
+			retireChannel(channel);
+			live--;
+		}
+	}
+	
+	/**
+	 * Mark a channel to be closed as soon as it has nothing to do and 
+	 * remove its download slots. Synchronized with disablePipelining(), so
+	 * the pipeline depth can't change between reading and using it.
+	 * 
+	 * @param channel The channel to close
+	 */
+	private synchronized void retireChannel(Channel channel)
+	{
+		ncMgr.setRetired(channel);
+		
+		idleSocketCount.addAndGet(-pipelineDepth);
 	}
 	
 	/**
-	 * Check if shutdown flag is set. If so, then command all
-	 * connections (socket channels) to send the QUIT command
-	 * next. If the flag is set and all connections have been
-	 * closed, then set the runFlag to false.
+	 * Close a retired channel if it has nothing to do anymore. If it has been
+	 * closed while downloading, then its articles are queued again.
+	 * 
+	 * @param channel The channel to use
 	 */
-	private void checkShutdown()
+	private void closeRetired(Channel channel)
 	{
-		if(shutdown)
+		ChannelStatus status = ncMgr.getNCStatus(channel);
+		boolean busy = ncMgr.getRspHandler(channel) != null;
+		
+		if(!channel.isOpen())
 		{
-			int counter = 0;
-			for(Channel channel : channelGroup)
+			Vector<NewTask> requeue = new Vector<NewTask>();
+			synchronized(ncMgr.context(channel))
 			{
-				// let all active channels disconnect
-				ChannelStatus status = ncMgr.getNCStatus(channel);
-				
-				// if shutdownNow flag is true, then shutdown in any socket status
-				if(shutdownNow && 	status != ChannelStatus.TO_QUIT &&
-									status != ChannelStatus.FINISHED)
+				ArticleMetadata md = ncMgr.removeMD(channel);
+				RspHandler handler = ncMgr.removeRspHandler(channel);
+				if(md != null && handler != null)
 				{
-					ncMgr.setNCStatus(channel, ChannelStatus.TO_QUIT);
+					handler.reset();
+					requeue.add(new NewTask(handler, md.cmd, md.group, null));
 				}
 				
-				// if not, then wait until connection is idle (download finished)
-				else if(!shutdownNow && status == ChannelStatus.IDLE)
+				LinkedList<ArticleMetadata> pipelined = ncMgr.removePipelined(channel);
+				if(pipelined != null)
 				{
-					ncMgr.setNCStatus(channel, ChannelStatus.TO_QUIT);
+					for(ArticleMetadata pmd : pipelined)
+					{
+						pmd.handler.reset();
+						requeue.add(new NewTask(pmd.handler, pmd.cmd, pmd.group, null));
+					}
 				}
-
-				counter++;
 			}
 			
-			if(counter == 0)
-				runFlag = false; // no active channels left
+			requeue(requeue);
+			
+			updThreadView(channel, mainApp.getLocaler().getBundleText("ThreadViewStatusIdle"));
+			ncMgr.cleanup(channel, true);
 		}
+		else if(!busy && status == ChannelStatus.IDLE)
+			ncMgr.compareAndSetNCStatus(channel, ChannelStatus.IDLE, ChannelStatus.TO_QUIT);
+		else if(!busy && status != ChannelStatus.TO_QUIT && status != ChannelStatus.FINISHED && 
+				status != ChannelStatus.KEEPALIVE)
+			channel.close(); // not yet connected/authenticated, or server error
+		
+		// otherwise wait for the server, but not forever (see checkTimeout())
 	}
 	
 	/**
-	 * Check if one or more socket channel(s) have not changed
-	 * its/their status for x seconds (where x is defined by
-	 * the user via application settings). If a timeout is
-	 * identified, then the according socket channel is closed
-	 * and reconnected again.
+	 * Set the amount of connections to use. Connections are opened or closed
+	 * right away (or as soon as they are idle). 
+	 * 
+	 * @param count The amount of connections, limited to 1 and the amount set by the user
 	 */
-	private void checkTimeout()
+	public void setConnectionCount(int count)
 	{
-		if(shutdown)
+		connectionCount = connController.setCount(count);
+		wakeUp();
+	}
+	
+	/**
+	 * Returns the amount of connections this client uses right now.
+	 * 
+	 * @return The amount of connections
+	 */
+	public int getConnectionCount()
+	{
+		return connectionCount;
+	}
+	
+	/**
+	 * Called from the NettyNioClientHandler when the server has refused a 
+	 * connection because of too many connections. If adaptive connections
+	 * are enabled, then this connection is closed and no more connections
+	 * than the ones still open are used.
+	 * 
+	 * @param channel The refused channel
+	 * @param response The server reply
+	 */
+	protected void connectionRefused(Channel channel, String response)
+	{
+		if(!adaptive || shutdown || ncMgr.isRetired(channel))
 			return;
 		
-		// loop through all socket channels
+		int live = 0;
 		for(int i = 0; i < ncMgr.size(); i++)
 		{
-			Channel channel = ncMgr.getNC(i);
-			long currTime = System.nanoTime();
-			long timeout = ncMgr.getNCTimeout(channel);
-			
-			// downloader paused?
-			if(mainApp.isDownloadPaused())
-			{
-				ncMgr.resetTimeout(channel);
-				continue;
-			}
-			
-			// timeout time reached for this socket channel?
-			if(currTime > timeout || !channel.isOpen())
-			{
-				try
-				{
-					// timeout, so create a new channel...
-					// first update thread view
-					String msg = mainApp.getLocaler().getBundleText("ThreadViewTimeoutReconnecting");
-					updThreadView(channel, msg);
-
-					// close the old channel
-					if(channel.isConnected())
-					{
-						ChannelBuffer buffer = ChannelBuffers.wrappedBuffer("QUIT\r\n".getBytes());
-						channel.write(buffer);
-					}
-					channel.close().awaitUninterruptibly();
-					
-					// then create new bootstrap (channel helper object)
-					Channel newChannel = createNewChannel(5000); 
-					ncMgr.exchangeNC(channel, newChannel, true);
-					ncMgr.setNCStatus(newChannel, ChannelStatus.INIT);
-					ncMgr.resetTimeout(newChannel);
-				}
-				catch(Exception e)
-				{
-					logger.printStackTrace(e);
-				}
-			}
+			Channel nc = ncMgr.getNC(i);
+			if(nc != null && nc != channel && !ncMgr.isRetired(nc))
+				live++;
 		}
+		
+		connectionCount = connController.limitReached(live);
+		logger.msg("Server " + server.getName() + " refused a connection (" + response.trim() + 
+				"), using " + connectionCount + " connections now", MyLogger.SEV_WARNING);
+		
+		retireChannel(channel);
+		channel.close();
+		wakeUp();
 	}
 	
 	/**
@@ -492,15 +1235,9 @@ public class NettyNioClient implements Runnable
 		{
 			case CONNECTED:
 			case W_AUTH_USER:
-				// channel has just connected, so send first AUTHINFO command
-				ncMgr.setNCStatus(channel, ChannelStatus.R_AUTH_USER);
-				writeStatusAuthinfo("AUTHINFO USER " + this.username + "\r\n", channel);
-				break;
-				
 			case W_AUTH_PASS:
-				// first AUTHINFO command sent, now send the second part
-				ncMgr.setNCStatus(channel, ChannelStatus.R_AUTH_PASS);
-				writeStatusAuthinfo("AUTHINFO PASS " + this.password + "\r\n", channel);
+				// normally already sent by the handler when the previous reply arrived
+				sendAuthinfo(channel, status);
 				break;
 				
 			case IDLE:
@@ -525,6 +1262,12 @@ public class NettyNioClient implements Runnable
 				ncMgr.setNCStatus(channel, ChannelStatus.START_RECEIVE);
 				writeStatusCmds(channel, true);
 				break;
+				
+			case START_RECEIVE:
+			case RECEIVING_DATA:
+				// article on its way, send more BODY commands if pipelining is on
+				fillPipeline(channel);
+				break;
 
 			case SERVER_ERROR:
 				handleServerErrorState(channel);
@@ -595,18 +1338,27 @@ public class NettyNioClient implements Runnable
 		// first check if there is already a RspHandler object registered
 		// for this socket channel. If so then it's likely that we have
 		// reconnected after a timeout
-		ArticleMetadata md = ncMgr.getMD(channel);
-		handler = ncMgr.getRspHandler(channel);
+		ArticleMetadata md = ncMgr.removeMD(channel);
+		handler = ncMgr.removeRspHandler(channel);
 		if(md != null && handler != null)
 		{
 			String cmd = md.cmd;
 			String group = md.group;
-			NewTask nt = new NewTask(handler, cmd, group, null);
-		
-			synchronized(this.newTasks)
+			Vector<NewTask> requeue = new Vector<NewTask>();
+			requeue.add(new NewTask(handler, cmd, group, null));
+			
+			// also re-send all commands that were pipelined behind this one
+			LinkedList<ArticleMetadata> pipelined = ncMgr.removePipelined(channel);
+			if(pipelined != null)
 			{
-				newTasks.add(0, nt);
+				for(ArticleMetadata pmd : pipelined)
+				{
+					pmd.handler.reset();
+					requeue.add(new NewTask(pmd.handler, pmd.cmd, pmd.group, null));
+				}
 			}
+		
+			requeue(requeue);
 		}
 		
 		// new tasks to process?
@@ -655,23 +1407,168 @@ public class NettyNioClient implements Runnable
 		}
 		else
 		{
-			// check if new tasks are available
+			// check if new tasks are available for this channel
+			NewTask task = null;
 			if(!empty)
 			{
-				NewTask task = null;
 				synchronized(this.newTasks)
 				{
-					// yes, so get the first task in queue...
-					task = newTasks.firstElement();
-					newTasks.remove(0);
+					task = pollTask(channel, true);
 				}
-
-				// ...and prepare it for further processing
+			}
+			
+			if(task != null)
+			{
+				// prepare it for further processing
 				ArticleMetadata articleData = new ArticleMetadata(task.cmd, task.group);
 				ncMgr.setMD(channel, articleData);
 				ncMgr.setRspHandler(channel, task.handler);
 				ncMgr.setNCStatus(channel, ChannelStatus.START_FETCH);
 			}
+			else if(ncMgr.getNCStatusAge(channel) > KEEPALIVE_INTERVAL * HelloNzbCradle.SEC_MODIFIER)
+			{
+				// nothing to do for a while, so keep the connection alive
+				if(ncMgr.compareAndSetNCStatus(channel, ChannelStatus.IDLE, ChannelStatus.KEEPALIVE))
+				{
+					String cmd = "DATE\r\n";
+					printDebugMsg("> " + cmd, channel);
+					ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(cmd.getBytes());
+					channel.write(buffer);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Send further BODY commands on a channel that is already receiving an
+	 * article, until the configured pipeline depth is reached. The responses
+	 * are later matched to the RspHandler objects in FIFO order by the
+	 * NettyNioClientHandler.
+	 * 
+	 * @param channel The channel to use
+	 */
+	private void fillPipeline(Channel channel)
+	{
+		if(pipelineDepth < 2 || testAuthFlag || testSegAvailability || slowChannels.contains(channel))
+			return;
+		
+		while(true)
+		{
+			ArticleMetadata md = null;
+			
+			synchronized(ncMgr.context(channel))
+			{
+				// the channel might have become idle in the meantime
+				ChannelStatus status = ncMgr.getNCStatus(channel);
+				if(status != ChannelStatus.START_RECEIVE && status != ChannelStatus.RECEIVING_DATA)
+					return;
+				if(ncMgr.pipelinedCount(channel) + 1 >= pipelineDepth)
+					return;
+				
+				synchronized(this.newTasks)
+				{
+					NewTask task = pollTask(channel, false);
+					if(task == null)
+						return;
+					
+					md = new ArticleMetadata(task.cmd, task.group, task.handler);
+				}
+				
+				// register before sending, so the reply always finds its handler
+				ncMgr.addPipelined(channel, md);
+			}
+			
+			printDebugMsg("> " + md.cmd, channel);
+			ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(md.cmd.getBytes());
+			channel.write(buffer);
+		}
+	}
+	
+	/**
+	 * Called from the NettyNioClientHandler when a server replied to a pipelined
+	 * command with 500/501, or with a reply that does not fit the commands in
+	 * flight. We assume that the server does not support pipelining, so the 
+	 * pipeline depth is set back to 1, all outstanding commands are queued again
+	 * and the channel is dropped (it is reconnected by checkTimeout()).
+	 * 
+	 * @param channel The channel that received the error reply
+	 * @param response The error reply
+	 */
+	protected void pipelineRejected(Channel channel, String response)
+	{
+		Vector<NewTask> requeue = new Vector<NewTask>();
+		
+		synchronized(ncMgr.context(channel))
+		{
+			ArticleMetadata md = ncMgr.removeMD(channel);
+			RspHandler handler = ncMgr.removeRspHandler(channel);
+			if(md != null && handler != null)
+			{
+				handler.reset();
+				requeue.add(new NewTask(handler, md.cmd, md.group, null));
+			}
+			
+			LinkedList<ArticleMetadata> pipelined = ncMgr.removePipelined(channel);
+			if(pipelined != null)
+			{
+				for(ArticleMetadata pmd : pipelined)
+				{
+					pmd.handler.reset();
+					requeue.add(new NewTask(pmd.handler, pmd.cmd, pmd.group, null));
+				}
+			}
+			
+			requeue(requeue);
+			
+			ncMgr.setNCStatus(channel, ChannelStatus.INIT);
+		}
+		
+		disablePipelining(response);
+		channel.close();
+	}
+	
+	/**
+	 * Set the pipeline depth back to 1 and remove the download slots of the
+	 * commands that are not sent anymore. Several channels may get an error 
+	 * at the same time, but the slots must be removed only once.
+	 * 
+	 * @param response The error reply
+	 */
+	private synchronized void disablePipelining(String response)
+	{
+		if(pipelineDepth < 2)
+			return;
+		
+		logger.msg("Server does not seem to support pipelining (" + response.trim() + 
+				"), falling back to one command per connection", MyLogger.SEV_WARNING);
+		
+		idleSocketCount.addAndGet(-connectionCount * (pipelineDepth - 1));
+		pipelineDepth = 1;
+	}
+	
+	/**
+	 * Send the next AUTHINFO command if the channel is still in the given
+	 * status. Called by the NettyNioClientHandler as soon as the previous 
+	 * reply has arrived and by the main loop, the status change makes sure 
+	 * that the command is sent only once. AUTHINFO commands must not be 
+	 * pipelined (RFC 4643), so USER and PASS are still sent one after another.
+	 * 
+	 * @param channel The channel to use
+	 * @param status The status the channel is expected to be in
+	 */
+	protected void sendAuthinfo(Channel channel, ChannelStatus status)
+	{
+		if(status == ChannelStatus.W_AUTH_PASS)
+		{
+			// first AUTHINFO command sent, now send the second part
+			if(ncMgr.compareAndSetNCStatus(channel, status, ChannelStatus.R_AUTH_PASS))
+				writeStatusAuthinfo("AUTHINFO PASS " + this.password + "\r\n", channel);
+		}
+		else
+		{
+			// channel has just connected, so send first AUTHINFO command
+			if(ncMgr.compareAndSetNCStatus(channel, status, ChannelStatus.R_AUTH_USER))
+				writeStatusAuthinfo("AUTHINFO USER " + this.username + "\r\n", channel);
 		}
 	}
 	
@@ -680,9 +1577,8 @@ public class NettyNioClient implements Runnable
 	 * 
 	 * @param cmd The command to send
 	 * @param socketChannel The socket channel to use
-	 * @throws IOException
 	 */
-	private void writeStatusAuthinfo(String cmd, Channel channel) throws IOException
+	private void writeStatusAuthinfo(String cmd, Channel channel)
 	{
 		printDebugMsg("> " + cmd, channel);
 		
@@ -797,32 +1693,43 @@ public class NettyNioClient implements Runnable
 	}
 
 	/**
-	 * Create a new Jetty-based Channel. The parameter specifies how long
-	 * to wait during connection attempt before timeout.
+	 * Create a new Netty-based Channel and start to connect it, without 
+	 * waiting for the connection. The channel is registered at the channel 
+	 * manager before connecting, so it is known when the server's greeting 
+	 * arrives. If the connection attempt fails, the channel is closed and 
+	 * reconnected by checkTimeout().
 	 * 
-	 * @param timeoutMillis The amount of time to wait in milli seconds
+	 * @param oldChannel The channel to replace, or null to add a new channel
 	 * @return The newly created Channel object
-	 * @throws IOException If no connection could be established
+	 * @throws Exception If the channel could not be created
 	 */
-	private Channel createNewChannel(long timeoutMillis) throws IOException
+	private Channel createNewChannel(Channel oldChannel) throws Exception
 	{
-		// configure the Netty client
-		ClientBootstrap bootstrap = new ClientBootstrap(clSockChannelFactory);
+		// create the channel with its own pipeline
+		ChannelPipeline pipeline = channelPipelineFactory.getPipeline();
+		Channel channel = clSockChannelFactory.newChannel(pipeline);
+		channel.getConfig().setOption("tcpNoDelay", true);
+		channel.getConfig().setOption("keepAlive", true);
+		channel.getConfig().setOption("connectTimeoutMillis", CONNECT_TIMEOUT);
 		
-		// configure the pipeline factory
-		bootstrap.setPipelineFactory(channelPipelineFactory);
-		bootstrap.setOption("tcpNoDelay", true);
-		bootstrap.setOption("keepAlive", true);
-		bootstrap.setOption("child.receiveBufferSizePredictorFactory", 
-				new AdaptiveReceiveBufferSizePredictorFactory());
+		if(oldChannel == null)
+			ncMgr.addChannelAndInit(channel);
+		else
+		{
+			ncMgr.exchangeNC(oldChannel, channel, true);
+			ncMgr.setNCStatus(channel, ChannelStatus.INIT);
+		}
 
 		// start the connection attempt
-		ChannelFuture future = bootstrap.connect(new InetSocketAddress(serverAddress, port));
-		Channel channel = null;
-		if(future.awaitUninterruptibly(timeoutMillis))
-			channel = future.getChannel();
-		else
-			throw new IOException("Could not connect to remote server");
+		channel.connect(new InetSocketAddress(serverAddress, port)).addListener(new ChannelFutureListener()
+		{
+			public void operationComplete(ChannelFuture future)
+			{
+				if(!future.isSuccess())
+					logger.msg("Could not connect to server " + server.getName() + ": " + 
+							future.getCause(), MyLogger.SEV_WARNING);
+			}
+		});
 		
 		return channel;
 	}
@@ -832,9 +1739,74 @@ public class NettyNioClient implements Runnable
 	 */
 	protected void newIdleChannel()
 	{
-		synchronized(idleSocketCount)
+		idleSocketCount.incrementAndGet();
+		
+		SlotListener l = slotListener;
+		if(l != null)
+			l.slotAvailable();
+	}
+	
+	/**
+	 * Set the listener that gets notified when a download slot becomes free.
+	 * 
+	 * @param l The SlotListener object to use (or null)
+	 */
+	public synchronized void setSlotListener(SlotListener l)
+	{
+		slotListener = l;
+	}
+	
+	/**
+	 * Remove the given listener, if it is still set. 
+	 * 
+	 * @param l The SlotListener object to remove
+	 */
+	public synchronized void removeSlotListener(SlotListener l)
+	{
+		if(slotListener == l)
+			slotListener = null;
+	}
+	
+	/**
+	 * Called when a channel has been closed. The channel is reconnected
+	 * (by checkTimeout()) after a few seconds, so a down server is not hammered.
+	 * 
+	 * @param channel The closed channel
+	 */
+	protected void channelClosed(Channel channel)
+	{
+		long wait = WAIT_AFTER_ERROR * HelloNzbCradle.SEC_MODIFIER - ncMgr.getNCAge(channel);
+		ncMgr.scheduleReconnect(channel, wait);
+		wakeUp();
+	}
+	
+	/**
+	 * Wake up the main loop of this client, e.g. after a channel has
+	 * changed its status or new tasks have been added.
+	 */
+	protected void wakeUp()
+	{
+		synchronized(wakeUpLock)
+		{
+			wakeUpFlag = true;
+			wakeUpLock.notify();
+		}
+	}
+	
+	/**
+	 * Block the main loop until wakeUp() is called or the given time has passed.
+	 * 
+	 * @param millis The max. amount of ms to wait
+	 * @throws InterruptedException
+	 */
+	private void waitForWork(long millis) throws InterruptedException
+	{
+		synchronized(wakeUpLock)
 		{
-			idleSocketCount++;
+			if(!wakeUpFlag)
+				wakeUpLock.wait(millis);
+			
+			wakeUpFlag = false;
 		}
 	}
 	
@@ -862,10 +1834,7 @@ public class NettyNioClient implements Runnable
 	 */
 	protected void addToDownloadedBytes(long bytes)
 	{
-		synchronized(downloadedBytes)
-		{
-			downloadedBytes += bytes;
-		}
+		downloadedBytes.addAndGet(bytes);
 	}
 	
 	/**
@@ -883,7 +1852,7 @@ public class NettyNioClient implements Runnable
 			msg = "[" + msg.length() + " bytes received from server]\r\n";
 		
 		if(channel != null)
-			msg = (ncMgr.indexOfNC(channel) + 1) + "| " + msg;
+			msg = (threadViewOffset + ncMgr.indexOfNC(channel) + 1) + "| " + msg;
 		else
 			msg = "?| " + msg;
 		
@@ -901,10 +1870,11 @@ public class NettyNioClient implements Runnable
 		if(channel == null)
 			return;
 		
-		final int tnum = ncMgr.indexOfNC(channel);
+		final int idx = ncMgr.indexOfNC(channel);
+		final int tnum = threadViewOffset + idx;
 		final String text = t;
 		
-		if(tnum < 0)
+		if(idx < 0)
 			return;
 	
         SwingUtilities.invokeLater(new Runnable() 
@@ -918,24 +1888,54 @@ public class NettyNioClient implements Runnable
 	}
 
 	/**
-	 * Get the download speed limit set by the user.
+	 * Get the download speed limit currently in effect (set by the user,
+	 * or by the active time window of the speed schedule).
 	 * 
 	 * @return The speed limit in KB/s, or -1 if not set
 	 */
 	protected long getSpeedLimit()
 	{
-		// get speed limit value from preferences
-		long limit = 0;
+		return mainApp.getSpeedLimit();
+	}
+	
+	/**
+	 * Get the pipeline depth (BODY commands in flight per connection) set by the user.
+	 * 
+	 * @return The pipeline depth, 1 if pipelining is disabled
+	 */
+	protected int getPipelineDepth()
+	{
+		int depth = 1;
+		try
+		{
+			depth = Integer.valueOf(mainApp.getPrefValue("ServerSettingsPipelineDepth"));
+		}
+		catch(NumberFormatException e)
+		{
+			return 1;
+		}
+		
+		return (depth < 1) ? 1 : depth;
+	}
+	
+	/**
+	 * Get the time after which unused connections are closed, set by the user.
+	 * 
+	 * @return The time in minutes
+	 */
+	protected int getIdleDisconnect()
+	{
+		int minutes = DEFAULT_IDLE_DISCONNECT;
 		try
 		{
-			limit = Integer.valueOf(mainApp.getPrefValue("DownloadSettingsMaxConnectionSpeed"));
+			minutes = Integer.valueOf(mainApp.getPrefValue("ServerSettingsIdleDisconnect"));
 		}
 		catch(NumberFormatException e)
 		{
-			return -1L;
+			return DEFAULT_IDLE_DISCONNECT;
 		}
 		
-		return limit;
+		return (minutes < 1) ? 1 : minutes;
 	}
 	
 	/**
@@ -945,7 +1945,79 @@ public class NettyNioClient implements Runnable
 	 */
 	public void setSpeedLimit(long limit)
 	{
+		if(limit < 0)
+			return;
+		
+		globalLimit = limit;
 		channelPipelineFactory.setDlSpeedLimit(limit);
+		updateConnectionSpeedLimit();
+	}
+	
+	/**
+	 * Set the download speed limit of this server.
+	 * 
+	 * @param limit The limit to set (in KB/s), 0 for no limit
+	 */
+	public void setServerSpeedLimit(long limit)
+	{
+		if(limit < 0)
+			return;
+		
+		serverLimit = limit;
+		channelPipelineFactory.setServerSpeedLimit(limit);
+		updateConnectionSpeedLimit();
+	}
+	
+	/**
+	 * Compute the download speed limit of a single connection, so that one
+	 * connection can't take the whole bandwidth of the server (or of all 
+	 * servers) and starve the other ones. Without a limit on the levels
+	 * above, single connections are not limited either.
+	 */
+	private void updateConnectionSpeedLimit()
+	{
+		int total = (serverGroup != null) ? serverGroup.getConnectionCount() : connectionCount;
+		shapedConnCount = total;
+		
+		double limit = 0;
+		if(serverLimit > 0)
+			limit = serverLimit * 1000.0 / connectionCount;
+		if(globalLimit > 0 && total > 0)
+		{
+			double share = globalLimit * 1000.0 / total;
+			if(limit == 0 || share < limit)
+				limit = share;
+		}
+		
+		channelPipelineFactory.setConnectionSpeedLimit((long) (limit * CONNECTION_SHARE), channelGroup);
+	}
+	
+	/**
+	 * Returns the traffic counter of all connections to this server.
+	 * 
+	 * @return The TrafficCounter object
+	 */
+	public TrafficCounter getTrafficCounter()
+	{
+		return channelPipelineFactory.getServerTrafficCounter();
+	}
+	
+	/**
+	 * Returns the traffic counter of a single connection.
+	 * 
+	 * @param index The index of the connection (counted from 0)
+	 * @return The TrafficCounter object, null if the connection is not open
+	 */
+	public TrafficCounter getTrafficCounter(int index)
+	{
+		if(index < 0 || index >= ncMgr.size())
+			return null;
+		
+		Channel channel = ncMgr.getNC(index);
+		if(channel == null)
+			return null;
+		
+		return NettyNioClientPipelineFactory.getConnectionTrafficCounter(channel);
 	}
 		
 	/**
@@ -979,11 +2051,21 @@ public class NettyNioClient implements Runnable
 		return testSegAvailability;
 	}
 
+	protected boolean isPipelining()
+	{
+		return pipelineDepth > 1;
+	}
+
 	protected ChannelGroup getChannelGroup()
 	{
 		return channelGroup;
 	}
 	
+	protected NntpServer getServer()
+	{
+		return server;
+	}
+	
 	
 	class NewTask
 	{
@@ -992,12 +2074,20 @@ public class NettyNioClient implements Runnable
 		public String group;
 		public DownloadFile dl;
 		
+		/** set for a copy of a straggling article, see fetchArticleCopy() */
+		public boolean hedged;
+		
+		/** the channel the straggler is on (null if on another server) */
+		public Channel avoid;
+		
 		public NewTask(RspHandler h, String c, String g, DownloadFile dl)
 		{
 			this.handler = h;
 			this.cmd = c;
 			this.group = g;
 			this.dl = dl;
+			this.hedged = false;
+			this.avoid = null;
 		}
 	}
 }
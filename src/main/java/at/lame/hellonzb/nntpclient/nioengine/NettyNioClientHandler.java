@@ -17,9 +17,8 @@
  ******************************************************************************/
 package at.lame.hellonzb.nntpclient.nioengine;
 
-import java.io.*;
+import javax.net.ssl.*;
 
-import org.jboss.netty.buffer.*;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.ssl.*;
 
@@ -86,43 +85,67 @@ public class NettyNioClientHandler extends SimpleChannelUpstreamHandler
 		if(useSSL)
 		{
 			// get SSL handler from pipeline
-			SslHandler sslHandler = ctx.getPipeline().get(SslHandler.class);
+			final SslHandler sslHandler = ctx.getPipeline().get(SslHandler.class);
+			final long start = System.nanoTime();
+			final long startMillis = System.currentTimeMillis();
 			
-			// begin handshake
-			ChannelFuture future = sslHandler.handshake();
-			future.awaitUninterruptibly();
-			if(!future.isSuccess())
+			// begin handshake (don't block the I/O thread, the server's greeting
+			// is passed on as soon as the handshake is done)
+			sslHandler.handshake().addListener(new ChannelFutureListener()
 			{
-				logger.msg("SSL handshake error", MyLogger.SEV_FATAL);
-				ctx.getChannel().close().awaitUninterruptibly();
-			}
+				public void operationComplete(ChannelFuture future)
+				{
+					if(!future.isSuccess())
+					{
+						logger.msg("SSL handshake error", MyLogger.SEV_FATAL);
+						future.getChannel().close();
+						return;
+					}
+					
+					// measure the handshake, a resumed session was created before
+					long time = System.nanoTime() - start;
+					ncMgr.setHandshakeTime(future.getChannel(), time);
+					SSLSession session = sslHandler.getEngine().getSession();
+					boolean resumed = session.getCreationTime() < startMillis;
+					logger.msg("SSL handshake done in " + (time / 1000000) + " ms (" + 
+							(resumed ? "session resumed, " : "new session, ") + 
+							session.getCipherSuite() + ")", MyLogger.SEV_DEBUG);
+				}
+			});
 		}
 	}
 	
 	@Override
 	public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception 
 	{
+		// let the client notice (and later on reconnect) the closed channel
+		nettyNioClient.channelClosed(e.getChannel());
+		
 		// get SSL handler from pipeline and close it
 		if(useSSL)
 		{
 			SslHandler sslHandler = ctx.getPipeline().get(SslHandler.class);
-			sslHandler.close().awaitUninterruptibly();
+			sslHandler.close();
 		}
 	}
 	
 	@Override
 	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) 
 	{
-		ChannelBuffer buf = (ChannelBuffer) e.getMessage();
-		int numBytes = buf.readableBytes();
-		if(numBytes > 0)
+		Object msg = e.getMessage();
+		ncMgr.setLastRead(e.getChannel());
+		
+		if(msg instanceof NntpResponse)
 		{
-			// inform client about amount of loaded bytes
-			nettyNioClient.addToDownloadedBytes(numBytes);
-
-			// process fetched data
-			byte [] data = buf.array();
-			handleResponse(e.getChannel(), new String(data), data);
+			NntpResponse rsp = (NntpResponse) msg;
+			nettyNioClient.addToDownloadedBytes(rsp.getLine().length());
+			handleResponse(e.getChannel(), rsp);
+		}
+		else if(msg instanceof NntpResponseData)
+		{
+			NntpResponseData data = (NntpResponseData) msg;
+			nettyNioClient.addToDownloadedBytes(data.getData().readableBytes());
+			handleResponseData(e.getChannel(), data);
 		}
 	}
 	
@@ -134,15 +157,15 @@ public class NettyNioClientHandler extends SimpleChannelUpstreamHandler
 	}
 	
 	/**
-	 * Handle a response from a socket channel.
+	 * Handle a response (status line) from a socket channel.
 	 * 
 	 * @param channel The Netty channel which received the data
-	 * @param data The data to process as String object
-	 * @param rspData The data to process as byte array
-	 * @throws IOException
+	 * @param rsp The decoded response
 	 */
-	private void handleResponse(Channel channel, String response, byte [] rspData) 
+	private void handleResponse(Channel channel, NntpResponse rsp) 
 	{
+		String response = rsp.getLine();
+		
 		// process server response depending on current channel status
 		ChannelStatus status = (ChannelStatus) ncMgr.getNCStatus(channel);
 		
@@ -160,17 +183,21 @@ public class NettyNioClientHandler extends SimpleChannelUpstreamHandler
 						nettyNioClient.updThreadView(channel, 
 								localer.getBundleText("ThreadViewStatusConnected"));
 					}
-	
+					else if(isConnectionLimit(response))
+						nettyNioClient.connectionRefused(channel, response);
 				}
-				else
-					procReply(channel, response, "200 |201 ", ChannelStatus.W_AUTH_USER, RspHandler.ERR_CONN);
+				else if(procReply(channel, response, "200 |201 ", ChannelStatus.W_AUTH_USER, RspHandler.ERR_CONN))
+					nettyNioClient.sendAuthinfo(channel, ChannelStatus.W_AUTH_USER);
+				else if(isConnectionLimit(response))
+					nettyNioClient.connectionRefused(channel, response);
 					
 				nettyNioClient.printDebugMsg(response, channel);
 				break;
 				
 			case R_AUTH_USER:
 				// reply from "AUTHINFO USER" command
-				procReply(channel, response, "381 |502 ", ChannelStatus.W_AUTH_PASS, RspHandler.ERR_AUTH);
+				if(procReply(channel, response, "381 |502 ", ChannelStatus.W_AUTH_PASS, RspHandler.ERR_AUTH))
+					nettyNioClient.sendAuthinfo(channel, ChannelStatus.W_AUTH_PASS);
 				nettyNioClient.printDebugMsg(response, channel);
 				break;
 				
@@ -181,10 +208,18 @@ public class NettyNioClientHandler extends SimpleChannelUpstreamHandler
 					nettyNioClient.updThreadView(channel, 
 							localer.getBundleText("ThreadViewStatusConnected"));
 				}
+				else if(isConnectionLimit(response))
+					nettyNioClient.connectionRefused(channel, response);
 					
 				nettyNioClient.printDebugMsg(response, channel);
 				break;
 		
+			case KEEPALIVE:
+				// reply from "DATE" command, any reply shows that the connection is still alive
+				ncMgr.compareAndSetNCStatus(channel, ChannelStatus.KEEPALIVE, ChannelStatus.IDLE);
+				nettyNioClient.printDebugMsg(response, channel);
+				break;
+				
 			case GROUP_SENT:
 				// reply from "GROUP" command
 				if(procReply(channel, response, "211 ", ChannelStatus.READY, RspHandler.ERR_GROUP))
@@ -197,66 +232,22 @@ public class NettyNioClientHandler extends SimpleChannelUpstreamHandler
 				
 			case START_RECEIVE:
 			case RECEIVING_DATA:
-				nettyNioClient.printDebugMsg(response, channel);
-				
 				// TODO: RspHandler data reset (auf 0 setzen) und download neu starten,
 				// wenn wir nach einem verbindungsabbruch waehrend RECEIVING_DATA nicht
 				// mehr wirklich weitere daten eines artikels bekommen (weil stattdessen
 				// neu authentifiziert werden muesste, und stattdessen eine fehlermeldung
 				// an diesen punkt kommt)
 				
-				if(!nettyNioClient.isTestSegAvailability())
-				{
-					boolean err = false;
-					if(status == ChannelStatus.START_RECEIVE)
-					{
-						if(!procReply(channel, response, "22", ChannelStatus.RECEIVING_DATA, RspHandler.ERR_FETCH))
-							err = true;
-					}
-					
-					if(!err)
-					{
-						// Look up the handler for this channel
-						RspHandler handler = (RspHandler) ncMgr.getRspHandler(channel);
-	
-						// send new data package to the handler object
-						handler.handleResponse(rspData);
-						
-						// article finished?
-						if(articleFinished(rspData, channel))
-						{
-							// article data complete
-							ncMgr.removeMD(channel);
-							ncMgr.removeRspHandler(channel);
-	
-							// update thread view
-							nettyNioClient.updThreadView(channel, 
-									localer.getBundleText("ThreadViewStatusConnected"));
-	
-							handler.setFinished();
-							ncMgr.setNCStatus(channel, ChannelStatus.IDLE);
-							nettyNioClient.newIdleChannel();
-						}
-						else
-							// more data to come
-							ncMgr.setNCStatus(channel, ChannelStatus.RECEIVING_DATA);
-					}
-				}
+				nettyNioClient.printDebugMsg(response, channel);
+				
+				if(status != ChannelStatus.START_RECEIVE)
+					logger.msg("Unexpected NNTP response: " + response, MyLogger.SEV_DEBUG);
+				else if(!nettyNioClient.isTestSegAvailability())
+					// reply of the BODY command, article data follows
+					procReply(channel, response, "22", ChannelStatus.RECEIVING_DATA, RspHandler.ERR_FETCH);
 				else
-				{
-					// segment availability check
-					if(status == ChannelStatus.START_RECEIVE)
-					{
-						boolean good = procReply(
-								channel, response, "221 ", ChannelStatus.READY, RspHandler.ERR_FETCH);
-						
-						if(good && !response.endsWith(".\r\n"))
-							// more data to come (from HEAD command)
-							ncMgr.setNCStatus(channel, ChannelStatus.RECEIVING_DATA);
-					}
-					else if(response.endsWith(".\r\n"))
-						ncMgr.setNCStatus(channel, ChannelStatus.READY);
-				}
+					// segment availability check, header data follows
+					procReply(channel, response, "221 ", ChannelStatus.RECEIVING_DATA, RspHandler.ERR_FETCH);
 				break;
 
 			case FINISHED:
@@ -276,6 +267,110 @@ public class NettyNioClientHandler extends SimpleChannelUpstreamHandler
 		}
 	}
 
+	/**
+	 * Returns true if the given reply (to the greeting or to the login) says
+	 * that the server does not accept more connections, e.g. "400 too many
+	 * connections" or "481 max connections exceeded".
+	 * 
+	 * @param response The server reply
+	 * @return true/false
+	 */
+	private boolean isConnectionLimit(String response)
+	{
+		String lower = response.toLowerCase();
+		return (lower.startsWith("400 ") || lower.startsWith("481 ") || lower.startsWith("502 ")) &&
+				lower.contains("connection");
+	}
+	
+	/**
+	 * Handle a piece of data of a multi-line response. With pipelining enabled
+	 * the data of the next article follows right after the last piece of the 
+	 * current one, so the next pipelined command becomes the current one then.
+	 * 
+	 * @param channel The Netty channel which received the data
+	 * @param data The decoded data
+	 */
+	private void handleResponseData(Channel channel, NntpResponseData data)
+	{
+		// the data has been charged to the memory budget by the pipeline
+		MemoryBudget budget = MemoryBudget.getInstance();
+		
+		if(ncMgr.getNCStatus(channel) != ChannelStatus.RECEIVING_DATA)
+		{
+			budget.release(data.getData().readableBytes());
+			return;
+		}
+		
+		if(nettyNioClient.isTestSegAvailability())
+		{
+			// header data of the segment availability check is not needed
+			budget.release(data.getData().readableBytes());
+			if(data.isLast())
+				ncMgr.setNCStatus(channel, ChannelStatus.READY);
+			return;
+		}
+		
+		// Look up the handler for this channel
+		RspHandler handler = (RspHandler) ncMgr.getRspHandler(channel);
+		if(handler == null)
+		{
+			budget.release(data.getData().readableBytes());
+			return;
+		}
+		
+		ncMgr.addArticleBytes(channel, data.getData().readableBytes());
+		handler.handleResponse(data.getData(), budget);
+		if(data.isLast())
+			nextArticle(channel, handler, true);
+	}
+	
+	/**
+	 * Finish the current article of a channel and continue with the next
+	 * pipelined command, if any. Otherwise the channel is set to IDLE.
+	 * 
+	 * @param channel The channel to use
+	 * @param handler The RspHandler of the finished article
+	 * @param finish false if the article is fetched from another server now
+	 */
+	private void nextArticle(Channel channel, RspHandler handler, boolean finish)
+	{
+		ChannelStatus status = null;
+		ArticleMetadata next = null;
+		
+		synchronized(ncMgr.context(channel))
+		{
+			ncMgr.articleFinished(channel);
+			next = ncMgr.pollPipelined(channel);
+			
+			if(next == null)
+			{
+				ncMgr.removeMD(channel);
+				ncMgr.removeRspHandler(channel);
+				status = ChannelStatus.IDLE;
+			}
+			else
+			{
+				ncMgr.setMD(channel, next);
+				ncMgr.setRspHandler(channel, next.handler);
+				status = ChannelStatus.START_RECEIVE;
+			}
+			
+			ncMgr.setNCStatus(channel, status);
+		}
+		
+		// free the slot first, so the listener can use it right away
+		nettyNioClient.newIdleChannel();
+		if(finish && handler != null)
+			handler.setFinished();
+		
+		// update thread view
+		if(next == null)
+			nettyNioClient.updThreadView(channel, localer.getBundleText("ThreadViewStatusConnected"));
+		else
+			nettyNioClient.updThreadView(channel, localer.getBundleText("ThreadViewStatusFetchArticle") +
+					" " + next.cmd.substring(5, next.cmd.length() - 2));
+	}
+	
 	/**
 	 * Process the server reply.
 	 * Helper method for the handleResponse() method.
@@ -321,6 +416,22 @@ public class NettyNioClientHandler extends SimpleChannelUpstreamHandler
 			if(handle430Error(channel, response))
 				return good;
 			
+			// more commands in flight, so either the server can't handle pipelining, 
+			// or the error only concerns this article and the next reply follows
+			if(ncMgr.pipelinedCount(channel) > 0)
+			{
+				if(isPipelineError(response))
+					nettyNioClient.pipelineRejected(channel, response);
+				else
+				{
+					RspHandler handler = ncMgr.getRspHandler(channel);
+					if(handler != null)
+						handler.setError(handlerErrorCode, response);
+					nextArticle(channel, handler, true);
+				}
+				return good;
+			}
+			
 			// all other errors
 			ncMgr.setNCStatus(channel, ChannelStatus.SERVER_ERROR);
 			nettyNioClient.updThreadView(channel, response);
@@ -342,6 +453,28 @@ public class NettyNioClientHandler extends SimpleChannelUpstreamHandler
 		return good;
 	}
 	
+	/**
+	 * Returns true if the given error reply to a pipelined command shows that
+	 * the pipeline itself failed, i.e. the server did not understand the command
+	 * (500/501) or the reply is no reply to a BODY command at all, so the replies
+	 * do not match the commands in flight anymore. All other error replies (e.g.
+	 * 423, 451) only concern the current article.
+	 * 
+	 * @param response The server reply
+	 * @return true/false
+	 */
+	private boolean isPipelineError(String response)
+	{
+		if(response.length() < 3)
+			return true;
+		
+		String code = response.substring(0, 3);
+		if(code.equals("500") || code.equals("501"))
+			return true;
+		
+		return !code.matches("[45][0-9][0-9]");
+	}
+	
 	/**
 	 * Handle a "430 no such article" error.
 	 * 
@@ -353,104 +486,15 @@ public class NettyNioClientHandler extends SimpleChannelUpstreamHandler
 		if(!response.startsWith("430 "))
 			return false;
 		
+		// try to fetch the article from another server
 		RspHandler handler = ncMgr.getRspHandler(channel);
+		ArticleMetadata md = ncMgr.getMD(channel);
+		boolean retry = (handler != null && md != null && nettyNioClient.articleNotFound(md, handler));
+		if(!retry && handler != null && !nettyNioClient.isTestSegAvailability())
+			handler.setError(RspHandler.ERR_FETCH, response);
 		
-		ncMgr.removeMD(channel);
-		ncMgr.removeRspHandler(channel);
-
-		// update thread view
-		nettyNioClient.updThreadView(channel, 
-				localer.getBundleText("ThreadViewStatusConnected"));
-
-		handler.setFinished();
-		ncMgr.setNCStatus(channel, ChannelStatus.IDLE);
-		nettyNioClient.newIdleChannel();
+		nextArticle(channel, handler, !retry);
 		
 		return true;
 	}
-
-	/**
-	 * Check if the data received ended with a line containing only a single dot.
-	 * 
-	 * @param data The data to parse
-	 * @return whether or not the data ended with the single dot
-	 */
-	private boolean articleFinished(byte[] data, Channel channel)
-	{
-		int l = data.length;
-		byte [] toCheck = null;
-		byte [] l4b = ncMgr.getLast4Bytes(channel);
-		
-		// enough bytes to process in this method?
-		if(l >= 5)
-		{
-			// yes, so save the last 4 byte for the next iteration
-			l4b[0] = data[l-4];
-			l4b[1] = data[l-3];
-			l4b[2] = data[l-2];
-			l4b[3] = data[l-1];
-			ncMgr.setLast4Bytes(channel, l4b);
-			
-			toCheck = new byte[] { data[l-5], data[l-4], data[l-3], data[l-2], data[l-1] }; 
-		}
-		else
-		{
-			// not enough bytes to process, so concatenate the last 4 plus the few from now
-			toCheck = new byte[l + 4];
-			for(int i = 0; i < 4; i++)
-				toCheck[i] = l4b[i];
-			for(int i = 0; i < l; i++)
-				toCheck[i+4] = data[i];
-			
-			// also save last 4 bytes again
-			l = toCheck.length;
-			l4b[0] = toCheck[l-4];
-			l4b[1] = toCheck[l-3];
-			l4b[2] = toCheck[l-2];
-			l4b[3] = toCheck[l-1];
-			ncMgr.setLast4Bytes(channel, l4b);
-		}
-					
-		// CR LF . CR LF (checked in reverse order)
-		l = toCheck.length;
-		if(	toCheck[l-1] == 10 && toCheck[l-2] == 13 && toCheck[l-3] == 46 && 
-			toCheck[l-4] == 10 && toCheck[l-5] == 13)
-			return true;
-		else
-			return false;
-	}
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
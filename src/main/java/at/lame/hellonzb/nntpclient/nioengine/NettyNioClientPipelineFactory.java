@@ -17,7 +17,6 @@
  ******************************************************************************/
 package at.lame.hellonzb.nntpclient.nioengine;
 
-import java.util.*;
 import java.util.concurrent.*;
 import javax.net.ssl.*;
 
@@ -33,9 +32,20 @@ import at.lame.hellonzb.util.*;
 /**
  * This is the pipeline factory class for the Netty NIO framework.
  * It creates the following event pipelines for the channels (upstream):
- *   1. traffic shaping
- *   2. memory executor
- *   3. business logic
+ *   1. traffic shaping (all servers)
+ *   2. traffic shaping (this server)
+ *   3. traffic shaping (this connection)
+ *   4. token buckets (optional)
+ *   5. SSL (optional)
+ *   6. NNTP response decoder
+ *   7. memory budget
+ *   8. memory executor
+ *   9. business logic
+ * A channel may only read if none of the three traffic shaping levels
+ * holds it back. If the "smooth" speed limit is used, the speed limits are
+ * applied by the token bucket handler instead, and the traffic shaping 
+ * handlers only count the traffic. Reading is suspended as well while the
+ * global memory budget for downloaded data is exhausted.
  * 
  * @author Matthias F. Brandstetter
  *
@@ -60,9 +70,37 @@ public class NettyNioClientPipelineFactory implements ChannelPipelineFactory
 	/** "use SSL" flag */
 	private boolean useSSL;
 	
+	/** host name and port of the server (used to resume SSL sessions) */
+	private final String host;
+	private final int port;
+	
 	/** global traffic shaping handler */
 	private final GlobalTrafficShapingHandler trafficHandler;
 	
+	/** set if the traffic shaping handler was created (and has to be released) here */
+	private final boolean ownTrafficHandler;
+	
+	/** traffic shaping handler of all connections to this server */
+	private final GlobalTrafficShapingHandler serverTrafficHandler;
+	
+	/** executor used by the traffic shaping handlers of the single connections */
+	private final ExecutorService connExecutor;
+	
+	/** the download speed limit of a single connection (in bytes/s, 0 = no limit) */
+	private volatile long connLimit;
+	
+	/** use token buckets instead of the traffic shaping handlers to limit the speed */
+	private final boolean smoothLimit;
+	
+	/** token bucket of all servers (smooth speed limit only) */
+	private final TokenBucket globalBucket;
+	
+	/** token bucket of this server (smooth speed limit only) */
+	private final TokenBucket serverBucket;
+	
+	/** timer of the token bucket handlers */
+	private final ScheduledExecutorService bucketTimer;
+	
 	/** memory executor */
 	private final ExecutionHandler execHandler;
 	
@@ -75,10 +113,18 @@ public class NettyNioClientPipelineFactory implements ChannelPipelineFactory
 	 * @param ncMgr The NettyChannelManager object to use
 	 * @param user The username to use for NNTP authentication
 	 * @param limit The download speed limit to set (in KB/s) or 0 for no limit
+	 * @param serverLimit The download speed limit of this server (in KB/s) or 0 for no limit
+	 * @param useSSL Whether or not to use SSL connections
+	 * @param host The host name of the server
+	 * @param port The port of the server
+	 * @param trafficHandler The traffic shaping handler to use (null to create a new one)
+	 * @param globalBucket The token bucket of all servers to use (null to create a new one)
+	 * @param smoothLimit Use token buckets to limit the download speed
 	 */
 	public NettyNioClientPipelineFactory(NettyNioClient client, 
 			StringLocaler loc, MyLogger logger, NettyChannelManager ncMgr, 
-			String user, long limit, boolean useSSL)
+			String user, long limit, long serverLimit, boolean useSSL, String host, int port, 
+			GlobalTrafficShapingHandler trafficHandler, TokenBucket globalBucket, boolean smoothLimit)
 	{
 		this.nettyNioClient = client;
 		this.localer = loc;
@@ -86,10 +132,30 @@ public class NettyNioClientPipelineFactory implements ChannelPipelineFactory
 		this.ncMgr = ncMgr;
 		this.username = user;
 		this.useSSL = useSSL;
+		this.host = host;
+		this.port = port;
+		this.smoothLimit = smoothLimit;
+		
+		// prepare traffic shaping objects (unless shared with other clients)
+		long shaperLimit = smoothLimit ? 0 : limit * 1000L;
+		this.ownTrafficHandler = (trafficHandler == null);
+		if(ownTrafficHandler)
+		{
+			Executor executor = Executors.newCachedThreadPool();
+			trafficHandler = new GlobalTrafficShapingHandler(executor, 0, shaperLimit, 1000);
+		}
+		this.trafficHandler = trafficHandler;
+		this.serverTrafficHandler = new GlobalTrafficShapingHandler(
+				Executors.newCachedThreadPool(), 0, smoothLimit ? 0 : serverLimit * 1000L, 1000);
+		this.connExecutor = Executors.newCachedThreadPool();
+		this.connLimit = 0;
 		
-		// prepare traffic shaping objects
-		Executor executor = Executors.newCachedThreadPool();
-		trafficHandler = new GlobalTrafficShapingHandler(executor, 0, limit * 1000L, 1000);
+		// prepare token buckets
+		if(globalBucket == null)
+			globalBucket = new TokenBucket(smoothLimit ? limit * 1000L : 0);
+		this.globalBucket = globalBucket;
+		this.serverBucket = new TokenBucket(smoothLimit ? serverLimit * 1000L : 0);
+		this.bucketTimer = Executors.newSingleThreadScheduledExecutor();
 	
 		// prepare memory executor object
 		execHandler = new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(20, 0, 0));
@@ -105,14 +171,26 @@ public class NettyNioClientPipelineFactory implements ChannelPipelineFactory
 		
 		// traffic shaping handler
 		pipeline.addLast("global-traffic-shaping", trafficHandler);
+		pipeline.addLast("server-traffic-shaping", serverTrafficHandler);
+		pipeline.addLast("connection-traffic-shaping", 
+				new ChannelTrafficShapingHandler(connExecutor, 0, smoothLimit ? 0 : connLimit, 1000));
+		if(smoothLimit)
+			pipeline.addLast("token-bucket", 
+					new TokenBucketHandler(bucketTimer, connLimit, globalBucket, serverBucket));
 		
 		// SSL support
 		if(useSSL)
 		{
-			SSLEngine sslEngine = createSSLEngine();
+			SSLEngine sslEngine = SSLContextFactory.createClientEngine(host, port);
 			pipeline.addLast("ssl", new SslHandler(sslEngine));
 		}
 		
+		// NNTP response decoder (one instance per channel, it's stateful)
+		pipeline.addLast("nntp-decoder", new NntpResponseDecoder());
+		
+		// charge the decoded data to the memory budget
+		pipeline.addLast("memory-budget", new MemoryBudgetHandler());
+		
 		// memory executor
 		pipeline.addLast("memory-executor", execHandler);
 		
@@ -123,35 +201,104 @@ public class NettyNioClientPipelineFactory implements ChannelPipelineFactory
 		return pipeline;
 	}
 	
-	// create SSL engine (and avoid Diffie-Hellman there)
-	// http://stackoverflow.com/questions/10036174/how-to-avoid-diffie-hellman-for-ssl-connections-with-java-netty
-	private SSLEngine createSSLEngine()
+	/**
+	 * Set the global download speed limit for all connections/channels.
+	 * A parameter value of 0 disables the download speed limit. 
+	 *  
+	 * @param limit The speed limit to set (in KB/s)
+	 */
+	public void setDlSpeedLimit(long limit)
 	{
-		SSLEngine sslEngine = SSLContextFactory.getClientContext().createSSLEngine();
-		sslEngine.setUseClientMode(true);
-		
-		// Java doesn't like DH with prime size > 1024 bits, so avoid DH completely
-		List<String> limited = new LinkedList<String>();
-		for(String suite : sslEngine.getEnabledCipherSuites())
-			if(!suite.contains("_DHE_"))
-				limited.add(suite);
+		if(limit < 0)
+			return;
 		
-		sslEngine.setEnabledCipherSuites(limited.toArray(new String[limited.size()]));		
-		return sslEngine;
+		if(smoothLimit)
+			globalBucket.setRate(limit * 1000L);
+		else
+			trafficHandler.configure(0, limit * 1000L);
 	}
 	
 	/**
-	 * Set the global download speed limit for all connections/channels.
-	 * A parameter value of 0 disables the download speed limit. 
+	 * Set the download speed limit of this server.
+	 * A parameter value of 0 disables the limit. 
 	 *  
 	 * @param limit The speed limit to set (in KB/s)
 	 */
-	public void setDlSpeedLimit(long limit)
+	public void setServerSpeedLimit(long limit)
 	{
 		if(limit < 0)
 			return;
 		
-		trafficHandler.configure(0, limit * 1000L);
+		if(smoothLimit)
+			serverBucket.setRate(limit * 1000L);
+		else
+			serverTrafficHandler.configure(0, limit * 1000L);
+	}
+	
+	/**
+	 * Set the download speed limit of every single connection, for the
+	 * given channels and for all channels created from now on.
+	 * A parameter value of 0 disables the limit. 
+	 *  
+	 * @param limit The speed limit to set (in bytes/s)
+	 * @param channels The existing channels to reconfigure
+	 */
+	public void setConnectionSpeedLimit(long limit, Iterable<Channel> channels)
+	{
+		if(limit < 0)
+			return;
+		
+		connLimit = limit;
+		for(Channel channel : channels)
+		{
+			if(smoothLimit)
+			{
+				ChannelHandler handler = channel.getPipeline().get("token-bucket");
+				if(handler != null)
+					((TokenBucketHandler) handler).getConnectionBucket().setRate(limit);
+			}
+			else
+			{
+				ChannelHandler handler = channel.getPipeline().get("connection-traffic-shaping");
+				if(handler != null)
+					((ChannelTrafficShapingHandler) handler).configure(0, limit);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the traffic counter of all servers.
+	 * 
+	 * @return The TrafficCounter object
+	 */
+	public TrafficCounter getGlobalTrafficCounter()
+	{
+		return trafficHandler.getTrafficCounter();
+	}
+	
+	/**
+	 * Returns the traffic counter of all connections to this server.
+	 * 
+	 * @return The TrafficCounter object
+	 */
+	public TrafficCounter getServerTrafficCounter()
+	{
+		return serverTrafficHandler.getTrafficCounter();
+	}
+	
+	/**
+	 * Returns the traffic counter of a single connection.
+	 * 
+	 * @param channel The channel of the connection
+	 * @return The TrafficCounter object, null if not connected
+	 */
+	public static TrafficCounter getConnectionTrafficCounter(Channel channel)
+	{
+		ChannelHandler handler = channel.getPipeline().get("connection-traffic-shaping");
+		if(handler == null)
+			return null;
+		
+		return ((ChannelTrafficShapingHandler) handler).getTrafficCounter();
 	}
 	
 	/**
@@ -170,7 +317,11 @@ public class NettyNioClientPipelineFactory implements ChannelPipelineFactory
 	 */
 	public void releaseExternalResources()
 	{
-		trafficHandler.releaseExternalResources();
+		if(ownTrafficHandler)
+			trafficHandler.releaseExternalResources();
+		serverTrafficHandler.releaseExternalResources();
+		connExecutor.shutdownNow();
+		bucketTimer.shutdownNow();
 		execHandler.releaseExternalResources();
 	}
 }
@@ -0,0 +1,61 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.nntpclient.nioengine;
+
+
+/**
+ * A status line received from the NNTP server, as emitted by the
+ * NntpResponseDecoder. If the response is a multi-line response, the
+ * data follows as one or more NntpResponseData objects.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class NntpResponse
+{
+	/** the three-digit status code, or -1 if the line could not be parsed */
+	private final int code;
+	
+	/** the complete status line (incl. CR LF) */
+	private final String line;
+	
+	/** whether or not a data block follows this status line */
+	private final boolean multiLine;
+	
+	
+	public NntpResponse(int code, String line, boolean multiLine)
+	{
+		this.code = code;
+		this.line = line;
+		this.multiLine = multiLine;
+	}
+	
+	public int getCode()
+	{
+		return code;
+	}
+	
+	public String getLine()
+	{
+		return line;
+	}
+	
+	public boolean isMultiLine()
+	{
+		return multiLine;
+	}
+}
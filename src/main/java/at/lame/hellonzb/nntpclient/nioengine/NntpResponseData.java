@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.nntpclient.nioengine;
+
+import org.jboss.netty.buffer.*;
+
+
+/**
+ * A piece of the data block of a multi-line NNTP response, as emitted by
+ * the NntpResponseDecoder. Leading dots are already removed and the
+ * terminating line (a single dot) is not part of the data. The data is
+ * usually a slice of the buffer received from the socket, so it is not
+ * copied on its way to the RspHandler.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class NntpResponseData
+{
+	/** the (dot-unstuffed) data */
+	private final ChannelBuffer data;
+	
+	/** whether or not this is the last piece of the data block */
+	private final boolean last;
+	
+	
+	public NntpResponseData(ChannelBuffer data, boolean last)
+	{
+		this.data = data;
+		this.last = last;
+	}
+	
+	public ChannelBuffer getData()
+	{
+		return data;
+	}
+	
+	public boolean isLast()
+	{
+		return last;
+	}
+}
@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.nntpclient.nioengine;
+
+import java.util.*;
+
+import org.jboss.netty.buffer.*;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.frame.*;
+
+
+/**
+ * This decoder splits the byte stream received from the NNTP server into
+ * NntpResponse objects (status lines) and NntpResponseData objects (the
+ * data blocks of multi-line responses). The data blocks are dot-unstuffed
+ * on the fly and the terminating line (CR LF . CR LF) is detected across
+ * chunk boundaries, so several pipelined responses within one chunk are
+ * no problem. One instance is needed per channel.
+ * 
+ * The data is passed on as slices of the received buffers, i.e. without
+ * copying it. Only data decoded from the internal cumulation buffer (which
+ * is reused by the FrameDecoder) has to be copied.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class NntpResponseDecoder extends FrameDecoder
+{
+	/** max. length of a status line */
+	private static final int MAX_LINE_LENGTH = 4096;
+	
+	/** status codes of all multi-line responses (RFC 3977), except LISTGROUP's 211 */
+	private static final int [] MULTI_LINE_CODES = 
+		new int [] { 100, 101, 215, 220, 221, 222, 224, 225, 230, 231 };
+	
+	// decoder states
+	private static final int STATUS_LINE = 0;
+	private static final int LINE_START = 1;
+	private static final int IN_LINE = 2;
+	private static final int DOT = 3;
+	private static final int DOT_CR = 4;
+	
+	/** a single CR, see DOT_CR state */
+	private static final ChannelBuffer CR = 
+		ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(new byte [] { 13 }));
+	
+	/** the current state of this decoder */
+	private int state;
+	
+	/** the cumulation buffer of the FrameDecoder (data from it must be copied) */
+	private ChannelBuffer cumulation;
+	
+	
+	public NntpResponseDecoder()
+	{
+		this.state = STATUS_LINE;
+	}
+	
+	@Override
+	protected ChannelBuffer createCumulationDynamicBuffer(ChannelHandlerContext ctx)
+	{
+		cumulation = super.createCumulationDynamicBuffer(ctx);
+		return cumulation;
+	}
+	
+	@Override
+	protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) 
+		throws Exception
+	{
+		if(state == STATUS_LINE)
+			return decodeStatusLine(buffer);
+		else
+			return decodeData(buffer);
+	}
+	
+	/**
+	 * Decode the next status line, if it's completely available.
+	 * 
+	 * @param buffer The buffer to read from
+	 * @return The NntpResponse object, or null if more data is needed
+	 * @throws TooLongFrameException
+	 */
+	private NntpResponse decodeStatusLine(ChannelBuffer buffer) throws TooLongFrameException
+	{
+		int lf = buffer.indexOf(buffer.readerIndex(), buffer.writerIndex(), (byte) 10);
+		if(lf < 0)
+		{
+			if(buffer.readableBytes() > MAX_LINE_LENGTH)
+				throw new TooLongFrameException("NNTP status line too long");
+			
+			return null;
+		}
+		
+		int length = lf + 1 - buffer.readerIndex();
+		byte [] bytes = new byte[length];
+		buffer.readBytes(bytes);
+		String line = new String(bytes);
+		
+		int code = -1;
+		try
+		{
+			if(line.length() >= 3)
+				code = Integer.parseInt(line.substring(0, 3));
+		}
+		catch(NumberFormatException e)
+		{
+			code = -1;
+		}
+		
+		boolean multiLine = isMultiLine(code);
+		if(multiLine)
+			state = LINE_START;
+		
+		return new NntpResponse(code, line, multiLine);
+	}
+	
+	/**
+	 * Decode all available bytes of the current data block.
+	 * 
+	 * @param buffer The buffer to read from
+	 * @return The NntpResponseData object, or null if there is nothing to pass on yet
+	 */
+	private NntpResponseData decodeData(ChannelBuffer buffer)
+	{
+		int start = buffer.readerIndex();
+		int end = buffer.writerIndex();
+		boolean copy = (buffer == cumulation);
+		List<ChannelBuffer> parts = new ArrayList<ChannelBuffer>(2);
+		
+		// data is passed on in runs between the removed dots
+		int runStart = start;
+		int i = start;
+		boolean last = false;
+		
+		while(i < end)
+		{
+			if(state == IN_LINE)
+			{
+				// skip everything up to (and incl.) the next LF
+				int lf = buffer.indexOf(i, end, (byte) 10);
+				if(lf < 0)
+					i = end;
+				else
+				{
+					i = lf + 1;
+					state = LINE_START;
+				}
+			}
+			else if(state == LINE_START)
+			{
+				if(buffer.getByte(i) == '.')
+				{
+					// a leading dot is always removed
+					addPart(parts, buffer, runStart, i, copy);
+					state = DOT;
+					runStart = ++i;
+				}
+				else
+					state = IN_LINE;
+			}
+			else if(state == DOT)
+			{
+				if(buffer.getByte(i) == 13)
+				{
+					state = DOT_CR;
+					i++;
+				}
+				else
+					state = IN_LINE;
+			}
+			else if(state == DOT_CR)
+			{
+				if(buffer.getByte(i) == 10)
+				{
+					// end of data block found, the CR (if in this chunk) is at runStart
+					i++;
+					last = true;
+					runStart = i;
+					state = STATUS_LINE;
+					break;
+				}
+				
+				// no terminating line, so keep the CR (pending from the last chunk?)
+				if(i == start)
+					parts.add(CR);
+				state = IN_LINE;
+			}
+		}
+		
+		if(!last)
+		{
+			// hold back a CR that could belong to the terminating line
+			int runEnd = (state == DOT_CR && runStart < i) ? i - 1 : i;
+			addPart(parts, buffer, runStart, runEnd, copy);
+		}
+		
+		buffer.readerIndex(i);
+		
+		if(parts.isEmpty() && !last)
+			return null;
+		
+		ChannelBuffer data = null;
+		if(parts.isEmpty())
+			data = ChannelBuffers.EMPTY_BUFFER;
+		else if(parts.size() == 1)
+			data = parts.get(0);
+		else
+			data = ChannelBuffers.wrappedBuffer(parts.toArray(new ChannelBuffer[parts.size()]));
+		
+		return new NntpResponseData(data, last);
+	}
+	
+	/**
+	 * Add the given part of the buffer to the list (if not empty).
+	 */
+	private static void addPart(List<ChannelBuffer> parts, ChannelBuffer buffer, 
+			int from, int to, boolean copy)
+	{
+		if(to <= from)
+			return;
+		
+		if(copy)
+			parts.add(buffer.copy(from, to - from));
+		else
+			parts.add(buffer.slice(from, to - from));
+	}
+	
+	/**
+	 * Check whether or not a response with this status code is followed by a data block.
+	 * 
+	 * @param code The status code to check
+	 * @return true/false
+	 */
+	private static boolean isMultiLine(int code)
+	{
+		for(int c : MULTI_LINE_CODES)
+			if(c == code)
+				return true;
+		
+		return false;
+	}
+}
@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.nntpclient.nioengine;
+
+import java.util.*;
+
+import at.lame.hellonzb.preferences.HelloNzbPreferences;
+
+
+/**
+ * This class holds the settings of one usenet server. The settings of
+ * all servers are stored with the same key names, only the prefix differs
+ * (e.g. "ServerSettingsHost" and "BackupServerSettingsHost").
+ * Servers with a lower priority value are used first, servers with a higher
+ * value are only asked for articles the other servers don't have.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class NntpServer
+{
+	/** preferences prefix of the primary server */
+	public static final String PRIMARY = "ServerSettings";
+	
+	/** preferences prefix of the backup server */
+	public static final String BACKUP = "BackupServerSettings";
+	
+	/** the preferences prefix of this server (PRIMARY or BACKUP) */
+	private String prefix;
+	
+	/** the name of this server (for log messages) */
+	private String name;
+	
+	/** host name and port */
+	private String host;
+	private int port;
+	
+	/** "use SSL" flag */
+	private boolean useSSL;
+	
+	/** username and password */
+	private String username;
+	private String password;
+	
+	/** the max. amount of simultaneous connections */
+	private int connections;
+	
+	/** the priority of this server (0 = highest) */
+	private int priority;
+	
+	/** the download speed limit of this server (in KB/s, 0 = no limit) */
+	private long speedLimit;
+	
+	
+	public NntpServer(String prefix, String name, String host, int port, boolean useSSL, 
+			String username, String password, int connections, int priority, long speedLimit)
+	{
+		this.prefix = prefix;
+		this.name = name;
+		this.host = host;
+		this.port = port;
+		this.useSSL = useSSL;
+		this.username = username;
+		this.password = password;
+		this.connections = connections;
+		this.priority = priority;
+		this.speedLimit = speedLimit;
+	}
+	
+	/**
+	 * Create a server object from the application settings.
+	 * 
+	 * @param prefs The preferences container to use
+	 * @param prefix The preferences prefix of the server (PRIMARY or BACKUP)
+	 * @return The NntpServer object
+	 * @throws NumberFormatException If the port or connection count is not set
+	 */
+	public static NntpServer fromPrefs(HelloNzbPreferences prefs, String prefix) throws NumberFormatException
+	{
+		boolean ssl = prefs.getBooleanPrefValue(prefix + "UseSSL");
+		String host = prefs.getPrefValue(prefix + "Host");
+		String name = prefs.getPrefValue(prefix + "ServerName");
+		if(name.length() == 0)
+			name = host;
+		
+		int port = 0;
+		if(ssl)
+			port = Integer.valueOf(prefs.getPrefValue(prefix + "SSLPort"));
+		else
+			port = Integer.valueOf(prefs.getPrefValue(prefix + "Port"));
+		
+		int priority = 0;
+		String tmp = prefs.getPrefValue(prefix + "Priority");
+		if(tmp.length() > 0)
+			priority = Integer.valueOf(tmp);
+		
+		return new NntpServer(prefix, name, host, port, ssl, 
+				prefs.getPrefValue(prefix + "Username"), 
+				prefs.getPrefValue(prefix + "Password"), 
+				Integer.parseInt(prefs.getPrefValue(prefix + "ThreadCount")), 
+				priority, getSpeedLimit(prefs, prefix));
+	}
+	
+	/**
+	 * Returns the download speed limit of a server set in the application settings.
+	 * 
+	 * @param prefs The preferences container to use
+	 * @param prefix The preferences prefix of the server (PRIMARY or BACKUP)
+	 * @return The speed limit in KB/s, 0 if not set
+	 */
+	public static long getSpeedLimit(HelloNzbPreferences prefs, String prefix)
+	{
+		try
+		{
+			long limit = Long.valueOf(prefs.getPrefValue(prefix + "MaxSpeed"));
+			return (limit < 0) ? 0 : limit;
+		}
+		catch(NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+	
+	/**
+	 * Returns all servers set in the application settings, ordered by priority.
+	 * 
+	 * @param prefs The preferences container to use
+	 * @return A list of NntpServer objects (the primary server first if of same priority)
+	 * @throws NumberFormatException If the port or connection count of a server is not set
+	 */
+	public static Vector<NntpServer> getServers(HelloNzbPreferences prefs) throws NumberFormatException
+	{
+		Vector<NntpServer> servers = new Vector<NntpServer>();
+		servers.add(fromPrefs(prefs, PRIMARY));
+		if(isBackupEnabled(prefs))
+			servers.add(fromPrefs(prefs, BACKUP));
+		
+		// stable sort, so the primary server stays first on equal priority
+		Collections.sort(servers, new Comparator<NntpServer>()
+		{
+			public int compare(NntpServer s1, NntpServer s2)
+			{
+				return s1.priority - s2.priority;
+			}
+		});
+		
+		return servers;
+	}
+	
+	/**
+	 * Returns the total number of connections of all servers set in 
+	 * the application settings.
+	 * 
+	 * @param prefs The preferences container to use
+	 * @return The number of connections (at least 1)
+	 */
+	public static int getConnectionCount(HelloNzbPreferences prefs)
+	{
+		int count = parseCount(prefs.getPrefValue(PRIMARY + "ThreadCount"));
+		if(isBackupEnabled(prefs))
+			count += parseCount(prefs.getPrefValue(BACKUP + "ThreadCount"));
+		
+		return count;
+	}
+	
+	// returns true if the backup server is set and enabled
+	private static boolean isBackupEnabled(HelloNzbPreferences prefs)
+	{
+		return prefs.getBooleanPrefValue(BACKUP + "Enabled") && 
+				prefs.getPrefValue(BACKUP + "Host").length() > 0;
+	}
+	
+	// parse a connection count setting
+	private static int parseCount(String value)
+	{
+		try
+		{
+			return Integer.valueOf(value);
+		}
+		catch(NumberFormatException e)
+		{
+			return 1;
+		}
+	}
+	
+	public String getPrefix()
+	{
+		return prefix;
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	
+	public String getHost()
+	{
+		return host;
+	}
+	
+	public int getPort()
+	{
+		return port;
+	}
+	
+	public boolean useSSL()
+	{
+		return useSSL;
+	}
+	
+	public String getUsername()
+	{
+		return username;
+	}
+	
+	public String getPassword()
+	{
+		return password;
+	}
+	
+	public int getConnections()
+	{
+		return connections;
+	}
+	
+	public int getPriority()
+	{
+		return priority;
+	}
+	
+	public long getSpeedLimit()
+	{
+		return speedLimit;
+	}
+	
+	/**
+	 * Two servers are equal if all their connection settings are equal,
+	 * i.e. connections to one of them can be used for the other one. The
+	 * speed limit is not compared, it can be changed at runtime.
+	 */
+	@Override
+	public boolean equals(Object o)
+	{
+		if(!(o instanceof NntpServer))
+			return false;
+		
+		NntpServer s = (NntpServer) o;
+		return name.equals(s.name) && host.equals(s.host) && port == s.port && 
+				useSSL == s.useSSL && username.equals(s.username) && 
+				password.equals(s.password) && connections == s.connections && 
+				priority == s.priority;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return host.hashCode() * 31 + port;
+	}
+}
@@ -0,0 +1,502 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.nntpclient.nioengine;
+
+import at.lame.hellonzb.*;
+import at.lame.hellonzb.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.jboss.netty.handler.traffic.*;
+
+
+/**
+ * This class runs one NettyNioClient per usenet server set by the user, 
+ * all of them download at the same time. New articles are fetched from the 
+ * server(s) with the highest priority. If a server does not have an article
+ * ("430 no such article"), the article is fetched from a server of the next
+ * priority instead. All servers share one download speed limit.
+ * The group is kept running between two downloads, so the next download
+ * can use the open connections (see NettyNioClient.checkIdle()).
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class NntpServerGroup implements Runnable
+{
+	/** main application object */
+	private HelloNzb mainApp;
+	
+	/** central logger object */
+	private MyLogger logger;
+	
+	/** one client per server, ordered by server priority */
+	private Vector<NettyNioClient> clients;
+	
+	/** traffic shaping handler shared by all clients */
+	private GlobalTrafficShapingHandler trafficHandler;
+	
+	/** token bucket shared by all clients (used for the smooth speed limit) */
+	private TokenBucket globalBucket;
+	
+	
+	/**
+	 * Class constructor. Makes no connection.
+	 * 
+	 * @param mainApp Main application object
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 */
+	public NntpServerGroup(HelloNzb mainApp) 
+			throws IOException, IllegalArgumentException
+	{
+		this.mainApp = mainApp;
+		this.logger = mainApp.getLogger();
+		this.clients = new Vector<NettyNioClient>();
+		
+		long speedLimit = getSpeedLimit();
+		if(speedLimit < 0)
+			speedLimit = 0;
+		boolean smooth = mainApp.getPrefContainer().getBooleanPrefValue("DownloadSettingsSmoothSpeedLimit");
+		this.trafficHandler = new GlobalTrafficShapingHandler(
+				Executors.newCachedThreadPool(), 0, smooth ? 0 : speedLimit * 1000L, 1000);
+		this.globalBucket = new TokenBucket(smooth ? speedLimit * 1000L : 0);
+		
+		// the connections of all servers are shown one after another in the thread view
+		int offset = 0;
+		for(NntpServer server : NntpServer.getServers(mainApp.getPrefContainer()))
+		{
+			clients.add(new NettyNioClient(mainApp, server, trafficHandler, globalBucket, this, offset));
+			offset += server.getConnections();
+		}
+	}
+	
+	/**
+	 * Run all clients (each one in its own thread) until they have stopped.
+	 */
+	public void run()
+	{
+		Vector<Thread> threads = new Vector<Thread>();
+		for(NettyNioClient client : clients)
+		{
+			Thread t = new Thread(client);
+			t.setDaemon(true);
+			t.start();
+			threads.add(t);
+		}
+		
+		try
+		{
+			for(Thread t : threads)
+				t.join();
+		}
+		catch(InterruptedException e)
+		{
+			shutdown(false, -1);
+		}
+		
+		trafficHandler.releaseExternalResources();
+		logger.msg("NntpServerGroup stopped", MyLogger.SEV_DEBUG);
+	}
+	
+	/**
+	 * Call this method to close all connections of all servers.
+	 * 
+	 * @param block Block until all connections have been closed
+	 * @param max Max. value of System.nanoTime() until to wait, -1 for no max.
+	 */
+	public void shutdown(boolean block, long max)
+	{
+		for(NettyNioClient client : clients)
+			client.shutdown(false, max);
+		
+		if(block)
+		{
+			for(NettyNioClient client : clients)
+				client.shutdown(true, max);
+		}
+	}
+	
+	/**
+	 * Returns whether or not all clients are running, i.e. whether or not
+	 * this group can be used for a (new) download.
+	 * 
+	 * @return true/false
+	 */
+	public boolean isRunning()
+	{
+		for(NettyNioClient client : clients)
+			if(!client.isRunning())
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * Keep the connections of all servers open for the next download. 
+	 * 
+	 * @param servers The servers to use for the next download
+	 * @return false if this group can not be used (servers changed or shutting down)
+	 */
+	public boolean keepOpen(Vector<NntpServer> servers)
+	{
+		if(servers.size() != clients.size())
+			return false;
+		
+		for(int i = 0; i < clients.size(); i++)
+		{
+			NettyNioClient client = clients.get(i);
+			if(!client.getServer().equals(servers.get(i)) || !client.keepOpen())
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Remove all articles from the queues of all servers that have not 
+	 * been requested yet, e.g. when a download has been stopped.
+	 */
+	public void cancelTasks()
+	{
+		for(NettyNioClient client : clients)
+			client.cancelTasks();
+	}
+	
+	/**
+	 * Remove the article of the given handler from the queue of its server,
+	 * if it has not been requested yet (see NettyNioClient.cancelArticle()).
+	 * 
+	 * @param handler The RspHandler object of the article
+	 * @return true if the article has been removed from a queue
+	 */
+	public boolean cancelArticle(RspHandler handler)
+	{
+		for(NettyNioClient client : clients)
+			if(client.cancelArticle(handler))
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Stop downloading the article of the given handler on the wire, by 
+	 * closing the channel that receives it (see NettyNioClient.abortArticle()).
+	 * 
+	 * @param handler The RspHandler object of the article
+	 * @return true if a channel has been closed
+	 */
+	public boolean abortArticle(RspHandler handler)
+	{
+		for(NettyNioClient client : clients)
+			if(client.abortArticle(handler))
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Returns the total number of download slots of all servers.
+	 * 
+	 * @return The number of slots
+	 */
+	public int getSlotCount()
+	{
+		int count = 0;
+		for(NettyNioClient client : clients)
+			count += client.getSlotCount();
+		
+		return count;
+	}
+	
+	/**
+	 * Set the amount of connections to use for the given server, without
+	 * stopping the download. The amount is limited to the amount set by
+	 * the user for this server.
+	 * 
+	 * @param server The server
+	 * @param count The amount of connections
+	 * @return false if the server is not part of this group
+	 */
+	public boolean setConnectionCount(NntpServer server, int count)
+	{
+		for(NettyNioClient client : clients)
+		{
+			if(client.getServer().equals(server))
+			{
+				client.setConnectionCount(count);
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * Returns the amount of connections of all servers that are used right now.
+	 * 
+	 * @return The amount of connections
+	 */
+	public int getConnectionCount()
+	{
+		int count = 0;
+		for(NettyNioClient client : clients)
+			count += client.getConnectionCount();
+		
+		return count;
+	}
+	
+	/**
+	 * Returns true if a new article can be fetched right now, i.e. if
+	 * at least one server of the highest priority has a free slot.
+	 * 
+	 * @return true/false
+	 */
+	public boolean hasFreeSlot()
+	{
+		for(NettyNioClient client : firstTier())
+			if(client.hasFreeSlot())
+				return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Fetch the specified usenet article from the server of the highest 
+	 * priority that has the most free slots.
+	 * 
+	 * @param group The newsgroup of the article
+	 * @param artID The article to fetch, identified by its ID
+	 * @param handler The RspHandler object to use
+	 * @return true if article could be added to download queue, false if no slots were free
+	 */
+	public boolean fetchArticleData(String group, String artID, RspHandler handler)
+	{
+		NettyNioClient client = leastBusy(firstTier());
+		if(client == null)
+			return false;
+		
+		return client.fetchArticleData(group, artID, handler);
+	}
+	
+	/**
+	 * Fetch a second copy of a straggling article from the server of the 
+	 * highest priority that has the most free slots. The copy is not sent
+	 * on the channel of the straggler (see NettyNioClient.fetchArticleCopy()).
+	 * 
+	 * @param group The newsgroup of the article
+	 * @param artID The article to fetch, identified by its ID
+	 * @param handler The RspHandler object of the copy
+	 * @param straggler The RspHandler object of the first copy
+	 * @return true if article could be added to download queue, false if no slots were free
+	 */
+	public boolean fetchArticleCopy(String group, String artID, RspHandler handler, RspHandler straggler)
+	{
+		NettyNioClient client = leastBusy(firstTier());
+		if(client == null)
+			return false;
+		
+		return client.fetchArticleCopy(group, artID, handler, straggler);
+	}
+	
+	/**
+	 * Called by a client when its server does not have an article. The
+	 * article is queued on a server of the next priority, if there is one.
+	 * 
+	 * @param from The client that could not fetch the article
+	 * @param cmd The BODY command of the article
+	 * @param group The GROUP command of the article
+	 * @param handler The RspHandler object of the article
+	 * @return true if the article has been queued on another server
+	 */
+	protected boolean retryOnNextServer(NettyNioClient from, String cmd, String group, RspHandler handler)
+	{
+		// the article is not needed anymore
+		if(handler.isDiscarded())
+			return false;
+		
+		// find the clients of the next lower priority
+		int priority = from.getServer().getPriority();
+		Vector<NettyNioClient> nextTier = new Vector<NettyNioClient>();
+		for(NettyNioClient client : clients)
+		{
+			int p = client.getServer().getPriority();
+			if(p <= priority)
+				continue;
+			if(!nextTier.isEmpty() && p != nextTier.firstElement().getServer().getPriority())
+				break;
+			nextTier.add(client);
+		}
+		
+		NettyNioClient next = leastBusy(nextTier);
+		if(next == null)
+			return false;
+		
+		logger.msg("Article " + cmd.substring(5).trim() + " not found on server " + 
+				from.getServer().getName() + ", trying " + next.getServer().getName(), 
+				MyLogger.SEV_INFO);
+		
+		handler.reset();
+		next.retryArticle(cmd, group, handler);
+		
+		return true;
+	}
+	
+	/**
+	 * Set the listener that gets notified when a download slot of any 
+	 * server becomes free.
+	 * 
+	 * @param l The SlotListener object to use (or null)
+	 */
+	public void setSlotListener(SlotListener l)
+	{
+		for(NettyNioClient client : clients)
+			client.setSlotListener(l);
+	}
+	
+	/**
+	 * Remove the given listener from all servers, if it is still set
+	 * (a new download may have set its own listener in the meantime).
+	 * 
+	 * @param l The SlotListener object to remove
+	 */
+	public void removeSlotListener(SlotListener l)
+	{
+		for(NettyNioClient client : clients)
+			client.removeSlotListener(l);
+	}
+	
+	/**
+	 * Returns the number of connections of all servers that are currently
+	 * downloading an article.
+	 * 
+	 * @return The number of active connections
+	 */
+	protected int getActiveCount()
+	{
+		int count = 0;
+		for(NettyNioClient client : clients)
+			count += client.getActiveCount();
+		
+		return count;
+	}
+	
+	/**
+	 * Set the global download speed limit (for all servers).
+	 * 
+	 * @param limit The limit to set (in KB/s)
+	 */
+	public void setSpeedLimit(long limit)
+	{
+		if(limit < 0)
+			return;
+		
+		// the clients configure the shared traffic handler or token bucket
+		for(NettyNioClient client : clients)
+			client.setSpeedLimit(limit);
+	}
+	
+	/**
+	 * Set the speed limits of all servers (and the global one) to the 
+	 * values currently set in the application settings.
+	 */
+	public void updateSpeedLimits()
+	{
+		long limit = getSpeedLimit();
+		setSpeedLimit((limit < 0) ? 0 : limit);
+		
+		for(NettyNioClient client : clients)
+		{
+			String prefix = client.getServer().getPrefix();
+			client.setServerSpeedLimit(NntpServer.getSpeedLimit(mainApp.getPrefContainer(), prefix));
+		}
+	}
+	
+	/**
+	 * Returns the traffic counter of all servers.
+	 * 
+	 * @return The TrafficCounter object
+	 */
+	public TrafficCounter getTrafficCounter()
+	{
+		return trafficHandler.getTrafficCounter();
+	}
+	
+	/**
+	 * Returns the traffic counter of all connections to the given server.
+	 * 
+	 * @param server The server
+	 * @return The TrafficCounter object, null if the server is not part of this group
+	 */
+	public TrafficCounter getTrafficCounter(NntpServer server)
+	{
+		for(NettyNioClient client : clients)
+			if(client.getServer().equals(server))
+				return client.getTrafficCounter();
+		
+		return null;
+	}
+	
+	/**
+	 * Returns the current number of read bytes since the last check interval
+	 * (check interval = 1000ms per default), for all servers.
+	 * 
+	 * @return The number of read bytes
+	 */
+	public long getDlTraffic()
+	{
+		return trafficHandler.getTrafficCounter().getLastReadThroughput();
+	}
+	
+	// returns all clients of the highest priority
+	private Vector<NettyNioClient> firstTier()
+	{
+		Vector<NettyNioClient> tier = new Vector<NettyNioClient>();
+		int priority = clients.firstElement().getServer().getPriority();
+		for(NettyNioClient client : clients)
+			if(client.getServer().getPriority() == priority)
+				tier.add(client);
+		
+		return tier;
+	}
+	
+	// returns the client with the most free slots (or null)
+	private NettyNioClient leastBusy(Vector<NettyNioClient> tier)
+	{
+		NettyNioClient result = null;
+		int max = Integer.MIN_VALUE;
+		for(NettyNioClient client : tier)
+		{
+			int idle = client.getIdleSlotCount();
+			if(idle > max)
+			{
+				max = idle;
+				result = client;
+			}
+		}
+		
+		return result;
+	}
+	
+	// get the download speed limit currently in effect (in KB/s, or -1 if not set)
+	private long getSpeedLimit()
+	{
+		return mainApp.getSpeedLimit();
+	}
+}
@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package at.lame.hellonzb.nntpclient.nioengine;
+
+import org.jboss.netty.channel.*;
+
+
+/**
+ * Suspends and resumes reading from a channel for several independent 
+ * reasons (the speed limit and the memory budget). Reading is resumed only
+ * when none of the reasons holds the channel back anymore, so the speed
+ * limit does not resume a channel that waits for memory to be released,
+ * and vice versa. The traffic shaping handlers resume reading on their own,
+ * the MemoryBudgetHandler drops their requests while a channel waits for 
+ * memory.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public final class ReadGate
+{
+	/** the reasons to suspend reading */
+	public static final int SPEED_LIMIT = 1;
+	public static final int MEMORY = 2;
+	
+	/** the reasons a channel is suspended for (bit mask) */
+	private static final ChannelLocal<int []> reasons = new ChannelLocal<int []>(true)
+	{
+		@Override
+		protected int [] initialValue(Channel channel)
+		{
+			return new int [1];
+		}
+	};
+	
+	
+	private ReadGate()
+	{
+	}
+	
+	/**
+	 * Suspend reading from the given channel for the given reason.
+	 * 
+	 * @param channel The channel to suspend
+	 * @param reason The reason (SPEED_LIMIT or MEMORY)
+	 */
+	public static void suspend(Channel channel, int reason)
+	{
+		int [] state = reasons.get(channel);
+		synchronized(state)
+		{
+			state[0] |= reason;
+			
+			// also suspend again if someone else has resumed the channel
+			if(channel.isReadable())
+				channel.setReadable(false);
+		}
+	}
+	
+	/**
+	 * Resume reading from the given channel, unless it is still suspended
+	 * for another reason.
+	 * 
+	 * @param channel The channel to resume
+	 * @param reason The reason the channel was suspended for
+	 */
+	public static void resume(Channel channel, int reason)
+	{
+		int [] state = reasons.get(channel);
+		synchronized(state)
+		{
+			if((state[0] & reason) == 0)
+				return;
+			
+			state[0] &= ~reason;
+			if(state[0] == 0 && channel.isOpen())
+				channel.setReadable(true);
+		}
+	}
+	
+	/**
+	 * Returns whether or not reading from the given channel is suspended.
+	 * 
+	 * @param channel The channel to check
+	 * @return true if suspended for any reason
+	 */
+	public static boolean isSuspended(Channel channel)
+	{
+		int [] state = reasons.get(channel);
+		synchronized(state)
+		{
+			return state[0] != 0;
+		}
+	}
+	
+	/**
+	 * Returns whether or not reading from the given channel is suspended
+	 * for the given reason.
+	 * 
+	 * @param channel The channel to check
+	 * @param reason The reason (SPEED_LIMIT or MEMORY)
+	 * @return true if suspended for this reason
+	 */
+	public static boolean isSuspended(Channel channel, int reason)
+	{
+		int [] state = reasons.get(channel);
+		synchronized(state)
+		{
+			return (state[0] & reason) != 0;
+		}
+	}
+}
@@ -17,8 +17,10 @@
  ******************************************************************************/
 package at.lame.hellonzb.nntpclient.nioengine;
 
-import java.util.*;
+import org.jboss.netty.buffer.*;
+
 import at.lame.hellonzb.parser.*;
+import at.lame.hellonzb.util.BufferPool;
 
 
 /**
@@ -34,8 +36,17 @@ public class RspHandler
 	public final static int ERR_GROUP = 3;
 	public final static int ERR_FETCH = 4;
 	
-	/** a sorted collection of byte arrays, i.e. the sorted data pieces */
-	private Vector<byte[]> rspData;
+	/** max. size of the array leased for the data before it is received */
+	private final static int MAX_PRESIZE = 4 * 1024 * 1024;
+	
+	/** the data received, collected in an array of the buffer pool (null if none yet) */
+	private byte [] rspData;
+	
+	/** the amount of bytes stored in rspData */
+	private int rspLength;
+	
+	/** guards rspData, rspLength and the flags */
+	private final Object dataLock;
 
 	/** whether or not the handler has received all data */
 	private boolean finished;
@@ -49,9 +60,27 @@ public class RspHandler
 	/** the amount of bytes stored to the tree */
 	private Integer dataByteCount;
 	
+	/** the amount of bytes received since the handler was created or reset (guarded by dataLock) */
+	private long receivedBytes;
+	
+	/** the nano sec time when the handler was created */
+	private final long created;
+	
 	/** the filename of the according downloaadFile */
 	private DownloadFileSegment dlFileSeg;
 	
+	/** gets notified when this handler is finished (may be null) */
+	private RspHandlerListener listener;
+	
+	/** the memory budget the stored data is charged to (null if none) */
+	private MemoryBudget budget;
+	
+	/** the amount of bytes charged to the memory budget */
+	private long charged;
+	
+	/** set when the handler is not used anymore, further data is dropped */
+	private boolean discarded;
+	
 	
 	/**
 	 * Class constructor.
@@ -60,28 +89,101 @@ public class RspHandler
 	{
 		this.dlFileSeg = dlFileSeg;
 		
-		this.rspData = new Vector<byte[]>();
+		this.rspData = null;
+		this.rspLength = 0;
+		this.dataLock = new Object();
 		this.finished = false;
 		this.error = ERR_NONE;
 		this.errorMsg = "";
 		this.dataByteCount = 0;
+		this.receivedBytes = 0;
+		this.created = System.nanoTime();
+		this.listener = null;
+		this.budget = null;
+		this.charged = 0;
+		this.discarded = false;
 	}
 	
 	/**
-	 * Store the response data array into the internal data vector of the handler.
+	 * Set the listener that gets notified when this handler is finished.
 	 * 
-	 * @param rsp The byte[] array
+	 * @param listener The RspHandlerListener object to use (or null)
 	 */
-	public void handleResponse(byte [] rsp)
+	public void setListener(RspHandlerListener listener)
 	{
-		synchronized(this.dataByteCount)
+		this.listener = listener;
+	}
+	
+	/**
+	 * Copy the response data buffer to the data array of the handler. The
+	 * array is leased from the buffer pool, presized with the size of the 
+	 * segment, so the buffers received from the socket can be dropped right
+	 * away.
+	 * 
+	 * @param rsp The ChannelBuffer object
+	 */
+	public void handleResponse(ChannelBuffer rsp)
+	{
+		synchronized(this.dataLock)
+		{
+			if(discarded)
+				return;
+			
+			append(rsp);
+		}
+		
+		countBytes(rsp.readableBytes());
+	}
+	
+	/**
+	 * Store the response data buffer, which has been charged to the given
+	 * memory budget. The memory is returned to the budget as soon as the data
+	 * is taken from this handler (or the handler is reset or discarded).
+	 * 
+	 * @param rsp The ChannelBuffer object
+	 * @param budget The MemoryBudget object the data is charged to
+	 */
+	public void handleResponse(ChannelBuffer rsp, MemoryBudget budget)
+	{
+		// check, charge and store in one step, so discard() can't run in between
+		synchronized(this.dataLock)
 		{
-			this.dataByteCount += rsp.length;
+			if(discarded)
+			{
+				budget.release(rsp.readableBytes());
+				return;
+			}
+			
+			this.budget = budget;
+			this.charged += rsp.readableBytes();
+			append(rsp);
 		}
 		
-		synchronized(this.rspData)
+		countBytes(rsp.readableBytes());
+	}
+	
+	// copy the data to the array, must be called with dataLock held
+	private void append(ChannelBuffer rsp)
+	{
+		int length = rsp.readableBytes();
+		this.receivedBytes += length;
+		
+		BufferPool pool = BufferPool.getInstance();
+		if(rspData == null)
+			rspData = pool.lease(Math.max(presize(), length));
+		else if(rspLength + length > rspData.length)
+			rspData = pool.grow(rspData, rspLength, rspLength + length);
+		
+		rsp.getBytes(rsp.readerIndex(), rspData, rspLength, length);
+		rspLength += length;
+	}
+	
+	// add the given amount of bytes to the byte count for newByteCount()
+	private void countBytes(int length)
+	{
+		synchronized(this.dataByteCount)
 		{
-			this.rspData.add(rsp);
+			this.dataByteCount += length;
 		}
 	}
 		
@@ -101,6 +203,30 @@ public class RspHandler
 		}
 	}
 	
+	/**
+	 * Returns the amount of bytes received since the handler was created
+	 * (or reset).
+	 * 
+	 * @return The amount of bytes received
+	 */
+	public long getReceivedBytes()
+	{
+		synchronized(this.dataLock)
+		{
+			return this.receivedBytes;
+		}
+	}
+	
+	/**
+	 * Returns the time since this handler has been created.
+	 * 
+	 * @return The age in ms
+	 */
+	public long getAge()
+	{
+		return (System.nanoTime() - created) / 1000000;
+	}
+	
 	/**
 	 * Set the error status of this handler object.
 	 * 
@@ -145,85 +271,33 @@ public class RspHandler
 	}
 	
 	/**
-	 * Returns the data stored in this handler object (if any).
+	 * Returns the data stored in this handler object (if any). The data is
+	 * already dot-unstuffed and does not contain the terminating line. The
+	 * array backing the data is handed over to the caller, it should be 
+	 * returned to the BufferPool (data.array()) when it is not needed anymore.
 	 * 
-	 * @param trim If set to true then the dot in the last line (if any) is removed
-	 * @return The stored data array (byte[]), or null if handler is not finished yet
+	 * @return The stored data (ChannelBuffer), or null if handler is not finished yet
 	 */
-	public byte[] getData(boolean trim)
+	public ChannelBuffer getData()
 	{
-		byte [] newData = null;
-
 		// handler must be finished before data can be retreived
 		if(!finished)
 			return null;
 		
-		// any data here?
-		if(rspData.size() == 0)
-			return new byte[0];
-		
-		// concatenate all data arrays into one single byte[]
-		// step 1: get total size of all arrays in the vector
-		int totalSize = 0;
-		for(int i = 0; i < rspData.size(); i++)
-			totalSize += rspData.get(i).length;
-		
-		// concatenate all data arrays into one single byte[]
-		// step 2: create a new data array to return
-		newData = new byte[totalSize];
-		
-		// concatenate all data arrays into one single byte[]
-		// step 3: concatenate all arrays into the new one
-		int idx = 0;
-		for(int i = 0; i < rspData.size(); i++)
-		{
-			byte [] arr = rspData.get(i);
-			if(arr.length == 0)
-				continue;
-			System.arraycopy(arr, 0, newData, idx, arr.length);
-			idx += arr.length;
-		}
-		rspData.clear();
-
-		byte [] tmp = new byte[newData.length];
-		int offset = 0;
-		int counter = 0;
-		
-		// replace any double dot characters (int code 46) at the beginning
-		// of a line with newData single dot character
-		for(int i = 0; i < newData.length; i++, offset++)
+		synchronized(this.dataLock)
 		{
-			if(i < 3)
-				tmp[offset] = newData[i];
-			else if(	newData[i-3] == '\r' && newData[i-2] == '\n' &&
-						newData[i-1] == '.'  && newData[i]   == '.')
-			{
-				offset--;
-				counter++;
-				continue;
-			}
-			tmp[offset] = newData[i];
-		}
-		
-		newData = new byte[tmp.length - counter];
-		System.arraycopy(tmp, 0, newData, 0, newData.length);
-
-		// remove the last line, if it contains only a single dot?
-		if(trim)
-		{
-			int l = newData.length - 1;
+			ChannelBuffer data = ChannelBuffers.EMPTY_BUFFER;
+			if(rspLength > 0)
+				data = ChannelBuffers.wrappedBuffer(rspData, 0, rspLength);
+			else
+				BufferPool.getInstance().release(rspData);
 			
-			// . CR LF
-			if(newData[l] == 10 && newData[l-1] == 13 && newData[l-2] == 46)
-			{
-				// trim array --> remove last three bytes
-				byte [] newDataTrimmed = new byte[l-2];
-				System.arraycopy(newData, 0, newDataTrimmed, 0, l - 2);
-				return newDataTrimmed;
-			}
+			rspData = null;
+			rspLength = 0;
+			releaseCharge();
+			
+			return data;
 		}
-		
-		return newData;
 	}
 	
 	/**
@@ -231,10 +305,11 @@ public class RspHandler
 	 */
 	public void reset()
 	{
-		synchronized(this.rspData)
+		synchronized(this.dataLock)
 		{
-			this.rspData.clear();
+			clearData();
 			this.finished = false;
+			this.receivedBytes = 0;
 		}
 		
 		synchronized(this.error)
@@ -249,6 +324,58 @@ public class RspHandler
 		}
 	}
 	
+	/**
+	 * Drop the data stored in this handler and all data received later on,
+	 * e.g. when the download has been stopped.
+	 */
+	public void discard()
+	{
+		synchronized(this.dataLock)
+		{
+			clearData();
+			this.discarded = true;
+		}
+	}
+	
+	/**
+	 * Returns whether or not this handler has been discarded.
+	 * 
+	 * @return true/false
+	 */
+	public boolean isDiscarded()
+	{
+		synchronized(this.dataLock)
+		{
+			return this.discarded;
+		}
+	}
+	
+	// drop the stored data, the array is returned to the buffer pool
+	private void clearData()
+	{
+		BufferPool.getInstance().release(rspData);
+		rspData = null;
+		rspLength = 0;
+		releaseCharge();
+	}
+	
+	// the size of the array to lease for the data (taken from the nzb file)
+	private int presize()
+	{
+		if(dlFileSeg == null)
+			return 0;
+		
+		return (int) Math.max(0, Math.min(MAX_PRESIZE, dlFileSeg.getSize()));
+	}
+	
+	// return the stored data to the memory budget (if charged)
+	private void releaseCharge()
+	{
+		if(budget != null)
+			budget.release(charged);
+		charged = 0;
+	}
+	
 	/**
 	 * Returns true if the Handler is set to "finished" state, or false othewise
 	 * 
@@ -256,21 +383,25 @@ public class RspHandler
 	 */
 	public boolean isFinished()
 	{
-		synchronized(this.rspData)
+		synchronized(this.dataLock)
 		{
 			return this.finished;
 		}
 	}
 	
 	/**
-	 * Sets the finished flag to true.
+	 * Sets the finished flag to true and notifies the listener (if any).
 	 */
 	public void setFinished()
 	{
-		synchronized(this.rspData)
+		synchronized(this.dataLock)
 		{
 			this.finished = true;
 		}
+		
+		RspHandlerListener l = listener;
+		if(l != null)
+			l.handlerFinished(this);
 	}
 	
 	/**
@@ -0,0 +1,35 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.nntpclient.nioengine;
+
+
+/**
+ * Implement this interface to get notified as soon as a RspHandler
+ * has received all its data (or the server replied with an error).
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public interface RspHandlerListener
+{
+	/**
+	 * Called (from a Netty I/O or executor thread) when the handler is finished.
+	 * 
+	 * @param handler The RspHandler object that is finished now
+	 */
+	public void handlerFinished(RspHandler handler);
+}
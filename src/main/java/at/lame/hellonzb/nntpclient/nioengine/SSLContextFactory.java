@@ -18,14 +18,28 @@
 package at.lame.hellonzb.nntpclient.nioengine;
 
 import java.security.*;
+import java.util.*;
 import javax.net.ssl.*;
 
 
+/**
+ * This class holds the SSL context shared by all connections. The context
+ * caches the SSL sessions, so a reconnect to the same server can resume
+ * the last session instead of doing a full handshake.
+ * 
+ * @author Matthias F. Brandstetter
+ */
 public class SSLContextFactory
 {
-	private static final String PROTOCOL = "SSL";
+	private static final String PROTOCOL = "TLS";
 	private static final SSLContext CLIENT_CONTEXT;
 	
+	/** the max. number of cached SSL sessions */
+	private static final int SESSION_CACHE_SIZE = 256;
+	
+	/** the time a SSL session is cached (in sec) */
+	private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+	
 	static
 	{
 		String algorithm = Security.getProperty("ssl.KeyManagerFactory.algorithm");
@@ -37,6 +51,8 @@ public class SSLContextFactory
 		{
 			clientContext = SSLContext.getInstance(PROTOCOL);
 			clientContext.init(null, SSLTrustManagerFactory.getTrustManagers(), null);
+			clientContext.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+			clientContext.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
 		}
 		catch(Exception e)
 		{
@@ -50,6 +66,46 @@ public class SSLContextFactory
 	{
 		return CLIENT_CONTEXT;
 	}
+	
+	/**
+	 * Create a new client-side SSL engine for the given server. The host and
+	 * port are needed to find a cached session of this server. AES-GCM cipher
+	 * suites are preferred (AES-128 first), since they are the fastest ones on
+	 * CPUs with AES instructions. Diffie-Hellman suites are not used at all.
+	 * 
+	 * @param host The host name of the server
+	 * @param port The port of the server
+	 * @return The SSLEngine object
+	 */
+	public static SSLEngine createClientEngine(String host, int port)
+	{
+		SSLEngine sslEngine = CLIENT_CONTEXT.createSSLEngine(host, port);
+		sslEngine.setUseClientMode(true);
+		
+		// Java doesn't like DH with prime size > 1024 bits, so avoid DH completely
+		// http://stackoverflow.com/questions/10036174/how-to-avoid-diffie-hellman-for-ssl-connections-with-java-netty
+		List<String> aes128gcm = new LinkedList<String>();
+		List<String> gcm = new LinkedList<String>();
+		List<String> others = new LinkedList<String>();
+		for(String suite : sslEngine.getEnabledCipherSuites())
+		{
+			if(suite.contains("_DHE_"))
+				continue;
+			else if(suite.contains("_AES_128_GCM_"))
+				aes128gcm.add(suite);
+			else if(suite.contains("_GCM_"))
+				gcm.add(suite);
+			else
+				others.add(suite);
+		}
+		
+		List<String> suites = new LinkedList<String>(aes128gcm);
+		suites.addAll(gcm);
+		suites.addAll(others);
+		sslEngine.setEnabledCipherSuites(suites.toArray(new String[suites.size()]));
+		
+		return sslEngine;
+	}
 }
 
 
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package at.lame.hellonzb.nntpclient.nioengine;
+
+
+/**
+ * The types of timeouts a channel can have (see NettyChannelManager).
+ * 
+ * @author Matthias F. Brandstetter
+ */
+enum TimeoutType
+{
+	/** connecting, server greeting and authentication took too long */
+	CONNECT,
+	
+	/** no reply from the server after a command was sent */
+	FIRST_BYTE,
+	
+	/** no more data from the server while receiving a reply */
+	IDLE_READ,
+	
+	/** a closed channel should be connected again */
+	RECONNECT
+}
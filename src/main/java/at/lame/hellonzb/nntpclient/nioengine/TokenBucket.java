@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package at.lame.hellonzb.nntpclient.nioengine;
+
+
+/**
+ * A token bucket for download speed limits. The bucket is refilled 
+ * continuously at the configured rate (not once per second), so that the
+ * data can be throttled in small steps. Bytes that have already been read 
+ * are always taken from the bucket, even if there are not enough tokens 
+ * left. The bucket then runs into debt, and consume() returns the time 
+ * until the debt is paid off, i.e. the time the reader has to wait before 
+ * reading again. One bucket can be shared by several connections.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class TokenBucket
+{
+	/** max. time the bucket can save up tokens for (in ms) */
+	public static final long BURST_TIME = 50;
+	
+	/** min. size of the bucket (in bytes), so that a single read always fits */
+	public static final long MIN_BURST = 16 * 1024;
+	
+	/** the rate the bucket is refilled with (in bytes/s), 0 for no limit */
+	private long rate;
+	
+	/** max. number of tokens the bucket can hold */
+	private long capacity;
+	
+	/** current number of tokens (negative if in debt) */
+	private double tokens;
+	
+	/** time of the last refill (System.nanoTime()) */
+	private long lastRefill;
+	
+	
+	/**
+	 * Class constructor.
+	 * 
+	 * @param rate The rate to use (in bytes/s), 0 for no limit
+	 */
+	public TokenBucket(long rate)
+	{
+		this.lastRefill = System.nanoTime();
+		this.tokens = 0;
+		setRate(rate);
+	}
+	
+	/**
+	 * Set a new rate. Can be called at any time.
+	 * 
+	 * @param rate The rate to use (in bytes/s), 0 for no limit
+	 */
+	public synchronized void setRate(long rate)
+	{
+		if(rate < 0)
+			return;
+		
+		refill(System.nanoTime());
+		this.rate = rate;
+		this.capacity = Math.max(MIN_BURST, rate * BURST_TIME / 1000);
+		if(rate == 0 || tokens > capacity)
+			tokens = (rate == 0) ? 0 : capacity;
+	}
+	
+	/**
+	 * Returns the current rate of this bucket.
+	 * 
+	 * @return The rate (in bytes/s), 0 for no limit
+	 */
+	public synchronized long getRate()
+	{
+		return rate;
+	}
+	
+	/**
+	 * Take the given number of bytes from the bucket.
+	 * 
+	 * @param bytes The number of bytes read
+	 * @param now The current time (System.nanoTime())
+	 * @return The time to wait before reading again (in ns), 0 for no wait
+	 */
+	public synchronized long consume(long bytes, long now)
+	{
+		if(rate == 0)
+			return 0;
+		
+		refill(now);
+		tokens -= bytes;
+		if(tokens >= 0)
+			return 0;
+		
+		return (long) (-tokens * 1000000000.0 / rate);
+	}
+	
+	// add the tokens for the time since the last refill
+	private void refill(long now)
+	{
+		if(rate > 0 && now > lastRefill)
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / 1000000000.0);
+		lastRefill = now;
+	}
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package at.lame.hellonzb.nntpclient.nioengine;
+
+import java.util.concurrent.*;
+
+import org.jboss.netty.buffer.*;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.socket.nio.*;
+
+
+/**
+ * This handler limits the download speed of a channel by means of token 
+ * buckets (one for all servers, one for the server and one for this single 
+ * connection). Every buffer read from the socket is taken from all buckets.
+ * If one of them runs into debt, reading from the channel is suspended until
+ * the debt is paid off. In contrast to the traffic shaping handlers (which 
+ * check the limit once per second), the channel is held back for a few 
+ * milliseconds after each read, so the download rate stays smooth. To keep
+ * the single steps small, the size of the socket reads is adapted to the
+ * speed limit as well.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class TokenBucketHandler extends SimpleChannelUpstreamHandler
+{
+	/** min. time to suspend reading (in ns), smaller debts are carried forward */
+	private static final long MIN_SUSPEND = 1000000L;
+	
+	/** max. amount of data a single socket read should hold (in ms of the speed limit) */
+	private static final long READ_TIME = 20;
+	
+	/** min. and max. size of a single socket read (in bytes) */
+	private static final int MIN_READ_SIZE = 4096;
+	private static final int MAX_READ_SIZE = 65536;
+	
+	/** timer used to resume reading */
+	private final ScheduledExecutorService timer;
+	
+	/** the buckets shared with other channels (all servers, this server) */
+	private final TokenBucket [] sharedBuckets;
+	
+	/** the bucket of this connection */
+	private final TokenBucket connBucket;
+	
+	/** time to resume reading (System.nanoTime()) */
+	private long resumeTime;
+	
+	/** set while reading is suspended */
+	private boolean suspended;
+	
+	/** current size of the socket reads, 0 if adapted by Netty (no limit) */
+	private int readSize;
+	
+	
+	/**
+	 * Class constructor.
+	 * 
+	 * @param timer The timer used to resume reading
+	 * @param connLimit The download speed limit of this connection (in bytes/s), 0 for no limit
+	 * @param sharedBuckets The buckets shared with other channels
+	 */
+	public TokenBucketHandler(ScheduledExecutorService timer, long connLimit, TokenBucket... sharedBuckets)
+	{
+		this.timer = timer;
+		this.sharedBuckets = sharedBuckets;
+		this.connBucket = new TokenBucket(connLimit);
+		this.resumeTime = 0;
+		this.suspended = false;
+		this.readSize = 0;
+	}
+	
+	/**
+	 * Returns the bucket of this connection.
+	 * 
+	 * @return The TokenBucket object
+	 */
+	public TokenBucket getConnectionBucket()
+	{
+		return connBucket;
+	}
+	
+	@Override
+	public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception
+	{
+		if(e.getMessage() instanceof ChannelBuffer)
+		{
+			long bytes = ((ChannelBuffer) e.getMessage()).readableBytes();
+			long now = System.nanoTime();
+			long wait = connBucket.consume(bytes, now);
+			for(TokenBucket bucket : sharedBuckets)
+				wait = Math.max(wait, bucket.consume(bytes, now));
+			
+			if(wait >= MIN_SUSPEND)
+				suspend(ctx.getChannel(), now + wait);
+			adjustReadSize(ctx.getChannel());
+		}
+		
+		ctx.sendUpstream(e);
+	}
+	
+	// set the size of the socket reads according to the lowest speed limit
+	private void adjustReadSize(Channel channel)
+	{
+		long rate = connBucket.getRate();
+		for(TokenBucket bucket : sharedBuckets)
+		{
+			long r = bucket.getRate();
+			if(r > 0 && (rate == 0 || r < rate))
+				rate = r;
+		}
+		
+		int size = 0;
+		if(rate > 0)
+			size = (int) Math.max(MIN_READ_SIZE, Math.min(MAX_READ_SIZE, rate * READ_TIME / 1000));
+		if(size == readSize || !(channel.getConfig() instanceof NioSocketChannelConfig))
+			return;
+		
+		readSize = size;
+		NioSocketChannelConfig config = (NioSocketChannelConfig) channel.getConfig();
+		if(size == 0)
+			config.setReceiveBufferSizePredictor(new AdaptiveReceiveBufferSizePredictor());
+		else
+			config.setReceiveBufferSizePredictor(new FixedReceiveBufferSizePredictor(size));
+	}
+	
+	// suspend reading from the channel until the given time
+	private synchronized void suspend(Channel channel, long until)
+	{
+		resumeTime = Math.max(resumeTime, until);
+		if(suspended)
+			return;
+		
+		suspended = true;
+		ReadGate.suspend(channel, ReadGate.SPEED_LIMIT);
+		schedule(channel, until - System.nanoTime());
+	}
+	
+	// resume reading from the channel, unless it has been suspended for longer in the meantime
+	private synchronized void resume(Channel channel)
+	{
+		long wait = resumeTime - System.nanoTime();
+		if(wait >= MIN_SUSPEND)
+		{
+			schedule(channel, wait);
+			return;
+		}
+		
+		suspended = false;
+		ReadGate.resume(channel, ReadGate.SPEED_LIMIT);
+	}
+	
+	// schedule the resume task
+	private void schedule(final Channel channel, long wait)
+	{
+		try
+		{
+			timer.schedule(new Runnable()
+			{
+				public void run()
+				{
+					resume(channel);
+				}
+			}, wait, TimeUnit.NANOSECONDS);
+		}
+		catch(RejectedExecutionException ex)
+		{
+			// timer already shut down
+			suspended = false;
+		}
+	}
+}
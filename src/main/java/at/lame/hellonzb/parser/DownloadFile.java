@@ -63,6 +63,9 @@ public class DownloadFile
 	/** Article-not-found flag */
 	private boolean downloadErrorFlag;
 	
+	/** The download priority set by the user (see SegmentQueue), -1 if not set */
+	private int priority;
+	
 	
 	/**
 	 * Class constructor.
@@ -87,6 +90,7 @@ public class DownloadFile
 		segCount = 0;
 		
 		downloadErrorFlag = false;
+		priority = -1;
 	}
 	
 	/**
@@ -165,6 +169,16 @@ public class DownloadFile
 		return vec;
 	}
 	
+	/**
+	 * Return all remaining file segments, ordered by their index.
+	 * 
+	 * @return The segments
+	 */
+	public DownloadFileSegment [] getRemainingSegments()
+	{
+		return segments.values().toArray(new DownloadFileSegment[segments.size()]);
+	}
+	
 	/**
 	 * Return a vector of all original file segments.
 	 * 
@@ -274,4 +288,17 @@ public class DownloadFile
 	{
 		this.downloadErrorFlag = flag;
 	}
+	
+	/**
+	 * @return the download priority set by the user, -1 if not set
+	 */
+	public int getPriority()
+	{
+		return priority;
+	}
+	
+	public void setPriority(int priority)
+	{
+		this.priority = priority;
+	}
 }
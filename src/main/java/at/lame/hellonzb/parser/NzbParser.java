@@ -36,6 +36,17 @@ import org.apache.commons.io.*;
  */
 public class NzbParser
 {
+	/** download priorities of a nzb file, see NntpFileDownloader */
+	public static final int PRIO_HIGH = 0;
+	public static final int PRIO_NORMAL = 1;
+	public static final int PRIO_LOW = 2;
+	
+	/** the names of the priorities, as stored in the nzb meta data */
+	private static final String [] PRIO_NAMES = { "high", "normal", "low" };
+	
+	/** the type of the nzb meta data element that holds the priority */
+	private static final String PRIO_META_TYPE = "x-hellonzb-priority";
+	
 	/** main application object */
 	private HelloNzbCradle mainApp;
 	
@@ -51,6 +62,9 @@ public class NzbParser
 	/** The amount of bytes already downloaded */
 	private long downloadedBytes;
 	
+	/** The download priority of this nzb file */
+	private volatile int priority;
+	
 	
 	/**
 	 * This is the constructor of the class.
@@ -70,6 +84,7 @@ public class NzbParser
 		DownloadFileSegment currentSegment = null;
 		boolean groupFlag = false;
 		boolean segmentFlag = false;
+		boolean prioFlag = false;
 		
 		this.name = file.trim();
 		this.name = file.substring(0, file.length() - 4);
@@ -77,6 +92,7 @@ public class NzbParser
 		
 		this.origTotalSize = 0;
 		this.downloadedBytes = 0;
+		this.priority = PRIO_NORMAL;
 		
 		// create XML parser
 		String string = reformatInputStream(file);
@@ -119,12 +135,15 @@ public class NzbParser
 						currentFile.addSegment(currentSegment);
 						segmentFlag = true;
 					}
+					else if(elemName.equals("meta"))
+						prioFlag = PRIO_META_TYPE.equals(parser.getAttributeValue(null, "type"));
 					break;
 					
 				// end of element
 				case XMLStreamConstants.END_ELEMENT:
 					groupFlag = false;
 					segmentFlag = false;
+					prioFlag = false;
 					break;
 					
 				// get the elements value(s)
@@ -135,6 +154,8 @@ public class NzbParser
 							currentFile.addGroup(parser.getText());
 						else if(segmentFlag && (currentSegment != null))
 							currentSegment.setArticleId(parser.getText());
+						else if(prioFlag)
+							priority = parsePriority(parser.getText().trim());
 					}
 					break;
 					
@@ -181,10 +202,11 @@ public class NzbParser
 	 * @param counter File(name) counter
 	 * @param filename File name to use
 	 * @param dlFiles The vector of DownloadFile to write
+	 * @param priority The download priority of the nzb file
 	 * @return Success status (true or false)
 	 */
 	public synchronized static boolean saveParserData(MyLogger logger, 
-			int counter, String filename, Vector<DownloadFile> dlFiles)
+			int counter, String filename, Vector<DownloadFile> dlFiles, int priority)
 	{
 		String newline = System.getProperty("line.separator");
 		
@@ -229,6 +251,18 @@ public class NzbParser
 			writer.write(newline);
 			writer.write(newline);
 			
+			// download priority (meta data)
+			if(priority != PRIO_NORMAL)
+			{
+				writer.write("<head>");
+				writer.write(newline);
+				writer.write("<meta type=\"" + PRIO_META_TYPE + "\">" + PRIO_NAMES[priority] + "</meta>");
+				writer.write(newline);
+				writer.write("</head>");
+				writer.write(newline);
+				writer.write(newline);
+			}
+			
 			// now write all files passed to this method
 			for(DownloadFile dlFile : dlFiles)
 				writeDlFileToXml(writer, dlFile);
@@ -263,10 +297,15 @@ public class NzbParser
 		File file = new File(filename);
 		String content = FileUtils.readFileToString(file);
 		
-		// remove header lines, start with the <nzb> tag
+		// remove header lines, start with the <nzb> tag (but keep the meta data)
 		int start = content.indexOf("<file ");
+		int head = content.indexOf("<head>");
+		int headEnd = content.indexOf("</head>");
+		String meta = "";
+		if(head >= 0 && headEnd > head && headEnd < start)
+			meta = content.substring(head, headEnd + 7) + System.getProperty("line.separator");
 		content = content.substring(start);
-		content = "<nzb>" + System.getProperty("line.separator") + content;
+		content = "<nzb>" + System.getProperty("line.separator") + meta + content;
 		
 		// avoid XML errors with '>' and '<' signs in "poster" attribute
 		// of the XML "<nzb poster=..." tag
@@ -440,6 +479,49 @@ public class NzbParser
 		downloadFiles.remove(index);
 	}
 	
+	/**
+	 * Remove the given DownloadFile object.
+	 * 
+	 * @param dlFile The download file to remove
+	 * @return true if the file was part of this nzb file
+	 */
+	public synchronized boolean removeFile(DownloadFile dlFile)
+	{
+		return downloadFiles.remove(dlFile);
+	}
+	
+	/**
+	 * Returns the download priority of this nzb file (PRIO_HIGH, PRIO_NORMAL
+	 * or PRIO_LOW).
+	 * 
+	 * @return The priority
+	 */
+	public int getPriority()
+	{
+		return priority;
+	}
+	
+	/**
+	 * Set the download priority of this nzb file.
+	 * 
+	 * @param priority The new priority (PRIO_HIGH, PRIO_NORMAL or PRIO_LOW)
+	 */
+	public void setPriority(int priority)
+	{
+		if(priority >= PRIO_HIGH && priority <= PRIO_LOW)
+			this.priority = priority;
+	}
+	
+	// returns the priority of the given name (normal if unknown)
+	private static int parsePriority(String name)
+	{
+		for(int i = 0; i < PRIO_NAMES.length; i++)
+			if(PRIO_NAMES[i].equalsIgnoreCase(name))
+				return i;
+		
+		return PRIO_NORMAL;
+	}
+	
 	/**
 	 * Set the value of the attribute "downloadedBytes".
 	 * 
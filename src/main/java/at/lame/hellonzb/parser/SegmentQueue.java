@@ -15,21 +15,58 @@
  * You should have received a copy of the GNU General Public License
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  ******************************************************************************/
+
 package at.lame.hellonzb.parser;
 
 import java.util.*;
+import java.util.regex.*;
+
 import at.lame.hellonzb.tablemodels.FilesToDownloadTableModel;
 
 
 /**
- * This class acts as a queue for all download file segments.
- * Used by NntpFileDownloader class.
+ * This class acts as a queue for all download file segments, used by the
+ * NntpFileDownloader class. The files are queued by priority: PAR2 index 
+ * files first, then all other files, PAR2 recovery volumes last. Within a 
+ * priority the files keep the order of the download table, the user may
+ * change the priority of a file (even while it is downloading). All segments 
+ * of a file are handed out before the next file is started (finish file 
+ * first), so the files are completed (and decoded) one by one while the 
+ * download is running.
+ * 
+ * Each priority is a linked list of files, and each file holds an array of
+ * its segments. So taking the next segment, removing a file and changing 
+ * the priority of a file take constant time, no matter how many segments
+ * are queued.
  * 
  * @author Matthias F. Brandstetter
  */
 public class SegmentQueue
 {
-	Vector<DownloadFileSegment> segQueue;
+	/** the priorities of a file */
+	public static final int PRIO_HIGH = 0;
+	public static final int PRIO_NORMAL = 1;
+	public static final int PRIO_LOW = 2;
+	
+	/** matches PAR2 recovery volumes (e.g. "file.vol07+08.par2") */
+	private static final Pattern PAR2_VOLUME = Pattern.compile(".*\\.vol\\d+[+-]\\d+\\.par2$");
+	
+	/** the first and last file of each priority */
+	private QueuedFile [] heads;
+	private QueuedFile [] tails;
+	
+	/** all files of this queue, including the ones handed out completely (key = filename) */
+	private HashMap<String,QueuedFile> files;
+	
+	/** files removed while the download is running, not polled yet */
+	private Vector<DownloadFile> removedFiles;
+	
+	/** all files ever removed from this queue */
+	private HashSet<DownloadFile> removed;
+	
+	/** the number of segments and bytes left in this queue */
+	private int segCount;
+	private long byteCount;
 	
 
 	/** 
@@ -39,36 +76,89 @@ public class SegmentQueue
 	 */
 	public SegmentQueue(FilesToDownloadTableModel tabModel)
 	{
-		// initialize segment list
-		segQueue = new Vector<DownloadFileSegment>();
-		for(int i = 0; i < tabModel.getRowCount(); i++)
+		this(tabModel.getDownloadFileVector());
+	}
+	
+	/** 
+	 * Class constructor.
+	 * 
+	 * @param dlFiles The files to download
+	 */
+	public SegmentQueue(Vector<DownloadFile> dlFiles)
+	{
+		heads = new QueuedFile[PRIO_LOW + 1];
+		tails = new QueuedFile[PRIO_LOW + 1];
+		files = new HashMap<String,QueuedFile>();
+		removedFiles = new Vector<DownloadFile>();
+		removed = new HashSet<DownloadFile>();
+		segCount = 0;
+		byteCount = 0;
+		
+		// initialize segment lists
+		for(int i = 0; i < dlFiles.size(); i++)
 		{
-			DownloadFile dlFile = tabModel.getDownloadFile(i);
-			segQueue.addAll(dlFile.getAllSegments());
+			DownloadFile dlFile = dlFiles.get(i);
+			if(!dlFile.hasMoreSegments() || files.containsKey(dlFile.getFilename()))
+				continue;
+			
+			QueuedFile qf = new QueuedFile(dlFile);
+			files.put(dlFile.getFilename(), qf);
+			if(dlFile.getPriority() >= 0)
+				link(qf, dlFile.getPriority());
+			else
+				link(qf, defaultPriority(dlFile.getFilename()));
+			segCount += qf.segments.length;
+			byteCount += qf.bytes;
 		}
 	}
 	
+	/**
+	 * Returns the priority a file gets by default: PAR2 index files are 
+	 * downloaded first and PAR2 recovery volumes last, as the recovery
+	 * volumes are often not needed at all.
+	 * 
+	 * @param filename The name of the file
+	 * @return The priority (PRIO_HIGH, PRIO_NORMAL or PRIO_LOW)
+	 */
+	public static int defaultPriority(String filename)
+	{
+		String name = filename.toLowerCase();
+		if(!name.endsWith(".par2"))
+			return PRIO_NORMAL;
+		else if(PAR2_VOLUME.matcher(name).matches())
+			return PRIO_LOW;
+		else
+			return PRIO_HIGH;
+	}
+	
 	/**
 	 * Remove all segments the belong to the given filename.
 	 * 
 	 * @param filename The name of the download file to remove
 	 */
-	public void removeSegments(String filename)
+	public synchronized void removeSegments(String filename)
 	{
-		Vector<Integer> removeIndices = new Vector<Integer>();
+		QueuedFile qf = files.remove(filename);
+		if(qf == null)
+			return;
 		
-		synchronized(segQueue)
+		// segments still queued?
+		if(qf.pos < qf.segments.length)
 		{
-			for(int i = 0; i < segQueue.size(); i++)
-			{
-				DownloadFile dlFile = segQueue.get(i).getDlFile();
-				if(dlFile.getFilename().equals(filename))
-					removeIndices.add(i);
-			}
-			
-			for(int i = 0; i < removeIndices.size(); i++)
-				segQueue.remove(removeIndices.get(i));
+			unlink(qf);
+			segCount -= qf.segments.length - qf.pos;
+			byteCount -= qf.bytes;
 		}
+		removed.add(qf.dlFile);
+		removedFiles.add(qf.dlFile);
+	}
+	
+	/**
+	 * Remove the segments of all files of this queue.
+	 */
+	public synchronized void removeAll()
+	{
+		removeSegments(new Vector<String>(files.keySet()));
 	}
 	
 	/**
@@ -82,83 +172,213 @@ public class SegmentQueue
 			removeSegments(filenames.get(i));
 	}
 	
+	/**
+	 * Returns whether or not the given file has been removed from this queue.
+	 * 
+	 * @param dlFile The download file to check
+	 * @return True if the file has been removed
+	 */
+	public synchronized boolean isRemoved(DownloadFile dlFile)
+	{
+		return removed.contains(dlFile);
+	}
+	
+	/**
+	 * Returns the files removed since the last call of this method.
+	 * 
+	 * @return The removed files (may be empty)
+	 */
+	public synchronized Vector<DownloadFile> pollRemoved()
+	{
+		Vector<DownloadFile> vec = new Vector<DownloadFile>(removedFiles);
+		removedFiles.clear();
+		
+		return vec;
+	}
+	
+	/**
+	 * Set the priority of the given file. The file is queued behind all
+	 * other files of this priority, except for PRIO_HIGH, where it is
+	 * queued in front of them.
+	 * 
+	 * @param filename The name of the download file
+	 * @param priority The new priority (PRIO_HIGH, PRIO_NORMAL or PRIO_LOW)
+	 */
+	public synchronized void setPriority(String filename, int priority)
+	{
+		QueuedFile qf = files.get(filename);
+		if(qf == null || qf.pos == qf.segments.length || priority < PRIO_HIGH || priority > PRIO_LOW)
+			return;
+		
+		unlink(qf);
+		if(priority == PRIO_HIGH)
+			linkFirst(qf, priority);
+		else
+			link(qf, priority);
+	}
+	
+	/**
+	 * Returns the priority of the given file.
+	 * 
+	 * @param filename The name of the download file
+	 * @return The priority, or -1 if the file is not queued
+	 */
+	public synchronized int getPriority(String filename)
+	{
+		QueuedFile qf = files.get(filename);
+		
+		return (qf == null) ? -1 : qf.priority;
+	}
+	
 	/**
 	 * Return whether or not there are more segments in the queue.
 	 * 
 	 * @return True if there are more segments, false if not
 	 */
-	public boolean hasMoreSegments()
+	public synchronized boolean hasMoreSegments()
 	{
-		synchronized(segQueue)
-		{
-			return ! segQueue.isEmpty();
-		}
+		return segCount > 0;
 	}	
 	
 	/**
-	 * Return the next element found in the list of segments to download.
+	 * Return the next segment to download: the next segment of the first 
+	 * file of the highest priority.
 	 * 
 	 * @return The next element or null if none is left in queue
 	 */
-	public DownloadFileSegment nextSegment()
+	public synchronized DownloadFileSegment nextSegment()
 	{
-		synchronized(segQueue)
+		for(int prio = PRIO_HIGH; prio <= PRIO_LOW; prio++)
 		{
-			if(segQueue.isEmpty())
-				return null;
+			QueuedFile qf = heads[prio];
+			if(qf == null)
+				continue;
 			
-			DownloadFileSegment seg = segQueue.get(0);
-			segQueue.remove(0);
+			DownloadFileSegment seg = qf.segments[qf.pos++];
+			qf.bytes -= seg.getSize();
+			segCount--;
+			byteCount -= seg.getSize();
+			
+			// all segments of this file handed out?
+			if(qf.pos == qf.segments.length)
+				unlink(qf);
 			
 			return seg;
 		}
+		
+		return null;
+	}
+	
+	/**
+	 * Put a segment back in front of its file, e.g. when it could not be
+	 * requested after all. Only the segment handed out last of a file can
+	 * be put back, and only if the file has not been removed.
+	 * 
+	 * @param seg The segment returned by nextSegment()
+	 * @return True if the segment is queued again
+	 */
+	public synchronized boolean requeueSegment(DownloadFileSegment seg)
+	{
+		QueuedFile qf = files.get(seg.getDlFile().getFilename());
+		if(qf == null || qf.pos == 0 || qf.segments[qf.pos - 1] != seg)
+			return false;
+		
+		// all segments of this file handed out, so queue the file again
+		if(qf.pos == qf.segments.length)
+			linkFirst(qf, qf.priority);
+		
+		qf.pos--;
+		qf.bytes += seg.getSize();
+		segCount++;
+		byteCount += seg.getSize();
+		
+		return true;
 	}
 	
 	/**
 	 * Calculate the remaining amount of bytes left in this segment queue.
 	 */
-	public long remainingBytes()
+	public synchronized long remainingBytes()
 	{
-		long size = 0;
+		return byteCount;
+	}
+	
+	// append the given file to the list of the given priority
+	private void link(QueuedFile qf, int priority)
+	{
+		qf.priority = priority;
+		qf.prevFile = tails[priority];
+		qf.nextFile = null;
+		if(tails[priority] != null)
+			tails[priority].nextFile = qf;
+		else
+			heads[priority] = qf;
+		tails[priority] = qf;
+	}
+	
+	// insert the given file in front of the list of the given priority
+	private void linkFirst(QueuedFile qf, int priority)
+	{
+		qf.priority = priority;
+		qf.prevFile = null;
+		qf.nextFile = heads[priority];
+		if(heads[priority] != null)
+			heads[priority].prevFile = qf;
+		else
+			tails[priority] = qf;
+		heads[priority] = qf;
+	}
+	
+	// remove the given file from the list of its priority
+	private void unlink(QueuedFile qf)
+	{
+		if(qf.prevFile != null)
+			qf.prevFile.nextFile = qf.nextFile;
+		else
+			heads[qf.priority] = qf.nextFile;
+		
+		if(qf.nextFile != null)
+			qf.nextFile.prevFile = qf.prevFile;
+		else
+			tails[qf.priority] = qf.prevFile;
 		
-		synchronized(segQueue)
+		qf.prevFile = null;
+		qf.nextFile = null;
+	}
+	
+	
+	/**
+	 * A file in the queue with the segments not handed out yet.
+	 */
+	private static class QueuedFile
+	{
+		/** the download file */
+		final DownloadFile dlFile;
+		
+		/** all segments to download (in order) and the next one to hand out */
+		final DownloadFileSegment [] segments;
+		int pos;
+		
+		/** the amount of bytes not handed out yet */
+		long bytes;
+		
+		/** the priority and the neighbours within the list of this priority */
+		int priority;
+		QueuedFile prevFile;
+		QueuedFile nextFile;
+		
+		
+		QueuedFile(DownloadFile dlFile)
 		{
-			for(DownloadFileSegment seg : segQueue)
-				size += seg.getSize();
+			this.dlFile = dlFile;
+			this.segments = dlFile.getRemainingSegments();
+			this.pos = 0;
+			this.bytes = 0;
+			for(DownloadFileSegment seg : segments)
+				this.bytes += seg.getSize();
+			this.priority = PRIO_NORMAL;
+			this.prevFile = null;
+			this.nextFile = null;
 		}
-		
-		return size;
 	}
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
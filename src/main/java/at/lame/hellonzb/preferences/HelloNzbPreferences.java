@@ -52,6 +52,7 @@ public class HelloNzbPreferences
 		keys.addAll(Arrays.asList(autoKeys));
 		keys.addAll(Arrays.asList(PrefGeneralTab.getKeys()));
 		keys.addAll(Arrays.asList(PrefServerTab.getKeys()));
+		keys.addAll(Arrays.asList(PrefBackupServerTab.getKeys()));
 		keys.addAll(Arrays.asList(PrefDownloadTab.getKeys()));
 		keys.addAll(Arrays.asList(PrefExtendedTab.getKeys()));
 		keys.addAll(Arrays.asList(PrefUsageStatsTab.getKeys()));
@@ -84,6 +85,9 @@ public class HelloNzbPreferences
 	/** The JPanel of the server settings tab */
 	protected PrefServerTab serverSettingsPanel;
 	
+	/** The JPanel of the backup server settings tab */
+	protected PrefBackupServerTab backupServerSettingsPanel;
+	
 	/** The JPanel of the download settings tab */
 	protected PrefDownloadTab downloadSettingsPanel;
 	
@@ -217,6 +221,7 @@ public class HelloNzbPreferences
 		Vector<PrefTabPanel> tabs = new Vector<PrefTabPanel>();
 		tabs.add(generalSettingsPanel);
 		tabs.add(serverSettingsPanel);
+		tabs.add(backupServerSettingsPanel);
 		tabs.add(downloadSettingsPanel);
 		tabs.add(extendedSettingsPanel);
 //		tabs.add(usageStatsSettingsPanel);
@@ -371,11 +376,17 @@ public class HelloNzbPreferences
 		
 		// server settings
 		serverSettingsPanel = new PrefServerTab(mainApp, prefMap);
-		serverSettingsPanel.getStdSslCB().addActionListener(new SslCBActionListener(this));
 		stdServerPort = serverSettingsPanel.getStdServerPort();
 		sslServerPort = serverSettingsPanel.getSslServerPort();
+		serverSettingsPanel.getStdSslCB().addActionListener(new SslCBActionListener(stdServerPort, sslServerPort));
 		contentTabs.addTab(localer.getBundleText("PrefDialogServerSettingsPane"), serverSettingsPanel.getJPanel());
 		
+		// backup server settings
+		backupServerSettingsPanel = new PrefBackupServerTab(mainApp, prefMap);
+		backupServerSettingsPanel.getStdSslCB().addActionListener(new SslCBActionListener(
+				backupServerSettingsPanel.getStdServerPort(), backupServerSettingsPanel.getSslServerPort()));
+		contentTabs.addTab(localer.getBundleText("PrefDialogBackupServerSettingsPane"), backupServerSettingsPanel.getJPanel());
+		
 		// download settings
 		downloadSettingsPanel = new PrefDownloadTab(mainApp, prefMap);
 		par2CmdLineAppButton = downloadSettingsPanel.getPar2Button();
@@ -25,6 +25,8 @@ import java.io.*;
 import javax.swing.*;
 import javax.swing.filechooser.*;
 
+import at.lame.hellonzb.nntpclient.nioengine.NntpServerGroup;
+
 
 /**
  * This class handles all button actions on the preferences dialog.
@@ -113,7 +115,13 @@ public class PrefButtonActionListener implements ActionListener
 		
 		prefMain.prefDialog.setVisible(false);
 		prefMain.mainApp.resetThreadView();
+		if(prefMain.mainApp.getSpeedScheduler() != null)
+			prefMain.mainApp.getSpeedScheduler().check();
 		prefMain.mainApp.setConnSpeedLimit();
+		prefMain.mainApp.setMemoryBudget();
+		NntpServerGroup nio = prefMain.mainApp.getCurrNioClient();
+		if(nio != null)
+			nio.updateSpeedLimits();
 		
 		// system tray icon
 		pref = prefMain.prefMap.get("GeneralSettingsShowTrayIcon");
@@ -22,19 +22,25 @@ package at.lame.hellonzb.preferences;
 import java.awt.event.*;
 import javax.swing.*;
 
+import at.lame.hellonzb.util.*;
+
 
 /**
  * This class handles the SSL checkbox action on the preferences dialog.
  */
 public class SslCBActionListener implements ActionListener
 {
-	/** main preferences object */
-	private HelloNzbPreferences prefMain;
+	/** standard server port text field */
+	private NumericTextField stdServerPort;
+	
+	/** SSL server port text field */
+	private NumericTextField sslServerPort;
 	
 	
-	public SslCBActionListener(HelloNzbPreferences pref)
+	public SslCBActionListener(NumericTextField stdServerPort, NumericTextField sslServerPort)
 	{
-		this.prefMain = pref;
+		this.stdServerPort = stdServerPort;
+		this.sslServerPort = sslServerPort;
 	}
 
 	public void actionPerformed(ActionEvent e)
@@ -42,13 +48,13 @@ public class SslCBActionListener implements ActionListener
 		JCheckBox cb = (JCheckBox) e.getSource();
 		if(!cb.isSelected())
 		{
-			prefMain.stdServerPort.setEnabled(true);
-			prefMain.sslServerPort.setEnabled(false);
+			stdServerPort.setEnabled(true);
+			sslServerPort.setEnabled(false);
 		}
 		else
 		{
-			prefMain.stdServerPort.setEnabled(false);
-			prefMain.sslServerPort.setEnabled(true);
+			stdServerPort.setEnabled(false);
+			sslServerPort.setEnabled(true);
 		}
 	}
 }
@@ -32,12 +32,17 @@ import com.jgoodies.forms.layout.*;
 public class PrefDownloadTab extends PrefTabPanel
 {
 	protected static final String [] keys = new String [] { "DownloadSettingsMaxConnectionSpeed",
+															"DownloadSettingsSpeedSchedule",
+															"DownloadSettingsSmoothSpeedLimit",
 															"DownloadSettingsIgnoreCrc32Error",
 															"DownloadSettingsExtractRARArchives",
 															"DownloadSettingsPar2Check",
 															"DownloadSettingsPar2ExeLocation",
 															"DownloadSettingsExtractRARArchives",
-															"DownloadSettingsUnrarExeLocation" };
+															"DownloadSettingsUnrarExeLocation",
+															"DownloadSettingsSpoolToDisk",
+															"DownloadSettingsSpoolHeapBudget",
+															"DownloadSettingsMemoryBudget" };
 	
 	public static String [] getKeys() { return keys; }
 	
@@ -80,7 +85,7 @@ public class PrefDownloadTab extends PrefTabPanel
 		// create layout for this tab/panel
         FormLayout layout = new FormLayout(
                 "right:pref, 3dlu, [100dlu,pref]:grow, 3dlu, pref", // cols
-				"p, 3dlu, p, 9dlu, p, 3dlu, p, 3dlu, p, 9dlu, p, 3dlu, p, 3dlu, p");	// rows
+				"p, 3dlu, p, 3dlu, p, 3dlu, p, 9dlu, p, 3dlu, p, 3dlu, p, 9dlu, p, 3dlu, p, 3dlu, p, 9dlu, p, 3dlu, p, 3dlu, p, 3dlu, p");	// rows
         
         // create builder
         PanelBuilder builder = new PanelBuilder(layout, panel);
@@ -100,23 +105,34 @@ public class PrefDownloadTab extends PrefTabPanel
         builder.add(compc.label, cc.xy(1, 3));
         builder.add(compc.comp,  cc.xy(3, 3));
 
+        // time schedule of the download speed limit
+		createTextfield(compc, "DownloadSettingsSpeedSchedule", "JTextField");
+		compc.comp.setToolTipText(localer.getBundleText("DownloadSettingsSpeedScheduleHint"));
+        builder.add(compc.label, cc.xy(1, 5));
+        builder.add(compc.comp,  cc.xy(3, 5));
+
+        // smooth speed limit (token buckets)
+		createCheckbox(compc, "DownloadSettingsSmoothSpeedLimit", false);
+        builder.add(compc.label, cc.xy(1, 7));
+        builder.add(compc.comp,  cc.xy(3, 7));
+
         //////////////////////////////////////////////////////////////////////
         // group "par2 check"
         sepString = localer.getBundleText("DownloadSettingsGroupPar2Check");
-        builder.addSeparator(sepString, cc.xyw(1, 5, 5));
+        builder.addSeparator(sepString, cc.xyw(1, 9, 5));
 
         // par2 check after download
 		createCheckbox(compc, "DownloadSettingsPar2Check", false);
         par2ExtractCheckbox = (JCheckBox) compc.comp;
-        builder.add(compc.label, cc.xy(1, 7));
-        builder.add(compc.comp,  cc.xy(3, 7));
+        builder.add(compc.label, cc.xy(1, 11));
+        builder.add(compc.comp,  cc.xy(3, 11));
 		
 		// path to par2 command line tool
 		createTextfield(compc, "DownloadSettingsPar2ExeLocation", "JTextField");
 		par2LocationTextField = (JTextField) compc.comp;
-        builder.add(compc.label, 		  cc.xy(1, 9));
-        builder.add(compc.comp,  		  cc.xy(3, 9));
-        builder.add(par2CmdLineAppButton, cc.xy(5, 9));
+        builder.add(compc.label, 		  cc.xy(1, 13));
+        builder.add(compc.comp,  		  cc.xy(3, 13));
+        builder.add(par2CmdLineAppButton, cc.xy(5, 13));
         
 		if(!par2ExtractCheckbox.isSelected())
 		{
@@ -127,26 +143,48 @@ public class PrefDownloadTab extends PrefTabPanel
         //////////////////////////////////////////////////////////////////////
         // group "RAR archives"
         sepString = localer.getBundleText("DownloadSettingsGroupArcExtract");
-        builder.addSeparator(sepString, cc.xyw(1, 11, 5));
+        builder.addSeparator(sepString, cc.xyw(1, 15, 5));
 
 		// automatically extract (RAR) archive files
 		createCheckbox(compc, "DownloadSettingsExtractRARArchives", false);
 		rarExtractCheckbox = (JCheckBox) compc.comp;
-        builder.add(compc.label, cc.xy(1, 13));
-        builder.add(compc.comp,  cc.xy(3, 13));
+        builder.add(compc.label, cc.xy(1, 17));
+        builder.add(compc.comp,  cc.xy(3, 17));
 
 		// path to unrar command line tool
 		createTextfield(compc, "DownloadSettingsUnrarExeLocation", "JTextField");
 		unrarLocationTextField = (JTextField) compc.comp;
-        builder.add(compc.label, 		   cc.xy(1, 15));
-        builder.add(compc.comp,  		   cc.xy(3, 15));
-        builder.add(unrarCmdLineAppButton, cc.xy(5, 15));
+        builder.add(compc.label, 		   cc.xy(1, 19));
+        builder.add(compc.comp,  		   cc.xy(3, 19));
+        builder.add(unrarCmdLineAppButton, cc.xy(5, 19));
         
 		if(!rarExtractCheckbox.isSelected())
 		{
 			unrarLocationTextField.setEnabled(false);
 			unrarCmdLineAppButton.setEnabled(false);
 		}
+		
+        //////////////////////////////////////////////////////////////////////
+        // group "memory"
+        sepString = localer.getBundleText("DownloadSettingsGroupMemory");
+        builder.addSeparator(sepString, cc.xyw(1, 21, 5));
+
+		// write downloaded data to a spool file when above the heap budget
+		createCheckbox(compc, "DownloadSettingsSpoolToDisk", false);
+        builder.add(compc.label, cc.xy(1, 23));
+        builder.add(compc.comp,  cc.xy(3, 23));
+
+		// heap budget for downloaded data
+        createSlider(compc, "DownloadSettingsSpoolHeapBudget", 16, 512, 16, 128, 64, " MB");
+        builder.add(compc.label, 	  cc.xy(1, 25));
+        builder.add(compc.comp,  	  cc.xy(3, 25));
+        builder.add(compc.extraLabel, cc.xy(5, 25));
+
+		// global memory budget for downloaded data (reading is suspended above)
+        createSlider(compc, "DownloadSettingsMemoryBudget", 64, 2048, 64, 512, 256, " MB");
+        builder.add(compc.label, 	  cc.xy(1, 27));
+        builder.add(compc.comp,  	  cc.xy(3, 27));
+        builder.add(compc.extraLabel, cc.xy(5, 27));
 	}
 	
 	@Override
@@ -39,6 +39,10 @@ public class PrefServerTab extends PrefTabPanel
 															"ServerSettingsSSLPort",
 															"ServerSettingsThreadCount",
 															"ServerSettingsTimeout",
+															"ServerSettingsPipelineDepth",
+															"ServerSettingsIdleDisconnect",
+															"ServerSettingsAdaptiveConnections",
+															"ServerSettingsMaxSpeed",
 															"ServerSettingsUsername",
 															"ServerSettingsPassword" };
 	
@@ -69,7 +73,7 @@ public class PrefServerTab extends PrefTabPanel
 		// create layout for this tab/panel
         FormLayout layout = new FormLayout(
                 "right:pref, 3dlu, pref:grow, 3dlu, [20dlu,pref]",								// cols
-        		"p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 9dlu, p, 3dlu, p, 3dlu, p");	// rows
+        		"p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 3dlu, p, 9dlu, p, 3dlu, p, 3dlu, p");	// rows
         
         // create builder
         PanelBuilder builder = new PanelBuilder(layout, panel);
@@ -137,21 +141,44 @@ public class PrefServerTab extends PrefTabPanel
         builder.add(compc.label, 	  cc.xy(1, 15));
         builder.add(compc.comp,  	  cc.xy(3, 15));
         builder.add(compc.extraLabel, cc.xy(5, 15));
+        
+		// create slider and add to layout (via new row)
+        createSlider(compc, "ServerSettingsPipelineDepth", 1, 10, 1, 3, 1, "");
+        builder.add(compc.label, 	  cc.xy(1, 17));
+        builder.add(compc.comp,  	  cc.xy(3, 17));
+        builder.add(compc.extraLabel, cc.xy(5, 17));
+        
+		// create slider and add to layout (via new row)
+        createSlider(compc, "ServerSettingsIdleDisconnect", 1, 60, 5, 15, 10, " min");
+        builder.add(compc.label, 	  cc.xy(1, 19));
+        builder.add(compc.comp,  	  cc.xy(3, 19));
+        builder.add(compc.extraLabel, cc.xy(5, 19));
+        
+        // "adapt connection count" checkbox
+        createCheckbox(compc, "ServerSettingsAdaptiveConnections", false);
+        builder.add(compc.label, cc.xy(1, 21));
+        builder.add(compc.comp,  cc.xy(3, 21));
+
+		// max. download speed of this server
+		createTextfield(compc, "ServerSettingsMaxSpeed", "NumericTextField");
+		compc.label.setText(compc.label.getText() + " (KB/s)");
+        builder.add(compc.label, cc.xy(1, 23));
+        builder.add(compc.comp,  cc.xy(3, 23));
 	
         //////////////////////////////////////////////////////////////////////
         // group "authentication"
         sepString = localer.getBundleText("ServerSettingsGroupAuthentication");
-        builder.addSeparator(sepString, cc.xyw(1, 17, 5));
+        builder.addSeparator(sepString, cc.xyw(1, 25, 5));
         
 		// username
 		createTextfield(compc, "ServerSettingsUsername", "JTextField");
-        builder.add(compc.label, cc.xy(1, 19));
-        builder.add(compc.comp,  cc.xy(3, 19));
+        builder.add(compc.label, cc.xy(1, 27));
+        builder.add(compc.comp,  cc.xy(3, 27));
 		
 		// password
 		createTextfield(compc, "ServerSettingsPassword", "JPasswordField");
-        builder.add(compc.label, cc.xy(1, 21));
-        builder.add(compc.comp,  cc.xy(3, 21));
+        builder.add(compc.label, cc.xy(1, 29));
+        builder.add(compc.comp,  cc.xy(3, 29));
 	}
 	
 	@Override
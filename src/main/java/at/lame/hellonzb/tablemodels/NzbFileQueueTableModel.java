@@ -275,7 +275,7 @@ public class NzbFileQueueTableModel extends AbstractTableModel implements Reorde
 		JProgressBar bar = new JProgressBar(0, max);
 		bar.setBackground(Color.white);
 		bar.setName(filename);
-		bar.setString(filename);
+		bar.setString(getRowText(parser));
 		bar.setValue(0);
 		innerVector.add(bar);
 
@@ -285,6 +285,23 @@ public class NzbFileQueueTableModel extends AbstractTableModel implements Reorde
 		fireTableRowsInserted(0, tableData.size());
 	}
 	
+	/**
+	 * Update the text of the row of the given parser object, e.g. after
+	 * its download priority has been changed.
+	 * 
+	 * @param parser The NzbParser object to update
+	 */
+	public void updateRow(NzbParser parser)
+	{
+		int row = nzbFileQueue.indexOf(parser);
+		if(row >= 0)
+		{
+			JProgressBar progBar = (JProgressBar) tableData.get(row).get(0);
+			progBar.setString(getRowText(parser));
+			fireTableRowsUpdated(row, row);
+		}
+	}
+	
 	/**
 	 * This method removes the specified row in the table model.
 	 * 
@@ -379,7 +396,7 @@ public class NzbFileQueueTableModel extends AbstractTableModel implements Reorde
 		for(; row < tableData.size(); row++)
 		{
 			JProgressBar progBar = (JProgressBar) tableData.get(row).get(0);
-			String cellText = progBar.getString();
+			String cellText = progBar.getName();
 			if(cellText.equals(filename))
 				break;
 		}
@@ -389,6 +406,26 @@ public class NzbFileQueueTableModel extends AbstractTableModel implements Reorde
 		else
 			return row; 
 	}
+	
+	/**
+	 * Returns the text to display for the given parser object, that is its
+	 * filename and its download priority (unless normal).
+	 * 
+	 * @param parser The parser object
+	 * @return The text to display
+	 */
+	private String getRowText(NzbParser parser)
+	{
+		String text = HelloNzbToolkit.getLastFilename(parser.getName());
+		
+		switch(parser.getPriority())
+		{
+			case NzbParser.PRIO_HIGH:	text += " (" + localer.getBundleText("NzbQueuePriorityHigh") + ")";	break;
+			case NzbParser.PRIO_LOW:	text += " (" + localer.getBundleText("NzbQueuePriorityLow") + ")";	break;
+		}
+		
+		return text;
+	}
 }
 
 
@@ -45,7 +45,7 @@ public class TableRowTransferHandler extends TransferHandler
 
 	/**
 	 * Class constructor. If mainApp parameter is not null, then this handler
-	 * re-starts downloading with the new NZB file list.
+	 * passes the new NZB file list to the running download.
 	 */
 	public TableRowTransferHandler(JTable table, HelloNzbCradle mainApp)
 	{
@@ -130,18 +130,13 @@ public class TableRowTransferHandler extends TransferHandler
 		if(mainApp == null)
 			return;
 		
-		boolean stopped = mainApp.isDownloadActive();
-		
-		if(stopped)
-			mainApp.startDownload();
-		
 		// new first parser in queue?
 		NzbParser newFirstParser = mainApp.getNzbQueue().firstElement();
 		if(newFirstParser != firstParser)
 			mainApp.nzbQueueReordered(newFirstParser);
-			
-		if(stopped)
-			mainApp.startDownload();
+		
+		// the running download picks up the new order by itself
+		mainApp.updateNzbQueue();
 	}
 }
 
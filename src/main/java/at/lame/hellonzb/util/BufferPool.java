@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package at.lame.hellonzb.util;
+
+import java.util.*;
+
+
+/**
+ * A pool of reusable byte arrays for segment data (articles and decoded 
+ * parts). Segments are some hundred KB in size, so allocating a new array
+ * for each of them puts a lot of load on the garbage collector (such big
+ * arrays are often allocated in the old generation right away). The arrays
+ * are handed out in size classes (powers of two from 64 KB to 4 MB), the 
+ * caller leases an array for a segment and returns it when the data has 
+ * been written. Larger arrays are not pooled. Heap arrays are used instead
+ * of direct buffers, as the decoders work on byte arrays.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class BufferPool
+{
+	/** smallest and largest size class (as power of two: 64 KB and 4 MB) */
+	private static final int MIN_SHIFT = 16;
+	private static final int MAX_SHIFT = 22;
+	
+	/** max. amount of memory kept in the pool while not leased (in bytes) */
+	private static final long MAX_POOLED = 64L * 1024 * 1024;
+	
+	/** the single instance */
+	private static final BufferPool instance = new BufferPool();
+	
+	/** the free arrays of each size class */
+	private final ArrayList<LinkedList<byte []>> freeLists;
+	
+	/** max. amount of memory kept in the pool while not leased */
+	private final long maxPooled;
+	
+	/** the amount of memory in the pool and leased right now */
+	private long pooledBytes;
+	private long leasedBytes;
+	
+	/** the amount of leases and of arrays allocated for them (with their size) */
+	private long leaseCount;
+	private long allocCount;
+	private long allocBytes;
+	
+	
+	private BufferPool()
+	{
+		this.freeLists = new ArrayList<LinkedList<byte []>>();
+		for(int i = MIN_SHIFT; i <= MAX_SHIFT; i++)
+			this.freeLists.add(new LinkedList<byte []>());
+		
+		this.maxPooled = Math.min(MAX_POOLED, Runtime.getRuntime().maxMemory() / 8);
+		this.pooledBytes = 0;
+		this.leasedBytes = 0;
+		this.leaseCount = 0;
+		this.allocCount = 0;
+		this.allocBytes = 0;
+	}
+	
+	/**
+	 * Returns the single instance of this class.
+	 * 
+	 * @return The BufferPool object
+	 */
+	public static BufferPool getInstance()
+	{
+		return instance;
+	}
+	
+	/**
+	 * Lease an array of at least the given size. It should be returned by 
+	 * calling release() when it is not needed anymore.
+	 * 
+	 * @param size The min. size of the array
+	 * @return The byte array
+	 */
+	public synchronized byte [] lease(int size)
+	{
+		int shift = sizeClass(size);
+		byte [] buf = null;
+		
+		if(shift <= MAX_SHIFT)
+		{
+			buf = freeLists.get(shift - MIN_SHIFT).poll();
+			if(buf != null)
+				pooledBytes -= buf.length;
+			else
+				buf = allocate(1 << shift);
+		}
+		else
+			buf = allocate(size);
+		
+		leaseCount++;
+		leasedBytes += buf.length;
+		
+		return buf;
+	}
+	
+	/**
+	 * Lease a bigger array and copy the data of the given one to it. The
+	 * given array is returned to the pool.
+	 * 
+	 * @param buf The array to replace
+	 * @param length The amount of bytes to copy
+	 * @param size The min. size of the new array
+	 * @return The new byte array
+	 */
+	public byte [] grow(byte [] buf, int length, int size)
+	{
+		byte [] newBuf = lease(size);
+		System.arraycopy(buf, 0, newBuf, 0, length);
+		release(buf);
+		
+		return newBuf;
+	}
+	
+	/**
+	 * Return a leased array to the pool.
+	 * 
+	 * @param buf The byte array (may be null)
+	 */
+	public synchronized void release(byte [] buf)
+	{
+		if(buf == null)
+			return;
+		
+		leasedBytes -= buf.length;
+		
+		// only arrays of a size class are pooled, as long as there is space left
+		int shift = sizeClass(buf.length);
+		if(shift > MAX_SHIFT || buf.length != 1 << shift || pooledBytes + buf.length > maxPooled)
+			return;
+		
+		freeLists.get(shift - MIN_SHIFT).push(buf);
+		pooledBytes += buf.length;
+	}
+	
+	/**
+	 * Returns the amount of leases since the start.
+	 * 
+	 * @return The amount of leases
+	 */
+	public synchronized long getLeaseCount()
+	{
+		return leaseCount;
+	}
+	
+	/**
+	 * Returns the amount of arrays allocated since the start (i.e. leases
+	 * that could not be served from the pool).
+	 * 
+	 * @return The amount of arrays
+	 */
+	public synchronized long getAllocCount()
+	{
+		return allocCount;
+	}
+	
+	/**
+	 * Returns the amount of memory allocated since the start.
+	 * 
+	 * @return The amount of bytes
+	 */
+	public synchronized long getAllocBytes()
+	{
+		return allocBytes;
+	}
+	
+	/**
+	 * Returns the amount of memory kept in the pool right now.
+	 * 
+	 * @return The amount of bytes
+	 */
+	public synchronized long getPooledBytes()
+	{
+		return pooledBytes;
+	}
+	
+	/**
+	 * Returns the amount of memory leased right now.
+	 * 
+	 * @return The amount of bytes
+	 */
+	public synchronized long getLeasedBytes()
+	{
+		return leasedBytes;
+	}
+	
+	// allocate a new array
+	private byte [] allocate(int size)
+	{
+		allocCount++;
+		allocBytes += size;
+		
+		return new byte[size];
+	}
+	
+	// returns the size class (power of two) of the given size
+	private static int sizeClass(int size)
+	{
+		if(size <= 1 << MIN_SHIFT)
+			return MIN_SHIFT;
+		
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+}
@@ -53,9 +53,11 @@ public class ParserContentSaver extends Thread
 			String nzbFileName = HelloNzbToolkit.getLastFilename(nzbFile.getName());
 			
 			if(i == 0)
-				success = NzbParser.saveParserData(mainApp.getLogger(), i, nzbFileName, first);
+				success = NzbParser.saveParserData(mainApp.getLogger(), i, nzbFileName, first, 
+						nzbFile.getPriority());
 			else
-				success = NzbParser.saveParserData(mainApp.getLogger(), i, nzbFileName, nzbFile.getFiles());
+				success = NzbParser.saveParserData(mainApp.getLogger(), i, nzbFileName, nzbFile.getFiles(), 
+						nzbFile.getPriority());
 
 /*			if(success == false)
 			{
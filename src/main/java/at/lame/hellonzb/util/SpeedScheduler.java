@@ -0,0 +1,366 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package at.lame.hellonzb.util;
+
+import java.text.ParseException;
+import java.util.*;
+import javax.swing.*;
+import at.lame.hellonzb.*;
+
+
+/**
+ * This class acts as a background thread that applies a weekly time 
+ * schedule to the download speed limit. The schedule is read from the 
+ * application settings and consists of one or more time windows, separated 
+ * by semicolons. Each window has the following format:
+ *   
+ *   [days] HH:MM-HH:MM limit
+ *   
+ * "days" is a list of week days (Mo, Tu, We, Th, Fr, Sa, Su) and/or ranges
+ * of them, e.g. "Mo-Fr" or "Sa,Su". Without days the window applies to every
+ * day. "limit" is either the speed limit in KB/s, "0" or "unlimited" for no 
+ * limit at all, or "pause" to pause the download. A window may span midnight 
+ * (e.g. "22:00-06:00"), and the first matching window wins. Outside of all 
+ * windows the normal speed limit of the download settings applies.
+ * 
+ * Example: "Mo-Fr 08:00-18:00 200; Mo-Fr 18:00-23:00 pause"
+ * 
+ * When a new time window starts, the main application reconfigures the 
+ * traffic shaping handlers of the open connections (no reconnect necessary).
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class SpeedScheduler extends Thread
+{
+	/** limit value if currently no time window is active */
+	public static final long NO_WINDOW = -1L;
+	
+	/** limit value if the download should be paused */
+	public static final long PAUSE = -2L;
+	
+	/** time between two checks of the schedule (in seconds) */
+	private static final int CHECK_INTERVAL = 20;
+	
+	/** week day abbreviations, starting on Monday */
+	private static final String [] DAYS = new String [] { "mo", "tu", "we", "th", "fr", "sa", "su" };
+	
+	/** the main application object */
+	private HelloNzb mainApp;
+	
+	/** central logging object */
+	private MyLogger logger;
+	
+	/** the schedule string the current time windows were parsed from */
+	private String schedule;
+	
+	/** all time windows of the schedule */
+	private Vector<TimeWindow> windows;
+	
+	/** the limit of the currently active time window */
+	private long currLimit;
+	
+	/** global shutdown flag for this thread */
+	private volatile boolean shutdown;
+	
+	
+	/**
+	 * Class constructor.
+	 * 
+	 * @param mainApp The HelloNzb main application object
+	 */
+	public SpeedScheduler(HelloNzb mainApp)
+	{
+		this.mainApp = mainApp;
+		this.logger = mainApp.getLogger();
+		this.schedule = "";
+		this.windows = new Vector<TimeWindow>();
+		this.currLimit = NO_WINDOW;
+		this.shutdown = false;
+		
+		setDaemon(true);
+	}
+	
+	/**
+	 * Called via thread.start()
+	 */
+	public void run()
+	{
+		// run until we are asked to shutdown this thread
+		while(!shutdown)
+		{
+			check();
+			
+			try
+			{
+				Thread.sleep(CHECK_INTERVAL * 1000L);
+			}
+			catch(InterruptedException ex) {}
+		}
+	}
+	
+	/**
+	 * Read the schedule from the application settings (again) and determine
+	 * the time window that is active now. If the speed limit has changed
+	 * since the last check, the main application is told to apply it.
+	 */
+	public void check()
+	{
+		long limit = NO_WINDOW;
+		
+		synchronized(this)
+		{
+			// schedule changed in the meantime?
+			String pref = mainApp.getPrefValue("DownloadSettingsSpeedSchedule");
+			if(pref == null)
+				pref = "";
+			if(!pref.equals(schedule))
+			{
+				schedule = pref;
+				try
+				{
+					windows = parse(pref);
+				}
+				catch(ParseException e)
+				{
+					logger.msg("Invalid download speed schedule (ignored): " + e.getMessage(), 
+							MyLogger.SEV_WARNING);
+					windows = new Vector<TimeWindow>();
+				}
+			}
+			
+			limit = getLimit(Calendar.getInstance());
+			if(limit == currLimit)
+				return;
+			currLimit = limit;
+		}
+		
+		logger.msg("Download speed schedule: " + limitToString(limit), MyLogger.SEV_INFO);
+		
+		// apply new limit
+        SwingUtilities.invokeLater(new Runnable() 
+        { 
+        	public void run()
+        	{
+        		mainApp.applySpeedSchedule();
+        	}
+        } );
+	}
+	
+	/**
+	 * Returns the speed limit of the currently active time window.
+	 * 
+	 * @return The limit in KB/s (0 for no limit), NO_WINDOW or PAUSE
+	 */
+	public synchronized long getLimit()
+	{
+		return currLimit;
+	}
+	
+	/**
+	 * Tells whether or not the download should be paused right now.
+	 * 
+	 * @return either true or false
+	 */
+	public synchronized boolean isPauseWindow()
+	{
+		return currLimit == PAUSE;
+	}
+	
+	/**
+	 * Call to shutdown this thread.
+	 */
+	public void shutdown()
+	{
+		shutdown = true;
+		interrupt();
+	}
+	
+	// returns the limit of the first time window that matches the given time
+	private long getLimit(Calendar cal)
+	{
+		int day = (cal.get(Calendar.DAY_OF_WEEK) + 5) % 7; // Monday = 0
+		int minute = cal.get(Calendar.HOUR_OF_DAY) * 60 + cal.get(Calendar.MINUTE);
+		
+		for(TimeWindow window : windows)
+			if(window.matches(day, minute))
+				return window.limit;
+		
+		return NO_WINDOW;
+	}
+	
+	// returns a readable description of the given limit value
+	private String limitToString(long limit)
+	{
+		if(limit == NO_WINDOW)
+			return "no active time window";
+		else if(limit == PAUSE)
+			return "pause";
+		else if(limit == 0)
+			return "unlimited";
+		else
+			return limit + " KB/s";
+	}
+	
+	/**
+	 * Parse the given schedule string.
+	 * 
+	 * @param str The schedule string (see class description)
+	 * @return All time windows of the schedule (in order)
+	 * @throws ParseException If the schedule string is not valid
+	 */
+	private static Vector<TimeWindow> parse(String str) throws ParseException
+	{
+		Vector<TimeWindow> result = new Vector<TimeWindow>();
+		int offset = 0;
+		
+		for(String entry : str.split(";"))
+		{
+			String [] tokens = entry.trim().split("\\s+");
+			if(tokens.length == 1 && tokens[0].isEmpty())
+			{
+				offset += entry.length() + 1;
+				continue;
+			}
+			if(tokens.length < 2)
+				throw new ParseException("\"" + entry.trim() + "\"", offset);
+			
+			// week days (may contain blanks, e.g. "Sa, Su")
+			TimeWindow window = new TimeWindow();
+			StringBuilder days = new StringBuilder();
+			for(int i = 0; i < tokens.length - 2; i++)
+				days.append(tokens[i]);
+			if(days.length() == 0)
+				Arrays.fill(window.days, true);
+			else
+				parseDays(days.toString(), window.days, offset);
+			
+			// time range
+			String [] times = tokens[tokens.length - 2].split("-");
+			if(times.length != 2)
+				throw new ParseException("\"" + tokens[tokens.length - 2] + "\"", offset);
+			window.start = parseTime(times[0], offset);
+			window.end = parseTime(times[1], offset);
+			
+			// speed limit
+			window.limit = parseLimit(tokens[tokens.length - 1], offset);
+			
+			result.add(window);
+			offset += entry.length() + 1;
+		}
+		
+		return result;
+	}
+	
+	// parse a list of week days and day ranges
+	private static void parseDays(String str, boolean [] days, int offset) throws ParseException
+	{
+		for(String part : str.split(","))
+		{
+			if(part.isEmpty())
+				continue;
+			
+			String [] range = part.split("-");
+			if(range.length > 2)
+				throw new ParseException("\"" + part + "\"", offset);
+			
+			int first = parseDay(range[0], offset);
+			int last = (range.length == 2) ? parseDay(range[1], offset) : first;
+			for(int i = first; ; i = (i + 1) % 7)
+			{
+				days[i] = true;
+				if(i == last)
+					break;
+			}
+		}
+	}
+	
+	// parse a single week day (Monday = 0)
+	private static int parseDay(String str, int offset) throws ParseException
+	{
+		String day = str.toLowerCase(Locale.ENGLISH);
+		for(int i = 0; i < DAYS.length; i++)
+			if(day.startsWith(DAYS[i]))
+				return i;
+		
+		throw new ParseException("\"" + str + "\"", offset);
+	}
+	
+	// parse a time value (HH:MM) to the minute of the day
+	private static int parseTime(String str, int offset) throws ParseException
+	{
+		String [] parts = str.split(":");
+		try
+		{
+			int hour = Integer.parseInt(parts[0]);
+			int min = (parts.length == 2) ? Integer.parseInt(parts[1]) : 0;
+			if(parts.length <= 2 && hour >= 0 && min >= 0 && min < 60 && 
+					(hour < 24 || (hour == 24 && min == 0)))
+				return hour * 60 + min;
+		}
+		catch(NumberFormatException e) {}
+		
+		throw new ParseException("\"" + str + "\"", offset);
+	}
+	
+	// parse a speed limit value (KB/s, "unlimited" or "pause")
+	private static long parseLimit(String str, int offset) throws ParseException
+	{
+		if(str.equalsIgnoreCase("pause"))
+			return PAUSE;
+		if(str.equalsIgnoreCase("unlimited"))
+			return 0;
+		
+		try
+		{
+			long limit = Long.parseLong(str);
+			if(limit >= 0)
+				return limit;
+		}
+		catch(NumberFormatException e) {}
+		
+		throw new ParseException("\"" + str + "\"", offset);
+	}
+	
+	
+	/**
+	 * A single time window of the schedule.
+	 */
+	private static class TimeWindow
+	{
+		/** the week days this window starts on (Monday = 0) */
+		private boolean [] days = new boolean[7];
+		
+		/** start and end time (minute of the day) */
+		private int start;
+		private int end;
+		
+		/** the speed limit (in KB/s) or PAUSE */
+		private long limit;
+		
+		// check whether the given day and time is part of this window
+		private boolean matches(int day, int minute)
+		{
+			if(start < end)
+				return days[day] && minute >= start && minute < end;
+
+			// window spans midnight
+			return (days[day] && minute >= start) || (days[(day + 6) % 7] && minute < end);
+		}
+	}
+}
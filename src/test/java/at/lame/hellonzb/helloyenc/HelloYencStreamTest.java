@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.helloyenc;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+
+import at.lame.hellonzb.util.MyLogger;
+
+
+/**
+ * Tests for the HelloYencStream class. The decoder reads 8 bytes at once 
+ * as long as a word does not contain a special character, but only if 8 
+ * bytes of the chunk are left. So an article passed to it in one chunk is
+ * decoded mostly by the fast path, while an article passed byte by byte is 
+ * decoded by the per-byte fallback only. Both results must equal the data 
+ * the article was encoded from, and the CRC32 checksum must match.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class HelloYencStreamTest
+{
+	/** data bytes that are encoded as NUL, LF, CR and '=', i.e. that are escaped */
+	private static final int [] ESCAPED = new int [] { 214, 224, 227, 19 };
+	
+	/** the line length used if not stated otherwise */
+	private static final int LINE_LENGTH = 128;
+	
+	private final MyLogger logger = MyLogger.getInstance(null, null);
+	
+	
+	@Test
+	public void allByteValues() throws Exception
+	{
+		byte [] data = new byte[1024];
+		for(int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+		
+		checkAllChunkings(data, LINE_LENGTH);
+	}
+	
+	@Test
+	public void escapeAtEveryOffset() throws Exception
+	{
+		Random rand = new Random(1);
+		
+		// an escaped byte at every offset within the first two words
+		for(int esc : ESCAPED)
+		{
+			for(int off = 0; off < 16; off++)
+			{
+				byte [] data = plainData(rand, 40);
+				data[off] = (byte) esc;
+				checkAllChunkings(data, LINE_LENGTH);
+			}
+		}
+	}
+	
+	@Test
+	public void lineBreakAtEveryOffset() throws Exception
+	{
+		Random rand = new Random(2);
+		
+		// the CR LF of each line at every offset within the words
+		for(int lineLength = 1; lineLength <= 17; lineLength++)
+			checkAllChunkings(plainData(rand, 100), lineLength);
+	}
+	
+	@Test
+	public void chunkBoundaryAtEveryPosition() throws Exception
+	{
+		Random rand = new Random(3);
+		byte [] data = randomData(rand, 150);
+		for(int i = 0; i < 150; i += 7)
+			data[i] = (byte) ESCAPED[i % ESCAPED.length];
+		
+		byte [] article = encode(data, 32, crc32(data));
+		for(int i = 1; i < article.length; i++)
+			assertArrayEquals("split at " + i, data, decode(article, i, 0));
+	}
+	
+	@Test
+	public void randomData() throws Exception
+	{
+		Random rand = new Random(4);
+		
+		for(int n = 0; n < 50; n++)
+		{
+			byte [] data = randomData(rand, rand.nextInt(40000));
+			int lineLength = 1 + rand.nextInt(256);
+			byte [] article = encode(data, lineLength, crc32(data));
+			
+			assertArrayEquals(data, decode(article, article.length, 0));
+			assertArrayEquals(data, decode(article, 1, 0));
+			assertArrayEquals(data, decode(article, 1 + rand.nextInt(64), 0));
+		}
+	}
+	
+	@Test
+	public void directByteBuffer() throws Exception
+	{
+		byte [] data = randomData(new Random(5), 50000);
+		byte [] article = encode(data, LINE_LENGTH, crc32(data));
+		
+		ByteBuffer in = ByteBuffer.allocateDirect(article.length);
+		in.put(article);
+		in.flip();
+		
+		CountingRunnable r = new CountingRunnable();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HelloYencStream decoder = newDecoder(out, r);
+		decoder.decode(in);
+		decoder.finish();
+		
+		assertArrayEquals(data, out.toByteArray());
+		assertEquals(0, r.errors);
+	}
+	
+	@Test
+	public void crcError() throws Exception
+	{
+		byte [] data = randomData(new Random(6), 1000);
+		byte [] article = encode(data, LINE_LENGTH, crc32(data) ^ 1);
+		
+		assertArrayEquals(data, decode(article, article.length, 1));
+		assertArrayEquals(data, decode(article, 1, 1));
+	}
+	
+	/**
+	 * Decode the article in one chunk (fast path) and byte by byte (per-byte
+	 * fallback) and check both results.
+	 */
+	private void checkAllChunkings(byte [] data, int lineLength) throws Exception
+	{
+		byte [] article = encode(data, lineLength, crc32(data));
+		
+		assertArrayEquals(data, decode(article, article.length, 0));
+		assertArrayEquals(data, decode(article, 1, 0));
+		for(int chunk = 2; chunk <= 9; chunk++)
+			assertArrayEquals("chunk size " + chunk, data, decode(article, chunk, 0));
+	}
+	
+	/**
+	 * Decode the given article in chunks of the given size and return the
+	 * decoded bytes. Also check the number of CRC32 errors reported.
+	 */
+	private byte [] decode(byte [] article, int chunkSize, int crcErrors) throws Exception
+	{
+		CountingRunnable r = new CountingRunnable();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HelloYencStream decoder = newDecoder(out, r);
+		
+		// the chunks are copied to their own arrays, like the data of a socket
+		for(int off = 0; off < article.length; off += chunkSize)
+		{
+			int len = Math.min(chunkSize, article.length - off);
+			byte [] chunk = new byte[len + 2];
+			System.arraycopy(article, off, chunk, 1, len);
+			decoder.decode(chunk, 1, len);
+		}
+		decoder.finish();
+		
+		assertEquals("CRC32 errors", crcErrors, r.errors);
+		return out.toByteArray();
+	}
+	
+	private HelloYencStream newDecoder(final ByteArrayOutputStream out, HelloYencRunnable r)
+	{
+		HelloYencStream decoder = new HelloYencStream(logger);
+		decoder.setRunnable(r);
+		decoder.reset(1, new YencSink()
+		{
+			public void write(byte [] data, int off, int len)
+			{
+				out.write(data, off, len);
+			}
+		});
+		
+		return decoder;
+	}
+	
+	/**
+	 * Encode the given data as a single yenc part.
+	 */
+	private static byte [] encode(byte [] data, int lineLength, long crc) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		
+		out.write(ascii("=ybegin part=1 line=" + lineLength + " size=" + data.length + " name=test.bin\r\n"));
+		out.write(ascii("=ypart begin=1 end=" + data.length + "\r\n"));
+		
+		int col = 0;
+		for(byte b : data)
+		{
+			int c = (b + 42) & 0xff;
+			if(c == 0 || c == 10 || c == 13 || c == '=' || (col == 0 && c == '.'))
+			{
+				out.write('=');
+				c = (c + 64) & 0xff;
+				col++;
+			}
+			out.write(c);
+			
+			if(++col >= lineLength)
+			{
+				out.write(ascii("\r\n"));
+				col = 0;
+			}
+		}
+		if(col > 0)
+			out.write(ascii("\r\n"));
+		
+		out.write(ascii("=yend size=" + data.length + " part=1 pcrc32=" + 
+				String.format("%08x", crc) + "\r\n"));
+		
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Random data without bytes that need to be escaped.
+	 */
+	private static byte [] plainData(Random rand, int length)
+	{
+		byte [] data = new byte[length];
+		for(int i = 0; i < length; i++)
+			data[i] = (byte) (rand.nextInt(128) + 48);
+		
+		return data;
+	}
+	
+	private static byte [] randomData(Random rand, int length)
+	{
+		byte [] data = new byte[length];
+		rand.nextBytes(data);
+		
+		return data;
+	}
+	
+	private static long crc32(byte [] data)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		
+		return crc.getValue();
+	}
+	
+	private static byte [] ascii(String s)
+	{
+		try
+		{
+			return s.getBytes("US-ASCII");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Counts the CRC32 errors reported by the decoder.
+	 */
+	private static class CountingRunnable implements HelloYencRunnable
+	{
+		int errors = 0;
+		
+		public void crc32Error()
+		{
+			errors++;
+		}
+	}
+}
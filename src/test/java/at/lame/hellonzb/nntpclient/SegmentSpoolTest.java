@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.nntpclient;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.util.*;
+
+import org.jboss.netty.buffer.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import at.lame.hellonzb.util.MyLogger;
+
+
+/**
+ * Tests for the SegmentSpool class. With a heap budget of 0 all data is 
+ * written to the spool file, so the space of released entries must be 
+ * reused and the data read back must equal the data stored.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class SegmentSpoolTest
+{
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	
+	private final MyLogger logger = MyLogger.getInstance(null, null);
+	
+	
+	@Test
+	public void readBack() throws IOException
+	{
+		SegmentSpool spool = new SegmentSpool(logger, tmp.getRoot(), 0);
+		SegmentSpool.Entry e1 = spool.store(data(1, 1000));
+		SegmentSpool.Entry e2 = spool.store(data(2, 500));
+		
+		assertEquals(0, spool.getHeapUsed());
+		assertEquals(1500, spool.getSpoolSize());
+		assertArrayEquals(bytes(data(2, 500)), bytes(e2.getData()));
+		assertArrayEquals(bytes(data(1, 1000)), bytes(e1.getData()));
+		
+		// each call returns a buffer of its own
+		ChannelBuffer buf = e1.getData();
+		buf.skipBytes(100);
+		assertEquals(1000, e1.getData().readableBytes());
+		
+		e1.release();
+		e2.release();
+		spool.close();
+		assertEquals(0, tmp.getRoot().list().length);
+	}
+	
+	@Test
+	public void reuseReleasedSpace() throws IOException
+	{
+		SegmentSpool spool = new SegmentSpool(logger, tmp.getRoot(), 0);
+		SegmentSpool.Entry keep = spool.store(data(0, 100));
+		
+		// the spool file must not grow while only a few entries are stored at once
+		Vector<SegmentSpool.Entry> entries = new Vector<SegmentSpool.Entry>();
+		for(int i = 1; i <= 200; i++)
+		{
+			entries.add(spool.store(data(i, 1000 + (i % 7) * 100)));
+			if(entries.size() > 3)
+				entries.remove(0).release();
+		}
+		assertTrue(spool.getSpoolSize() <= 100 + 5 * 1600);
+		
+		for(SegmentSpool.Entry entry : entries)
+			assertEquals(entry.length(), entry.getData().readableBytes());
+		assertArrayEquals(bytes(data(200, 1000 + (200 % 7) * 100)), bytes(entries.lastElement().getData()));
+		assertArrayEquals(bytes(data(0, 100)), bytes(keep.getData()));
+		
+		// the free extents are merged, so the file shrinks to the entry kept
+		for(SegmentSpool.Entry entry : entries)
+			entry.release();
+		assertEquals(100, spool.getSpoolSize());
+		
+		keep.release();
+		assertEquals(0, spool.getSpoolSize());
+		spool.close();
+	}
+	
+	@Test(expected = IOException.class)
+	public void releasedEntry() throws IOException
+	{
+		SegmentSpool spool = new SegmentSpool(logger, tmp.getRoot(), 0);
+		SegmentSpool.Entry entry = spool.store(data(1, 10));
+		entry.release();
+		entry.getData();
+	}
+	
+	// create test data, different for each seed
+	private static ChannelBuffer data(int seed, int length)
+	{
+		byte [] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		
+		return ChannelBuffers.wrappedBuffer(data);
+	}
+	
+	// returns the readable bytes of the given buffer
+	private static byte [] bytes(ChannelBuffer buf)
+	{
+		byte [] data = new byte[buf.readableBytes()];
+		buf.getBytes(buf.readerIndex(), data);
+		
+		return data;
+	}
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.nntpclient.nioengine;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.jboss.netty.buffer.*;
+import org.jboss.netty.handler.codec.embedder.DecoderEmbedder;
+import org.junit.Test;
+
+
+/**
+ * Tests for the NntpResponseDecoder class: status lines, dot-unstuffing and
+ * the end of data blocks, with the input split into chunks at every position.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class NntpResponseDecoderTest
+{
+	/** two pipelined BODY replies with a 430 error in between */
+	private static final String PIPELINED = 
+		"222 0 <a@b>\r\n" +
+		"first line\r\n" +
+		"..leading dot\r\n" +
+		"..\r\n" +
+		"a.b .\r\n" +
+		".\r\n" +
+		"430 no such article\r\n" +
+		"222 0 <c@d>\r\n" +
+		"x.\r\n" +
+		". \r\n" +
+		".\rX\r\n" +
+		".\r\n";
+	
+	/** the expected results of the PIPELINED input */
+	private static final String [] PIPELINED_RESULT = new String [] {
+		"S:222 0 <a@b>\r\n",
+		"D:first line\r\n.leading dot\r\n.\r\na.b .\r\n",
+		"S:430 no such article\r\n",
+		"S:222 0 <c@d>\r\n",
+		"D:x.\r\n \r\n\rX\r\n" };
+	
+	
+	@Test
+	public void singleBody()
+	{
+		String in = "222 0 <a@b>\r\nline 1\r\nline 2\r\n.\r\n";
+		assertEquals(Arrays.asList("S:222 0 <a@b>\r\n", "D:line 1\r\nline 2\r\n"), 
+				decode(split(in)));
+	}
+	
+	@Test
+	public void emptyBody()
+	{
+		String in = "222 0 <a@b>\r\n.\r\n";
+		assertEquals(Arrays.asList("S:222 0 <a@b>\r\n", "D:"), decode(split(in)));
+	}
+	
+	@Test
+	public void singleLineResponse()
+	{
+		DecoderEmbedder<Object> decoder = new DecoderEmbedder<Object>(new NntpResponseDecoder());
+		decoder.offer(ChannelBuffers.wrappedBuffer(bytes("423 no such article number\r\n")));
+		
+		NntpResponse rsp = (NntpResponse) decoder.poll();
+		assertEquals(423, rsp.getCode());
+		assertFalse(rsp.isMultiLine());
+		assertNull(decoder.poll());
+	}
+	
+	@Test
+	public void pipelinedInOneChunk()
+	{
+		assertEquals(Arrays.asList(PIPELINED_RESULT), decode(split(PIPELINED)));
+	}
+	
+	@Test
+	public void pipelinedSplitOnce()
+	{
+		for(int i = 1; i < PIPELINED.length(); i++)
+			assertEquals("split at " + i, Arrays.asList(PIPELINED_RESULT), decode(split(PIPELINED, i)));
+	}
+	
+	@Test
+	public void pipelinedSplitTwice()
+	{
+		for(int i = 1; i < PIPELINED.length(); i++)
+			for(int j = i + 1; j < PIPELINED.length(); j++)
+				assertEquals("split at " + i + "/" + j, 
+						Arrays.asList(PIPELINED_RESULT), decode(split(PIPELINED, i, j)));
+	}
+	
+	@Test
+	public void pipelinedByteByByte()
+	{
+		int [] pos = new int[PIPELINED.length() - 1];
+		for(int i = 0; i < pos.length; i++)
+			pos[i] = i + 1;
+		
+		assertEquals(Arrays.asList(PIPELINED_RESULT), decode(split(PIPELINED, pos)));
+	}
+	
+	/**
+	 * Feed the given chunks into a new decoder and return the decoded objects:
+	 * "S:" and the status line for each NntpResponse, "D:" and the data of 
+	 * all NntpResponseData pieces up to the last one of each data block.
+	 */
+	private static List<String> decode(List<byte []> chunks)
+	{
+		DecoderEmbedder<Object> decoder = new DecoderEmbedder<Object>(new NntpResponseDecoder());
+		List<String> result = new ArrayList<String>();
+		StringBuilder data = null;
+		
+		for(byte [] chunk : chunks)
+		{
+			decoder.offer(ChannelBuffers.wrappedBuffer(chunk));
+			
+			Object msg = null;
+			while((msg = decoder.poll()) != null)
+			{
+				if(msg instanceof NntpResponse)
+				{
+					assertNull("status line within data block", data);
+					NntpResponse rsp = (NntpResponse) msg;
+					result.add("S:" + rsp.getLine());
+					if(rsp.isMultiLine())
+						data = new StringBuilder();
+				}
+				else
+				{
+					assertNotNull("data without status line", data);
+					NntpResponseData rspData = (NntpResponseData) msg;
+					data.append(rspData.getData().toString("ISO-8859-1"));
+					if(rspData.isLast())
+					{
+						result.add("D:" + data);
+						data = null;
+					}
+				}
+			}
+		}
+		
+		assertNull("data block not finished", data);
+		decoder.finish();
+		
+		return result;
+	}
+	
+	/**
+	 * Split the given string into chunks at the given (ascending) positions.
+	 */
+	private static List<byte []> split(String s, int... pos)
+	{
+		List<byte []> chunks = new ArrayList<byte []>();
+		int from = 0;
+		for(int to : pos)
+		{
+			chunks.add(bytes(s.substring(from, to)));
+			from = to;
+		}
+		chunks.add(bytes(s.substring(from)));
+		
+		return chunks;
+	}
+	
+	private static byte [] bytes(String s)
+	{
+		try
+		{
+			return s.getBytes("ISO-8859-1");
+		}
+		catch(java.io.UnsupportedEncodingException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+}
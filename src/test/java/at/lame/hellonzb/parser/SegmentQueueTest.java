@@ -0,0 +1,298 @@
+/*******************************************************************************
+ * HelloNzb -- The Binary Usenet Tool
+ * Copyright (C) 2010-2011 Matthias F. Brandstetter
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package at.lame.hellonzb.parser;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+
+/**
+ * Tests for the SegmentQueue class: the order of the files, removing files,
+ * changing the priority of a file and the number of segments/bytes left.
+ * 
+ * @author Matthias F. Brandstetter
+ */
+public class SegmentQueueTest
+{
+	@Test
+	public void defaultOrder()
+	{
+		Vector<DownloadFile> files = files("a.rar:2", "a.vol01+02.par2:1", "a.par2:1", 
+				"b.rar:2", "a.vol03+04.par2:2");
+		SegmentQueue queue = new SegmentQueue(files);
+		
+		assertEquals(Arrays.asList("a.par2#1", "a.rar#1", "a.rar#2", "b.rar#1", "b.rar#2",
+				"a.vol01+02.par2#1", "a.vol03+04.par2#1", "a.vol03+04.par2#2"), pollAll(queue));
+	}
+	
+	@Test
+	public void defaultPriority()
+	{
+		assertEquals(SegmentQueue.PRIO_HIGH, SegmentQueue.defaultPriority("File.PAR2"));
+		assertEquals(SegmentQueue.PRIO_LOW, SegmentQueue.defaultPriority("file.vol000+01.par2"));
+		assertEquals(SegmentQueue.PRIO_LOW, SegmentQueue.defaultPriority("file.vol15-31.par2"));
+		assertEquals(SegmentQueue.PRIO_NORMAL, SegmentQueue.defaultPriority("file.vol01+02.rar"));
+		assertEquals(SegmentQueue.PRIO_NORMAL, SegmentQueue.defaultPriority("file.r00"));
+	}
+	
+	@Test
+	public void priorityOfDownloadFile()
+	{
+		// a priority set by the user overrides the default one
+		Vector<DownloadFile> files = files("a.rar:1", "b.rar:1", "c.par2:1");
+		files.get(1).setPriority(SegmentQueue.PRIO_HIGH);
+		files.get(2).setPriority(SegmentQueue.PRIO_LOW);
+		SegmentQueue queue = new SegmentQueue(files);
+		
+		assertEquals(SegmentQueue.PRIO_LOW, queue.getPriority("c.par2"));
+		assertEquals(Arrays.asList("b.rar#1", "a.rar#1", "c.par2#1"), pollAll(queue));
+	}
+	
+	@Test
+	public void removeFiles()
+	{
+		Vector<DownloadFile> files = files("a.rar:1", "b.rar:1", "c.rar:1", "d.rar:1", "e.rar:1");
+		SegmentQueue queue = new SegmentQueue(files);
+		
+		// remove a file in the middle, the first and the last one
+		queue.removeSegments("c.rar");
+		queue.removeSegments("a.rar");
+		queue.removeSegments("e.rar");
+		queue.removeSegments("x.rar");
+		
+		assertTrue(queue.isRemoved(files.get(0)));
+		assertFalse(queue.isRemoved(files.get(1)));
+		assertEquals(Arrays.asList(files.get(2), files.get(0), files.get(4)), queue.pollRemoved());
+		assertTrue(queue.pollRemoved().isEmpty());
+		
+		// the list must still be linked correctly, so move a file to its end
+		queue.setPriority("b.rar", SegmentQueue.PRIO_NORMAL);
+		assertEquals(Arrays.asList("d.rar#1", "b.rar#1"), pollAll(queue));
+	}
+	
+	@Test
+	public void removePartlyHandedOutFile()
+	{
+		Vector<DownloadFile> files = files("a.rar:4", "b.rar:2");
+		SegmentQueue queue = new SegmentQueue(files);
+		
+		assertEquals("a.rar#1", name(queue.nextSegment()));
+		assertEquals("a.rar#2", name(queue.nextSegment()));
+		queue.removeSegments("a.rar");
+		
+		assertEquals(size("b.rar", 1) + size("b.rar", 2), queue.remainingBytes());
+		assertEquals(Arrays.asList("b.rar#1", "b.rar#2"), pollAll(queue));
+		
+		// the file is removed, even though all its segments have been handed out
+		queue = new SegmentQueue(files("a.rar:1", "b.rar:1"));
+		assertEquals("a.rar#1", name(queue.nextSegment()));
+		queue.removeSegments("a.rar");
+		assertEquals(1, queue.pollRemoved().size());
+		assertEquals(Arrays.asList("b.rar#1"), pollAll(queue));
+	}
+	
+	@Test
+	public void removeAll()
+	{
+		SegmentQueue queue = new SegmentQueue(files("a.rar:2", "b.par2:1", "c.vol00+01.par2:1"));
+		queue.nextSegment();
+		queue.removeAll();
+		
+		assertFalse(queue.hasMoreSegments());
+		assertEquals(0, queue.remainingBytes());
+		assertNull(queue.nextSegment());
+		assertEquals(3, queue.pollRemoved().size());
+	}
+	
+	@Test
+	public void setPriorityHighWhileDownloading()
+	{
+		SegmentQueue queue = new SegmentQueue(files("a.rar:3", "b.rar:1", "c.rar:2", "d.rar:1"));
+		
+		assertEquals("a.rar#1", name(queue.nextSegment()));
+		
+		// the high priority file comes first, the file being downloaded continues then
+		queue.setPriority("c.rar", SegmentQueue.PRIO_HIGH);
+		assertEquals(SegmentQueue.PRIO_HIGH, queue.getPriority("c.rar"));
+		assertEquals("c.rar#1", name(queue.nextSegment()));
+		
+		// a file set to high priority later is queued in front of it
+		queue.setPriority("d.rar", SegmentQueue.PRIO_HIGH);
+		assertEquals(Arrays.asList("d.rar#1", "c.rar#2", "a.rar#2", "a.rar#3", "b.rar#1"), 
+				pollAll(queue));
+	}
+	
+	@Test
+	public void setPriorityOfCurrentFile()
+	{
+		SegmentQueue queue = new SegmentQueue(files("a.par2:1", "b.rar:3", "c.rar:1"));
+		
+		assertEquals("a.par2#1", name(queue.nextSegment()));
+		assertEquals("b.rar#1", name(queue.nextSegment()));
+		
+		// the file being downloaded is queued behind the others
+		queue.setPriority("b.rar", SegmentQueue.PRIO_LOW);
+		
+		// invalid priorities and files handed out completely are ignored
+		queue.setPriority("c.rar", 3);
+		queue.setPriority("a.par2", SegmentQueue.PRIO_LOW);
+		assertEquals(SegmentQueue.PRIO_HIGH, queue.getPriority("a.par2"));
+		assertEquals(-1, queue.getPriority("x.rar"));
+		
+		assertEquals(Arrays.asList("c.rar#1", "b.rar#2", "b.rar#3"), pollAll(queue));
+	}
+	
+	@Test
+	public void requeueSegment()
+	{
+		SegmentQueue queue = new SegmentQueue(files("a.rar:2", "b.rar:1", "c.par2:1"));
+		
+		assertEquals("c.par2#1", name(queue.nextSegment()));
+		DownloadFileSegment seg = queue.nextSegment();
+		assertEquals("a.rar#1", name(seg));
+		long bytes = queue.remainingBytes();
+		
+		// the segment comes next again
+		assertTrue(queue.requeueSegment(seg));
+		assertEquals(bytes + seg.getSize(), queue.remainingBytes());
+		assertEquals("a.rar#1", name(queue.nextSegment()));
+		
+		// only the segment handed out last can be put back
+		assertEquals("a.rar#2", name(queue.nextSegment()));
+		assertFalse(queue.requeueSegment(seg));
+		
+		// a file handed out completely is queued again, in front of the others
+		DownloadFileSegment last = queue.nextSegment();
+		assertEquals("b.rar#1", name(last));
+		assertFalse(queue.hasMoreSegments());
+		assertTrue(queue.requeueSegment(last));
+		assertTrue(queue.hasMoreSegments());
+		assertEquals(Arrays.asList("b.rar#1"), pollAll(queue));
+		
+		// the segments of removed files are not queued again
+		queue.removeSegments("b.rar");
+		assertFalse(queue.requeueSegment(last));
+		assertFalse(queue.hasMoreSegments());
+	}
+	
+	@Test
+	public void totals()
+	{
+		Vector<DownloadFile> files = files("a.rar:3", "b.par2:2", "c.rar:1", "d.vol0+1.par2:2");
+		
+		// files without segments and duplicate filenames are not queued
+		files.add(new DownloadFile("poster", "0", "\"e.rar\" yEnc (0/0)", "test"));
+		files.addAll(files("a.rar:5"));
+		SegmentQueue queue = new SegmentQueue(files);
+		
+		long bytes = 0;
+		int count = 0;
+		for(DownloadFile dlFile : files.subList(0, 4))
+		{
+			bytes += dlFile.getTotalFileSize();
+			count += dlFile.getSegCount();
+		}
+		assertEquals(bytes, queue.remainingBytes());
+		
+		// take segments, remove one file and change the priority of another one
+		for(int i = 0; i < 3; i++)
+		{
+			DownloadFileSegment seg = queue.nextSegment();
+			bytes -= seg.getSize();
+			count--;
+			assertEquals(bytes, queue.remainingBytes());
+		}
+		assertEquals("a.rar#2", name(queue.nextSegment()));
+		bytes -= size("a.rar", 2);
+		count--;
+		
+		queue.removeSegments("a.rar");
+		bytes -= size("a.rar", 3);
+		count--;
+		assertEquals(bytes, queue.remainingBytes());
+		
+		queue.setPriority("d.vol0+1.par2", SegmentQueue.PRIO_HIGH);
+		assertEquals(bytes, queue.remainingBytes());
+		
+		// the remaining segments
+		int left = 0;
+		while(queue.hasMoreSegments())
+		{
+			bytes -= queue.nextSegment().getSize();
+			left++;
+		}
+		assertEquals(count, left);
+		assertEquals(0, bytes);
+		assertEquals(0, queue.remainingBytes());
+		assertNull(queue.nextSegment());
+	}
+	
+	/**
+	 * Take all segments from the queue and return their names.
+	 */
+	private static List<String> pollAll(SegmentQueue queue)
+	{
+		List<String> names = new ArrayList<String>();
+		DownloadFileSegment seg = null;
+		while((seg = queue.nextSegment()) != null)
+			names.add(name(seg));
+		
+		assertFalse(queue.hasMoreSegments());
+		assertEquals(0, queue.remainingBytes());
+		
+		return names;
+	}
+	
+	private static String name(DownloadFileSegment seg)
+	{
+		return seg.getDlFile().getFilename() + "#" + seg.getIndex();
+	}
+	
+	/**
+	 * Create download files, each given as "filename:segment count".
+	 */
+	private static Vector<DownloadFile> files(String... specs)
+	{
+		Vector<DownloadFile> files = new Vector<DownloadFile>();
+		for(String spec : specs)
+		{
+			String name = spec.substring(0, spec.lastIndexOf(':'));
+			int count = Integer.parseInt(spec.substring(spec.lastIndexOf(':') + 1));
+			
+			DownloadFile dlFile = new DownloadFile("poster", "0", 
+					"\"" + name + "\" yEnc (1/" + count + ")", "test");
+			dlFile.addGroup("alt.binaries.test");
+			for(int i = 1; i <= count; i++)
+				dlFile.addSegment(new DownloadFileSegment(dlFile, size(name, i), i, dlFile.getGroups()));
+			files.add(dlFile);
+		}
+		
+		return files;
+	}
+	
+	/**
+	 * The size of a segment, different for each segment of a test.
+	 */
+	private static long size(String name, int index)
+	{
+		return 1000 * index + (name.hashCode() & 0xff);
+	}
+}